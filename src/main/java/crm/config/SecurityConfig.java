@@ -85,6 +85,9 @@ public class SecurityConfig {
                         .requestMatchers("/whatsapp/send-message").permitAll()
                         .requestMatchers("/whatsapp/modify-chat").permitAll()
 
+                        // Ingest stats, webhook replay and backfill jobs
+                        .requestMatchers("/api/whatsapp/admin/**", "/whatsapp/admin/**").hasRole("ADMIN")
+
                         // Other WhatsApp endpoints require auth
                         .requestMatchers("/api/whatsapp/**").authenticated()
 
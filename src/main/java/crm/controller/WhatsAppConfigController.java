@@ -576,6 +576,7 @@ public class WhatsAppConfigController {
             ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.DELETE, entity, Map.class);
 
             if (response.getStatusCode().is2xxSuccessful()) {
+                service.invalidateInstanceRoute(instanceId);
                 return ResponseEntity.ok(Map.of(
                     "success", true,
                     "response", response.getBody()
@@ -634,6 +635,7 @@ public class WhatsAppConfigController {
             ResponseEntity<Map<String, Object>> response = restTemplate.exchange(url, HttpMethod.PUT, entity, new ParameterizedTypeReference<Map<String, Object>>() {});
 
             if (response.getStatusCode().is2xxSuccessful()) {
+                service.invalidateInstanceRoute(instanceId);
                 return ResponseEntity.ok(Map.of(
                     "success", true,
                     "response", response.getBody()
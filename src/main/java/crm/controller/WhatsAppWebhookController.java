@@ -6,27 +6,48 @@ import crm.model.WebhookUpdateRequest;
 import crm.dto.WhatsAppIncomingMessageDTO;
 import crm.dto.ChatPresenceDTO;
 import crm.dto.MessageStatusDTO;
+import crm.dto.IncomingZapiEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import crm.repository.WhatsAppMessageExport;
+import crm.service.WhatsAppMessageBackfillService;
 import crm.service.WhatsAppMessageService;
 import crm.service.WhatsAppSseService;
 import crm.service.WhatsAppConfigService;
+import crm.service.WhatsAppIngestService;
+import crm.service.WebhookAdmissionControl;
+import crm.service.WebhookReplayService;
+import crm.service.WebhookSpool;
+import crm.service.ZapiWebhookDecoder;
+import crm.tenant.TenantResolver;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import crm.service.WhatsappService;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import jakarta.servlet.http.HttpServletRequest;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
 
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 
@@ -40,172 +61,181 @@ public class WhatsAppWebhookController {
     private final WhatsAppConfigService configService;
     private final crm.service.WhatsAppContactService contactService;
     private final WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist;
+    private final WhatsAppIngestService ingestService;
+    private final ZapiWebhookDecoder zapiDecoder;
+    private final WebhookAdmissionControl admission;
+    private final WebhookSpool spool;
+    private final WebhookReplayService replayService;
+    private final WhatsAppMessageBackfillService backfillService;
+    private final TenantResolver tenantResolver;
     private static final Logger log = LoggerFactory.getLogger(WhatsAppWebhookController.class);
+    static final String EXPORT_SLOT = WhatsAppWebhookController.class.getName() + ".exportSlot";
     @PersistenceContext
     private EntityManager entityManager;
 
-    public WhatsAppWebhookController(WhatsAppMessageService messageService, WhatsappService whatsappService, crm.service.WhatsAppContactService contactService, WhatsAppSseService sseService, WhatsAppConfigService configService, WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist) {
+    // Only the export request gets it; every other async response keeps spring.mvc.async.request-timeout
+    @Value("${whatsapp.export.timeout-ms:21600000}")
+    private long exportTimeoutMs = 21600000;
+
+    public WhatsAppWebhookController(WhatsAppMessageService messageService, WhatsappService whatsappService, crm.service.WhatsAppContactService contactService, WhatsAppSseService sseService, WhatsAppConfigService configService, WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist, WhatsAppIngestService ingestService, ZapiWebhookDecoder zapiDecoder, WebhookAdmissionControl admission, WebhookSpool spool, WebhookReplayService replayService, WhatsAppMessageBackfillService backfillService, TenantResolver tenantResolver) {
         this.messageService = messageService;
         this.whatsappService = whatsappService;
         this.contactService = contactService;
         this.sseService = sseService;
         this.configService = configService;
         this.webhookDebugPersist = webhookDebugPersist;
+        this.ingestService = ingestService;
+        this.zapiDecoder = zapiDecoder;
+        this.admission = admission;
+        this.spool = spool;
+        this.replayService = replayService;
+        this.backfillService = backfillService;
+        this.tenantResolver = tenantResolver;
     }
 
-    // Webhook receiver from Z-API or custom providers
-    @org.springframework.transaction.annotation.Transactional
+    // Webhook receiver from Z-API or custom providers.
+    // Not @Transactional: in async ingest mode the request thread must not hold a pooled connection.
     @PostMapping(value = "/webhook", consumes = "application/json")
     public ResponseEntity<?> receiveWebhook(@RequestHeader Map<String, String> headers,
-                                            @RequestBody(required = false) Map<String, Object> body) {
+                                            @RequestBody(required = false) byte[] body) {
         try {
-            System.out.println("### ENTROU NO HANDLER /webhook ###");
+            String raw = body != null ? new String(body, StandardCharsets.UTF_8) : null;
             log.info("[WEBHOOK RAW] headers: {}", headers != null ? headers.keySet() : null);
-            log.info("[WEBHOOK RAW] body keys: {}", body != null ? body.keySet() : null);
-            log.info("[Z-API WEBHOOK] {}", body);
-            System.out.println("[Z-API WEBHOOK]: " + body);
-            if (body == null || body.isEmpty()) {
-                System.out.println("[Z-API WEBHOOK]: payload NULL!");
+            log.info("[Z-API WEBHOOK] {}", raw);
+            IncomingZapiEvent event = zapiDecoder.threadEvent();
+            boolean decoded;
+            try {
+                decoded = zapiDecoder.decodeInto(body, event);
+            } catch (JsonProcessingException e) {
+                // Unparseable body: Z-API would resend it unchanged, so no point in a retryable status
+                log.warn("[WEBHOOK] JSON inválido: {}", e.getOriginalMessage());
+                return ResponseEntity.badRequest().body(Map.of("success", false, "reason", "invalid json"));
+            }
+            if (!decoded) {
                 log.warn("Webhook recebido com corpo vazio");
                 return ResponseEntity.ok(Map.of("success", false, "reason", "empty payload"));
             }
-
-            Object fromMeObjRaw = body.get("fromMe");
-            Map<String, Object> msgMap = null;
-            Object msgObj = body.get("message");
-            if (msgObj instanceof Map<?, ?> m) {
-                //noinspection unchecked
-                msgMap = (Map<String, Object>) m;
-                if (fromMeObjRaw == null) fromMeObjRaw = msgMap.get("fromMe");
-            }
-            boolean isFromMeLog = Boolean.parseBoolean(String.valueOf(fromMeObjRaw));
-            String phoneLog = String.valueOf(body.getOrDefault("phone", body.getOrDefault("phones", "")));
-            if (phoneLog == null || phoneLog.isBlank()) {
-                Object contactObj = body.get("contact");
-                if (contactObj instanceof Map<?, ?> c) {
-                    Object cid = ((Map<?, ?>) c).get("id");
-                    if (cid != null) phoneLog = String.valueOf(cid);
-                }
-            }
-            String messageIdLog = null;
-            if (msgMap != null) messageIdLog = String.valueOf(msgMap.getOrDefault("id", ""));
-            if (messageIdLog == null || messageIdLog.isBlank()) messageIdLog = String.valueOf(body.getOrDefault("messageId", ""));
-            log.info("[WEBHOOK] received fromMe={} phone={} messageId={}", isFromMeLog, phoneLog, messageIdLog);
+            logReceived(event);
 
             // Try native format first (our internal contract): { type: "message", message: { ... } }
-            String type = String.valueOf(body.getOrDefault("type", ""));
-
-            if ("message".equalsIgnoreCase(type) && body.get("message") instanceof Map) {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> messagePayload = (Map<String, Object>) body.get("message");
-                boolean looksNative = messagePayload.containsKey("contactId") || messagePayload.containsKey("content");
-                if (looksNative) {
-                    WhatsAppIncomingMessageDTO dto = mapToDto(messagePayload);
+            IncomingZapiEvent.MessagePart nativeMessage = event.getMessage();
+            if (event.isType("message") && nativeMessage.isPresent()
+                    && (nativeMessage.isContactIdPresent() || nativeMessage.isContentPresent())) {
+                WhatsAppIncomingMessageDTO dto = nativeToDto(nativeMessage);
+                if (!admission.tryAcquireMessage()) return overloaded("message");
+                try {
                     messageService.saveIncomingMessage(dto);
-                    log.info("Mensagem recebida (native): id={}, contato={}", dto.getId(), dto.getContactId());
-                    return ResponseEntity.ok(Map.of("success", true));
+                } finally {
+                    admission.releaseMessage();
                 }
+                log.info("Mensagem recebida (native): id={}, contato={}", dto.getId(), dto.getContactId());
+                return ResponseEntity.ok(Map.of("success", true));
             }
 
             // Z-API adapter: map common webhook payloads into our internal format
-            Map<String, Object> adapted = adaptZapiPayload(body);
+            Map<String, Object> adapted = zapiDecoder.adapt(event);
             if (adapted != null) {
                 log.info("Z-API adaptado: {}", adapted);
-                Object cid = adapted.get("contactId");
-                Object cnt = adapted.get("content");
-                if (cid == null || String.valueOf(cid).isBlank() || cnt == null || String.valueOf(cnt).isBlank()) {
+                if (!zapiDecoder.isInboundMessage(event, adapted)) {
                     return ResponseEntity.ok(Map.of("success", true, "ignored", true));
                 }
-                String zType = String.valueOf(body.getOrDefault("type", ""));
-                Object fromMeObj = adapted.get("isFromMe");
-                boolean isFromMe = fromMeObj instanceof Boolean ? (Boolean) fromMeObj : false;
-                boolean isReceivedCallback = zType.equalsIgnoreCase("ReceivedCallback") || zType.equalsIgnoreCase("message");
-                if (!isReceivedCallback || isFromMe) {
-                    return ResponseEntity.ok(Map.of("success", true, "ignored", true));
+                if (spool.isEnabled()) {
+                    // Acked once the raw body is fsynced to the spool; the spool consumer does the ingest
+                    WebhookSpool.AppendResult spooled = spool.append(body);
+                    if (spooled == WebhookSpool.AppendResult.ACCEPTED) {
+                        return ResponseEntity.ok(Map.of("success", true, "adapted", true, "spooled", true));
+                    }
+                    admission.recordMessageRejected();
+                    if (spooled == WebhookSpool.AppendResult.NOT_DURABLE) {
+                        // Not on disk yet: an ack now could lose the message; Z-API retries and ingest dedupes
+                        log.warn("[SPOOL] fsync não confirmado, respondendo 503: id={}", adapted.get("id"));
+                        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                                .header(HttpHeaders.RETRY_AFTER, String.valueOf(admission.retryAfterSeconds()))
+                                .body(Map.of("success", false, "reason", "spool-not-durable"));
+                    }
+                    log.warn("[SPOOL] spool cheio, respondendo 429: id={}", adapted.get("id"));
+                    return overloaded("message");
+                }
+                String instanceId = event.getInstanceId() != null ? event.getInstanceId().trim() : "";
+                String rawPhone = zapiDecoder.rawPhone(event);
+                if (ingestService.isAsync()) {
+                    if (ingestService.enqueue(raw, adapted, instanceId, rawPhone)) {
+                        return ResponseEntity.ok(Map.of("success", true, "adapted", true, "queued", true));
+                    }
+                    // A sync fallback would overtake the queued messages of this chat; let Z-API retry instead
+                    admission.recordMessageRejected();
+                    log.warn("[INGEST] lane cheia, respondendo 429: id={}", adapted.get("id"));
+                    return overloaded("message");
                 }
-                String instanceId = String.valueOf(body.getOrDefault("instanceId", "")).trim();
-                String companyId = configService.resolveCompanyIdByInstanceId(instanceId);
-                if (companyId == null || companyId.isBlank()) {
+                if (!admission.tryAcquireMessage()) {
+                    log.warn("[ADMISSION] limite de mensagens simultâneas atingido, respondendo 429: id={}", adapted.get("id"));
+                    return overloaded("message");
+                }
+                // Persists message and contact in a single transaction; the raw debug row is written asynchronously
+                WhatsAppIngestService.IngestResult result;
+                try {
+                    result = ingestService.ingestNow(raw, adapted, instanceId, rawPhone);
+                } finally {
+                    admission.releaseMessage();
+                }
+                if (result == null) {
                     return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                             .body(Map.of("success", false, "reason", "unknown-instance"));
                 }
+                if (result.duplicate()) {
+                    log.info("[WEBHOOK] reenvio ignorado (mensagem já recebida): id={}", adapted.get("id"));
+                    return ResponseEntity.ok(Map.of("success", true, "duplicate", true));
+                }
+                String companyId = result.companyId();
                 Map<String, Object> enriched = new java.util.LinkedHashMap<>(adapted);
                 enriched.put("companyId", companyId);
-                try {
-                    com.fasterxml.jackson.databind.ObjectMapper om = new com.fasterxml.jackson.databind.ObjectMapper();
-                    String rawJson = om.writeValueAsString(body);
-                    String rawPhone = String.valueOf(body.getOrDefault("participant",
-                            body.getOrDefault("phone", body.getOrDefault("from", ""))));
-                    String debugId = webhookDebugPersist.persistDebug(rawJson, instanceId, String.valueOf(enriched.get("id")), rawPhone);
-                    if (debugId == null) {
-                        log.debug("[WEBHOOK DEBUG] persistDebug retornou null (continuando)");
-                    } else {
-                        log.debug("[WEBHOOK DEBUG] persisted debugId={}", debugId);
-                    }
-                } catch (Exception ignore) {
-                    log.debug("[WEBHOOK DEBUG] erro ao serializar body para JSON (continuando)", ignore);
-                }
-                messageService.saveIncomingMessage(enriched);
-                String clientKey = resolveClientKey();
-                sseService.publish(clientKey, Map.of("type","message","payload", enriched));
-                // Upsert contact by phone for persistence
-                String adaptedContactId = String.valueOf(enriched.get("contactId"));
-                if (adaptedContactId != null && !adaptedContactId.isBlank()) {
-                    contactService.upsert(adaptedContactId, null, companyId);
-                }
+                sseService.publish(companyId, String.valueOf(enriched.get("contactId")), Map.of("type","message","payload", enriched));
                 log.info("Mensagem recebida (Z-API adaptada): id={}, contato={} companyId={}", enriched.get("id"), enriched.get("contactId"), companyId);
                 return ResponseEntity.ok(Map.of("success", true, "adapted", true));
             }
 
             // Handle chat presence webhooks
-            if ("PresenceChatCallback".equalsIgnoreCase(String.valueOf(body.get("type")))) {
-                log.info("[WEBHOOK] Chat presence received: {}", body);
+            if (event.isType("PresenceChatCallback")) {
+                log.info("[WEBHOOK] Chat presence received: phone={} status={}", event.getPhone(), event.getStatus());
                 ChatPresenceDTO presence = new ChatPresenceDTO();
-                presence.setType(String.valueOf(body.get("type")));
-                presence.setPhone(String.valueOf(body.get("phone")));
-                presence.setStatus(String.valueOf(body.get("status")));
-                Object lastSeen = body.get("lastSeen");
-                if (lastSeen instanceof Number) {
-                    presence.setLastSeen(((Number) lastSeen).longValue());
-                }
-                presence.setInstanceId(String.valueOf(body.get("instanceId")));
+                presence.setType(event.getType());
+                presence.setPhone(String.valueOf(event.getPhone()));
+                presence.setStatus(String.valueOf(event.getStatus()));
+                presence.setLastSeen(event.getLastSeen());
+                presence.setInstanceId(String.valueOf(event.getInstanceId()));
                 
-                String clientKey = resolveClientKey();
-                Map<String, Object> payload = Map.of(
-                    "type", "chat_presence",
-                    "phone", presence.getPhone(),
-                    "status", presence.getStatus(),
-                    "lastSeen", presence.getLastSeen(),
-                    "instanceId", presence.getInstanceId()
-                );
-                sseService.publish(clientKey, payload);
+                String companyId = configService.resolvePublishCompanyId(event.getInstanceId());
+                // lastSeen is often absent, so no Map.of here
+                Map<String, Object> payload = new java.util.LinkedHashMap<>();
+                payload.put("type", "chat_presence");
+                payload.put("phone", presence.getPhone());
+                payload.put("status", presence.getStatus());
+                payload.put("lastSeen", presence.getLastSeen());
+                payload.put("instanceId", presence.getInstanceId());
+                // Only the latest presence per chat matters; published by the presence lane
+                admission.offerPresence(companyId, presence.getPhone(), presence.getInstanceId() + "|" + presence.getPhone(), payload);
                 
                 return ResponseEntity.ok(Map.of("success", true, "type", "chat_presence"));
             }
 
             // Handle message status webhooks
-            if ("MessageStatusCallback".equalsIgnoreCase(String.valueOf(body.get("type")))) {
-                log.info("[WEBHOOK] Message status received: {}", body);
+            if (event.isType("MessageStatusCallback")) {
+                log.info("[WEBHOOK] Message status received: phone={} status={} ids={}", event.getPhone(), event.getStatus(), event.getIds());
                 MessageStatusDTO status = new MessageStatusDTO();
-                status.setType(String.valueOf(body.get("type")));
-                status.setInstanceId(String.valueOf(body.get("instanceId")));
-                status.setStatus(String.valueOf(body.get("status")));
-                status.setPhone(String.valueOf(body.get("phone")));
-                status.setPhoneDevice(body.get("phoneDevice") instanceof Number ? ((Number) body.get("phoneDevice")).intValue() : 0);
-                status.setIsGroup(Boolean.TRUE.equals(body.get("isGroup")));
-                
-                Object momment = body.get("momment");
-                if (momment instanceof Number) {
-                    status.setMomment(((Number) momment).longValue());
+                status.setType(event.getType());
+                status.setInstanceId(String.valueOf(event.getInstanceId()));
+                status.setStatus(String.valueOf(event.getStatus()));
+                status.setPhone(String.valueOf(event.getPhone()));
+                status.setPhoneDevice(event.getPhoneDevice() != null ? event.getPhoneDevice() : 0);
+                status.setIsGroup(event.isGroup());
+                if (event.getMommentMillis() != null) {
+                    status.setMomment(event.getMommentMillis());
                 }
-                
-                Object ids = body.get("ids");
-                if (ids instanceof java.util.List) {
-                    java.util.List<?> idsList = (java.util.List<?>) ids;
-                    status.setIds(idsList.stream().map(String::valueOf).toArray(String[]::new));
+                if (!event.getIds().isEmpty()) {
+                    status.setIds(event.getIds().toArray(String[]::new));
                 }
                 
-                String clientKey = resolveClientKey();
+                String companyId = configService.resolvePublishCompanyId(event.getInstanceId());
                 Map<String, Object> payload = Map.of(
                     "type", "message_status",
                     "phone", status.getPhone(),
@@ -214,7 +244,9 @@ public class WhatsAppWebhookController {
                     "instanceId", status.getInstanceId(),
                     "isGroup", status.getIsGroup()
                 );
-                sseService.publish(clientKey, payload);
+                if (!admission.offerStatus(companyId, status.getPhone(), status.getIds(), status.getStatus(), payload)) {
+                    return overloaded("status");
+                }
                 
                 return ResponseEntity.ok(Map.of("success", true, "type", "message_status"));
             }
@@ -227,9 +259,31 @@ public class WhatsAppWebhookController {
         }
     }
 
+    private ResponseEntity<?> overloaded(String lane) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(admission.retryAfterSeconds()))
+                .body(Map.of("success", false, "reason", "overloaded", "lane", lane));
+    }
+
     @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter stream(@RequestParam(value = "clientKey", required = false) String clientKey) {
-        throw new org.springframework.web.server.ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Temporariamente indisponível");
+    public SseEmitter stream(@RequestParam(value = "topics", required = false) String topics,
+                             @RequestParam(value = "contactId", required = false) String contactId,
+                             @RequestParam(value = "batch", defaultValue = "false") boolean batch,
+                             @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        // Always the caller's own company; topics is a comma-separated subset of message,chat_presence,message_status.
+        // batch=true lets status/presence events arrive grouped in "batch" events
+        String companyId = tenantResolver.getCurrentCompanyId();
+        Set<String> wanted = new java.util.HashSet<>();
+        if (topics != null) {
+            for (String t : topics.split(",")) {
+                if (!t.isBlank()) wanted.add(t.trim().toLowerCase());
+            }
+        }
+        try {
+            return sseService.subscribe(companyId, wanted, contactId, batch, lastEventId);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
     }
 
     @GetMapping("/webhook/debug-last")
@@ -256,73 +310,128 @@ public class WhatsAppWebhookController {
         }
     }
 
+    @GetMapping("/admin/ingest-stats")
+    public ResponseEntity<?> ingestStats() {
+        return ResponseEntity.ok(Map.of(
+                "ingest", ingestService.snapshot(),
+                "debug", webhookDebugPersist.snapshot(),
+                "routing", configService.routingSnapshot(),
+                "admission", admission.snapshot(),
+                "spool", spool.snapshot(),
+                "sse", sseService.snapshot(),
+                "search", messageService.searchSnapshot(),
+                "messageCache", messageService.messageCacheSnapshot(),
+                "partitions", messageService.partitionSnapshot(),
+                "export", messageService.exportSnapshot()));
+    }
+
+    // Adds content_tsv and builds the search indexes in the background; progress under "search" in ingest-stats
+    @PostMapping("/admin/search-indexes")
+    public ResponseEntity<?> migrateSearchIndexes() {
+        if (!messageService.startSearchMigration()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("success", false, "error", "migração já em execução"));
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(messageService.searchSnapshot());
+    }
+
+    // Re-runs captured webhooks (whatsapp_webhook_debug) through ingest; from/to are ISO instants or UTC days
+    @PostMapping("/admin/webhook-replay")
+    public ResponseEntity<?> startWebhookReplay(@RequestParam("from") String from,
+                                                @RequestParam("to") String to,
+                                                @RequestParam(value = "instanceId", required = false) String instanceId,
+                                                @RequestParam(value = "phone", required = false) String phone,
+                                                @RequestParam(value = "workers", required = false) Integer workers) {
+        try {
+            WebhookReplayService.ReplayJob job = replayService.start(
+                    WebhookReplayService.parseInstant(from), WebhookReplayService.parseInstant(to), instanceId, phone, workers);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job.snapshot());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("success", false, "error", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("success", false, "error", String.valueOf(e.getMessage())));
+        }
+    }
+
+    @GetMapping("/admin/webhook-replay")
+    public ResponseEntity<?> listWebhookReplays() {
+        return ResponseEntity.ok(Map.of("jobs", replayService.list()));
+    }
+
+    @GetMapping("/admin/webhook-replay/{jobId}")
+    public ResponseEntity<?> webhookReplayStatus(@PathVariable String jobId) {
+        return replayService.find(jobId)
+                .<ResponseEntity<?>>map(job -> ResponseEntity.ok(job.snapshot()))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("success", false, "error", "job não encontrado")));
+    }
+
+    @DeleteMapping("/admin/webhook-replay/{jobId}")
+    public ResponseEntity<?> cancelWebhookReplay(@PathVariable String jobId) {
+        return ResponseEntity.ok(Map.of("success", replayService.cancel(jobId)));
+    }
+
+    // Gives messages stored without company the company of their contact, in batches in the background;
+    // afterId resumes from the cursor of a failed or cancelled job
     @PostMapping("/admin/backfill-messages")
-    public ResponseEntity<?> backfillMessages(@RequestParam(value = "contactId", required = false) String contactId) {
+    public ResponseEntity<?> backfillMessages(@RequestParam(value = "contactId", required = false) String contactId,
+                                              @RequestParam(value = "afterId", required = false) Long afterId) {
         try {
-            int updated = messageService.backfillCompanyIdForNullMessages(contactId);
-            return ResponseEntity.ok(Map.of("success", true, "updated", updated));
+            WhatsAppMessageBackfillService.BackfillJob job = backfillService.start(contactId, afterId);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(job.snapshot());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("success", false, "error", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("success", false, "error", e.getMessage()));
+                    .body(Map.of("success", false, "error", String.valueOf(e.getMessage())));
         }
     }
 
+    @GetMapping("/admin/backfill-messages")
+    public ResponseEntity<?> listBackfills() {
+        return ResponseEntity.ok(Map.of("jobs", backfillService.list()));
+    }
+
+    @GetMapping("/admin/backfill-messages/{jobId}")
+    public ResponseEntity<?> backfillStatus(@PathVariable String jobId) {
+        return backfillService.find(jobId)
+                .<ResponseEntity<?>>map(job -> ResponseEntity.ok(job.snapshot()))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("success", false, "error", "job não encontrado")));
+    }
+
+    @DeleteMapping("/admin/backfill-messages/{jobId}")
+    public ResponseEntity<?> cancelBackfill(@PathVariable String jobId) {
+        return ResponseEntity.ok(Map.of("success", backfillService.cancel(jobId)));
+    }
+
     @PostMapping(value = "/webhook", consumes = {"text/plain", "application/octet-stream"})
     public ResponseEntity<?> logAnyWebhook(@RequestHeader Map<String, String> headers,
                                            HttpServletRequest request) throws IOException {
-        String raw;
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream()))) {
-            raw = reader.lines().collect(Collectors.joining("\n"));
-        }
+        byte[] body = request.getInputStream().readAllBytes();
         log.info("[WEBHOOK RAW] headers: {}", headers != null ? headers.keySet() : null);
-        String preview = raw != null ? raw : "null";
-        log.info("[WEBHOOK RAW] raw preview: {}", preview.substring(0, Math.min(1000, preview.length())));
+        String preview = new String(body, 0, Math.min(1000, body.length), StandardCharsets.UTF_8);
+        log.info("[WEBHOOK RAW] raw preview: {}", preview);
 
-        Map<String, Object> parsed = null;
+        IncomingZapiEvent event = zapiDecoder.threadEvent();
+        boolean parsed = false;
         try {
-            com.fasterxml.jackson.databind.ObjectMapper om = new com.fasterxml.jackson.databind.ObjectMapper();
-            parsed = om.readValue(raw, new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>(){});
+            parsed = zapiDecoder.decodeInto(body, event);
         } catch (Exception ex) {
             log.warn("[WEBHOOK RAW] failed to parse JSON: {}", ex.toString());
         }
 
-        if (parsed != null) {
-            log.info("[WEBHOOK RAW] payload keys: {}", parsed.keySet());
-            Object fromMeObj = parsed.get("fromMe");
-            Map<String, Object> msgMap = null;
-            Object msgObj = parsed.get("message");
-            if (msgObj instanceof Map<?, ?> m) {
-                //noinspection unchecked
-                msgMap = (Map<String, Object>) m;
-                if (fromMeObj == null) fromMeObj = msgMap.get("fromMe");
-            }
-            boolean isFromMeLog = Boolean.parseBoolean(String.valueOf(fromMeObj));
-            String phoneLog = String.valueOf(parsed.getOrDefault("phone", parsed.getOrDefault("phones", "")));
-            if (phoneLog == null || phoneLog.isBlank()) {
-                Object contactObj = parsed.get("contact");
-                if (contactObj instanceof Map<?, ?> c) {
-                    Object cid = ((Map<?, ?>) c).get("id");
-                    if (cid != null) phoneLog = String.valueOf(cid);
-                }
-            }
-            String messageIdLog = null;
-            if (msgMap != null) messageIdLog = String.valueOf(msgMap.getOrDefault("id", ""));
-            if (messageIdLog == null || messageIdLog.isBlank()) messageIdLog = String.valueOf(parsed.getOrDefault("messageId", ""));
-            log.info("[WEBHOOK] received fromMe={} phone={} messageId={}", isFromMeLog, phoneLog, messageIdLog);
+        if (parsed) {
+            logReceived(event);
 
-            Map<String, Object> adapted = adaptZapiPayload(parsed);
+            Map<String, Object> adapted = zapiDecoder.adapt(event);
             if (adapted != null) {
                 Object cid = adapted.get("contactId");
                 Object cnt = adapted.get("content");
-                String zType = String.valueOf(parsed.getOrDefault("type", ""));
                 Object fromMeA = adapted.get("isFromMe");
                 boolean isFromMeA = fromMeA instanceof Boolean ? (Boolean) fromMeA : false;
-                boolean isReceivedCallback = zType.equalsIgnoreCase("ReceivedCallback") || zType.equalsIgnoreCase("message");
+                boolean isReceivedCallback = event.isType("ReceivedCallback") || event.isType("message");
                 if (cid != null && !String.valueOf(cid).isBlank() && cnt != null && !String.valueOf(cnt).isBlank() && isReceivedCallback && !isFromMeA) {
                     WhatsAppIncomingMessageDTO dto = mapToDto(adapted);
+                    // The service announces it after commit; a retried webhook (null) is not announced again
                     messageService.saveIncomingMessage(dto);
-                    String clientKey = resolveClientKey();
-                    sseService.publish(clientKey, Map.of("type","message","payload", adapted));
                     if (dto.getContactId() != null) {
                         contactService.upsert(dto.getContactId(), null, null);
                     }
@@ -335,237 +444,13 @@ public class WhatsAppWebhookController {
         return ResponseEntity.ok(Map.of("success", "raw-ok"));
     }
 
-    // Best-effort adapter for Z-API webhook payloads
-    private Map<String, Object> adaptZapiPayload(Map<String, Object> body) {
-        try {
-            String zType = String.valueOf(body.getOrDefault("type", ""));
-            boolean looksLikeZapi = zType.equalsIgnoreCase("ReceivedCallBack")
-                    || zType.equalsIgnoreCase("ReceivedCallback")
-                    || zType.equalsIgnoreCase("PresenceChatCallback")
-                    || zType.equalsIgnoreCase("message")
-                    || body.containsKey("text")
-                    || body.containsKey("messageId")
-                    || body.containsKey("phones")
-                    || body.containsKey("phone")
-                    || body.containsKey("contact");
-
-            if (!looksLikeZapi) return null;
-
-            if (zType.equalsIgnoreCase("PresenceChatCallback")) return null;
-
-            Map<String, Object> msg = null;
-            Object msgObj = body.get("message");
-            if (msgObj instanceof Map<?, ?> m) {
-                //noinspection unchecked
-                msg = (Map<String, Object>) m;
-            }
-
-            // Variant A: messages array
-            Object messagesObj = body.get("messages");
-            Map<String, Object> m0 = null;
-            if (messagesObj instanceof java.util.List<?> list && !list.isEmpty()) {
-                Object first = list.get(0);
-                if (first instanceof Map<?, ?> fm) {
-                    //noinspection unchecked
-                    m0 = (Map<String, Object>) fm;
-                }
-            }
-
-            String id = firstNonBlank(
-                    stringOrNull(m0 != null ? m0.get("id") : null),
-                    stringOrNull(msg != null ? msg.get("id") : null),
-                    stringOrNull(body.get("messageId"))
-            );
-
-            Map<String, Object> contactMap = null;
-            Object contactObj = body.get("contact");
-            if (contactObj instanceof Map<?, ?> c) {
-                //noinspection unchecked
-                contactMap = (Map<String, Object>) c;
-            }
-
-            String participant = stringOrNull(body.get("participant"));
-            String participantPhone = stringOrNull(body.get("participantPhone"));
-            String participantLid = stringOrNull(body.get("participantLid"));
-            String contactId = firstNonBlank(
-                    participant,
-                    participantPhone,
-                    participantLid,
-                    stringOrNull(m0 != null ? m0.get("from") : null),
-                    stringOrNull(body.get("phones")),
-                    stringOrNull(body.get("phone")),
-                    stringOrNull(contactMap != null ? contactMap.get("id") : null),
-                    stringOrNull(body.get("from")),
-                    stringOrNull(body.get("sender")),
-                    stringOrNull(body.get("senderLid"))
-            );
-            if (contactId != null) {
-                int at = contactId.indexOf('@');
-                if (at > 0) contactId = contactId.substring(0, at);
-                contactId = contactId.replaceAll("\\D+", "");
-            }
-
-            String content = null;
-            String messageType = "text";
-            if (m0 != null) {
-                Object textNode = m0.get("text");
-                if (textNode instanceof Map<?, ?> textMap) {
-                    content = firstNonBlank(
-                            stringOrNull(((Map<?, ?>) textMap).get("body")),
-                            stringOrNull(((Map<?, ?>) textMap).get("message"))
-                    );
-                } else {
-                    content = firstNonBlank(
-                            stringOrNull(m0.get("body")),
-                            stringOrNull(m0.get("text"))
-                    );
-                }
-                String mt = stringOrNull(m0.get("type"));
-                if (mt != null && !mt.isBlank()) messageType = mt;
-            } else if (msg != null) {
-                content = firstNonBlank(
-                        stringOrNull(msg.get("body")),
-                        stringOrNull(msg.get("text"))
-                );
-                String mt = stringOrNull(msg.get("type"));
-                if (mt != null && !mt.isBlank()) messageType = mt;
-            }
-            Object textObj = body.get("text");
-            if (content == null && textObj instanceof Map<?, ?> textMap) {
-                content = stringOrNull(textMap.get("message"));
-                messageType = "text";
-            }
-            // List response (interactive)
-            if (content == null) {
-                Object listObj = body.get("listResponseMessage");
-                if (listObj instanceof Map<?, ?> listMap) {
-                    content = firstNonBlank(
-                            stringOrNull(listMap.get("message")),
-                            stringOrNull(listMap.get("title"))
-                    );
-                    messageType = "list";
-                }
-            }
-            if (content == null) {
-                // images
-                Object imageObj = body.get("image");
-                if (imageObj instanceof Map<?, ?> imageMap) {
-                    content = firstNonBlank(
-                            stringOrNull(imageMap.get("caption")),
-                            stringOrNull(imageMap.get("imageUrl")),
-                            stringOrNull(imageMap.get("thumbnailUrl"))
-                    );
-                    messageType = "image";
-                }
-            }
-            if (content == null) {
-                // audio
-                Object audioObj = body.get("audio");
-                if (audioObj instanceof Map<?, ?> audioMap) {
-                    content = firstNonBlank(
-                            stringOrNull(audioMap.get("audioUrl")),
-                            stringOrNull(audioMap.get("mimeType"))
-                    );
-                    messageType = "audio";
-                }
-            }
-            if (content == null) {
-                // video
-                Object videoObj = body.get("video");
-                if (videoObj instanceof Map<?, ?> videoMap) {
-                    content = firstNonBlank(
-                            stringOrNull(videoMap.get("caption")),
-                            stringOrNull(videoMap.get("videoUrl"))
-                    );
-                    messageType = "video";
-                }
-            }
-            if (content == null) {
-                // document
-                Object docObj = body.get("document");
-                if (docObj instanceof Map<?, ?> docMap) {
-                    content = firstNonBlank(
-                            stringOrNull(docMap.get("title")),
-                            stringOrNull(docMap.get("fileName")),
-                            stringOrNull(docMap.get("documentUrl"))
-                    );
-                    messageType = "document";
-                }
-            }
-            if (content == null) {
-                // sticker
-                Object stickerObj = body.get("sticker");
-                if (stickerObj instanceof Map<?, ?> stickerMap) {
-                    content = firstNonBlank(
-                            stringOrNull(stickerMap.get("stickerUrl")),
-                            stringOrNull(stickerMap.get("mimeType"))
-                    );
-                    messageType = "sticker";
-                }
-            }
-
-            String timestamp;
-            Object rootTs = body.get("timestamp");
-            Object msgTs = null;
-            if (m0 != null) msgTs = m0.get("timestamp");
-            else if (msg != null) msgTs = msg.get("timestamp");
-            if (msgTs instanceof Number) {
-                timestamp = Instant.ofEpochMilli(((Number) msgTs).longValue()).toString();
-            } else if (rootTs instanceof Number) {
-                timestamp = Instant.ofEpochMilli(((Number) rootTs).longValue()).toString();
-            } else {
-                Object mommentObj = body.get("momment");
-                Object momentObj = body.get("moment");
-                timestamp = firstNonBlank(
-                        stringOrNull(msgTs),
-                        stringOrNull(rootTs),
-                        stringOrNull(mommentObj),
-                        stringOrNull(momentObj),
-                        Instant.now().toString()
-                );
-            }
-
-            Object fromMeObj = m0 != null ? m0.get("fromMe") : (msg != null ? msg.get("fromMe") : body.getOrDefault("fromMe", false));
-            boolean isFromMe = Boolean.parseBoolean(String.valueOf(fromMeObj));
-            String status = firstNonBlank(
-                    stringOrNull(body.get("status")),
-                    isFromMe ? "sent" : "received"
-            );
-
-            if (contactId == null && content == null) return null;
-
-            Map<String, Object> payload = new java.util.LinkedHashMap<>();
-            payload.put("id", id != null && !id.isBlank() ? id : ("zap_" + UUID.randomUUID()));
-            payload.put("contactId", contactId != null ? contactId : "unknown");
-            payload.put("content", content != null ? content : "");
-            payload.put("timestamp", timestamp);
-            payload.put("isFromMe", isFromMe);
-            payload.put("messageType", messageType);
-            payload.put("status", status);
-            return payload;
-        } catch (Exception ignored) {
-            return null;
-        }
-    }
-
-    private String stringOrNull(Object v) {
-        return v == null ? null : String.valueOf(v);
-    }
-
-    private String firstNonBlank(String... values) {
-        for (String v : values) {
-            if (v != null && !v.isBlank()) return v;
-        }
-        return null;
-    }
-
-    private String resolveClientKey() {
-        return configService.getCurrentCompanyConfig()
-                .map(c -> {
-                    String iid = c.getInstanceId();
-                    return (iid != null && !iid.isBlank()) ? ("instance:" + iid) : "global";
-                })
-                .orElse("global");
+    private void logReceived(IncomingZapiEvent event) {
+        String fromMe = event.isFromMePresent() ? event.getFromMe() : event.getMessage().getFromMe();
+        String phone = event.getPhone() != null ? event.getPhone() : event.getPhones();
+        if (phone == null || phone.isBlank()) phone = event.getContactId();
+        String messageId = event.getMessage().getId();
+        if (messageId == null || messageId.isBlank()) messageId = event.getMessageId();
+        log.info("[WEBHOOK] received fromMe={} phone={} messageId={}", Boolean.parseBoolean(fromMe), phone, messageId);
     }
 
     // Enviar mensagem (utilizado pelo provider "custom" no front)
@@ -592,9 +477,10 @@ public class WhatsAppWebhookController {
             request.setMensagem(message);
             String apiResponse = whatsappService.enviarMensagem(request);
 
-            // Persiste no banco para refletir na UI
+            // Persiste no banco para refletir na UI, na empresa de quem enviou; o SSE sai do serviço após o commit
             String generatedId = "msg_" + UUID.randomUUID();
-            Map<String, Object> payload = Map.of(
+            String senderCompanyId = tenantResolver.findCurrentCompanyId().orElse(null);
+            Map<String, Object> payload = new HashMap<>(Map.of(
                     "id", generatedId,
                     "contactId", contactId,
                     "content", message,
@@ -602,10 +488,9 @@ public class WhatsAppWebhookController {
                     "isFromMe", true,
                     "messageType", "text",
                     "status", "sent"
-            );
+            ));
+            if (senderCompanyId != null) payload.put("companyId", senderCompanyId);
             messageService.saveIncomingMessage(payload);
-            String clientKey = resolveClientKey();
-            sseService.publish(clientKey, Map.of("type","message","payload", payload));
             // Upsert contact
             contactService.upsert(contactId, null, null);
             log.info("Mensagem enviada: contato={}, conteudo_len={}", contactId, message.length());
@@ -621,18 +506,149 @@ public class WhatsAppWebhookController {
         }
     }
 
-    // Phase 2: Conversations listing
+    // Phase 2: Conversations listing, a page of the caller's company sorted by last activity
+    // One keyset page of the caller's company's conversations; pass nextCursor back as cursor for the next one
     @GetMapping("/conversations")
-    public ResponseEntity<Map<String, Object>> getConversations() {
-        List<Map<String, Object>> conversations = messageService.listConversations();
-        return ResponseEntity.ok(Map.of("conversations", conversations));
+    public ResponseEntity<Map<String, Object>> getConversations(@RequestParam(value = "cursor", required = false) String cursor,
+                                                                @RequestParam(value = "size", defaultValue = "50") int size) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        int limit = Math.max(1, Math.min(size, 200));
+        WhatsAppMessageService.ConversationPage page;
+        try {
+            page = messageService.listConversations(companyId, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("conversations", page.conversations());
+        body.put("nextCursor", page.nextCursor());
+        body.put("size", limit);
+        body.put("hasMore", page.hasMore());
+        return ResponseEntity.ok(body);
+    }
+
+    // Every message of the caller's company (one chat with contactId, [from, to) with from/to) as NDJSON or CSV,
+    // streamed from a database cursor while it is read; gzip=true sends a .gz file
+    @GetMapping("/conversations/export")
+    public ResponseEntity<StreamingResponseBody> exportConversations(@RequestParam(value = "format", defaultValue = "ndjson") String format,
+                                                                     @RequestParam(value = "contactId", required = false) String contactId,
+                                                                     @RequestParam(value = "from", required = false) String from,
+                                                                     @RequestParam(value = "to", required = false) String to,
+                                                                     @RequestParam(value = "gzip", defaultValue = "false") boolean gzip,
+                                                                     HttpServletRequest request) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        WhatsAppMessageExport.Format exportFormat;
+        Instant fromInstant;
+        Instant toInstant;
+        try {
+            exportFormat = WhatsAppMessageExport.Format.valueOf(format.trim().toUpperCase());
+            fromInstant = from != null && !from.isBlank() ? WebhookReplayService.parseInstant(from) : null;
+            toInstant = to != null && !to.isBlank() ? WebhookReplayService.parseInstant(to) : null;
+        } catch (Exception e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "format deve ser ndjson ou csv; from/to instantes ISO ou dias (yyyy-MM-dd)");
+        }
+        if (!messageService.tryStartExport()) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "exportações simultâneas demais, tente mais tarde");
+        }
+        // The slot goes back in write(); a request that times out or fails before the body starts never gets
+        // there, so whichever of the body and the async completion comes first owns the slot
+        AtomicBoolean claimed = new AtomicBoolean();
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(EXPORT_SLOT, new CallableProcessingInterceptor() {
+            // Runs before the async request starts, so the container applies the longer timeout to this one
+            @Override
+            public <T> void beforeConcurrentHandling(NativeWebRequest webRequest, Callable<T> task) {
+                if (webRequest instanceof AsyncWebRequest asyncRequest) asyncRequest.setTimeout(exportTimeoutMs);
+            }
+
+            @Override
+            public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                if (claimed.compareAndSet(false, true)) messageService.releaseExport();
+            }
+        });
+        StreamingResponseBody body = out -> {
+            if (!claimed.compareAndSet(false, true)) return;
+            messageService.exportMessages(companyId, contactId, fromInstant, toInstant, exportFormat, gzip, out);
+        };
+        String filename = "whatsapp-" + companyId + "-" + Instant.now().getEpochSecond() + "." + exportFormat.extension + (gzip ? ".gz" : "");
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_TYPE, gzip ? "application/gzip" : exportFormat.contentType + ";charset=UTF-8")
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+                .body(body);
+    }
+
+    // Loads messages into the caller's company from NDJSON in the export format; ids it already has are skipped.
+    // Admin only: the file sets isFromMe, status, timestamps and external ids as it pleases
+    @PostMapping(value = "/admin/conversations/import", consumes = {"application/x-ndjson", "application/json"})
+    public ResponseEntity<Map<String, Object>> importConversations(HttpServletRequest request) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        try {
+            return ResponseEntity.ok(messageService.importMessages(companyId, request.getInputStream()));
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    // Marks the conversation read up to body.messageId (the newest message when absent) for the whole company
+    @PostMapping("/conversations/{contactId}/read")
+    public ResponseEntity<Map<String, Object>> markConversationRead(@PathVariable String contactId,
+                                                                    @RequestBody(required = false) Map<String, Object> body) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        Object messageId = body != null ? body.get("messageId") : null;
+        Integer unread = messageService.markConversationRead(companyId, contactId, messageId != null ? String.valueOf(messageId) : null);
+        if (unread == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "conversa ou mensagem não encontrada"));
+        }
+        return ResponseEntity.ok(Map.of("contactId", contactId, "unreadCount", unread));
+    }
+
+    // Badge numbers, read from the per-conversation counters
+    @GetMapping("/conversations/unread")
+    public ResponseEntity<Map<String, Object>> getUnreadTotals() {
+        var totals = messageService.unreadTotals(tenantResolver.getCurrentCompanyId());
+        return ResponseEntity.ok(Map.of(
+                "unreadMessages", totals.unreadMessages(),
+                "unreadConversations", totals.unreadConversations()));
+    }
+
+    // Search in the caller's company history: words (full text, Portuguese) or number fragments (substring)
+    @GetMapping("/messages/search")
+    public ResponseEntity<Map<String, Object>> searchMessages(@RequestParam("q") String q,
+                                                              @RequestParam(value = "contactId", required = false) String contactId,
+                                                              @RequestParam(value = "page", defaultValue = "0") int page,
+                                                              @RequestParam(value = "size", defaultValue = "20") int size) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        if (q == null || q.strip().length() < 2 || q.length() > 200) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "q deve ter entre 2 e 200 caracteres");
+        }
+        int limit = Math.max(1, Math.min(size, 50));
+        // Deep pages of a ranked search are never useful and only cost more
+        int offset = Math.min(Math.max(0, page) * limit, 1000);
+        Map<String, Object> body = new LinkedHashMap<>(messageService.searchMessages(companyId, contactId, q.strip(), limit, offset));
+        body.put("page", Math.max(0, page));
+        body.put("size", limit);
+        return ResponseEntity.ok(body);
     }
 
-    // Phase 2: Messages by contact
+    // Phase 2: Messages by contact, one keyset page of the caller's company (newest page without a cursor)
     @GetMapping("/messages/{contactId}")
-    public ResponseEntity<Map<String, Object>> getMessagesByContact(@PathVariable String contactId) {
-        List<Map<String, Object>> messages = messageService.listMessagesForContact(contactId);
-        return ResponseEntity.ok(Map.of("messages", messages));
+    public ResponseEntity<Map<String, Object>> getMessagesByContact(@PathVariable String contactId,
+                                                                    @RequestParam(value = "before", required = false) String before,
+                                                                    @RequestParam(value = "after", required = false) String after,
+                                                                    @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        String companyId = tenantResolver.getCurrentCompanyId();
+        WhatsAppMessageService.MessagePage page;
+        try {
+            page = messageService.listMessagesForContact(companyId, contactId, before, after, Math.max(1, Math.min(limit, 200)));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("messages", page.messages());
+        body.put("olderCursor", page.olderCursor());
+        body.put("newerCursor", page.newerCursor());
+        body.put("hasOlder", page.hasOlder());
+        body.put("hasNewer", page.hasNewer());
+        return ResponseEntity.ok(body);
     }
 
     @GetMapping("/contacts")
@@ -726,16 +742,15 @@ public class WhatsAppWebhookController {
             log.info("[WEBHOOK CHAT PRESENCE] phone={}, status={}, type={}", 
                     presence.getPhone(), presence.getStatus(), presence.getType());
             
-            // Publicar evento via SSE para atualização em tempo real
-            String clientKey = resolveClientKey();
-            Map<String, Object> payload = Map.of(
-                "type", "chat_presence",
-                "phone", presence.getPhone(),
-                "status", presence.getStatus(),
-                "lastSeen", presence.getLastSeen(),
-                "instanceId", presence.getInstanceId()
-            );
-            sseService.publish(clientKey, payload);
+            // Publicar evento via SSE para atualização em tempo real; lastSeen pode vir nulo, então sem Map.of
+            String companyId = configService.resolvePublishCompanyId(presence.getInstanceId());
+            Map<String, Object> payload = new java.util.LinkedHashMap<>();
+            payload.put("type", "chat_presence");
+            payload.put("phone", presence.getPhone());
+            payload.put("status", presence.getStatus());
+            payload.put("lastSeen", presence.getLastSeen());
+            payload.put("instanceId", presence.getInstanceId());
+            sseService.publish(companyId, presence.getPhone(), payload);
             
             return ResponseEntity.ok(Map.of("success", true));
         } catch (Exception e) {
@@ -751,7 +766,7 @@ public class WhatsAppWebhookController {
                     status.getPhone(), status.getStatus(), status.getIds(), status.getType());
             
             // Publicar evento via SSE para atualização em tempo real
-            String clientKey = resolveClientKey();
+            String companyId = configService.resolvePublishCompanyId(status.getInstanceId());
             Map<String, Object> payload = Map.of(
                 "type", "message_status",
                 "phone", status.getPhone(),
@@ -760,7 +775,10 @@ public class WhatsAppWebhookController {
                 "instanceId", status.getInstanceId(),
                 "isGroup", status.getIsGroup()
             );
-            sseService.publish(clientKey, payload);
+            // Stored and then published by the status lane, like the Z-API webhook's callbacks
+            if (!admission.offerStatus(companyId, status.getPhone(), status.getIds(), status.getStatus(), payload)) {
+                return overloaded("status");
+            }
             
             return ResponseEntity.ok(Map.of("success", true));
         } catch (Exception e) {
@@ -768,6 +786,25 @@ public class WhatsAppWebhookController {
             return ResponseEntity.ok(Map.of("success", false, "error", e.getMessage()));
         }
     }
+    private WhatsAppIncomingMessageDTO nativeToDto(IncomingZapiEvent.MessagePart message) {
+        WhatsAppIncomingMessageDTO dto = new WhatsAppIncomingMessageDTO();
+        dto.setId(message.getId());
+        dto.setContactId(message.getContactId());
+        dto.setContent(message.getContent());
+        String ts = message.getTimestamp();
+        try {
+            dto.setTimestamp(ts != null && !ts.isBlank() ? Instant.parse(ts) : Instant.now());
+        } catch (Exception e) {
+            dto.setTimestamp(Instant.now());
+        }
+        dto.setIsFromMe(Boolean.TRUE.equals(message.getIsFromMe()));
+        String type = message.getMessageType();
+        dto.setMessageType(type != null && !type.isBlank() ? type : "text");
+        String st = message.getStatus();
+        dto.setStatus(st != null && !st.isBlank() ? st : "received");
+        return dto;
+    }
+
     private WhatsAppIncomingMessageDTO mapToDto(Map<String, Object> payload) {
         WhatsAppIncomingMessageDTO dto = new WhatsAppIncomingMessageDTO();
         dto.setId(stringOrNull(payload.get("id")));
@@ -787,4 +824,8 @@ public class WhatsAppWebhookController {
         dto.setStatus(st != null && !st.isBlank() ? st : "received");
         return dto;
     }
+
+    private String stringOrNull(Object v) {
+        return v == null ? null : String.valueOf(v);
+    }
 }
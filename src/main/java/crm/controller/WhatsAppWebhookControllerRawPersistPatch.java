@@ -1,23 +1,58 @@
 package crm.controller;
 
 import jakarta.annotation.PostConstruct;
-import org.postgresql.util.PGobject;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Date;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Raw webhook capture into whatsapp_webhook_debug.
+ *
+ * The table is range-partitioned by day (UTC) on received_at. Partitions are created ahead of time and
+ * retention drops whole expired partitions instead of running a large DELETE. Rows are queued in memory
+ * and written by a background thread with COPY, so capturing a webhook adds no database round trip to
+ * the request; when the queue is full the row is dropped and counted.
+ */
 @Component
 public class WhatsAppWebhookControllerRawPersistPatch {
 
     private static final Logger log = LoggerFactory.getLogger(WhatsAppWebhookControllerRawPersistPatch.class);
 
+    private static final String TABLE = "whatsapp_webhook_debug";
+    private static final String PARTITION_PREFIX = TABLE + "_p";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String COPY_SQL = "COPY " + TABLE + " (id, received_at, raw_payload, instance_id, message_id, phone) FROM STDIN WITH (FORMAT csv)";
+
     private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
 
     @Value("${whatsapp.webhook.persist-raw:true}")
     private boolean persistRaw;
@@ -25,48 +60,297 @@ public class WhatsAppWebhookControllerRawPersistPatch {
     @Value("${whatsapp.webhook.debug-retention-days:30}")
     private int retentionDays;
 
-    public WhatsAppWebhookControllerRawPersistPatch(JdbcTemplate jdbcTemplate) {
+    @Value("${whatsapp.webhook.debug-partitions-ahead:3}")
+    private int partitionsAhead;
+
+    @Value("${whatsapp.webhook.debug-queue-capacity:20000}")
+    private int queueCapacity;
+
+    @Value("${whatsapp.webhook.debug-batch-size:500}")
+    private int batchSize;
+
+    @Value("${whatsapp.webhook.debug-flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    private BlockingQueue<PendingRow> queue;
+    private Thread writer;
+    private volatile boolean running;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong copies = new AtomicLong();
+    private final AtomicLong partitionsDropped = new AtomicLong();
+
+    public WhatsAppWebhookControllerRawPersistPatch(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate) {
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
     }
 
     @PostConstruct
-    public void ensureIndexes() {
+    public void start() {
         try {
-            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_received_at ON whatsapp_webhook_debug (received_at)");
+            ensurePartitionedTable();
+            maintainPartitions();
         } catch (Exception e) {
-            log.warn("[WEBHOOK DEBUG] falha ao garantir índice received_at: {}", e.toString());
+            log.warn("[WEBHOOK DEBUG] falha ao preparar tabela particionada: {}", e.toString());
         }
+        if (!persistRaw) return;
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        running = true;
+        writer = new Thread(this::runWriter, "whatsapp-webhook-debug-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
+    @PreDestroy
+    public void stop() {
+        if (writer == null) return;
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Creates ahead and drops expired partitions; retention never issues a DELETE
     @Scheduled(cron = "${whatsapp.webhook.cleanup-cron:0 0 3 * * *}")
     public void scheduledCleanup() {
-        if (retentionDays <= 0) return;
         try {
-            int deleted = jdbcTemplate.update("DELETE FROM whatsapp_webhook_debug WHERE received_at < now() - interval '" + retentionDays + " days'");
-            if (deleted > 0) log.info("[WEBHOOK DEBUG] cleanup executado, removidas {} linhas", deleted);
+            maintainPartitions();
         } catch (Exception e) {
-            log.warn("[WEBHOOK DEBUG] falha no cleanup agendado: {}", e.toString());
+            log.warn("[WEBHOOK DEBUG] falha na manutenção de partições: {}", e.toString());
         }
     }
 
+    // Queues the row and returns its id immediately; null when capture is disabled or the queue is full
     public String persistDebug(String rawJson, String instanceId, String messageId, String rawPhone) {
-        if (!persistRaw) return null;
+        if (!persistRaw || queue == null) return null;
         String debugId = UUID.randomUUID().toString();
+        if (offer(new PendingRow(debugId, Instant.now(), rawJson, instanceId, messageId, rawPhone))) {
+            return debugId;
+        }
+        return null;
+    }
+
+    public void persistDebugBatch(List<DebugRow> rows) {
+        if (!persistRaw || queue == null || rows == null) return;
+        Instant now = Instant.now();
+        for (DebugRow r : rows) {
+            offer(new PendingRow(UUID.randomUUID().toString(), now, r.rawJson(), r.instanceId(), r.messageId(), r.phone()));
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", persistRaw);
+        m.put("queueDepth", queue != null ? queue.size() : 0);
+        m.put("queueCapacity", queue != null ? queueCapacity : 0);
+        m.put("queued", queued.get());
+        m.put("written", written.get());
+        m.put("dropped", dropped.get());
+        m.put("failed", failed.get());
+        m.put("copies", copies.get());
+        m.put("partitionsDropped", partitionsDropped.get());
+        return m;
+    }
+
+    private boolean offer(PendingRow row) {
+        if (queue.offer(row)) {
+            queued.incrementAndGet();
+            return true;
+        }
+        dropped.incrementAndGet();
+        log.debug("[WEBHOOK DEBUG] fila cheia, linha descartada: messageId={}", row.messageId());
+        return false;
+    }
+
+    private void runWriter() {
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        long flushMillis = Math.max(1, flushIntervalMs);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRow first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, Math.max(1, batchSize) - 1);
+            } catch (InterruptedException e) {
+                // stop(): flush whatever is left below
+                queue.drainTo(batch);
+                running = false;
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                write(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    void write(List<PendingRow> batch) {
         try {
-            PGobject json = new PGobject();
-            json.setType("jsonb");
-            json.setValue(rawJson == null ? "{}" : rawJson);
+            copy(batch);
+            return;
+        } catch (DataAccessResourceFailureException e) {
+            // Database unreachable: splitting the batch would only multiply the connection timeouts
+            failed.addAndGet(batch.size());
+            log.warn("[WEBHOOK DEBUG] banco indisponível, {} linhas descartadas: {}", batch.size(), e.toString());
+            return;
+        } catch (Exception e) {
+            // Most likely a missing partition (clock jump, maintenance not run): create them and try again
+            try {
+                ensurePartitionsFor(batch);
+            } catch (Exception partitions) {
+                log.warn("[WEBHOOK DEBUG] falha ao criar partições: {}", partitions.toString());
+            }
+        }
+        copyBisecting(batch);
+    }
 
-            String sql = "INSERT INTO whatsapp_webhook_debug (id, received_at, raw_payload, instance_id, message_id, phone) " +
-                    "VALUES (?, now(), ?, ?, ?, ?)";
+    // COPY is all or nothing: halve a failing batch until only the offending rows are left out
+    private void copyBisecting(List<PendingRow> rows) {
+        try {
+            copy(rows);
+        } catch (DataAccessResourceFailureException e) {
+            failed.addAndGet(rows.size());
+            log.warn("[WEBHOOK DEBUG] banco indisponível, {} linhas descartadas: {}", rows.size(), e.toString());
+        } catch (Exception e) {
+            if (rows.size() == 1) {
+                failed.incrementAndGet();
+                log.warn("[WEBHOOK DEBUG] linha rejeitada pelo COPY: messageId={} {}", rows.get(0).messageId(), e.toString());
+                return;
+            }
+            int half = rows.size() / 2;
+            copyBisecting(rows.subList(0, half));
+            copyBisecting(rows.subList(half, rows.size()));
+        }
+    }
 
-            jdbcTemplate.update(sql, debugId, json, instanceId, messageId, rawPhone);
-            return debugId;
-        } catch (SQLException sqle) {
-            log.warn("[WEBHOOK DEBUG] SQLException ao persistir raw_payload jsonb, id={}", debugId, sqle);
+    private void copy(List<PendingRow> batch) {
+        StringBuilder csv = new StringBuilder(batch.size() * 512);
+        for (PendingRow r : batch) {
+            csv.append(r.id()).append(',')
+                    .append(r.receivedAt()).append(',');
+            appendCsv(csv, r.rawJson() == null ? "{}" : r.rawJson());
+            csv.append(',');
+            appendCsv(csv, r.instanceId());
+            csv.append(',');
+            appendCsv(csv, r.messageId());
+            csv.append(',');
+            appendCsv(csv, r.phone());
+            csv.append('\n');
+        }
+        Long rows = jdbcTemplate.execute((ConnectionCallback<Long>) con -> {
+            try {
+                return con.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL, new StringReader(csv.toString()));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        });
+        copies.incrementAndGet();
+        written.addAndGet(rows != null ? rows : batch.size());
+    }
+
+    // CSV null is an unquoted empty field; anything else is quoted with embedded quotes doubled
+    private void appendCsv(StringBuilder sb, String value) {
+        if (value == null) return;
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private void ensurePartitionsFor(List<PendingRow> batch) {
+        TreeSet<LocalDate> days = new TreeSet<>();
+        for (PendingRow r : batch) {
+            days.add(r.receivedAt().atOffset(ZoneOffset.UTC).toLocalDate());
+        }
+        for (LocalDate day : days) {
+            ensurePartition(day);
+        }
+    }
+
+    private void maintainPartitions() {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for (int i = 0; i <= Math.max(0, partitionsAhead); i++) {
+            ensurePartition(today.plusDays(i));
+        }
+        if (retentionDays <= 0) return;
+        LocalDate oldestKept = today.minusDays(retentionDays);
+        List<String> partitions = jdbcTemplate.queryForList(
+                "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                        "WHERE i.inhparent = to_regclass(?) ORDER BY c.relname", String.class, TABLE);
+        for (String name : partitions) {
+            LocalDate day = partitionDay(name);
+            if (day == null || !day.isBefore(oldestKept)) continue;
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + name);
+            partitionsDropped.incrementAndGet();
+            log.info("[WEBHOOK DEBUG] partição expirada removida: {}", name);
+        }
+    }
+
+    private void ensurePartition(LocalDate day) {
+        OffsetDateTime from = day.atStartOfDay().atOffset(ZoneOffset.UTC);
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + PARTITION_PREFIX + day.format(PARTITION_SUFFIX) +
+                " PARTITION OF " + TABLE + " FOR VALUES FROM ('" + from + "') TO ('" + from.plusDays(1) + "')");
+    }
+
+    private LocalDate partitionDay(String partitionName) {
+        if (!partitionName.startsWith(PARTITION_PREFIX)) return null;
+        try {
+            return LocalDate.parse(partitionName.substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX);
         } catch (Exception e) {
-            log.warn("[WEBHOOK DEBUG] falha ao persistir debug row, id={}", debugId, e);
+            return null;
         }
-        return null;
     }
+
+    // Creates the partitioned table, or converts the old heap table keeping the rows still inside retention
+    private void ensurePartitionedTable() {
+        String kind = jdbcTemplate.queryForObject(
+                "SELECT COALESCE((SELECT relkind::text FROM pg_class WHERE oid = to_regclass(?)), '')", String.class, TABLE);
+        if ("p".equals(kind)) return;
+        transactionTemplate.executeWithoutResult(status -> {
+            boolean legacy = "r".equals(kind);
+            if (legacy) {
+                jdbcTemplate.execute("ALTER TABLE " + TABLE + " RENAME TO " + TABLE + "_legacy");
+                jdbcTemplate.execute("ALTER TABLE " + TABLE + "_legacy DROP CONSTRAINT IF EXISTS " + TABLE + "_pkey");
+                jdbcTemplate.execute("DROP INDEX IF EXISTS idx_whatsapp_webhook_debug_instance, idx_whatsapp_webhook_debug_message, idx_whatsapp_webhook_debug_received_at");
+            }
+            jdbcTemplate.execute("CREATE TABLE " + TABLE + " (" +
+                    " id VARCHAR(36) NOT NULL, " +
+                    " received_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now(), " +
+                    " raw_payload JSONB, " +
+                    " instance_id TEXT, " +
+                    " message_id TEXT, " +
+                    " phone TEXT, " +
+                    " PRIMARY KEY (id, received_at)" +
+                    ") PARTITION BY RANGE (received_at)");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_instance ON " + TABLE + " (instance_id)");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_message ON " + TABLE + " (message_id)");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_received_at ON " + TABLE + " (received_at)");
+            if (legacy) {
+                String keep = retentionDays > 0 ? " WHERE received_at >= date_trunc('day', now() AT TIME ZONE 'UTC') AT TIME ZONE 'UTC' - interval '" + retentionDays + " days'" : "";
+                List<Date> days = jdbcTemplate.queryForList(
+                        "SELECT DISTINCT (received_at AT TIME ZONE 'UTC')::date FROM " + TABLE + "_legacy" + keep, Date.class);
+                for (Date d : days) {
+                    ensurePartition(d.toLocalDate());
+                }
+                int moved = jdbcTemplate.update("INSERT INTO " + TABLE + " (id, received_at, raw_payload, instance_id, message_id, phone) " +
+                        "SELECT id, received_at, raw_payload, instance_id, message_id, phone FROM " + TABLE + "_legacy" + keep);
+                jdbcTemplate.execute("DROP TABLE " + TABLE + "_legacy");
+                log.info("[WEBHOOK DEBUG] tabela convertida para particionada por dia, {} linhas migradas", moved);
+            }
+        });
+    }
+
+    public record DebugRow(String rawJson, String instanceId, String messageId, String phone) {}
+
+    record PendingRow(String id, Instant receivedAt, String rawJson, String instanceId, String messageId, String phone) {}
 }
@@ -0,0 +1,183 @@
+package crm.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Typed view of a Z-API webhook body, filled by ZapiWebhookDecoder in a single pass.
+// Instances are reusable: call reset() before decoding another payload into the same object.
+@Getter
+@Setter
+public class IncomingZapiEvent {
+
+    private String type;
+    private String instanceId;
+    private String fromMe;
+    private boolean fromMePresent;
+
+    // ReceivedCallback sender candidates
+    private String phone;
+    private boolean phonePresent;
+    private String phones;
+    private boolean phonesPresent;
+    private String participant;
+    private boolean participantPresent;
+    private String participantPhone;
+    private String participantLid;
+    private String from;
+    private boolean fromPresent;
+    private String sender;
+    private String senderLid;
+    private String contactId;
+    private boolean contactPresent;
+    private String messageId;
+    private boolean messageIdPresent;
+
+    // PresenceChatCallback / MessageStatusCallback
+    private String status;
+    private Long lastSeen;
+    private Integer phoneDevice;
+    private boolean group;
+    private final List<String> ids = new ArrayList<>();
+
+    private String timestamp;
+    private Long timestampMillis;
+    private String momment;
+    private Long mommentMillis;
+    private String moment;
+
+    private boolean textPresent;
+    private String textMessage;
+
+    private final MediaPart listResponse = new MediaPart();
+    private final MediaPart image = new MediaPart();
+    private final MediaPart audio = new MediaPart();
+    private final MediaPart video = new MediaPart();
+    private final MediaPart document = new MediaPart();
+    private final MediaPart sticker = new MediaPart();
+
+    // "message" object (Z-API variant or our native contract) and first element of "messages"
+    private final MessagePart message = new MessagePart();
+    private final MessagePart firstMessage = new MessagePart();
+
+    public void reset() {
+        type = null;
+        instanceId = null;
+        fromMe = null;
+        fromMePresent = false;
+        phone = null;
+        phonePresent = false;
+        phones = null;
+        phonesPresent = false;
+        participant = null;
+        participantPresent = false;
+        participantPhone = null;
+        participantLid = null;
+        from = null;
+        fromPresent = false;
+        sender = null;
+        senderLid = null;
+        contactId = null;
+        contactPresent = false;
+        messageId = null;
+        messageIdPresent = false;
+        status = null;
+        lastSeen = null;
+        phoneDevice = null;
+        group = false;
+        ids.clear();
+        timestamp = null;
+        timestampMillis = null;
+        momment = null;
+        mommentMillis = null;
+        moment = null;
+        textPresent = false;
+        textMessage = null;
+        listResponse.reset();
+        image.reset();
+        audio.reset();
+        video.reset();
+        document.reset();
+        sticker.reset();
+        message.reset();
+        firstMessage.reset();
+    }
+
+    public boolean isType(String expected) {
+        return type != null && type.equalsIgnoreCase(expected);
+    }
+
+    @Getter
+    @Setter
+    public static class MessagePart {
+        private boolean present;
+        private String id;
+        private String from;
+        private String fromMe;
+        private String body;
+        private String text;
+        private boolean textObject;
+        private String textBody;
+        private String textMessage;
+        private String type;
+        private String timestamp;
+        private Long timestampMillis;
+        // native contract fields
+        private String contactId;
+        private boolean contactIdPresent;
+        private String content;
+        private boolean contentPresent;
+        private Boolean isFromMe;
+        private String messageType;
+        private String status;
+
+        public void reset() {
+            present = false;
+            id = null;
+            from = null;
+            fromMe = null;
+            body = null;
+            text = null;
+            textObject = false;
+            textBody = null;
+            textMessage = null;
+            type = null;
+            timestamp = null;
+            timestampMillis = null;
+            contactId = null;
+            contactIdPresent = false;
+            content = null;
+            contentPresent = false;
+            isFromMe = null;
+            messageType = null;
+            status = null;
+        }
+    }
+
+    // image / audio / video / document / sticker / listResponseMessage
+    @Getter
+    @Setter
+    public static class MediaPart {
+        private boolean present;
+        private String caption;
+        private String url;
+        private String thumbnailUrl;
+        private String mimeType;
+        private String title;
+        private String fileName;
+        private String message;
+
+        public void reset() {
+            present = false;
+            caption = null;
+            url = null;
+            thumbnailUrl = null;
+            mimeType = null;
+            title = null;
+            fileName = null;
+            message = null;
+        }
+    }
+}
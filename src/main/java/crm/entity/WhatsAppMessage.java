@@ -7,8 +7,10 @@ import java.time.Instant;
 @Table(name = "whatsapp_messages")
 public class WhatsAppMessage {
 
+    // Pooled sequence (blocks of 50) so Hibernate and WhatsAppMessageBulkWriter can batch inserts
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "whatsapp_messages_seq")
+    @SequenceGenerator(name = "whatsapp_messages_seq", sequenceName = "whatsapp_messages_seq", allocationSize = 50)
     private Long id;
 
     @Column(name = "external_message_id")
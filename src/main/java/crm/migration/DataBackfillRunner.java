@@ -3,17 +3,15 @@ package crm.migration;
 import crm.entity.Lead;
 import crm.entity.LeadContact;
 import crm.entity.LeadInteraction;
-import crm.entity.WhatsAppMessage;
-import crm.entity.WhatsAppContact;
 import crm.entity.User;
 import crm.entity.WhatsAppConfig;
 import crm.repository.LeadRepository;
 import crm.repository.LeadContactRepository;
 import crm.repository.LeadInteractionRepository;
 import crm.repository.UserRepository;
-import crm.repository.WhatsAppMessageRepository;
-import crm.repository.WhatsAppContactRepository;
+import crm.repository.WhatsAppMessageBulkWriter;
 import crm.repository.WhatsAppConfigRepository;
+import crm.service.WhatsAppMessageBackfillService;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import org.springframework.boot.CommandLineRunner;
@@ -29,9 +27,9 @@ public class DataBackfillRunner implements CommandLineRunner {
     private final UserRepository userRepository;
     private final LeadContactRepository leadContactRepository;
     private final LeadInteractionRepository leadInteractionRepository;
-    private final WhatsAppMessageRepository whatsappMessageRepository;
-    private final WhatsAppContactRepository whatsappContactRepository;
     private final WhatsAppConfigRepository whatsappConfigRepository;
+    private final WhatsAppMessageBackfillService whatsappMessageBackfillService;
+    private final WhatsAppMessageBulkWriter whatsappMessageBulkWriter;
     @PersistenceContext
     private EntityManager entityManager;
 
@@ -39,16 +37,16 @@ public class DataBackfillRunner implements CommandLineRunner {
                               UserRepository userRepository,
                               LeadContactRepository leadContactRepository,
                               LeadInteractionRepository leadInteractionRepository,
-                              WhatsAppMessageRepository whatsappMessageRepository,
-                              WhatsAppContactRepository whatsappContactRepository,
-                              WhatsAppConfigRepository whatsappConfigRepository) {
+                              WhatsAppConfigRepository whatsappConfigRepository,
+                              WhatsAppMessageBackfillService whatsappMessageBackfillService,
+                              WhatsAppMessageBulkWriter whatsappMessageBulkWriter) {
         this.leadRepository = leadRepository;
         this.userRepository = userRepository;
         this.leadContactRepository = leadContactRepository;
         this.leadInteractionRepository = leadInteractionRepository;
-        this.whatsappMessageRepository = whatsappMessageRepository;
-        this.whatsappContactRepository = whatsappContactRepository;
         this.whatsappConfigRepository = whatsappConfigRepository;
+        this.whatsappMessageBackfillService = whatsappMessageBackfillService;
+        this.whatsappMessageBulkWriter = whatsappMessageBulkWriter;
     }
 
     @Override
@@ -56,7 +54,8 @@ public class DataBackfillRunner implements CommandLineRunner {
     public void run(String... args) {
         normalizeWhatsAppConfigsConnectedFlag();
         createPartialUniqueIndexForWhatsAppConfig();
-        createWebhookDebugTableIfNotExists();
+        createUniqueIndexForWhatsAppMessageExternalId();
+        createHistoryIndexForWhatsAppMessages();
         backfillLeadsCompanyId();
         backfillLeadContactsCompanyId();
         backfillLeadInteractionsCompanyId();
@@ -112,22 +111,14 @@ public class DataBackfillRunner implements CommandLineRunner {
         System.out.println("[migration] LeadInteraction company_id backfilled: " + updated);
     }
 
+    // Set-based and batched in the background: startup does not wait for it nor hold its transaction open
     private void backfillWhatsAppMessagesCompanyId() {
-        List<WhatsAppMessage> missing = whatsappMessageRepository.findAllByCompanyIdIsNull();
-        int updated = 0;
-        for (WhatsAppMessage m : missing) {
-            if (m.getContactId() != null && !m.getContactId().isBlank()) {
-                WhatsAppContact c = whatsappContactRepository.findById(m.getContactId()).orElse(null);
-                if (c != null && c.getCompanyId() != null && !c.getCompanyId().isBlank()) {
-                    m.setCompanyId(c.getCompanyId());
-                    updated++;
-                }
-            }
-        }
-        if (updated > 0) {
-            whatsappMessageRepository.saveAll(missing);
+        try {
+            WhatsAppMessageBackfillService.BackfillJob job = whatsappMessageBackfillService.start(null, null);
+            System.out.println("[migration] WhatsAppMessage company_id backfill started: " + job.getId());
+        } catch (Exception e) {
+            System.out.println("[migration] WhatsAppMessage company_id backfill not started: " + e.getMessage());
         }
-        System.out.println("[migration] WhatsAppMessage company_id backfilled: " + updated);
     }
 
     private void normalizeWhatsAppConfigsConnectedFlag() {
@@ -178,25 +169,24 @@ public class DataBackfillRunner implements CommandLineRunner {
         }
     }
 
-    private void createWebhookDebugTableIfNotExists() {
+    // Webhook retries used to create duplicate rows; keep the oldest copy, then let the indexes reject new ones.
+    // Partitioned by month, the table cannot have these indexes: whatsapp_message_keys plays their role
+    private void createUniqueIndexForWhatsAppMessageExternalId() {
+        try {
+            int removed = whatsappMessageBulkWriter.ensureUniqueExternalIds();
+            System.out.println("[migration] Unique indexes ensured for whatsapp_messages external ids, duplicates removed: " + removed);
+        } catch (Exception ignored) {
+        }
+    }
+
+    // Serves the keyset pages of /whatsapp/messages/{contactId} as a single range scan in either direction
+    private void createHistoryIndexForWhatsAppMessages() {
         try {
             entityManager.createNativeQuery(
-                    "CREATE TABLE IF NOT EXISTS whatsapp_webhook_debug (" +
-                            " id VARCHAR(36) PRIMARY KEY, " +
-                            " received_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now(), " +
-                            " raw_payload JSONB, " +
-                            " instance_id TEXT, " +
-                            " message_id TEXT, " +
-                            " phone TEXT " +
-                            ")"
-            ).executeUpdate();
-            entityManager.createNativeQuery(
-                    "CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_instance ON whatsapp_webhook_debug (instance_id)"
-            ).executeUpdate();
-            entityManager.createNativeQuery(
-                    "CREATE INDEX IF NOT EXISTS idx_whatsapp_webhook_debug_message ON whatsapp_webhook_debug (message_id)"
+                    "CREATE INDEX IF NOT EXISTS ix_whatsapp_messages_history " +
+                            "ON whatsapp_messages(company_id, contact_id, timestamp, id)"
             ).executeUpdate();
-            System.out.println("[migration] whatsapp_webhook_debug table ensured");
+            System.out.println("[migration] History index ensured for whatsapp_messages(company_id, contact_id, timestamp, id)");
         } catch (Exception ignored) {
         }
     }
@@ -0,0 +1,55 @@
+package crm.migration;
+
+import crm.service.WebhookReplayService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Command-line replay of captured webhooks; the application exits when the job ends. Example:
+ *
+ *   java -jar crm-backend.jar --replay-webhooks --from=2024-05-01 --to=2024-05-03 [--instance=ID] [--phone=5544...] [--workers=8]
+ */
+@Component
+public class WebhookReplayRunner implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookReplayRunner.class);
+
+    private final WebhookReplayService replayService;
+    private final ConfigurableApplicationContext context;
+
+    public WebhookReplayRunner(WebhookReplayService replayService, ConfigurableApplicationContext context) {
+        this.replayService = replayService;
+        this.context = context;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!args.containsOption("replay-webhooks")) return;
+        String workers = option(args, "workers");
+        WebhookReplayService.ReplayJob job = replayService.start(
+                WebhookReplayService.parseInstant(option(args, "from")),
+                WebhookReplayService.parseInstant(option(args, "to")),
+                option(args, "instance"),
+                option(args, "phone"),
+                workers != null ? Integer.valueOf(workers) : null);
+        while (job.isRunning()) {
+            Thread.sleep(5000);
+            log.info("[REPLAY] progresso: {}", job.snapshot());
+        }
+        Object status = job.snapshot().get("status");
+        int code = "completed".equals(status) ? 0 : 1;
+        System.exit(SpringApplication.exit(context, () -> code));
+    }
+
+    private static String option(ApplicationArguments args, String name) {
+        List<String> values = args.getOptionValues(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
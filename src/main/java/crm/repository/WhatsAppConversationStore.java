@@ -0,0 +1,353 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * whatsapp_conversations: one row per (company_id, contact_id) with the last message, its time and the
+ * message/unread counters, so the conversation list is a page of an index instead of a scan of
+ * whatsapp_messages.
+ *
+ * Rows are upserted in the same transaction as the messages they summarize (see
+ * {@link #recordInserted}); counters are added, and the "last message" columns only move forward in
+ * (timestamp, id) order, so out-of-order webhooks don't roll a conversation back. Messages without a
+ * company are not summarized until the company id backfill assigns one and calls {@link #refresh}.
+ *
+ * Read state is a watermark per conversation (read_timestamp, read_message_id), shared by the company's
+ * agents. unread_count is the number of inbound messages after it: ingest adds a batch's inbound messages
+ * unless the newest of them is already behind the watermark (a late webhook), and {@link #markRead}
+ * recounts the few rows after the new watermark.
+ */
+@Repository
+@DependsOn("entityManagerFactory")
+public class WhatsAppConversationStore {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppConversationStore.class);
+
+    public static final int PREVIEW_LENGTH = 200;
+
+    // 13 bind parameters per row
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    private static final String LAST_COLUMNS_NEWER =
+            "(EXCLUDED.last_timestamp, EXCLUDED.last_message_id) >= (c.last_timestamp, c.last_message_id) OR c.last_timestamp IS NULL";
+
+    private static final String[] LAST_COLUMNS = {
+            "last_message_id", "last_external_id", "last_preview", "last_message_type", "last_from_me", "last_status", "last_timestamp"
+    };
+
+    private static final String INBOUND_AFTER_WATERMARK = "c.read_timestamp IS NULL OR " +
+            "(EXCLUDED.last_inbound_timestamp, EXCLUDED.last_inbound_id) > (c.read_timestamp, c.read_message_id)";
+
+    private static final String INBOUND_NEWER = "EXCLUDED.last_inbound_id IS NOT NULL AND (c.last_inbound_id IS NULL OR " +
+            "(EXCLUDED.last_inbound_timestamp, EXCLUDED.last_inbound_id) > (c.last_inbound_timestamp, c.last_inbound_id))";
+
+    private static final String UPSERT_PREFIX = "INSERT INTO whatsapp_conversations AS c " +
+            "(company_id, contact_id, message_count, unread_count, last_message_id, last_external_id, last_preview, " +
+            "last_message_type, last_from_me, last_status, last_timestamp, last_inbound_id, last_inbound_timestamp, updated_at) VALUES ";
+    private static final String ROW_VALUES = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, now())";
+
+    // Recomputes rows from the messages (%1$s, see messageSource()), keeping each row's watermark;
+    // %2$s is an optional filter on m.company_id / m.contact_id
+    private static final String REBUILD = "INSERT INTO whatsapp_conversations AS c " +
+            "(company_id, contact_id, message_count, unread_count, last_message_id, last_external_id, last_preview, " +
+            "last_message_type, last_from_me, last_status, last_timestamp, last_inbound_id, last_inbound_timestamp, updated_at) " +
+            "SELECT agg.company_id, agg.contact_id, agg.message_count, agg.unread_count, l.id, l.external_message_id, " +
+            "left(l.content, " + PREVIEW_LENGTH + "), l.message_type, l.is_from_me, l.status, l.timestamp, i.id, i.timestamp, now() FROM " +
+            "(SELECT m.company_id, m.contact_id, count(*) AS message_count, " +
+            "count(*) FILTER (WHERE m.is_from_me IS NOT TRUE AND (w.read_timestamp IS NULL OR " +
+            "(m.timestamp, m.id) > (w.read_timestamp, w.read_message_id))) AS unread_count " +
+            "FROM %1$s m LEFT JOIN whatsapp_conversations w ON w.company_id = m.company_id AND w.contact_id = m.contact_id " +
+            "WHERE m.company_id IS NOT NULL %2$s GROUP BY m.company_id, m.contact_id) agg " +
+            "JOIN LATERAL (SELECT * FROM %1$s l WHERE l.company_id = agg.company_id AND l.contact_id = agg.contact_id " +
+            "ORDER BY l.timestamp DESC NULLS LAST, l.id DESC LIMIT 1) l ON true " +
+            "LEFT JOIN LATERAL (SELECT i.id, i.timestamp FROM %1$s i WHERE i.company_id = agg.company_id " +
+            "AND i.contact_id = agg.contact_id AND i.is_from_me IS NOT TRUE " +
+            "ORDER BY i.timestamp DESC NULLS LAST, i.id DESC LIMIT 1) i ON true " +
+            "ON CONFLICT (company_id, contact_id) DO UPDATE SET message_count = EXCLUDED.message_count, " +
+            "unread_count = EXCLUDED.unread_count, last_message_id = EXCLUDED.last_message_id, " +
+            "last_external_id = EXCLUDED.last_external_id, last_preview = EXCLUDED.last_preview, " +
+            "last_message_type = EXCLUDED.last_message_type, last_from_me = EXCLUDED.last_from_me, " +
+            "last_status = EXCLUDED.last_status, last_timestamp = EXCLUDED.last_timestamp, " +
+            "last_inbound_id = EXCLUDED.last_inbound_id, last_inbound_timestamp = EXCLUDED.last_inbound_timestamp, updated_at = now()";
+
+    private static final String PAGE_SELECT = "SELECT c.*, ct.name FROM whatsapp_conversations c " +
+            "LEFT JOIN whatsapp_contacts ct ON ct.id = c.contact_id ";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public WhatsAppConversationStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public record Key(String companyId, String contactId) {}
+
+    public record UnreadTotals(long unreadMessages, int unreadConversations) {}
+
+    public record Summary(String contactId, String name, long messageCount, int unreadCount,
+                          String lastMessageId, String lastPreview, String lastMessageType,
+                          boolean lastFromMe, String lastStatus, Instant lastTimestamp) {}
+
+    // Creates the table on first start and fills it from the existing messages; idempotent
+    @PostConstruct
+    public void ensureTable() {
+        try {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS whatsapp_conversations (" +
+                    "company_id varchar(255) NOT NULL, contact_id varchar(255) NOT NULL, " +
+                    "message_count bigint NOT NULL DEFAULT 0, unread_count integer NOT NULL DEFAULT 0, " +
+                    "last_message_id bigint, last_external_id varchar(255), last_preview varchar(" + PREVIEW_LENGTH + "), " +
+                    "last_message_type varchar(255), last_from_me boolean, last_status varchar(255), " +
+                    "last_timestamp timestamp(6) with time zone, updated_at timestamp(6) with time zone NOT NULL DEFAULT now(), " +
+                    "PRIMARY KEY (company_id, contact_id))");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_conversations_activity " +
+                    "ON whatsapp_conversations (company_id, last_timestamp DESC NULLS LAST, contact_id)");
+            // Read watermark and newest inbound message, added after the table first shipped
+            jdbcTemplate.execute("ALTER TABLE whatsapp_conversations " +
+                    "ADD COLUMN IF NOT EXISTS read_message_id bigint, ADD COLUMN IF NOT EXISTS read_timestamp timestamp(6) with time zone, " +
+                    "ADD COLUMN IF NOT EXISTS last_inbound_id bigint, ADD COLUMN IF NOT EXISTS last_inbound_timestamp timestamp(6) with time zone");
+            // The unread badge sums only conversations that have something unread, straight from this index
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_whatsapp_conversations_unread " +
+                    "ON whatsapp_conversations (company_id) INCLUDE (unread_count) WHERE unread_count > 0");
+            Boolean empty = jdbcTemplate.queryForObject("SELECT NOT EXISTS (SELECT 1 FROM whatsapp_conversations)", Boolean.class);
+            if (Boolean.TRUE.equals(empty)) {
+                int rows = jdbcTemplate.update(String.format(REBUILD, messageSource(), ""));
+                if (rows > 0) log.info("[CONVERSATIONS] {} conversas reconstruídas a partir de whatsapp_messages", rows);
+            }
+        } catch (Exception e) {
+            log.warn("[CONVERSATIONS] falha ao preparar whatsapp_conversations: {}", e.toString());
+        }
+    }
+
+    /**
+     * Adds freshly inserted messages to their conversations with one upsert per 500 conversations.
+     * Call it only with rows that were actually inserted, inside the inserting transaction when there is one.
+     */
+    public void recordInserted(Collection<WhatsAppMessage> inserted) {
+        List<Delta> deltas = summarize(inserted);
+        for (int from = 0; from < deltas.size(); from += ROWS_PER_STATEMENT) {
+            List<Delta> chunk = deltas.subList(from, Math.min(deltas.size(), from + ROWS_PER_STATEMENT));
+            jdbcTemplate.update(upsertSql(chunk.size()), bindRows(chunk));
+        }
+    }
+
+    // Recomputes the given conversations from their messages, archived ones included (after company ids were backfilled, or to repair drift)
+    public int refresh(Collection<Key> keys) {
+        int rows = 0;
+        String source = messageSource();
+        List<Key> list = new ArrayList<>(keys);
+        for (int from = 0; from < list.size(); from += ROWS_PER_STATEMENT) {
+            List<Key> chunk = list.subList(from, Math.min(list.size(), from + ROWS_PER_STATEMENT));
+            String filter = "AND (m.company_id, m.contact_id) IN (" + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?)")) + ")";
+            Object[] args = new Object[chunk.size() * 2];
+            int p = 0;
+            for (Key k : chunk) {
+                args[p++] = k.companyId();
+                args[p++] = k.contactId();
+            }
+            rows += jdbcTemplate.update(String.format(REBUILD, source, filter), args);
+        }
+        return rows;
+    }
+
+    // Archived months still count: the counters cover the whole history, like the ingest deltas that built them
+    private String messageSource() {
+        Boolean archive = jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, WhatsAppMessagePartitions.ARCHIVE);
+        if (!Boolean.TRUE.equals(archive)) return "whatsapp_messages";
+        return "(SELECT " + WhatsAppMessagePartitions.COLUMNS + " FROM whatsapp_messages UNION ALL SELECT " +
+                WhatsAppMessagePartitions.COLUMNS + " FROM " + WhatsAppMessagePartitions.ARCHIVE + ")";
+    }
+
+    /**
+     * Most recently active first, in (last_timestamp DESC NULLS LAST, contact_id) order, starting after the
+     * given conversation (from the top when afterContactId is null). Each page is one range of the activity
+     * index that starts at the previous page's last row, plus a primary-key lookup per row for the contact
+     * name, so deep pages cost the same as the first one. Conversations without a last message come last.
+     */
+    public List<Summary> findPage(String companyId, Instant afterTimestamp, String afterContactId, int limit) {
+        if (afterContactId == null) {
+            return jdbcTemplate.query(PAGE_SELECT + "WHERE c.company_id = ? ORDER BY c.last_timestamp DESC NULLS LAST, c.contact_id LIMIT ?",
+                    (rs, i) -> mapSummary(rs), companyId, limit);
+        }
+        List<Summary> page = new ArrayList<>(limit);
+        if (afterTimestamp != null) {
+            Timestamp ts = Timestamp.from(afterTimestamp);
+            // "<= ?" is the index range; the OR only drops the rows of the same instant up to the cursor
+            page.addAll(jdbcTemplate.query(PAGE_SELECT + "WHERE c.company_id = ? AND c.last_timestamp <= ? " +
+                            "AND (c.last_timestamp < ? OR c.contact_id > ?) ORDER BY c.last_timestamp DESC, c.contact_id LIMIT ?",
+                    (rs, i) -> mapSummary(rs), companyId, ts, ts, afterContactId, limit));
+            if (page.size() == limit) return page;
+            afterContactId = "";
+        }
+        page.addAll(jdbcTemplate.query(PAGE_SELECT + "WHERE c.company_id = ? AND c.last_timestamp IS NULL AND c.contact_id > ? " +
+                        "ORDER BY c.contact_id LIMIT ?",
+                (rs, i) -> mapSummary(rs), companyId, afterContactId, limit - page.size()));
+        return page;
+    }
+
+    /**
+     * Moves the conversation's watermark forward to the given message (the newest one when messageId is null)
+     * and recounts the inbound messages after it. The row lock is taken first, so an ingest transaction that
+     * already counted a message commits before the recount sees it.
+     *
+     * @return the new unread count, or null when the conversation or message does not exist
+     */
+    @Transactional
+    public Integer markRead(String companyId, String contactId, String messageId) {
+        List<Map<String, Object>> locked = jdbcTemplate.queryForList("SELECT read_timestamp, read_message_id, unread_count " +
+                "FROM whatsapp_conversations WHERE company_id = ? AND contact_id = ? FOR UPDATE", companyId, contactId);
+        if (locked.isEmpty()) return null;
+        List<Map<String, Object>> target = findMessagePosition(companyId, contactId, messageId);
+        if (target.isEmpty()) return null;
+        Timestamp ts = (Timestamp) target.get(0).get("timestamp");
+        long id = ((Number) target.get(0).get("id")).longValue();
+        Timestamp readTs = (Timestamp) locked.get(0).get("read_timestamp");
+        Number readId = (Number) locked.get(0).get("read_message_id");
+        // Never moves back: a stale tab marking an older message changes nothing
+        if (readTs != null && readId != null) {
+            int cmp = ts.compareTo(readTs);
+            if (cmp < 0 || (cmp == 0 && id <= readId.longValue())) return ((Number) locked.get(0).get("unread_count")).intValue();
+        }
+        Integer unread = jdbcTemplate.queryForObject("SELECT count(*) FROM whatsapp_messages WHERE company_id = ? AND contact_id = ? " +
+                "AND is_from_me IS NOT TRUE AND (timestamp, id) > (?, ?)", Integer.class, companyId, contactId, ts, id);
+        jdbcTemplate.update("UPDATE whatsapp_conversations SET read_timestamp = ?, read_message_id = ?, unread_count = ?, updated_at = now() " +
+                "WHERE company_id = ? AND contact_id = ?", ts, id, unread, companyId, contactId);
+        return unread;
+    }
+
+    // The message by its public id (external id, or the row id for messages without one)
+    private List<Map<String, Object>> findMessagePosition(String companyId, String contactId, String messageId) {
+        if (messageId == null || messageId.isBlank()) {
+            return jdbcTemplate.queryForList("SELECT timestamp, id FROM whatsapp_messages WHERE company_id = ? AND contact_id = ? " +
+                    "AND timestamp IS NOT NULL ORDER BY timestamp DESC, id DESC LIMIT 1", companyId, contactId);
+        }
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT timestamp, id FROM whatsapp_messages " +
+                "WHERE company_id = ? AND contact_id = ? AND external_message_id = ? AND timestamp IS NOT NULL", companyId, contactId, messageId);
+        if (rows.isEmpty() && messageId.chars().allMatch(Character::isDigit) && messageId.length() < 19) {
+            rows = jdbcTemplate.queryForList("SELECT timestamp, id FROM whatsapp_messages WHERE id = ? AND company_id = ? " +
+                    "AND contact_id = ? AND timestamp IS NOT NULL", Long.parseLong(messageId), companyId, contactId);
+        }
+        return rows;
+    }
+
+    // Keeps the list's last-message ticks in step with a status callback
+    public int applyStatus(String companyId, String contactId, Collection<String> externalIds, String status) {
+        return jdbcTemplate.update("UPDATE whatsapp_conversations SET last_status = ?, updated_at = now() " +
+                        "WHERE company_id = ? AND contact_id = ? AND last_external_id = ANY(CAST(? AS varchar[])) " +
+                        "AND last_status IS DISTINCT FROM ?",
+                status, companyId, contactId, externalIds.toArray(String[]::new), status);
+    }
+
+    public UnreadTotals unreadTotals(String companyId) {
+        return jdbcTemplate.queryForObject("SELECT coalesce(sum(unread_count), 0) AS messages, count(*) AS conversations " +
+                        "FROM whatsapp_conversations WHERE company_id = ? AND unread_count > 0",
+                (rs, i) -> new UnreadTotals(rs.getLong("messages"), rs.getInt("conversations")), companyId);
+    }
+
+    private static Summary mapSummary(ResultSet rs) throws SQLException {
+        Timestamp ts = rs.getTimestamp("last_timestamp");
+        String externalId = rs.getString("last_external_id");
+        Object lastId = rs.getObject("last_message_id");
+        return new Summary(
+                rs.getString("contact_id"),
+                rs.getString("name"),
+                rs.getLong("message_count"),
+                rs.getInt("unread_count"),
+                externalId != null ? externalId : (lastId != null ? String.valueOf(lastId) : null),
+                rs.getString("last_preview"),
+                rs.getString("last_message_type"),
+                rs.getBoolean("last_from_me"),
+                rs.getString("last_status"),
+                ts != null ? ts.toInstant() : null);
+    }
+
+    // lastInbound is null when the batch only has outgoing messages
+    record Delta(Key key, long count, int inbound, WhatsAppMessage last, WhatsAppMessage lastInbound) {}
+
+    // One delta per conversation in key order, so concurrent upserts lock rows in the same order
+    static List<Delta> summarize(Collection<WhatsAppMessage> messages) {
+        Map<Key, Delta> byKey = new TreeMap<>(Comparator.comparing(Key::companyId).thenComparing(Key::contactId));
+        for (WhatsAppMessage m : messages) {
+            if (m == null || m.getCompanyId() == null || m.getCompanyId().isBlank() || m.getContactId() == null) continue;
+            Key key = new Key(m.getCompanyId(), m.getContactId());
+            boolean inbound = !Boolean.TRUE.equals(m.getIsFromMe());
+            byKey.merge(key, new Delta(key, 1, inbound ? 1 : 0, m, inbound ? m : null),
+                    (a, b) -> new Delta(key, a.count() + b.count(), a.inbound() + b.inbound(),
+                            newer(a.last(), b.last()), newer(a.lastInbound(), b.lastInbound())));
+        }
+        return new ArrayList<>(byKey.values());
+    }
+
+    private static WhatsAppMessage newer(WhatsAppMessage a, WhatsAppMessage b) {
+        if (a == null || b == null) return a != null ? a : b;
+        int cmp = Comparator.nullsFirst(Comparator.<Instant>naturalOrder()).compare(a.getTimestamp(), b.getTimestamp());
+        if (cmp == 0) cmp = Long.compare(a.getId() != null ? a.getId() : 0, b.getId() != null ? b.getId() : 0);
+        return cmp >= 0 ? a : b;
+    }
+
+    private static String upsertSql(int rows) {
+        StringBuilder sb = new StringBuilder(UPSERT_PREFIX)
+                .append(String.join(", ", Collections.nCopies(rows, ROW_VALUES)))
+                .append(" ON CONFLICT (company_id, contact_id) DO UPDATE SET ")
+                .append("message_count = c.message_count + EXCLUDED.message_count, ")
+                .append("unread_count = c.unread_count + CASE WHEN ").append(INBOUND_AFTER_WATERMARK)
+                .append(" THEN EXCLUDED.unread_count ELSE 0 END, ");
+        for (String col : LAST_COLUMNS) {
+            sb.append(col).append(" = CASE WHEN ").append(LAST_COLUMNS_NEWER)
+                    .append(" THEN EXCLUDED.").append(col).append(" ELSE c.").append(col).append(" END, ");
+        }
+        for (String col : new String[]{"last_inbound_id", "last_inbound_timestamp"}) {
+            sb.append(col).append(" = CASE WHEN ").append(INBOUND_NEWER)
+                    .append(" THEN EXCLUDED.").append(col).append(" ELSE c.").append(col).append(" END, ");
+        }
+        return sb.append("updated_at = now()").toString();
+    }
+
+    private static Object[] bindRows(List<Delta> chunk) {
+        Object[] params = new Object[chunk.size() * 13];
+        int p = 0;
+        for (Delta d : chunk) {
+            WhatsAppMessage m = d.last();
+            params[p++] = d.key().companyId();
+            params[p++] = d.key().contactId();
+            params[p++] = d.count();
+            params[p++] = d.inbound();
+            params[p++] = m.getId();
+            params[p++] = m.getExternalMessageId();
+            params[p++] = preview(m.getContent());
+            params[p++] = m.getMessageType();
+            params[p++] = Boolean.TRUE.equals(m.getIsFromMe());
+            params[p++] = m.getStatus();
+            params[p++] = m.getTimestamp() != null ? Timestamp.from(m.getTimestamp()) : null;
+            WhatsAppMessage in = d.lastInbound();
+            params[p++] = in != null ? in.getId() : null;
+            params[p++] = in != null && in.getTimestamp() != null ? Timestamp.from(in.getTimestamp()) : null;
+        }
+        return params;
+    }
+
+    static String preview(String content) {
+        if (content == null || content.length() <= PREVIEW_LENGTH) return content;
+        int end = PREVIEW_LENGTH;
+        // Don't split a surrogate pair (emoji) in half
+        if (Character.isHighSurrogate(content.charAt(end - 1))) end--;
+        return content.substring(0, end);
+    }
+}
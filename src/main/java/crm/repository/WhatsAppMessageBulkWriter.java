@@ -0,0 +1,369 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * JDBC writer for whatsapp_messages used by the ingest workers, backfills and imports.
+ *
+ * Ids come from the pooled sequence shared with Hibernate (each nextval reserves the block
+ * v-49..v), so a batch needs one sequence round trip per 50 rows instead of one INSERT ... RETURNING
+ * per row. Rows are sent as multi-row INSERT statements; plain batches rely on the driver's
+ * reWriteBatchedInserts.
+ *
+ * Duplicates are rejected by the unique indexes on (company_id, external_message_id) and, for messages without
+ * company, on external_message_id alone. Once the table is partitioned by month those indexes can no longer be
+ * global, and the keys live in whatsapp_message_keys instead, with {@link #NO_COMPANY} standing for the missing
+ * company: each insert claims its key there in the same statement.
+ */
+@Repository
+@DependsOn("entityManagerFactory")
+public class WhatsAppMessageBulkWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessageBulkWriter.class);
+
+    public static final String SEQUENCE = "whatsapp_messages_seq";
+    public static final int ALLOCATION_SIZE = 50;
+
+    // Company of the keys of messages without one; company ids are UUIDs, so it never clashes with a real one
+    public static final String NO_COMPANY = "";
+
+    // 9 bind parameters per row; stays well under the 32767 parameter limit of the wire protocol
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    private static final String INSERT_PREFIX = "INSERT INTO whatsapp_messages " +
+            "(id, external_message_id, company_id, contact_id, content, timestamp, is_from_me, message_type, status) VALUES ";
+    private static final String ROW_VALUES = "(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // VALUES rows of a CTE have no target column to infer the parameter types from
+    private static final String TYPED_ROW_VALUES =
+            "(?::bigint, ?::varchar, ?::varchar, ?::varchar, ?::text, ?::timestamptz, ?::boolean, ?::varchar, ?::varchar)";
+    private static final String KEYED_INSERT_PREFIX = "WITH v (id, external_message_id, company_id, contact_id, content, " +
+            "timestamp, is_from_me, message_type, status) AS (VALUES ";
+    // Only rows without external id were never deduplicated; those without company share the NO_COMPANY keys
+    private static final String KEYED_INSERT_SUFFIX = "), k AS (" +
+            "INSERT INTO whatsapp_message_keys (company_id, external_message_id, message_id) " +
+            "SELECT COALESCE(company_id, '" + NO_COMPANY + "'), external_message_id, id FROM v " +
+            "WHERE external_message_id IS NOT NULL " +
+            "ON CONFLICT DO NOTHING RETURNING message_id) " +
+            "INSERT INTO whatsapp_messages (id, external_message_id, company_id, contact_id, content, timestamp, " +
+            "is_from_me, message_type, status) SELECT * FROM v " +
+            "WHERE v.external_message_id IS NULL OR v.id IN (SELECT message_id FROM k) " +
+            "RETURNING id";
+    private static final String KEY_TRIGGER = "whatsapp_messages_claim_key";
+    private static final String KEY_INSERT = "INSERT INTO whatsapp_message_keys (company_id, external_message_id, message_id) " +
+            "SELECT * FROM unnest(CAST(? AS varchar[]), CAST(? AS varchar[]), CAST(? AS bigint[])) ON CONFLICT DO NOTHING";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private long nextId;
+    private long blockEnd = -1;
+    private volatile boolean keyed;
+
+    public WhatsAppMessageBulkWriter(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // Moves whatsapp_messages.id from IDENTITY/serial to the pooled sequence; idempotent.
+    // The column gets no default: nextval there would burn a whole block of 50 ids per row, and every writer
+    // (Hibernate and this class) takes its ids from the pooled blocks anyway.
+    @PostConstruct
+    public void ensureSequence() {
+        try {
+            jdbcTemplate.execute("CREATE SEQUENCE IF NOT EXISTS " + SEQUENCE + " START WITH 1 INCREMENT BY " + ALLOCATION_SIZE);
+            jdbcTemplate.execute("ALTER TABLE whatsapp_messages ALTER COLUMN id DROP IDENTITY IF EXISTS");
+            jdbcTemplate.execute("ALTER TABLE whatsapp_messages ALTER COLUMN id DROP DEFAULT");
+            // Leave a full block of headroom above existing ids so no pooled block can reuse one
+            jdbcTemplate.queryForObject("SELECT setval('" + SEQUENCE + "', GREATEST(" +
+                    "(SELECT COALESCE(MAX(id), 0) FROM whatsapp_messages) + " + ALLOCATION_SIZE + ", " +
+                    "(SELECT last_value FROM " + SEQUENCE + ")))", Long.class);
+        } catch (Exception e) {
+            log.warn("[MESSAGES] falha ao migrar id de whatsapp_messages para sequence pooled: {}", e.toString());
+        }
+    }
+
+    /**
+     * Deletes the duplicate copies of each (company_id, external_message_id), oldest kept, and creates the unique
+     * indexes that reject new ones; nothing to do once both exist or the table is partitioned.
+     *
+     * @return the number of rows deleted
+     */
+    public int ensureUniqueExternalIds() {
+        String kind = jdbcTemplate.queryForObject(
+                "SELECT COALESCE((SELECT relkind::text FROM pg_class WHERE oid = to_regclass('whatsapp_messages')), '')", String.class);
+        if ("p".equals(kind)) return 0;
+        // The self-join reads the whole table: only worth it while an index is still missing
+        Boolean missing = jdbcTemplate.queryForObject("SELECT to_regclass('ux_whatsapp_messages_company_external_id') IS NULL " +
+                "OR to_regclass('ux_whatsapp_messages_external_id_no_company') IS NULL", Boolean.class);
+        if (!Boolean.TRUE.equals(missing)) return 0;
+        int removed = jdbcTemplate.update("DELETE FROM whatsapp_messages a USING whatsapp_messages b " +
+                "WHERE a.external_message_id = b.external_message_id " +
+                "AND a.company_id IS NOT DISTINCT FROM b.company_id AND a.id > b.id");
+        // Postgres 14 has no NULLS NOT DISTINCT, so messages without company get their own partial index
+        jdbcTemplate.execute("CREATE UNIQUE INDEX IF NOT EXISTS ux_whatsapp_messages_company_external_id " +
+                "ON whatsapp_messages(company_id, external_message_id) WHERE external_message_id IS NOT NULL");
+        jdbcTemplate.execute("CREATE UNIQUE INDEX IF NOT EXISTS ux_whatsapp_messages_external_id_no_company " +
+                "ON whatsapp_messages(external_message_id) WHERE company_id IS NULL AND external_message_id IS NOT NULL");
+        return removed;
+    }
+
+    /**
+     * Creates whatsapp_message_keys and copies the keys of the stored messages into it without blocking writes:
+     * a trigger claims the keys of rows written from now on, then one INSERT ... SELECT copies the rest. The
+     * unique indexes still guard the table meanwhile (see {@link #ensureUniqueExternalIds}), so no key is taken
+     * twice. Call {@link #finishKeyTable} once whatsapp_messages is locked against writes.
+     */
+    public void startKeyTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS whatsapp_message_keys (" +
+                "company_id varchar(255) NOT NULL, external_message_id varchar(255) NOT NULL, message_id bigint NOT NULL, " +
+                "PRIMARY KEY (company_id, external_message_id))");
+        jdbcTemplate.execute("CREATE OR REPLACE FUNCTION " + KEY_TRIGGER + "() RETURNS trigger LANGUAGE plpgsql AS $$ BEGIN " +
+                "IF NEW.external_message_id IS NOT NULL THEN " +
+                "INSERT INTO whatsapp_message_keys (company_id, external_message_id, message_id) " +
+                "VALUES (COALESCE(NEW.company_id, '" + NO_COMPANY + "'), NEW.external_message_id, NEW.id) ON CONFLICT DO NOTHING; " +
+                "END IF; RETURN NULL; END $$");
+        jdbcTemplate.execute("DROP TRIGGER IF EXISTS " + KEY_TRIGGER + " ON whatsapp_messages");
+        jdbcTemplate.execute("CREATE TRIGGER " + KEY_TRIGGER + " AFTER INSERT OR UPDATE OF company_id, external_message_id " +
+                "ON whatsapp_messages FOR EACH ROW EXECUTE FUNCTION " + KEY_TRIGGER + "()");
+        int copied = jdbcTemplate.update("INSERT INTO whatsapp_message_keys (company_id, external_message_id, message_id) " +
+                "SELECT COALESCE(company_id, '" + NO_COMPANY + "'), external_message_id, id FROM whatsapp_messages " +
+                "WHERE external_message_id IS NOT NULL ORDER BY id ON CONFLICT DO NOTHING");
+        log.info("[MESSAGES] whatsapp_message_keys preenchida com {} chaves", copied);
+    }
+
+    /**
+     * Drops the trigger of {@link #startKeyTable}. Run it in the transaction that holds whatsapp_messages locked:
+     * every committed write already claimed its key, so nothing is left to copy.
+     */
+    public void finishKeyTable() {
+        jdbcTemplate.execute("DROP TRIGGER IF EXISTS " + KEY_TRIGGER + " ON whatsapp_messages");
+        jdbcTemplate.execute("DROP FUNCTION IF EXISTS " + KEY_TRIGGER + "()");
+    }
+
+    // From now on duplicates are detected through whatsapp_message_keys
+    public void useKeyTable() {
+        keyed = true;
+    }
+
+    public boolean keyed() {
+        return keyed;
+    }
+
+    /**
+     * Inserts the messages, skipping those whose (company_id, external_message_id) already exists.
+     * Ids are assigned on the entities; the result is index-aligned with the input.
+     */
+    public boolean[] insertIgnoringDuplicates(List<WhatsAppMessage> messages) {
+        boolean[] inserted = new boolean[messages.size()];
+        if (messages.isEmpty()) return inserted;
+        assignIds(messages);
+        for (int from = 0; from < messages.size(); from += ROWS_PER_STATEMENT) {
+            int to = Math.min(messages.size(), from + ROWS_PER_STATEMENT);
+            List<WhatsAppMessage> chunk = messages.subList(from, to);
+            String sql = keyed
+                    ? KEYED_INSERT_PREFIX + String.join(", ", Collections.nCopies(chunk.size(), TYPED_ROW_VALUES)) + KEYED_INSERT_SUFFIX
+                    : INSERT_PREFIX + String.join(", ", Collections.nCopies(chunk.size(), ROW_VALUES)) + " ON CONFLICT DO NOTHING RETURNING id";
+            Set<Long> ids = new HashSet<>(jdbcTemplate.queryForList(sql, Long.class, bindRows(chunk)));
+            for (int i = from; i < to; i++) {
+                inserted[i] = ids.contains(messages.get(i).getId());
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Plain batched insert for messages known to be new (see {@link #withoutStored}); the driver rewrites the
+     * batch into multi-row statements. A message whose (company_id, external_message_id) exists after all
+     * fails the whole call with DuplicateKeyException, so run it in a transaction.
+     */
+    public int insertAll(List<WhatsAppMessage> messages) {
+        if (messages.isEmpty()) return 0;
+        assignIds(messages);
+        // Keys first: with the table partitioned nothing else would reject a duplicate
+        if (keyed) claimKeys(messages);
+        List<Object[]> args = new ArrayList<>(messages.size());
+        for (WhatsAppMessage m : messages) {
+            args.add(bindRow(m));
+        }
+        jdbcTemplate.batchUpdate(INSERT_PREFIX + ROW_VALUES, args);
+        return messages.size();
+    }
+
+    // The messages whose (company_id, external_message_id) is not stored yet, first copy only; one query
+    public List<WhatsAppMessage> withoutStored(List<WhatsAppMessage> messages) {
+        List<String> companies = new ArrayList<>();
+        List<String> externalIds = new ArrayList<>();
+        for (WhatsAppMessage m : messages) {
+            if (m.getCompanyId() == null || m.getExternalMessageId() == null) continue;
+            companies.add(m.getCompanyId());
+            externalIds.add(m.getExternalMessageId());
+        }
+        Set<List<String>> seen = new HashSet<>();
+        if (!companies.isEmpty()) {
+            String table = keyed ? "whatsapp_message_keys" : "whatsapp_messages";
+            jdbcTemplate.query("SELECT company_id, external_message_id FROM " + table + " WHERE (company_id, external_message_id) IN " +
+                            "(SELECT * FROM unnest(CAST(? AS varchar[]), CAST(? AS varchar[])))",
+                    rs -> {
+                        seen.add(List.of(rs.getString(1), rs.getString(2)));
+                    },
+                    companies.toArray(String[]::new), externalIds.toArray(String[]::new));
+        }
+        List<WhatsAppMessage> fresh = new ArrayList<>(messages.size());
+        for (WhatsAppMessage m : messages) {
+            if (m.getCompanyId() == null || m.getExternalMessageId() == null
+                    || seen.add(List.of(m.getCompanyId(), m.getExternalMessageId()))) {
+                fresh.add(m);
+            }
+        }
+        return fresh;
+    }
+
+    // Status callback for messages of one chat; reaches them through the chat's history index, partitioned or not
+    public int updateStatus(String companyId, String contactId, Collection<String> externalIds, String status) {
+        return jdbcTemplate.update("UPDATE whatsapp_messages SET status = ? WHERE company_id = ? AND contact_id = ? " +
+                        "AND external_message_id = ANY(CAST(? AS varchar[])) AND status IS DISTINCT FROM ?",
+                status, companyId, contactId, externalIds.toArray(String[]::new), status);
+    }
+
+    public record CompanyBackfillBatch(int scanned, long lastId, List<WhatsAppConversationStore.Key> updated) {}
+
+    /**
+     * One keyset batch of the company id backfill: the next {@code limit} messages without a company after
+     * {@code afterId} (in id order, optionally only one contact) take the company of their contact in a single
+     * UPDATE ... FROM whatsapp_contacts. A message whose (company_id, external_message_id) is already taken, by
+     * a stored message or an earlier one in the batch, keeps its NULL so the batch never breaks deduplication.
+     * Run each batch in its own transaction.
+     */
+    public CompanyBackfillBatch backfillCompanyIds(long afterId, int limit, String contactId) {
+        List<Object> args = new ArrayList<>();
+        args.add(afterId);
+        String chat = "";
+        if (contactId != null) {
+            chat = " AND regexp_replace(contact_id, '\\D', '', 'g') = ?";
+            args.add(contactId);
+        }
+        args.add(limit);
+        List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM whatsapp_messages WHERE company_id IS NULL AND id > ?" + chat +
+                " ORDER BY id LIMIT ?", Long.class, args.toArray());
+        if (ids.isEmpty()) return new CompanyBackfillBatch(0, afterId, List.of());
+        String taken = keyed
+                ? "SELECT 1 FROM whatsapp_message_keys k WHERE k.company_id = c.company_id AND k.external_message_id = b.external_message_id"
+                : "SELECT 1 FROM whatsapp_messages d WHERE d.company_id = c.company_id AND d.external_message_id = b.external_message_id";
+        List<Long> updatedIds = new ArrayList<>();
+        List<WhatsAppConversationStore.Key> updated = jdbcTemplate.query(
+                "WITH b AS (SELECT id, external_message_id, regexp_replace(contact_id, '\\D', '', 'g') AS contact " +
+                        "FROM whatsapp_messages WHERE id = ANY(?) AND company_id IS NULL), " +
+                        "r AS (SELECT DISTINCT ON (c.company_id, COALESCE(b.external_message_id, CAST(b.id AS text))) b.id, c.company_id " +
+                        "FROM b JOIN whatsapp_contacts c ON c.id = b.contact " +
+                        "WHERE c.company_id IS NOT NULL AND c.company_id <> '' " +
+                        "AND (b.external_message_id IS NULL OR NOT EXISTS (" + taken + ")) " +
+                        "ORDER BY c.company_id, COALESCE(b.external_message_id, CAST(b.id AS text)), b.id) " +
+                        "UPDATE whatsapp_messages m SET company_id = r.company_id FROM r WHERE m.id = r.id " +
+                        "RETURNING m.id, m.company_id, m.contact_id",
+                (rs, i) -> {
+                    updatedIds.add(rs.getLong("id"));
+                    return new WhatsAppConversationStore.Key(rs.getString("company_id"), rs.getString("contact_id"));
+                },
+                (Object) ids.toArray(Long[]::new));
+        if (keyed && !updatedIds.isEmpty()) {
+            // The messages now have a company: their keys move from NO_COMPANY to it, as their rows left the
+            // no-company index before the table was partitioned
+            jdbcTemplate.update("DELETE FROM whatsapp_message_keys k USING whatsapp_messages m " +
+                    "WHERE m.id = ANY(?) AND k.company_id = '" + NO_COMPANY + "' " +
+                    "AND k.external_message_id = m.external_message_id AND k.message_id = m.id",
+                    (Object) updatedIds.toArray(Long[]::new));
+            jdbcTemplate.update("INSERT INTO whatsapp_message_keys (company_id, external_message_id, message_id) " +
+                    "SELECT company_id, external_message_id, id FROM whatsapp_messages " +
+                    "WHERE id = ANY(?) AND external_message_id IS NOT NULL ON CONFLICT DO NOTHING",
+                    (Object) updatedIds.toArray(Long[]::new));
+        }
+        return new CompanyBackfillBatch(ids.size(), ids.get(ids.size() - 1), updated);
+    }
+
+    // One statement for the whole list, so the row count tells whether every key was still free
+    private void claimKeys(List<WhatsAppMessage> messages) {
+        List<String> companies = new ArrayList<>(messages.size());
+        List<String> externalIds = new ArrayList<>(messages.size());
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (WhatsAppMessage m : messages) {
+            if (m.getExternalMessageId() == null) continue;
+            companies.add(m.getCompanyId() != null ? m.getCompanyId() : NO_COMPANY);
+            externalIds.add(m.getExternalMessageId());
+            ids.add(m.getId());
+        }
+        if (ids.isEmpty()) return;
+        int claimed = jdbcTemplate.update(KEY_INSERT, companies.toArray(String[]::new), externalIds.toArray(String[]::new),
+                ids.toArray(Long[]::new));
+        if (claimed < ids.size()) {
+            throw new DuplicateKeyException((ids.size() - claimed) + " mensagens já existem em whatsapp_message_keys");
+        }
+    }
+
+    private Object[] bindRows(List<WhatsAppMessage> chunk) {
+        Object[] params = new Object[chunk.size() * 9];
+        int p = 0;
+        for (WhatsAppMessage m : chunk) {
+            for (Object v : bindRow(m)) {
+                params[p++] = v;
+            }
+        }
+        return params;
+    }
+
+    private Object[] bindRow(WhatsAppMessage m) {
+        return new Object[]{
+                m.getId(),
+                m.getExternalMessageId(),
+                m.getCompanyId(),
+                m.getContactId(),
+                m.getContent(),
+                m.getTimestamp() != null ? Timestamp.from(m.getTimestamp()) : null,
+                m.getIsFromMe(),
+                m.getMessageType(),
+                m.getStatus()
+        };
+    }
+
+    private void assignIds(List<WhatsAppMessage> messages) {
+        long[] ids = allocate(messages.size());
+        for (int i = 0; i < ids.length; i++) {
+            messages.get(i).setId(ids[i]);
+        }
+    }
+
+    // Hands out ids from the current block and fetches as many new blocks as needed in one query
+    private synchronized long[] allocate(int count) {
+        long[] ids = new long[count];
+        int i = 0;
+        while (true) {
+            while (i < count && nextId <= blockEnd) {
+                ids[i++] = nextId++;
+            }
+            if (i == count) return ids;
+            int blocks = (count - i + ALLOCATION_SIZE - 1) / ALLOCATION_SIZE;
+            List<Long> his = jdbcTemplate.queryForList(
+                    "SELECT nextval('" + SEQUENCE + "') FROM generate_series(1, ?)", Long.class, blocks);
+            for (Long hi : his) {
+                // A fresh sequence starts at 1, which only covers that single id
+                nextId = Math.max(1, hi - ALLOCATION_SIZE + 1);
+                blockEnd = hi;
+                while (i < count && nextId <= blockEnd) {
+                    ids[i++] = nextId++;
+                }
+            }
+        }
+    }
+}
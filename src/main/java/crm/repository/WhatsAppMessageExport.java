@@ -0,0 +1,343 @@
+package crm.repository;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams every message of a company (optionally one chat and a time range) to an output stream, as NDJSON
+ * or CSV, optionally gzipped.
+ *
+ * Rows come from one server-side cursor: inside a read-only transaction the driver fetches
+ * {@code whatsapp.export.fetch-size} rows at a time, and each row is written and dropped before the next
+ * fetch, so memory does not depend on the size of the export. Rows are ordered by chat and then
+ * (timestamp, id), the order of the history index, so Postgres reads them without sorting; archived months
+ * are merged into the same ordered stream.
+ *
+ * Each export holds one pooled connection until it is done: {@code whatsapp.export.max-concurrent} bounds how
+ * many run at once.
+ */
+@Repository
+public class WhatsAppMessageExport {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessageExport.class);
+
+    static final String[] CSV_HEADER = {"id", "contactId", "timestamp", "isFromMe", "messageType", "status", "content"};
+
+    private static final String COLUMNS = "id, external_message_id, contact_id, timestamp, is_from_me, message_type, status, content";
+
+    public enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        public final String contentType;
+        public final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnly;
+    private final ObjectMapper objectMapper;
+    private final WhatsAppMessagePartitions partitions;
+
+    @Value("${whatsapp.export.fetch-size:1000}")
+    private int fetchSize = 1000;
+
+    @Value("${whatsapp.export.max-concurrent:2}")
+    private int maxConcurrent = 2;
+
+    private volatile Semaphore slots;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public WhatsAppMessageExport(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                 ObjectMapper objectMapper, WhatsAppMessagePartitions partitions) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.readOnly = new TransactionTemplate(transactionManager);
+        this.readOnly.setReadOnly(true);
+        this.objectMapper = objectMapper;
+        this.partitions = partitions;
+    }
+
+    public record Request(String companyId, String contactId, Instant from, Instant to, Format format, boolean gzip) {}
+
+    /**
+     * Takes one of the export slots; false when {@code max-concurrent} exports are already running. A caller
+     * that got true must call {@link #write} (which gives the slot back) or {@link #release}.
+     */
+    public boolean tryAcquire() {
+        Semaphore s = slots;
+        if (s == null) {
+            synchronized (this) {
+                if (slots == null) slots = new Semaphore(Math.max(1, maxConcurrent));
+                s = slots;
+            }
+        }
+        if (s.tryAcquire()) return true;
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Writes the whole export and returns the number of messages. A failure halfway (client gone, database
+     * error) propagates after the cursor is closed; what was already sent cannot be taken back.
+     */
+    public long write(Request request, OutputStream target) throws IOException {
+        started.incrementAndGet();
+        long start = System.nanoTime();
+        CountingOutputStream counted = new CountingOutputStream(target);
+        long[] count = {0};
+        try {
+            OutputStream out = request.gzip() ? new GZIPOutputStream(counted, 64 * 1024) : counted;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+            RowWriter rowWriter = request.format() == Format.CSV ? new CsvRowWriter(writer) : new JsonRowWriter(objectMapper, writer);
+            rowWriter.begin();
+            readOnly.executeWithoutResult(status -> query(request, rs -> {
+                try {
+                    rowWriter.row(rs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count[0]++;
+            }));
+            rowWriter.end();
+            writer.flush();
+            if (out instanceof GZIPOutputStream gz) gz.finish();
+            counted.flush();
+            completed.incrementAndGet();
+            log.info("[EXPORT] {} mensagens de {} em {} ms ({} bytes)", count[0], request.companyId(),
+                    (System.nanoTime() - start) / 1_000_000, counted.count);
+            return count[0];
+        } catch (UncheckedIOException e) {
+            failed.incrementAndGet();
+            log.warn("[EXPORT] interrompida após {} mensagens de {}: {}", count[0], request.companyId(), e.getCause().toString());
+            throw e.getCause();
+        } catch (RuntimeException | IOException e) {
+            failed.incrementAndGet();
+            log.warn("[EXPORT] falhou após {} mensagens de {}: {}", count[0], request.companyId(), e.toString());
+            throw e;
+        } finally {
+            rows.addAndGet(count[0]);
+            bytes.addAndGet(counted.count);
+            release();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Semaphore s = slots;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("maxConcurrent", maxConcurrent);
+        m.put("running", s != null ? Math.max(1, maxConcurrent) - s.availablePermits() : 0);
+        m.put("started", started.get());
+        m.put("completed", completed.get());
+        m.put("failed", failed.get());
+        m.put("rejected", rejected.get());
+        m.put("rows", rows.get());
+        m.put("bytes", bytes.get());
+        return m;
+    }
+
+    private void query(Request request, RowCallbackHandler handler) {
+        List<Object> args = new ArrayList<>();
+        String live = select("whatsapp_messages", request, args);
+        String sql = live;
+        Instant archivedBefore = partitions.archivedBefore();
+        if (archivedBefore != null && (request.from() == null || request.from().isBefore(archivedBefore))) {
+            sql = live + " UNION ALL " + select(WhatsAppMessagePartitions.ARCHIVE, request, args);
+        }
+        String ordered = sql + " ORDER BY contact_id, timestamp, id";
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(ordered, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Inside the transaction the driver streams with a cursor instead of loading every row
+            ps.setFetchSize(Math.max(1, fetchSize));
+            for (int i = 0; i < args.size(); i++) ps.setObject(i + 1, args.get(i));
+            return ps;
+        }, handler);
+    }
+
+    static String select(String table, Request request, List<Object> args) {
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM " + table + " WHERE company_id = ?");
+        args.add(request.companyId());
+        if (request.contactId() != null) {
+            sql.append(" AND contact_id = ?");
+            args.add(request.contactId());
+        }
+        if (request.from() != null) {
+            sql.append(" AND timestamp >= ?");
+            args.add(Timestamp.from(request.from()));
+        }
+        if (request.to() != null) {
+            sql.append(" AND timestamp < ?");
+            args.add(Timestamp.from(request.to()));
+        }
+        return sql.toString();
+    }
+
+    private static String messageId(ResultSet rs) throws SQLException {
+        String external = rs.getString("external_message_id");
+        return external != null ? external : String.valueOf(rs.getLong("id"));
+    }
+
+    private static String timestamp(ResultSet rs) throws SQLException {
+        Timestamp ts = rs.getTimestamp("timestamp");
+        return ts != null ? ts.toInstant().toString() : null;
+    }
+
+    interface RowWriter {
+        void begin() throws IOException;
+
+        void row(ResultSet rs) throws SQLException, IOException;
+
+        void end() throws IOException;
+    }
+
+    // One JSON object per line, same field names as /whatsapp/messages/{contactId}
+    static final class JsonRowWriter implements RowWriter {
+        private final JsonGenerator json;
+
+        JsonRowWriter(ObjectMapper objectMapper, Writer writer) throws IOException {
+            this.json = objectMapper.getFactory().createGenerator(writer);
+            this.json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // Lines are separated by the raw newline below, not by Jackson's default space
+            this.json.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void row(ResultSet rs) throws SQLException, IOException {
+            json.writeStartObject();
+            json.writeStringField("id", messageId(rs));
+            json.writeStringField("contactId", rs.getString("contact_id"));
+            json.writeStringField("timestamp", timestamp(rs));
+            json.writeBooleanField("isFromMe", rs.getBoolean("is_from_me"));
+            json.writeStringField("messageType", rs.getString("message_type"));
+            json.writeStringField("status", rs.getString("status"));
+            json.writeStringField("content", rs.getString("content"));
+            json.writeEndObject();
+            // Raw, so no flush per row: the generator and the writer buffer until they are full
+            json.writeRaw('\n');
+        }
+
+        @Override
+        public void end() throws IOException {
+            json.close();
+        }
+    }
+
+    // RFC 4180: comma separated, CRLF, fields with a comma, quote or line break quoted and quotes doubled
+    static final class CsvRowWriter implements RowWriter {
+        private final Writer writer;
+
+        CsvRowWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void begin() throws IOException {
+            line(CSV_HEADER);
+        }
+
+        @Override
+        public void row(ResultSet rs) throws SQLException, IOException {
+            line(messageId(rs), rs.getString("contact_id"), timestamp(rs), String.valueOf(rs.getBoolean("is_from_me")),
+                    rs.getString("message_type"), rs.getString("status"), rs.getString("content"));
+        }
+
+        @Override
+        public void end() {
+        }
+
+        private void line(String... fields) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) writer.write(',');
+                field(fields[i]);
+            }
+            writer.write("\r\n");
+        }
+
+        private void field(String value) throws IOException {
+            if (value == null) return;
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private long count;
+
+        CountingOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monthly range partitions of whatsapp_messages on timestamp, and the cold tier for old months.
+ *
+ * The conversion is opt-in ({@code whatsapp.partitioning.enabled}); a table that is already partitioned is
+ * maintained either way. The existing heap is not copied: it becomes the partition whatsapp_messages_legacy
+ * (everything before the month after the newest message), attached without a scan thanks to a CHECK
+ * constraint validated beforehand. Duplicates are removed and whatsapp_message_keys is filled while writes
+ * go on, so the exclusive lock only covers renames and catalog changes. Messages without timestamp would
+ * have no month: the conversion waits until there are none. New months get their own partitions, created
+ * {@code months-ahead} in advance; whatsapp_messages_default catches timestamps outside every month.
+ *
+ * Months older than {@code archive-after-months} move to whatsapp_messages_archive, a partitioned table with
+ * the history index only (no search indexes): a monthly partition is detached and attached there in one
+ * transaction, while the legacy partition is drained into whatsapp_messages_archive_legacy in small batches
+ * and dropped once empty. Everything in the archive is older than {@link #archivedBefore()}, which is what lets
+ * history reads skip it until a page reaches that point.
+ */
+@Repository
+// Whatever search column and indexes exist are known before the conversion copies the layout to the parent and the archive
+@DependsOn({"entityManagerFactory", "whatsAppMessageSearch"})
+public class WhatsAppMessagePartitions {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessagePartitions.class);
+
+    static final String LEGACY = "whatsapp_messages_legacy";
+    static final String DEFAULT = "whatsapp_messages_default";
+    static final String ARCHIVE = "whatsapp_messages_archive";
+    static final String ARCHIVE_LEGACY = "whatsapp_messages_archive_legacy";
+    private static final String LEGACY_CHECK = "ck_whatsapp_messages_legacy_range";
+
+    // Every column but the generated content_tsv
+    static final String COLUMNS = "id, external_message_id, company_id, contact_id, content, timestamp, " +
+            "is_from_me, message_type, status";
+    private static final String LEGACY_WATERMARK = "SELECT obj_description(to_regclass('" + ARCHIVE_LEGACY + "'), 'pg_class')::timestamptz";
+    private static final String UPPER_BOUND = "(regexp_match(pg_get_expr(c.relpartbound, c.oid), 'TO \\(''([^'']+)''\\)'))[1]::timestamptz";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final WhatsAppMessageBulkWriter bulkWriter;
+
+    // Allows converting a plain table; off by default, since the first start then runs the migration
+    @Value("${whatsapp.partitioning.enabled:false}")
+    private boolean enabled;
+
+    @Value("${whatsapp.partitioning.months-ahead:3}")
+    private int monthsAhead = 3;
+
+    @Value("${whatsapp.partitioning.archive-after-months:12}")
+    private int archiveAfterMonths = 12;
+
+    @Value("${whatsapp.partitioning.archive-tablespace:}")
+    private String archiveTablespace = "";
+
+    @Value("${whatsapp.partitioning.drain-batch:5000}")
+    private int drainBatch = 5000;
+
+    private volatile boolean partitioned;
+    private volatile Instant archivedBefore;
+
+    private final AtomicLong partitionsCreated = new AtomicLong();
+    private final AtomicLong monthsArchived = new AtomicLong();
+    private final AtomicLong rowsDrained = new AtomicLong();
+    private final AtomicLong archiveReads = new AtomicLong();
+    private final AtomicLong maintenanceFailures = new AtomicLong();
+    private volatile Instant lastMaintenance;
+
+    public WhatsAppMessagePartitions(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                                     WhatsAppMessageBulkWriter bulkWriter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.bulkWriter = bulkWriter;
+    }
+
+    @PostConstruct
+    public void ensurePartitioned() {
+        try {
+            if (!isPartitioned("whatsapp_messages")) {
+                if (!enabled) return;
+                convert();
+            }
+            partitioned = true;
+            bulkWriter.useKeyTable();
+            ensureArchiveTable();
+            archivedBefore = loadArchivedBefore();
+            ensureMonths(YearMonth.now(ZoneOffset.UTC));
+        } catch (Exception e) {
+            log.warn("[PARTITIONS] particionamento de whatsapp_messages indisponível: {}", e.toString());
+        }
+    }
+
+    /**
+     * Creates the coming months and moves the months past {@code archive-after-months} to the archive. Each
+     * step commits on its own, so an interrupted run just continues on the next one.
+     */
+    @Scheduled(fixedDelayString = "${whatsapp.partitioning.maintenance-interval-ms:3600000}",
+            initialDelayString = "${whatsapp.partitioning.maintenance-interval-ms:3600000}")
+    public void maintain() {
+        if (!partitioned) return;
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        try {
+            ensureMonths(now);
+            if (archiveAfterMonths > 0) archive(now.minusMonths(archiveAfterMonths));
+            lastMaintenance = Instant.now();
+        } catch (Exception e) {
+            maintenanceFailures.incrementAndGet();
+            log.warn("[PARTITIONS] falha na manutenção de partições: {}", e.toString());
+        }
+    }
+
+    public boolean partitioned() {
+        return partitioned;
+    }
+
+    // Null while nothing was archived; every archived message is older than this instant
+    public Instant archivedBefore() {
+        return archivedBefore;
+    }
+
+    // Archived messages of one chat before the cursor (all of them when ts is null), newest first
+    public List<WhatsAppMessage> findArchivedBefore(String companyId, String contactId, Instant ts, Long id, int limit) {
+        archiveReads.incrementAndGet();
+        if (ts == null) {
+            return jdbcTemplate.query("SELECT " + COLUMNS + " FROM " + ARCHIVE + " WHERE company_id = ? AND contact_id = ? " +
+                    "ORDER BY timestamp DESC, id DESC LIMIT ?", (rs, i) -> mapMessage(rs), companyId, contactId, limit);
+        }
+        return jdbcTemplate.query("SELECT " + COLUMNS + " FROM " + ARCHIVE + " WHERE company_id = ? AND contact_id = ? " +
+                "AND (timestamp, id) < (?, ?) ORDER BY timestamp DESC, id DESC LIMIT ?",
+                (rs, i) -> mapMessage(rs), companyId, contactId, Timestamp.from(ts), id, limit);
+    }
+
+    // Archived messages of one chat after the cursor, oldest first
+    public List<WhatsAppMessage> findArchivedAfter(String companyId, String contactId, Instant ts, long id, int limit) {
+        archiveReads.incrementAndGet();
+        return jdbcTemplate.query("SELECT " + COLUMNS + " FROM " + ARCHIVE + " WHERE company_id = ? AND contact_id = ? " +
+                "AND (timestamp, id) > (?, ?) ORDER BY timestamp ASC, id ASC LIMIT ?",
+                (rs, i) -> mapMessage(rs), companyId, contactId, Timestamp.from(ts), id, limit);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        m.put("partitioned", partitioned);
+        m.put("monthsAhead", monthsAhead);
+        m.put("archiveAfterMonths", archiveAfterMonths);
+        m.put("archivedBefore", archivedBefore != null ? archivedBefore.toString() : null);
+        m.put("partitionsCreated", partitionsCreated.get());
+        m.put("monthsArchived", monthsArchived.get());
+        m.put("rowsDrained", rowsDrained.get());
+        m.put("archiveReads", archiveReads.get());
+        m.put("maintenanceFailures", maintenanceFailures.get());
+        m.put("lastMaintenance", lastMaintenance != null ? lastMaintenance.toString() : null);
+        return m;
+    }
+
+    // whatsapp_messages_p2026_11
+    static String partitionName(YearMonth month) {
+        return String.format("whatsapp_messages_p%04d_%02d", month.getYear(), month.getMonthValue());
+    }
+
+    static YearMonth monthOf(String partitionName) {
+        String suffix = partitionName.substring(partitionName.lastIndexOf("_p") + 2);
+        return YearMonth.of(Integer.parseInt(suffix.substring(0, 4)), Integer.parseInt(suffix.substring(5, 7)));
+    }
+
+    static String literal(YearMonth month) {
+        return "'" + month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC) + "'";
+    }
+
+    // The old heap becomes the partition for everything up to the month after the newest message
+    private void convert() {
+        Instant newest = toInstant(jdbcTemplate.queryForObject("SELECT max(timestamp) FROM whatsapp_messages", Timestamp.class));
+        YearMonth current = YearMonth.now(ZoneOffset.UTC);
+        YearMonth boundary = (newest != null && YearMonth.from(newest.atOffset(ZoneOffset.UTC)).isAfter(current)
+                ? YearMonth.from(newest.atOffset(ZoneOffset.UTC)) : current).plusMonths(1);
+        // A range partition has no room for NULL timestamps, and inventing one would move real messages in history
+        Boolean undated = jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM whatsapp_messages WHERE timestamp IS NULL)", Boolean.class);
+        if (Boolean.TRUE.equals(undated)) {
+            throw new IllegalStateException("há mensagens sem timestamp; particionamento adiado até que sejam corrigidas");
+        }
+        // The copies a webhook retry left behind would otherwise survive with the unique indexes gone
+        int removed = bulkWriter.ensureUniqueExternalIds();
+        if (removed > 0) log.info("[PARTITIONS] {} mensagens duplicadas removidas antes da conversão", removed);
+        // Validated outside the exclusive lock (writes go on meanwhile), so ATTACH below needs no scan
+        jdbcTemplate.execute("ALTER TABLE whatsapp_messages DROP CONSTRAINT IF EXISTS " + LEGACY_CHECK);
+        jdbcTemplate.execute("ALTER TABLE whatsapp_messages ADD CONSTRAINT " + LEGACY_CHECK +
+                " CHECK (timestamp IS NOT NULL AND timestamp < " + literal(boundary) + ") NOT VALID");
+        jdbcTemplate.execute("ALTER TABLE whatsapp_messages VALIDATE CONSTRAINT " + LEGACY_CHECK);
+        try {
+            bulkWriter.startKeyTable();
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("LOCK TABLE whatsapp_messages IN ACCESS EXCLUSIVE MODE");
+                bulkWriter.finishKeyTable();
+                // Non-unique indexes are recreated on the parent under their names and adopt the legacy ones on ATTACH
+                List<Map<String, Object>> indexes = jdbcTemplate.queryForList(
+                        "SELECT c.relname AS indexname, pg_get_indexdef(c.oid) AS indexdef, x.indisunique FROM pg_index x " +
+                                "JOIN pg_class c ON c.oid = x.indexrelid WHERE x.indrelid = to_regclass('whatsapp_messages')");
+                jdbcTemplate.execute("ALTER TABLE whatsapp_messages RENAME TO " + LEGACY);
+                for (Map<String, Object> index : indexes) {
+                    String name = (String) index.get("indexname");
+                    String legacyName = name.replace("whatsapp_messages", LEGACY);
+                    jdbcTemplate.execute("ALTER INDEX " + name + " RENAME TO " + legacyName);
+                    // Deduplication lives in whatsapp_message_keys from now on
+                    if (name.equals("ux_whatsapp_messages_company_external_id")
+                            || name.equals("ux_whatsapp_messages_external_id_no_company")) {
+                        jdbcTemplate.execute("DROP INDEX " + legacyName);
+                    }
+                }
+                jdbcTemplate.execute("CREATE TABLE whatsapp_messages (LIKE " + LEGACY + " INCLUDING DEFAULTS INCLUDING GENERATED) " +
+                        "PARTITION BY RANGE (timestamp)");
+                for (Map<String, Object> index : indexes) {
+                    if (Boolean.TRUE.equals(index.get("indisunique"))) continue;
+                    jdbcTemplate.execute((String) index.get("indexdef"));
+                }
+                jdbcTemplate.execute("ALTER TABLE whatsapp_messages ATTACH PARTITION " + LEGACY +
+                        " FOR VALUES FROM (MINVALUE) TO (" + literal(boundary) + ")");
+                jdbcTemplate.execute("ALTER TABLE " + LEGACY + " DROP CONSTRAINT " + LEGACY_CHECK);
+                jdbcTemplate.execute("CREATE TABLE " + DEFAULT + " PARTITION OF whatsapp_messages DEFAULT");
+                jdbcTemplate.execute("ALTER TABLE " + DEFAULT + " ADD PRIMARY KEY (id)");
+            });
+        } catch (RuntimeException e) {
+            // Left in place, the CHECK would start rejecting messages dated after the boundary
+            jdbcTemplate.execute("ALTER TABLE whatsapp_messages DROP CONSTRAINT IF EXISTS " + LEGACY_CHECK);
+            bulkWriter.finishKeyTable();
+            throw e;
+        }
+        log.info("[PARTITIONS] whatsapp_messages particionada por mês; histórico anterior a {} em {}", boundary, LEGACY);
+    }
+
+    private void ensureArchiveTable() {
+        String tablespace = archiveTablespace != null && !archiveTablespace.isBlank() ? " TABLESPACE " + archiveTablespace.trim() : "";
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + ARCHIVE + " (LIKE whatsapp_messages INCLUDING GENERATED) " +
+                "PARTITION BY RANGE (timestamp)" + tablespace);
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS ix_whatsapp_messages_archive_history ON " + ARCHIVE +
+                " (company_id, contact_id, timestamp, id)");
+    }
+
+    // This month and the next months-ahead, each with its own primary key on id; archived months stay archived
+    private void ensureMonths(YearMonth now) {
+        Instant archived = archivedBefore;
+        for (int i = 0; i <= monthsAhead; i++) {
+            YearMonth month = now.plusMonths(i);
+            String name = partitionName(month);
+            if (archived != null && month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).isBefore(archived)) continue;
+            if (exists(name) || coveredByLegacy(month)) continue;
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    jdbcTemplate.execute("CREATE TABLE " + name + " PARTITION OF whatsapp_messages FOR VALUES FROM (" +
+                            literal(month) + ") TO (" + literal(month.plusMonths(1)) + ")");
+                    jdbcTemplate.execute("ALTER TABLE " + name + " ADD PRIMARY KEY (id)");
+                });
+                partitionsCreated.incrementAndGet();
+                log.info("[PARTITIONS] partição {} criada", name);
+            } catch (Exception e) {
+                // Typically rows of that month already sitting in the default partition
+                maintenanceFailures.incrementAndGet();
+                log.warn("[PARTITIONS] não foi possível criar {}: {}", name, e.toString());
+            }
+        }
+    }
+
+    private void archive(YearMonth cutoff) {
+        Instant cutoffInstant = cutoff.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+        if (exists(LEGACY)) drainLegacy(cutoffInstant);
+        for (String name : livePartitions()) {
+            if (!name.startsWith("whatsapp_messages_p")) continue;
+            YearMonth month = monthOf(name);
+            if (!month.isBefore(cutoff)) continue;
+            String archived = name.replace("whatsapp_messages_p", "whatsapp_messages_archive_p");
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("ALTER TABLE whatsapp_messages DETACH PARTITION " + name);
+                // The search indexes are the bulk of a month's size and archived months are not searched
+                for (String index : jdbcTemplate.queryForList("SELECT indexname FROM pg_indexes " +
+                        "WHERE schemaname = current_schema() AND tablename = ? AND indexdef LIKE '%USING gin%'", String.class, name)) {
+                    jdbcTemplate.execute("DROP INDEX " + index);
+                }
+                jdbcTemplate.execute("ALTER TABLE " + name + " RENAME TO " + archived);
+                jdbcTemplate.execute("ALTER TABLE " + ARCHIVE + " ATTACH PARTITION " + archived + " FOR VALUES FROM (" +
+                        literal(month) + ") TO (" + literal(month.plusMonths(1)) + ")");
+            });
+            if (archiveTablespace != null && !archiveTablespace.isBlank()) {
+                // Rewrites the month once, without blocking the live table
+                jdbcTemplate.execute("ALTER TABLE " + archived + " SET TABLESPACE " + archiveTablespace.trim());
+            }
+            monthsArchived.incrementAndGet();
+            archivedBefore = max(archivedBefore, month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+            log.info("[PARTITIONS] mês {} arquivado em {}", month, archived);
+        }
+    }
+
+    // Moves the legacy rows older than the cutoff in primary key order, one short transaction per batch
+    private void drainLegacy(Instant cutoff) {
+        Instant legacyUpper = upperBound("whatsapp_messages", LEGACY);
+        if (legacyUpper == null) return;
+        if (!exists(ARCHIVE_LEGACY)) {
+            jdbcTemplate.execute("CREATE TABLE " + ARCHIVE_LEGACY + " PARTITION OF " + ARCHIVE +
+                    " FOR VALUES FROM (MINVALUE) TO ('" + legacyUpper + "')");
+            jdbcTemplate.execute("ALTER TABLE " + ARCHIVE_LEGACY + " ADD PRIMARY KEY (id)");
+        }
+        // Only rows older than the cutoff move, so that is the watermark, kept on the table for the next start
+        Instant drained = max(toInstant(jdbcTemplate.queryForObject(LEGACY_WATERMARK, Timestamp.class)), cutoff);
+        jdbcTemplate.execute("COMMENT ON TABLE " + ARCHIVE_LEGACY + " IS '" + drained + "'");
+        archivedBefore = loadArchivedBefore();
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            Long last = jdbcTemplate.queryForObject("SELECT max(id) FROM (SELECT id FROM " + LEGACY +
+                    " WHERE id > ? AND timestamp < ? ORDER BY id LIMIT ?) b", Long.class, lastId, Timestamp.from(cutoff), drainBatch);
+            if (last == null) break;
+            long from = lastId;
+            Integer moved = transactionTemplate.execute(status -> jdbcTemplate.update(
+                    "WITH moved AS (DELETE FROM " + LEGACY + " WHERE id > ? AND id <= ? AND timestamp < ? RETURNING " + COLUMNS + ") " +
+                            "INSERT INTO " + ARCHIVE_LEGACY + " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM moved",
+                    from, last, Timestamp.from(cutoff)));
+            rowsDrained.addAndGet(moved != null ? moved : 0);
+            lastId = last;
+        }
+        // Nothing left and nothing new can belong to it: later stragglers go to the default partition
+        Boolean empty = jdbcTemplate.queryForObject("SELECT NOT EXISTS (SELECT 1 FROM " + LEGACY + ")", Boolean.class);
+        if (Boolean.TRUE.equals(empty) && !cutoff.isBefore(legacyUpper)) {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("ALTER TABLE whatsapp_messages DETACH PARTITION " + LEGACY);
+                jdbcTemplate.execute("DROP TABLE " + LEGACY);
+            });
+            log.info("[PARTITIONS] {} esvaziada e removida", LEGACY);
+        }
+    }
+
+    // Monthly partitions hold whole months; the legacy one only what was drained, whatever its bound says
+    private Instant loadArchivedBefore() {
+        return toInstant(jdbcTemplate.queryForObject("SELECT max(CASE WHEN c.relname = '" + ARCHIVE_LEGACY + "' " +
+                "THEN coalesce(obj_description(c.oid, 'pg_class')::timestamptz, " + UPPER_BOUND + ") ELSE " + UPPER_BOUND + " END) " +
+                "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass('" + ARCHIVE + "')", Timestamp.class));
+    }
+
+    private Instant upperBound(String parent, String partition) {
+        List<Timestamp> bounds = jdbcTemplate.queryForList("SELECT " + UPPER_BOUND + " FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = to_regclass(?) AND c.relname = ?",
+                Timestamp.class, parent, partition);
+        return bounds.isEmpty() ? null : toInstant(bounds.get(0));
+    }
+
+    private boolean coveredByLegacy(YearMonth month) {
+        if (!exists(LEGACY)) return false;
+        Instant upper = upperBound("whatsapp_messages", LEGACY);
+        return upper != null && month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).isBefore(upper);
+    }
+
+    private List<String> livePartitions() {
+        return jdbcTemplate.queryForList("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                "WHERE i.inhparent = to_regclass('whatsapp_messages') ORDER BY c.relname", String.class);
+    }
+
+    private boolean isPartitioned(String table) {
+        return "p".equals(jdbcTemplate.queryForObject(
+                "SELECT COALESCE((SELECT relkind::text FROM pg_class WHERE oid = to_regclass(?)), '')", String.class, table));
+    }
+
+    private boolean exists(String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, table));
+    }
+
+    private static Instant toInstant(Timestamp ts) {
+        return ts != null ? ts.toInstant() : null;
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a == null || b.isAfter(a) ? b : a;
+    }
+
+    private static WhatsAppMessage mapMessage(ResultSet rs) throws SQLException {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setId(rs.getLong("id"));
+        m.setExternalMessageId(rs.getString("external_message_id"));
+        m.setCompanyId(rs.getString("company_id"));
+        m.setContactId(rs.getString("contact_id"));
+        m.setContent(rs.getString("content"));
+        Timestamp ts = rs.getTimestamp("timestamp");
+        m.setTimestamp(ts != null ? ts.toInstant() : null);
+        m.setIsFromMe(rs.getBoolean("is_from_me"));
+        m.setMessageType(rs.getString("message_type"));
+        m.setStatus(rs.getString("status"));
+        return m;
+    }
+}
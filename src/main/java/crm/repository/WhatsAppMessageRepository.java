@@ -2,13 +2,30 @@ package crm.repository;
 
 import crm.entity.WhatsAppMessage;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
 import java.util.List;
 
 @Repository
 public interface WhatsAppMessageRepository extends JpaRepository<WhatsAppMessage, Long> {
-    List<WhatsAppMessage> findByContactIdOrderByTimestampAsc(String contactId);
-    List<WhatsAppMessage> findAllByOrderByTimestampAsc();
-    List<WhatsAppMessage> findAllByCompanyIdIsNull();
+    // Keyset pages over ix_whatsapp_messages_history (company_id, contact_id, timestamp, id); newest first
+    @Query(value = "SELECT * FROM whatsapp_messages WHERE company_id = :companyId AND contact_id = :contactId " +
+            "ORDER BY timestamp DESC, id DESC LIMIT :limit", nativeQuery = true)
+    List<WhatsAppMessage> findLatestPage(@Param("companyId") String companyId, @Param("contactId") String contactId,
+                                         @Param("limit") int limit);
+
+    @Query(value = "SELECT * FROM whatsapp_messages WHERE company_id = :companyId AND contact_id = :contactId " +
+            "AND (timestamp, id) < (:ts, :id) ORDER BY timestamp DESC, id DESC LIMIT :limit", nativeQuery = true)
+    List<WhatsAppMessage> findPageBefore(@Param("companyId") String companyId, @Param("contactId") String contactId,
+                                         @Param("ts") Instant ts, @Param("id") long id, @Param("limit") int limit);
+
+    // Oldest first
+    @Query(value = "SELECT * FROM whatsapp_messages WHERE company_id = :companyId AND contact_id = :contactId " +
+            "AND (timestamp, id) > (:ts, :id) ORDER BY timestamp ASC, id ASC LIMIT :limit", nativeQuery = true)
+    List<WhatsAppMessage> findPageAfter(@Param("companyId") String companyId, @Param("contactId") String contactId,
+                                        @Param("ts") Instant ts, @Param("id") long id, @Param("limit") int limit);
+
 }
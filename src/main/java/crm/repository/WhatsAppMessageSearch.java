@@ -0,0 +1,304 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tenant-scoped search over whatsapp_messages.content.
+ *
+ * Words go through a stored generated column content_tsv = to_tsvector('portuguese', content), so every
+ * insert is indexed by Postgres itself, with a GIN index on (company_id, content_tsv). Queries use
+ * websearch_to_tsquery ("quoted phrases", -exclusions, or) and are ranked with ts_rank_cd. Digit runs such
+ * as order or tracking numbers don't survive the Portuguese stemmer as substrings, so a query that is
+ * mostly digits, or a word query with no hit, goes to a pg_trgm index on content with ILIKE instead.
+ *
+ * Word results are ranked among the newest {@code whatsapp.search.max-candidates} matching messages only,
+ * so a word found in a huge number of messages costs a bounded amount of ranking: beyond that many matches
+ * the order is approximate, and an older message can rank below (or drop out in favour of) newer ones that
+ * match worse. Snippets are computed for the returned page only.
+ */
+@Repository
+@DependsOn("entityManagerFactory")
+public class WhatsAppMessageSearch {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessageSearch.class);
+
+    // Snippet markers that cannot occur in message text; the service escapes the text and turns them into <mark>
+    public static final String MARK_START = "\u0002";
+    public static final String MARK_END = "\u0003";
+
+    private static final String HEADLINE_OPTIONS = "StartSel=" + MARK_START + ", StopSel=" + MARK_END +
+            ", MaxWords=24, MinWords=8, MaxFragments=2, FragmentDelimiter=\" … \"";
+
+    private static final String TSV_EXPRESSION = "GENERATED ALWAYS AS (to_tsvector('portuguese', coalesce(content, ''))) STORED";
+    private static final String TSV_INDEX = "ix_whatsapp_messages_content_tsv";
+    private static final String TRGM_INDEX = "ix_whatsapp_messages_content_trgm";
+
+    private static final String COLUMNS = "m.id, m.external_message_id, m.company_id, m.contact_id, m.content, m.timestamp, " +
+            "m.is_from_me, m.message_type, m.status";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${whatsapp.search.max-candidates:2000}")
+    private int maxCandidates = 2000;
+
+    @Value("${whatsapp.search.migrate-on-start:false}")
+    private boolean migrateOnStart;
+
+    private volatile String migration = "not started";
+
+    private volatile boolean fullTextReady;
+    private volatile boolean trigramReady;
+
+    private final AtomicLong fullTextQueries = new AtomicLong();
+    private final AtomicLong trigramQueries = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+
+    public WhatsAppMessageSearch(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public enum Mode { FULLTEXT, TRIGRAM }
+
+    public record Hit(WhatsAppMessage message, Double rank, String snippet) {}
+
+    public record Result(List<Hit> hits, Mode mode) {}
+
+    /**
+     * Only looks at what is there: word search needs content_tsv and its GIN index, substring search the trigram
+     * index (without it, ILIKE still works, scanning the company's rows). Creating them is a migration, see
+     * {@link #startMigration}; with {@code whatsapp.search.migrate-on-start} it starts in the background here.
+     */
+    @PostConstruct
+    public void ensureIndexes() {
+        try {
+            refreshReadiness();
+        } catch (Exception e) {
+            log.warn("[SEARCH] não foi possível verificar os índices de busca: {}", e.toString());
+        }
+        if (!fullTextReady) log.warn("[SEARCH] busca por palavras indisponível até a migração de content_tsv/GIN");
+        if (migrateOnStart && (!fullTextReady || !trigramReady)) startMigration();
+    }
+
+    /**
+     * Adds content_tsv and builds the two GIN indexes in a background thread; false while one is running.
+     * Adding the stored column rewrites whatsapp_messages under an exclusive lock (writes wait for it), so run
+     * it in a maintenance window on a big table. The indexes are built CONCURRENTLY, partition by partition on
+     * a partitioned table, and writes go on meanwhile. Idempotent: an interrupted run just continues.
+     */
+    public synchronized boolean startMigration() {
+        if ("running".equals(migration)) return false;
+        migration = "running";
+        Thread t = new Thread(this::migrate, "whatsapp-search-migration");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    private void migrate() {
+        try {
+            jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS btree_gin");
+            jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+            jdbcTemplate.execute("ALTER TABLE whatsapp_messages ADD COLUMN IF NOT EXISTS content_tsv tsvector " + TSV_EXPRESSION);
+            // Monthly partitions only attach to the archive with the same columns
+            if (exists(WhatsAppMessagePartitions.ARCHIVE)) {
+                jdbcTemplate.execute("ALTER TABLE " + WhatsAppMessagePartitions.ARCHIVE + " ADD COLUMN IF NOT EXISTS content_tsv tsvector " + TSV_EXPRESSION);
+            }
+            createIndex(TSV_INDEX, "content_tsv", "USING gin (company_id, content_tsv)");
+            createIndex(TRGM_INDEX, "content_trgm", "USING gin (company_id, content gin_trgm_ops)");
+            refreshReadiness();
+            migration = "completed";
+            log.info("[SEARCH] migração dos índices de busca concluída");
+        } catch (Exception e) {
+            migration = "failed: " + e.getMessage();
+            log.warn("[SEARCH] migração dos índices de busca falhou: {}", e.toString());
+        }
+    }
+
+    // CONCURRENTLY cannot target a partitioned table: the parent index is attached from one index per partition
+    private void createIndex(String name, String suffix, String definition) {
+        if (!isPartitioned()) {
+            createIndexConcurrently(name, "whatsapp_messages", definition);
+            return;
+        }
+        if (Boolean.TRUE.equals(indexValid(name))) return;
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + name + " ON ONLY whatsapp_messages " + definition);
+        // Partitions that already have their index attached (under any name) are skipped
+        for (String partition : jdbcTemplate.queryForList("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                "WHERE i.inhparent = to_regclass('whatsapp_messages') AND NOT EXISTS (SELECT 1 FROM pg_inherits a " +
+                "JOIN pg_index x ON x.indexrelid = a.inhrelid WHERE a.inhparent = to_regclass(?) AND x.indrelid = c.oid) " +
+                "ORDER BY c.relname", String.class, name)) {
+            String partitionIndex = partition + "_" + suffix;
+            createIndexConcurrently(partitionIndex, partition, definition);
+            jdbcTemplate.execute("ALTER INDEX " + name + " ATTACH PARTITION " + partitionIndex);
+        }
+    }
+
+    private void createIndexConcurrently(String name, String table, String definition) {
+        // A build that failed halfway leaves an invalid index that IF NOT EXISTS would keep forever
+        if (Boolean.FALSE.equals(indexValid(name))) jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + name);
+        jdbcTemplate.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + table + " " + definition);
+    }
+
+    private void refreshReadiness() {
+        Boolean column = jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM pg_attribute " +
+                "WHERE attrelid = to_regclass('whatsapp_messages') AND attname = 'content_tsv' AND NOT attisdropped)", Boolean.class);
+        fullTextReady = Boolean.TRUE.equals(column) && Boolean.TRUE.equals(indexValid(TSV_INDEX));
+        trigramReady = Boolean.TRUE.equals(indexValid(TRGM_INDEX));
+    }
+
+    // Null when the index does not exist; a partitioned index is valid once every partition has its own attached
+    private Boolean indexValid(String name) {
+        List<Boolean> valid = jdbcTemplate.queryForList("SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)", Boolean.class, name);
+        return valid.isEmpty() ? null : valid.get(0);
+    }
+
+    private boolean isPartitioned() {
+        return "p".equals(jdbcTemplate.queryForObject(
+                "SELECT COALESCE((SELECT relkind::text FROM pg_class WHERE oid = to_regclass('whatsapp_messages')), '')", String.class));
+    }
+
+    private boolean exists(String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, table));
+    }
+
+    /**
+     * One page of matches in the company, optionally within one chat. Word queries come back best rank first
+     * (among the newest max-candidates matches), substring queries newest first.
+     */
+    public Result search(String companyId, String contactId, String query, int limit, int offset) {
+        long start = System.nanoTime();
+        try {
+            boolean substring = looksLikeNumber(query) || !fullTextReady;
+            if (!substring) {
+                fullTextQueries.incrementAndGet();
+                List<Hit> hits = fullText(companyId, contactId, query, limit, offset);
+                // Nothing for the words: maybe a code or a word fragment, try it as a substring
+                if (!hits.isEmpty() || offset > 0 || query.strip().length() < 3) return new Result(hits, Mode.FULLTEXT);
+                fallbacks.incrementAndGet();
+            }
+            trigramQueries.incrementAndGet();
+            return new Result(substring(companyId, contactId, query, limit, offset), Mode.TRIGRAM);
+        } finally {
+            totalMillis.addAndGet((System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long queries = fullTextQueries.get() + trigramQueries.get() - fallbacks.get();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("fullTextReady", fullTextReady);
+        m.put("trigramReady", trigramReady);
+        m.put("migration", migration);
+        m.put("maxCandidates", maxCandidates);
+        m.put("fullTextQueries", fullTextQueries.get());
+        m.put("trigramQueries", trigramQueries.get());
+        m.put("fallbacks", fallbacks.get());
+        m.put("avgMillis", queries > 0 ? totalMillis.get() / queries : 0);
+        return m;
+    }
+
+    private List<Hit> fullText(String companyId, String contactId, String query, int limit, int offset) {
+        List<Object> args = new ArrayList<>();
+        args.add(HEADLINE_OPTIONS);
+        args.add(query);
+        args.add(companyId);
+        String chat = "";
+        if (contactId != null) {
+            chat = " AND m.contact_id = ?";
+            args.add(contactId);
+        }
+        args.add(Math.max(limit + offset, maxCandidates));
+        args.add(limit);
+        args.add(offset);
+        // Rank inside the newest matches, page, and only then build the snippets
+        String sql = "SELECT p.*, ts_headline('portuguese', coalesce(p.content, ''), p.q, ?) AS snippet FROM (" +
+                "SELECT " + COLUMNS + ", c.rank, c.q FROM (" +
+                "SELECT m.id, ts_rank_cd(m.content_tsv, q) AS rank, q FROM whatsapp_messages m, " +
+                "websearch_to_tsquery('portuguese', ?) q WHERE m.company_id = ?" + chat + " AND m.content_tsv @@ q " +
+                "ORDER BY m.timestamp DESC NULLS LAST, m.id DESC LIMIT ?) c " +
+                "JOIN whatsapp_messages m ON m.id = c.id " +
+                "ORDER BY c.rank DESC, m.timestamp DESC, m.id DESC LIMIT ? OFFSET ?) p " +
+                "ORDER BY p.rank DESC, p.timestamp DESC, p.id DESC";
+        return jdbcTemplate.query(sql, (rs, i) -> new Hit(mapMessage(rs), rs.getDouble("rank"), rs.getString("snippet")), args.toArray());
+    }
+
+    private List<Hit> substring(String companyId, String contactId, String query, int limit, int offset) {
+        String needle = query.strip();
+        List<Object> args = new ArrayList<>();
+        args.add(companyId);
+        String chat = "";
+        if (contactId != null) {
+            chat = " AND m.contact_id = ?";
+            args.add(contactId);
+        }
+        args.add("%" + escapeLike(needle) + "%");
+        args.add(limit);
+        args.add(offset);
+        String sql = "SELECT " + COLUMNS + " FROM whatsapp_messages m WHERE m.company_id = ?" + chat +
+                " AND m.content ILIKE ? ORDER BY m.timestamp DESC, m.id DESC LIMIT ? OFFSET ?";
+        return jdbcTemplate.query(sql, (rs, i) -> {
+            WhatsAppMessage m = mapMessage(rs);
+            return new Hit(m, null, substringSnippet(m.getContent(), needle));
+        }, args.toArray());
+    }
+
+    // One mostly-numeric token: "4587123", "#4587", "45.871-23", "BR4587"
+    static boolean looksLikeNumber(String query) {
+        int digits = 0;
+        int letters = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) return false;
+            if (Character.isDigit(c)) digits++;
+            else if (Character.isLetter(c)) letters++;
+        }
+        return digits >= 3 && digits >= letters;
+    }
+
+    // About 60 characters on each side of the first occurrence, the match between markers
+    static String substringSnippet(String content, String needle) {
+        if (content == null) return "";
+        int at = content.toLowerCase().indexOf(needle.toLowerCase());
+        if (at < 0) return content.length() <= 120 ? content : content.substring(0, 120) + "…";
+        int from = Math.max(0, at - 60);
+        int to = Math.min(content.length(), at + needle.length() + 60);
+        return (from > 0 ? "…" : "") + content.substring(from, at) + MARK_START + content.substring(at, at + needle.length()) +
+                MARK_END + content.substring(at + needle.length(), to) + (to < content.length() ? "…" : "");
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private static WhatsAppMessage mapMessage(ResultSet rs) throws SQLException {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setId(rs.getLong("id"));
+        m.setExternalMessageId(rs.getString("external_message_id"));
+        m.setCompanyId(rs.getString("company_id"));
+        m.setContactId(rs.getString("contact_id"));
+        m.setContent(rs.getString("content"));
+        Timestamp ts = rs.getTimestamp("timestamp");
+        m.setTimestamp(ts != null ? ts.toInstant() : null);
+        m.setIsFromMe(rs.getBoolean("is_from_me"));
+        m.setMessageType(rs.getString("message_type"));
+        m.setStatus(rs.getString("status"));
+        return m;
+    }
+}
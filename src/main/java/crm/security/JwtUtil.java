@@ -32,6 +32,16 @@ public class JwtUtil {
         return claims.getSubject();
     }
 
+    // "role" claim written by JwtService; null for tokens issued without one
+    public String extractRole(String token) {
+        Claims claims = Jwts.parserBuilder()
+                .setSigningKey(key())
+                .build()
+                .parseClaimsJws(token)
+                .getBody();
+        return claims.get("role", String.class);
+    }
+
     public boolean validateToken(String token) {
         try {
             Jwts.parserBuilder().setSigningKey(key()).build().parseClaimsJws(token);
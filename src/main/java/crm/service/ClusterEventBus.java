@@ -0,0 +1,36 @@
+package crm.service;
+
+import java.util.Map;
+
+/**
+ * Carries SSE events between backend replicas. Each node publishes an event once; every other node
+ * delivers it to its own local subscribers. Selected with {@code whatsapp.sse.cluster-bus}
+ * (none | postgres).
+ */
+public interface ClusterEventBus {
+
+    // Random per process start; also prefixes the SSE event ids handed out by this node
+    String nodeId();
+
+    // False when nothing ever leaves this JVM, so publishers can skip work no local subscriber needs
+    default boolean distributed() {
+        return true;
+    }
+
+    // Must not block the caller; delivery to other nodes is best effort
+    void publish(Event event);
+
+    // Called on the bus thread for events published by other nodes only
+    void onRemote(RemoteHandler handler);
+
+    Map<String, Object> snapshot();
+
+    // One serialized SSE payload plus what subscription routing needs; contactId and coalesceKey may be null.
+    // origin and seq (the publishing node and its publish counter) identify the event across the cluster
+    record Event(String origin, long seq, String companyId, String topic, String contactId, String coalesceKey, byte[] json) {}
+
+    @FunctionalInterface
+    interface RemoteHandler {
+        void deliver(Event event);
+    }
+}
@@ -0,0 +1,40 @@
+package crm.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Single-node bus: events never leave this JVM.
+ */
+@Component
+@ConditionalOnProperty(name = "whatsapp.sse.cluster-bus", havingValue = "none", matchIfMissing = true)
+public class LocalEventBus implements ClusterEventBus {
+
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public boolean distributed() {
+        return false;
+    }
+
+    @Override
+    public void publish(Event event) {
+    }
+
+    @Override
+    public void onRemote(RemoteHandler handler) {
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        return Map.of("type", "none", "nodeId", nodeId);
+    }
+}
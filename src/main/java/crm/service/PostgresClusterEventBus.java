@@ -0,0 +1,347 @@
+package crm.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster bus over Postgres LISTEN/NOTIFY on the application database.
+ *
+ * Publishing: events are queued and a single thread sends them in batches; every NOTIFY payload is
+ * "<node>|[{"s":seq,"k":companyId,"t":topic,"u":contactId,"c":coalesceKey,"d":data}, ...]". An event too large
+ * for NOTIFY (8000 bytes) is written to sse_cluster_outbox and the payload becomes "<node>|@<outbox id>".
+ * All payloads of a batch go out in one statement, so they arrive in order.
+ *
+ * Receiving: a dedicated connection (outside the Hikari pool) LISTENs and reconnects with backoff.
+ * Payloads from this node are skipped. Notifications sent while the listener is down are lost; clients
+ * of this node miss those events, as they would across a restart.
+ */
+@Component
+@ConditionalOnProperty(name = "whatsapp.sse.cluster-bus", havingValue = "postgres")
+public class PostgresClusterEventBus implements ClusterEventBus {
+
+    private static final Logger log = LoggerFactory.getLogger(PostgresClusterEventBus.class);
+    private static final String CHANNEL = "crm_sse";
+    private static final String OUTBOX = "sse_cluster_outbox";
+    // Postgres rejects NOTIFY payloads of 8000 bytes or more
+    private static final int NOTIFY_LIMIT = 7900;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    @Value("${spring.datasource.url}")
+    private String url;
+
+    @Value("${spring.datasource.username:}")
+    private String username;
+
+    @Value("${spring.datasource.password:}")
+    private String password;
+
+    @Value("${whatsapp.sse.cluster.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${whatsapp.sse.cluster.batch-window-ms:5}")
+    private long batchWindowMs;
+
+    @Value("${whatsapp.sse.cluster.batch-max:200}")
+    private int batchMax;
+
+    @Value("${whatsapp.sse.cluster.outbox-retention-minutes:10}")
+    private int outboxRetentionMinutes;
+
+    private BlockingQueue<Event> outgoing;
+    private volatile RemoteHandler handler;
+    private volatile boolean running;
+    private volatile Connection listenConnection;
+    private Thread publisher;
+    private Thread listener;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong notifies = new AtomicLong();
+    private final AtomicLong outboxed = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong echoes = new AtomicLong();
+    private final AtomicLong receiveFailures = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    public PostgresClusterEventBus(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void start() {
+        ensureOutbox();
+        outgoing = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        running = true;
+        publisher = daemon("sse-cluster-publish", this::runPublisher);
+        listener = daemon("sse-cluster-listen", this::runListener);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (publisher != null) publisher.interrupt();
+        if (listener != null) listener.interrupt();
+        Connection con = listenConnection;
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(Event event) {
+        if (outgoing.offer(event)) {
+            queued.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onRemote(RemoteHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("type", "postgres");
+        m.put("nodeId", nodeId);
+        m.put("listening", listenConnection != null);
+        m.put("queueDepth", outgoing == null ? 0 : outgoing.size());
+        m.put("queued", queued.get());
+        m.put("dropped", dropped.get());
+        m.put("notifies", notifies.get());
+        m.put("outboxed", outboxed.get());
+        m.put("publishFailures", publishFailures.get());
+        m.put("received", received.get());
+        m.put("echoes", echoes.get());
+        m.put("receiveFailures", receiveFailures.get());
+        m.put("reconnects", reconnects.get());
+        return m;
+    }
+
+    private void ensureOutbox() {
+        try {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + OUTBOX + " (" +
+                    "id BIGSERIAL PRIMARY KEY, payload TEXT NOT NULL, created_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_" + OUTBOX + "_created_at ON " + OUTBOX + " (created_at)");
+        } catch (Exception e) {
+            log.warn("[SSE-CLUSTER] falha ao criar {}: {}", OUTBOX, e.toString());
+        }
+    }
+
+    private Thread daemon(String name, Runnable body) {
+        Thread t = new Thread(body, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private void runPublisher() {
+        List<Event> batch = new ArrayList<>();
+        long lastCleanup = System.nanoTime();
+        while (running) {
+            try {
+                Event first = outgoing.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    // a short wait lets a burst share a few NOTIFYs instead of one per event
+                    if (batchWindowMs > 0 && outgoing.size() < batchMax) Thread.sleep(batchWindowMs);
+                    outgoing.drainTo(batch, Math.max(0, batchMax - 1));
+                    send(batch);
+                    batch.clear();
+                }
+                if (System.nanoTime() - lastCleanup > TimeUnit.MINUTES.toNanos(1)) {
+                    lastCleanup = System.nanoTime();
+                    jdbcTemplate.update("DELETE FROM " + OUTBOX + " WHERE created_at < now() - make_interval(mins => ?)",
+                            outboxRetentionMinutes);
+                }
+            } catch (InterruptedException e) {
+                if (!running) return;
+            } catch (Exception e) {
+                publishFailures.addAndGet(batch.size());
+                log.warn("[SSE-CLUSTER] falha ao publicar {} evento(s): {}", batch.size(), e.toString());
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<Event> batch) throws IOException {
+        List<String> payloads = new ArrayList<>();
+        String prefix = nodeId + "|";
+        StringBuilder envelope = new StringBuilder();
+        int envelopeBytes = 0;
+        for (Event event : batch) {
+            String element = element(event);
+            int bytes = element.getBytes(StandardCharsets.UTF_8).length;
+            boolean fits = prefix.length() + 2 + bytes <= NOTIFY_LIMIT;
+            if (envelopeBytes > 0 && (!fits || prefix.length() + 2 + envelopeBytes + 1 + bytes > NOTIFY_LIMIT)) {
+                payloads.add(prefix + "[" + envelope + "]");
+                envelope.setLength(0);
+                envelopeBytes = 0;
+            }
+            if (!fits) {
+                Long id = jdbcTemplate.queryForObject("INSERT INTO " + OUTBOX + " (payload) VALUES (?) RETURNING id",
+                        Long.class, "[" + element + "]");
+                payloads.add(prefix + "@" + id);
+                outboxed.incrementAndGet();
+                continue;
+            }
+            if (envelopeBytes > 0) {
+                envelope.append(',');
+                envelopeBytes++;
+            }
+            envelope.append(element);
+            envelopeBytes += bytes;
+        }
+        if (envelopeBytes > 0) payloads.add(prefix + "[" + envelope + "]");
+
+        jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+            try (PreparedStatement ps = con.prepareStatement("SELECT pg_notify(?, p) FROM unnest(?) AS p")) {
+                ps.setString(1, CHANNEL);
+                ps.setArray(2, con.createArrayOf("text", payloads.toArray()));
+                ps.execute();
+            }
+            return null;
+        });
+        notifies.addAndGet(payloads.size());
+    }
+
+    private String element(Event event) throws IOException {
+        StringWriter out = new StringWriter(event.json().length + 64);
+        try (JsonGenerator g = objectMapper.getFactory().createGenerator(out)) {
+            g.writeStartObject();
+            g.writeNumberField("s", event.seq());
+            g.writeStringField("k", event.companyId());
+            g.writeStringField("t", event.topic());
+            if (event.contactId() != null) g.writeStringField("u", event.contactId());
+            if (event.coalesceKey() != null) g.writeStringField("c", event.coalesceKey());
+            g.writeFieldName("d");
+            g.writeRawValue(new String(event.json(), StandardCharsets.UTF_8));
+            g.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    private void runListener() {
+        long backoffMs = 1000;
+        while (running) {
+            try (Connection con = DriverManager.getConnection(url, username, password)) {
+                try (Statement st = con.createStatement()) {
+                    st.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pg = con.unwrap(PGConnection.class);
+                listenConnection = con;
+                backoffMs = 1000;
+                log.info("[SSE-CLUSTER] nó {} escutando canal {}", nodeId, CHANNEL);
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(1000);
+                    if (notifications == null) continue;
+                    for (PGNotification n : notifications) {
+                        receive(con, n.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                listenConnection = null;
+                if (!running) return;
+                reconnects.incrementAndGet();
+                log.warn("[SSE-CLUSTER] conexão LISTEN perdida ({}), reconectando em {} ms", e.toString(), backoffMs);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMs = Math.min(backoffMs * 2, 30_000);
+            }
+        }
+        listenConnection = null;
+    }
+
+    private void receive(Connection con, String payload) {
+        int bar = payload.indexOf('|');
+        if (bar <= 0) return;
+        if (bar == nodeId.length() && payload.startsWith(nodeId)) {
+            echoes.incrementAndGet();
+            return;
+        }
+        RemoteHandler h = handler;
+        if (h == null) return;
+        try {
+            String origin = payload.substring(0, bar);
+            String body = payload.substring(bar + 1);
+            if (body.startsWith("@")) {
+                body = fetchOutbox(con, Long.parseLong(body.substring(1)));
+                if (body == null) {
+                    receiveFailures.incrementAndGet();
+                    return;
+                }
+            }
+            for (JsonNode event : objectMapper.readTree(body)) {
+                h.deliver(new Event(origin, event.path("s").asLong(), event.path("k").asText(), event.path("t").asText("message"), text(event, "u"),
+                        text(event, "c"), objectMapper.writeValueAsBytes(event.get("d"))));
+                received.incrementAndGet();
+            }
+        } catch (Exception e) {
+            receiveFailures.incrementAndGet();
+            log.warn("[SSE-CLUSTER] notificação inválida descartada: {}", e.toString());
+        }
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode v = node.get(field);
+        return v == null || v.isNull() ? null : v.asText();
+    }
+
+    private String fetchOutbox(Connection con, long id) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("SELECT payload FROM " + OUTBOX + " WHERE id = ?")) {
+            ps.setLong(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package crm.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One SSE event encoded once ("id:", "event:", "retry:", "data:" lines and the blank terminator) and
+ * written as-is to every subscriber. The bytes are never modified after encode().
+ */
+public final class SseFrame {
+
+    private static final MediaType EVENT_STREAM = MediaType.TEXT_EVENT_STREAM;
+    private static final long RETRY_MILLIS = 8000;
+    private static final byte[] DATA = "data:".getBytes(StandardCharsets.UTF_8);
+
+    private final String id;
+    private final String event;
+    private final byte[] bytes;
+    // offset of the first "data:" line
+    private final int dataStart;
+    private final Set<DataWithMediaType> parts;
+
+    private SseFrame(String id, String event, byte[] bytes, int dataStart) {
+        this.id = id;
+        this.event = event;
+        this.bytes = bytes;
+        this.dataStart = dataStart;
+        this.parts = Set.of(new DataWithMediaType(bytes, EVENT_STREAM));
+    }
+
+    public static SseFrame encode(ObjectMapper objectMapper, String id, String event, Object data) throws JsonProcessingException {
+        return encode(id, event, objectMapper.writeValueAsBytes(data));
+    }
+
+    // A null id leaves out the "id:" line, so the browser keeps its current Last-Event-ID
+    public static SseFrame encode(String id, String event, byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length + 64);
+        String head = (id != null ? "id:" + id + "\n" : "") + "event:" + event + "\nretry:" + RETRY_MILLIS + "\n";
+        out.writeBytes(head.getBytes(StandardCharsets.UTF_8));
+        int dataStart = out.size();
+        // Jackson output has no raw newlines unless pretty printing is on; split just in case
+        int start = 0;
+        for (int i = 0; i <= json.length; i++) {
+            if (i == json.length || json[i] == '\n') {
+                out.writeBytes(DATA);
+                out.write(json, start, i - start);
+                out.write('\n');
+                start = i + 1;
+            }
+        }
+        out.write('\n');
+        return new SseFrame(id, event, out.toByteArray(), dataStart);
+    }
+
+    // A ": text" comment line: EventSource ignores it, but it keeps proxies and the socket honest
+    public static SseFrame comment(String text) {
+        byte[] bytes = (":" + text + "\n\n").getBytes(StandardCharsets.UTF_8);
+        return new SseFrame(null, null, bytes, bytes.length - 1);
+    }
+
+    // One "batch" event whose data is the JSON array of the frames' data, carrying the id of the last frame
+    public static SseFrame batch(List<SseFrame> frames) {
+        int size = 2;
+        for (SseFrame f : frames) size += f.bytes.length - f.dataStart + 1;
+        ByteArrayOutputStream json = new ByteArrayOutputStream(size);
+        json.write('[');
+        for (int i = 0; i < frames.size(); i++) {
+            if (i > 0) json.write(',');
+            frames.get(i).writeDataTo(json);
+        }
+        json.write(']');
+        return encode(frames.get(frames.size() - 1).id, "batch", json.toByteArray());
+    }
+
+    // The data lines joined back into the original JSON
+    private void writeDataTo(ByteArrayOutputStream out) {
+        int i = dataStart;
+        boolean first = true;
+        while (i < bytes.length && bytes[i] != '\n') {
+            int start = i + DATA.length;
+            int end = start;
+            while (bytes[end] != '\n') end++;
+            if (!first) out.write('\n');
+            out.write(bytes, start, end - start);
+            first = false;
+            i = end + 1;
+        }
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String event() {
+        return event;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    // Shared, immutable payload handed to SseEmitter.send(Set)
+    public Set<DataWithMediaType> parts() {
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
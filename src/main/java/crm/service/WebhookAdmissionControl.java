@@ -0,0 +1,263 @@
+package crm.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the Z-API webhook, one bounded lane per event class.
+ *
+ * Messages: synchronous ingest is limited to {@code message-permits} concurrent requests; a request
+ * that cannot get a permit within {@code message-acquire-timeout-ms} (or, in async mode, finds its
+ * ingest lane full) is answered 429 with Retry-After so Z-API retries later instead of Tomcat queueing it.
+ *
+ * Status callbacks: bounded queue drained by a dedicated thread that stores each status and then publishes
+ * it over SSE; 429 when full. While the database is unreachable the thread retries the same status, so the
+ * queue fills up and the webhook answers 429 until it recovers instead of losing callbacks.
+ *
+ * Presence callbacks: coalesced per (instance, phone), only the latest state is published. They are
+ * dropped when the coalescing buffer is full, while the message lane has no free permits, or in async mode
+ * while an ingest lane is at least {@code presence-shed-ingest-fill} full.
+ */
+@Component
+public class WebhookAdmissionControl {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookAdmissionControl.class);
+
+    private static final long STATUS_RETRY_MIN_MS = 100;
+    private static final long STATUS_RETRY_MAX_MS = 5000;
+
+    private final WhatsAppSseService sseService;
+    private final WhatsAppIngestService ingestService;
+    private final WhatsAppMessageService messageService;
+
+    @Value("${whatsapp.admission.message-permits:16}")
+    private int messagePermits;
+
+    @Value("${whatsapp.admission.message-acquire-timeout-ms:200}")
+    private long messageAcquireTimeoutMs;
+
+    @Value("${whatsapp.admission.status-capacity:5000}")
+    private int statusCapacity;
+
+    @Value("${whatsapp.admission.presence-capacity:5000}")
+    private int presenceCapacity;
+
+    @Value("${whatsapp.admission.presence-shed-ingest-fill:0.8}")
+    private double presenceShedIngestFill = 0.8;
+
+    @Value("${whatsapp.admission.retry-after-seconds:5}")
+    private int retryAfterSeconds;
+
+    private Semaphore messageLane;
+    private BlockingQueue<StatusUpdate> statusLane;
+    private final LinkedHashMap<String, Publish> presenceLane = new LinkedHashMap<>();
+    private Thread statusDispatcher;
+    private Thread presenceDispatcher;
+    private volatile boolean running;
+
+    private final AtomicLong messagesAdmitted = new AtomicLong();
+    private final AtomicLong messagesRejected = new AtomicLong();
+    private final AtomicLong statusAccepted = new AtomicLong();
+    private final AtomicLong statusRejected = new AtomicLong();
+    private final AtomicLong statusRetries = new AtomicLong();
+    private final AtomicLong statusFailed = new AtomicLong();
+    private final AtomicLong presenceAccepted = new AtomicLong();
+    private final AtomicLong presenceCoalesced = new AtomicLong();
+    private final AtomicLong presenceDropped = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+
+    public WebhookAdmissionControl(WhatsAppSseService sseService, WhatsAppIngestService ingestService,
+                                   WhatsAppMessageService messageService) {
+        this.sseService = sseService;
+        this.ingestService = ingestService;
+        this.messageService = messageService;
+    }
+
+    @PostConstruct
+    public void start() {
+        messageLane = new Semaphore(Math.max(1, messagePermits));
+        statusLane = new ArrayBlockingQueue<>(Math.max(1, statusCapacity));
+        running = true;
+        statusDispatcher = dispatcher("whatsapp-status-dispatch", this::runStatusDispatcher);
+        presenceDispatcher = dispatcher("whatsapp-presence-dispatch", this::runPresenceDispatcher);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (statusDispatcher != null) statusDispatcher.interrupt();
+        if (presenceDispatcher != null) presenceDispatcher.interrupt();
+    }
+
+    public int retryAfterSeconds() {
+        return Math.max(1, retryAfterSeconds);
+    }
+
+    // Every successful call must be paired with releaseMessage()
+    public boolean tryAcquireMessage() {
+        try {
+            if (messageLane.tryAcquire(Math.max(0, messageAcquireTimeoutMs), TimeUnit.MILLISECONDS)) {
+                messagesAdmitted.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        messagesRejected.incrementAndGet();
+        return false;
+    }
+
+    public void releaseMessage() {
+        messageLane.release();
+    }
+
+    // Async ingest admits into its own lanes; the controller reports those rejections here
+    public void recordMessageRejected() {
+        messagesRejected.incrementAndGet();
+    }
+
+    // The status is stored before its payload is published; false when the lane is full
+    public boolean offerStatus(String companyId, String contactId, String[] ids, String status, Map<String, Object> payload) {
+        if (statusLane.offer(new StatusUpdate(companyId, contactId, ids, status, payload))) {
+            statusAccepted.incrementAndGet();
+            return true;
+        }
+        statusRejected.incrementAndGet();
+        return false;
+    }
+
+    // Always "accepted" from the caller's point of view: presence is best effort
+    public void offerPresence(String companyId, String contactId, String coalesceKey, Map<String, Object> payload) {
+        // In async mode the request permits stay free; the pressure shows up in the ingest lanes instead
+        if (messageLane.availablePermits() == 0 || ingestService.busiestLaneFill() >= presenceShedIngestFill) {
+            presenceDropped.incrementAndGet();
+            return;
+        }
+        synchronized (presenceLane) {
+            // Replacing keeps the original position, so a chatty contact cannot starve the others
+            if (presenceLane.replace(coalesceKey, new Publish(companyId, contactId, payload)) != null) {
+                presenceCoalesced.incrementAndGet();
+                return;
+            }
+            if (presenceLane.size() >= Math.max(1, presenceCapacity)) {
+                presenceDropped.incrementAndGet();
+                return;
+            }
+            presenceLane.put(coalesceKey, new Publish(companyId, contactId, payload));
+            presenceAccepted.incrementAndGet();
+            presenceLane.notify();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("messagePermits", Math.max(1, messagePermits));
+        m.put("messagesInFlight", messageLane != null ? Math.max(1, messagePermits) - messageLane.availablePermits() : 0);
+        m.put("messagesAdmitted", messagesAdmitted.get());
+        m.put("messagesRejected", messagesRejected.get());
+        m.put("statusDepth", statusLane != null ? statusLane.size() : 0);
+        m.put("statusAccepted", statusAccepted.get());
+        m.put("statusRejected", statusRejected.get());
+        m.put("statusRetries", statusRetries.get());
+        m.put("statusFailed", statusFailed.get());
+        synchronized (presenceLane) {
+            m.put("presenceDepth", presenceLane.size());
+        }
+        m.put("presenceAccepted", presenceAccepted.get());
+        m.put("presenceCoalesced", presenceCoalesced.get());
+        m.put("presenceDropped", presenceDropped.get());
+        m.put("published", published.get());
+        return m;
+    }
+
+    private Thread dispatcher(String name, Runnable body) {
+        Thread t = new Thread(body, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private void runStatusDispatcher() {
+        while (running) {
+            try {
+                StatusUpdate update = statusLane.take();
+                if (store(update)) publish(new Publish(update.companyId(), update.contactId(), update.payload()));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void runPresenceDispatcher() {
+        List<Publish> drained = new ArrayList<>();
+        while (running) {
+            try {
+                synchronized (presenceLane) {
+                    while (presenceLane.isEmpty()) {
+                        presenceLane.wait();
+                    }
+                    Iterator<Publish> it = presenceLane.values().iterator();
+                    while (it.hasNext()) {
+                        drained.add(it.next());
+                        it.remove();
+                    }
+                }
+                for (Publish p : drained) {
+                    publish(p);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                drained.clear();
+            }
+        }
+    }
+
+    // Retries with backoff while the database is unreachable; any other failure drops the status, unpublished
+    private boolean store(StatusUpdate u) throws InterruptedException {
+        long backoffMs = STATUS_RETRY_MIN_MS;
+        while (true) {
+            try {
+                messageService.applyStatus(u.companyId(), u.contactId(), u.ids(), u.status());
+                return true;
+            } catch (Exception e) {
+                if (!running || !WhatsAppIngestService.isDatabaseUnavailable(e)) {
+                    statusFailed.incrementAndGet();
+                    log.warn("[ADMISSION] status {} de {} não gravado: {}", u.status(), u.contactId(), e.toString());
+                    return false;
+                }
+                statusRetries.incrementAndGet();
+                Thread.sleep(backoffMs);
+                backoffMs = Math.min(STATUS_RETRY_MAX_MS, backoffMs * 2);
+            }
+        }
+    }
+
+    private void publish(Publish p) {
+        try {
+            sseService.publish(p.companyId(), p.contactId(), p.payload());
+            published.incrementAndGet();
+        } catch (Exception e) {
+            log.debug("[ADMISSION] falha ao publicar evento: {}", e.toString());
+        }
+    }
+
+    private record Publish(String companyId, String contactId, Map<String, Object> payload) {}
+
+    private record StatusUpdate(String companyId, String contactId, String[] ids, String status, Map<String, Object> payload) {}
+}
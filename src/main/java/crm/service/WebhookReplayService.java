@@ -0,0 +1,420 @@
+package crm.service;
+
+import crm.dto.IncomingZapiEvent;
+import crm.service.WhatsAppIngestService.IngestItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-runs captured webhooks from whatsapp_webhook_debug through the ingest path, e.g. after an adapter fix.
+ *
+ * One reader streams the rows of a time range (optionally one instance or phone) through a server-side
+ * cursor and hands them to worker lanes hashed by (instance, contact), so each conversation is replayed
+ * in order. Ingest is idempotent on the Z-API id: a message already stored is left as it is and counted
+ * in alreadyStored, so a replay recovers messages that were lost but does not rewrite ones stored by an
+ * older adapter. Captured bodies that no longer parse are logged and counted in unparseable.
+ * A message that cannot be persisted stops the job; its resumeFrom is the earliest capture time that was
+ * not replayed, so a new job started there leaves nothing out. One job runs at a time.
+ */
+@Service
+public class WebhookReplayService {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookReplayService.class);
+
+    private static final Row END = new Row(null, null);
+    private static final int KEPT_JOBS = 20;
+    private static final int UNPARSEABLE_LOGGED = 20;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTx;
+    private final ZapiWebhookDecoder decoder;
+    private final WhatsAppIngestService ingestService;
+
+    @Value("${whatsapp.replay.fetch-size:1000}")
+    private int fetchSize;
+
+    @Value("${whatsapp.replay.workers:4}")
+    private int defaultWorkers;
+
+    @Value("${whatsapp.replay.batch-size:200}")
+    private int batchSize;
+
+    @Value("${whatsapp.replay.queue-capacity:2000}")
+    private int queueCapacity;
+
+    private final Map<String, ReplayJob> jobs = new ConcurrentHashMap<>();
+    private volatile ReplayJob current;
+
+    public WebhookReplayService(JdbcTemplate jdbcTemplate,
+                                PlatformTransactionManager transactionManager,
+                                ZapiWebhookDecoder decoder,
+                                WhatsAppIngestService ingestService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.readOnlyTx = new TransactionTemplate(transactionManager);
+        this.readOnlyTx.setReadOnly(true);
+        this.decoder = decoder;
+        this.ingestService = ingestService;
+    }
+
+    // Starts a job in the background; throws IllegalStateException while another one is running
+    public synchronized ReplayJob start(Instant from, Instant to, String instanceId, String phone, Integer workers) {
+        if (from == null || to == null || !from.isBefore(to)) {
+            throw new IllegalArgumentException("intervalo inválido: from deve ser anterior a to");
+        }
+        ReplayJob running = current;
+        if (running != null && running.isRunning()) {
+            throw new IllegalStateException("replay " + running.id + " ainda em execução");
+        }
+        int n = Math.max(1, workers != null ? workers : defaultWorkers);
+        ReplayJob job = new ReplayJob(UUID.randomUUID().toString(), from, to, blankToNull(instanceId), blankToNull(phone), n);
+        current = job;
+        jobs.put(job.id, job);
+        pruneFinished();
+        Thread t = new Thread(() -> run(job), "whatsapp-replay-" + job.id.substring(0, 8));
+        t.setDaemon(true);
+        t.start();
+        return job;
+    }
+
+    public Optional<ReplayJob> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    public List<Map<String, Object>> list() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        jobs.values().stream().sorted((a, b) -> b.startedAt.compareTo(a.startedAt)).forEach(j -> out.add(j.snapshot()));
+        return out;
+    }
+
+    public boolean cancel(String id) {
+        ReplayJob job = jobs.get(id);
+        if (job == null || !job.isRunning()) return false;
+        job.cancelled = true;
+        return true;
+    }
+
+    // Accepts an ISO instant (2024-05-01T10:00:00Z) or a UTC day (2024-05-01)
+    public static Instant parseInstant(String value) {
+        if (value == null || value.isBlank()) return null;
+        String v = value.trim();
+        return v.length() == 10 ? LocalDate.parse(v).atStartOfDay(ZoneOffset.UTC).toInstant() : Instant.parse(v);
+    }
+
+    private void run(ReplayJob job) {
+        List<BlockingQueue<Row>> lanes = new ArrayList<>(job.workers);
+        List<Thread> workers = new ArrayList<>(job.workers);
+        int perLane = Math.max(batchSize, queueCapacity / job.workers);
+        for (int i = 0; i < job.workers; i++) {
+            BlockingQueue<Row> lane = new ArrayBlockingQueue<>(perLane);
+            lanes.add(lane);
+            Thread w = new Thread(() -> drain(job, lane), "whatsapp-replay-worker-" + i);
+            w.setDaemon(true);
+            w.start();
+            workers.add(w);
+        }
+        log.info("[REPLAY] iniciado {}: from={} to={} instanceId={} phone={} workers={}",
+                job.id, job.from, job.to, job.instanceId, job.phone, job.workers);
+        try {
+            readOnlyTx.executeWithoutResult(status -> scan(job, lanes));
+        } catch (ReplayAborted e) {
+            // cancelled or a worker failed; status already set
+        } catch (Exception e) {
+            // The last row read may not have reached a lane
+            Instant read = job.cursor;
+            job.resumeAt(read != null ? read : job.from);
+            job.fail(e);
+            log.error("[REPLAY] falha na leitura {}: {}", job.id, e.toString(), e);
+        } finally {
+            for (BlockingQueue<Row> lane : lanes) {
+                putQuietly(job, lane, END);
+            }
+            for (Thread w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            job.finish();
+            log.info("[REPLAY] {} {}: {}", job.status, job.id, job.snapshot());
+        }
+    }
+
+    private void scan(ReplayJob job, List<BlockingQueue<Row>> lanes) {
+        StringBuilder sql = new StringBuilder(
+                "SELECT received_at, raw_payload::text, instance_id FROM whatsapp_webhook_debug WHERE received_at >= ? AND received_at < ?");
+        List<Object> args = new ArrayList<>(List.of(Timestamp.from(job.from), Timestamp.from(job.to)));
+        if (job.instanceId != null) {
+            sql.append(" AND instance_id = ?");
+            args.add(job.instanceId);
+        }
+        if (job.phone != null) {
+            sql.append(" AND phone = ?");
+            args.add(job.phone);
+        }
+        sql.append(" ORDER BY received_at, id");
+        IncomingZapiEvent event = new IncomingZapiEvent();
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Inside a transaction the driver streams with a cursor instead of loading the whole range
+            ps.setFetchSize(Math.max(1, fetchSize));
+            for (int i = 0; i < args.size(); i++) ps.setObject(i + 1, args.get(i));
+            return ps;
+        }, (RowCallbackHandler) rs -> {
+            Instant receivedAt = rs.getTimestamp(1).toInstant();
+            if (job.cancelled || job.error != null) {
+                job.resumeAt(receivedAt);
+                throw new ReplayAborted();
+            }
+            job.scanned.incrementAndGet();
+            job.cursor = receivedAt;
+            String raw = rs.getString(2);
+            IngestItem item = toItem(job, receivedAt, raw, rs.getString(3), event);
+            if (item == null) return;
+            job.eligible.incrementAndGet();
+            try {
+                putQuietly(job, lanes.get(laneOf(item, lanes.size())), new Row(receivedAt, item));
+            } catch (ReplayAborted e) {
+                job.resumeAt(receivedAt);
+                throw e;
+            }
+        });
+    }
+
+    // Null for bodies that are not inbound messages (status, presence) and for bodies that fail to parse
+    private IngestItem toItem(ReplayJob job, Instant receivedAt, String raw, String storedInstanceId, IncomingZapiEvent event) {
+        if (raw == null) return null;
+        try {
+            byte[] body = raw.getBytes(StandardCharsets.UTF_8);
+            if (!decoder.decodeInto(body, event)) return null;
+            Map<String, Object> adapted = decoder.adapt(event);
+            if (!decoder.isInboundMessage(event, adapted)) return null;
+            String instanceId = event.getInstanceId() != null ? event.getInstanceId().trim() : storedInstanceId;
+            return new IngestItem(raw, adapted, instanceId, decoder.rawPhone(event));
+        } catch (Exception e) {
+            // Only the first few are logged, a broken capture window would flood the log
+            if (job.unparseable.incrementAndGet() <= UNPARSEABLE_LOGGED) {
+                log.warn("[REPLAY] {}: payload recebido em {} ignorado, falha ao interpretar: {}", job.id, receivedAt, e.toString());
+            }
+            return null;
+        }
+    }
+
+    private void drain(ReplayJob job, BlockingQueue<Row> lane) {
+        List<Row> batch = new ArrayList<>(batchSize);
+        boolean done = false;
+        while (!done) {
+            try {
+                Row first = lane.take();
+                if (first != END) {
+                    batch.add(first);
+                    lane.drainTo(batch, batchSize - 1);
+                }
+                int end = batch.indexOf(END);
+                if (first == END || end >= 0) {
+                    done = true;
+                    if (end >= 0) batch.subList(end, batch.size()).clear();
+                }
+                if (batch.isEmpty()) continue;
+                if (job.error != null || job.cancelled) {
+                    // Never replayed: a new job has to start at or before it
+                    job.resumeAt(batch.get(0).receivedAt());
+                    continue;
+                }
+                WhatsAppIngestService.BatchResult result = ingestService.replayBatchNow(items(batch));
+                job.replayed.addAndGet(batch.size() - result.failed());
+                job.inserted.addAndGet(result.inserted());
+                job.unroutable.addAndGet(result.unroutable());
+                job.failed.addAndGet(result.failed());
+                if (result.firstFailed() >= 0) {
+                    job.resumeAt(batch.get(result.firstFailed()).receivedAt());
+                    job.fail(new IllegalStateException("mensagem recebida em " + batch.get(result.firstFailed()).receivedAt()
+                            + " não pôde ser persistida"));
+                    log.error("[REPLAY] {} interrompido: item recebido em {} falhou", job.id, batch.get(result.firstFailed()).receivedAt());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // Database unavailable: stop the whole job, it can be restarted from resumeFrom
+                if (!batch.isEmpty()) job.resumeAt(batch.get(0).receivedAt());
+                job.fail(e);
+                log.error("[REPLAY] falha no worker {}: {}", job.id, e.toString());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Same (instance, contact), same lane: each conversation is replayed in capture order
+    static int laneOf(IngestItem item, int lanes) {
+        int h = 31 * String.valueOf(item.instanceId()).hashCode() + String.valueOf(item.adapted().get("contactId")).hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes);
+    }
+
+    private static List<IngestItem> items(List<Row> rows) {
+        List<IngestItem> items = new ArrayList<>(rows.size());
+        for (Row r : rows) items.add(r.item());
+        return items;
+    }
+
+    // Blocks while the lane is full so the reader never runs ahead of the workers
+    private void putQuietly(ReplayJob job, BlockingQueue<Row> lane, Row item) {
+        try {
+            while (!lane.offer(item, 200, TimeUnit.MILLISECONDS)) {
+                if (item != END && (job.cancelled || job.error != null)) throw new ReplayAborted();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReplayAborted();
+        }
+    }
+
+    private void pruneFinished() {
+        if (jobs.size() <= KEPT_JOBS) return;
+        jobs.values().stream()
+                .filter(j -> !j.isRunning())
+                .sorted((a, b) -> a.startedAt.compareTo(b.startedAt))
+                .limit(jobs.size() - KEPT_JOBS)
+                .forEach(j -> jobs.remove(j.id));
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.isBlank() ? null : s.trim();
+    }
+
+    // A captured webhook on its way to a worker, with its capture time for the resume point
+    private record Row(Instant receivedAt, IngestItem item) {}
+
+    private static final class ReplayAborted extends RuntimeException {
+        ReplayAborted() {
+            super(null, null, false, false);
+        }
+    }
+
+    public static final class ReplayJob {
+        private final String id;
+        private final Instant from;
+        private final Instant to;
+        private final String instanceId;
+        private final String phone;
+        private final int workers;
+        private final Instant startedAt = Instant.now();
+        private final long startedNanos = System.nanoTime();
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong eligible = new AtomicLong();
+        private final AtomicLong replayed = new AtomicLong();
+        private final AtomicLong inserted = new AtomicLong();
+        private final AtomicLong unroutable = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong unparseable = new AtomicLong();
+        private volatile Instant cursor;
+        private Instant resumeFrom;
+        private volatile String status = "running";
+        private volatile String error;
+        private volatile boolean cancelled;
+        private volatile long finishedNanos;
+        private volatile Instant finishedAt;
+
+        ReplayJob(String id, Instant from, Instant to, String instanceId, String phone, int workers) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.instanceId = instanceId;
+            this.phone = phone;
+            this.workers = workers;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isRunning() {
+            return finishedAt == null;
+        }
+
+        void fail(Exception e) {
+            if (error == null) error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+
+        // Records a row that was not replayed; the earliest one is where a new job has to start
+        synchronized void resumeAt(Instant receivedAt) {
+            if (resumeFrom == null || receivedAt.isBefore(resumeFrom)) resumeFrom = receivedAt;
+        }
+
+        synchronized Instant resumeFrom() {
+            return finishedAt != null ? resumeFrom : null;
+        }
+
+        void finish() {
+            status = error != null ? "failed" : cancelled ? "cancelled" : "completed";
+            finishedNanos = System.nanoTime();
+            finishedAt = Instant.now();
+        }
+
+        public Map<String, Object> snapshot() {
+            long end = finishedAt != null ? finishedNanos : System.nanoTime();
+            double seconds = Math.max(1e-3, (end - startedNanos) / 1e9);
+            Instant at = cursor;
+            double progress = finishedAt != null && error == null && !cancelled ? 1.0
+                    : at == null ? 0.0
+                    : (double) Duration.between(from, at).toMillis() / Math.max(1, Duration.between(from, to).toMillis());
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", id);
+            m.put("status", status);
+            m.put("from", from.toString());
+            m.put("to", to.toString());
+            m.put("instanceId", instanceId);
+            m.put("phone", phone);
+            m.put("workers", workers);
+            m.put("startedAt", startedAt.toString());
+            m.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+            m.put("cursor", at != null ? at.toString() : null);
+            // After a failure or cancel: pass as from to a new job; nothing before it was left out
+            Instant resume = resumeFrom();
+            m.put("resumeFrom", resume != null ? resume.toString() : null);
+            m.put("progress", Math.round(progress * 1000) / 1000.0);
+            m.put("scanned", scanned.get());
+            m.put("unparseable", unparseable.get());
+            // Inbound messages; the other scanned rows were status, presence or unparseable
+            m.put("eligible", eligible.get());
+            m.put("replayed", replayed.get());
+            m.put("inserted", inserted.get());
+            // Left untouched, even when the adapter now maps them differently
+            m.put("alreadyStored", replayed.get() - inserted.get() - unroutable.get());
+            // Instance no longer routed to a company
+            m.put("unroutable", unroutable.get());
+            m.put("failed", failed.get());
+            m.put("rowsPerSecond", Math.round(scanned.get() / seconds));
+            m.put("messagesPerSecond", Math.round(replayed.get() / seconds));
+            m.put("error", error);
+            return m;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package crm.service;
+
+import crm.dto.IncomingZapiEvent;
+import crm.service.WhatsAppIngestService.IngestItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable append-only spool for raw webhook bodies ({@code whatsapp.spool.enabled=true}).
+ *
+ * The controller appends the body into a memory-mapped segment and acks once a group-commit fsync
+ * covers it; a single consumer thread reads durable entries in order, pushes them through
+ * {@link WhatsAppIngestService#ingestBatchNow} and checkpoints its offset. Anything after the
+ * checkpoint is replayed on startup, which is safe because ingest is idempotent on the Z-API id.
+ *
+ * Offsets are global: segment files are named after their base offset and each record carries
+ * [int length][int crc32c][long offset][body]. A record only counts if its offset field matches its
+ * position, so a torn tail after a crash, and the stale bytes of a recycled segment, are ignored.
+ */
+@Component
+public class WebhookSpool {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookSpool.class);
+
+    private static final int HEADER = 16;
+    private static final int MAX_SPARES = 2;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "consumer.offset";
+
+    private final ZapiWebhookDecoder decoder;
+    private final WhatsAppIngestService ingestService;
+
+    @Value("${whatsapp.spool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${whatsapp.spool.dir:data/webhook-spool}")
+    private String dir;
+
+    @Value("${whatsapp.spool.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${whatsapp.spool.max-segments:32}")
+    private int maxSegments;
+
+    @Value("${whatsapp.spool.fsync-interval-ms:2}")
+    private long fsyncIntervalMs;
+
+    // false acks as soon as the body is in the page cache (survives a JVM crash, not a power loss)
+    @Value("${whatsapp.spool.sync-ack:true}")
+    private boolean syncAck;
+
+    @Value("${whatsapp.spool.ack-timeout-ms:1000}")
+    private long ackTimeoutMs;
+
+    @Value("${whatsapp.spool.consumer-batch:200}")
+    private int consumerBatch;
+
+    private Path root;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Deque<Path> spares = new ArrayDeque<>();
+    private MappedByteBuffer checkpoint;
+    private FileChannel checkpointChannel;
+
+    // Writer state, guarded by this
+    private Segment head;
+    private long writeOffset;
+
+    private volatile long durableOffset;
+    private volatile boolean flushFailing;
+    private volatile long consumerOffset;
+    private final Object durableLock = new Object();
+    private Thread flusher;
+    private Thread consumer;
+    private volatile boolean running;
+    private long backlogAtStartup;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong fsyncNanos = new AtomicLong();
+    private final AtomicLong slowAcks = new AtomicLong();
+    private final AtomicLong fsyncFailures = new AtomicLong();
+    private final AtomicLong consumerRetries = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+
+    // NOT_DURABLE: written, but no fsync covered it within ack-timeout-ms (or the last one failed)
+    public enum AppendResult { ACCEPTED, FULL, NOT_DURABLE }
+
+    public WebhookSpool(ZapiWebhookDecoder decoder, WhatsAppIngestService ingestService) {
+        this.decoder = decoder;
+        this.ingestService = ingestService;
+    }
+
+    public boolean isEnabled() {
+        return enabled && running;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) return;
+        root = Paths.get(dir).toAbsolutePath();
+        Files.createDirectories(root);
+        checkpointChannel = FileChannel.open(root.resolve(CHECKPOINT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkpoint = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        long saved = checkpoint.getLong(0);
+        // Stored twice (value and complement); a torn write replays from the oldest segment instead
+        consumerOffset = (saved == ~checkpoint.getLong(8)) ? saved : 0;
+
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(root)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - SEGMENT_SUFFIX.length()))));
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            if (base + segmentBytes <= consumerOffset && base != bases.get(bases.size() - 1)) {
+                if (spares.size() < MAX_SPARES) spares.add(segmentPath(base));
+                else Files.deleteIfExists(segmentPath(base));
+                continue;
+            }
+            segments.put(base, Segment.open(segmentPath(base), base, segmentBytes));
+        }
+        if (segments.isEmpty()) {
+            long base = (consumerOffset / segmentBytes) * segmentBytes;
+            head = newSegment(base);
+            writeOffset = Math.max(base, consumerOffset);
+        } else {
+            head = segments.lastEntry().getValue();
+            writeOffset = recoverEnd(head, Math.max(head.base, consumerOffset));
+        }
+        consumerOffset = Math.min(Math.max(consumerOffset, segments.firstKey()), writeOffset);
+        durableOffset = writeOffset;
+        backlogAtStartup = writeOffset - consumerOffset;
+        running = true;
+        flusher = daemon("whatsapp-spool-flush", this::runFlusher);
+        log.info("[SPOOL] aberto em {}: segmentos={} writeOffset={} consumerOffset={} pendente={} bytes",
+                root, segments.size(), writeOffset, consumerOffset, backlogAtStartup);
+    }
+
+    // The consumer needs the whole ingest pipeline, so replay starts only once the application is ready
+    @EventListener(ApplicationReadyEvent.class)
+    public void startConsumer() {
+        if (!isEnabled() || consumer != null) return;
+        consumer = daemon("whatsapp-spool-consumer", this::runConsumer);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!running) return;
+        running = false;
+        for (Thread t : new Thread[]{consumer, flusher}) {
+            if (t == null) continue;
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            forceUpTo(writeOffset);
+        }
+        for (Segment s : segments.values()) s.close();
+        try {
+            checkpointChannel.close();
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * Appends one raw body. FULL when the spool is full (consumer too far behind) or the body does not fit a
+     * segment; NOT_DURABLE when sync-ack is on and the record could not be fsynced in time. In both cases the
+     * caller must not ack: the sender retries, and a record that does reach the disk is deduplicated on ingest.
+     */
+    public AppendResult append(byte[] body) {
+        if (!isEnabled() || body == null) return AppendResult.FULL;
+        int length = HEADER + body.length;
+        if (length > segmentBytes) {
+            rejected.incrementAndGet();
+            log.warn("[SPOOL] corpo maior que o segmento ({} bytes), rejeitado", body.length);
+            return AppendResult.FULL;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        long end;
+        synchronized (this) {
+            int pos = (int) (writeOffset - head.base);
+            if (pos + length > segmentBytes) {
+                if (!roll(pos)) {
+                    rejected.incrementAndGet();
+                    return AppendResult.FULL;
+                }
+                pos = 0;
+            }
+            MappedByteBuffer buf = head.buffer;
+            buf.putInt(pos, body.length);
+            buf.putInt(pos + 4, (int) crc.getValue());
+            buf.putLong(pos + 8, writeOffset);
+            buf.put(pos + HEADER, body);
+            writeOffset += length;
+            end = writeOffset;
+        }
+        appended.incrementAndGet();
+        LockSupport.unpark(flusher);
+        if (syncAck && !awaitDurable(end)) return AppendResult.NOT_DURABLE;
+        return AppendResult.ACCEPTED;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", isEnabled());
+        if (!isEnabled()) return m;
+        long written;
+        synchronized (this) {
+            written = writeOffset;
+        }
+        long syncs = fsyncs.get();
+        m.put("segments", segments.size());
+        m.put("spareSegments", spares.size());
+        m.put("writeOffset", written);
+        m.put("durableOffset", durableOffset);
+        m.put("consumerOffset", consumerOffset);
+        m.put("backlogBytes", written - consumerOffset);
+        m.put("backlogAtStartupBytes", backlogAtStartup);
+        m.put("appended", appended.get());
+        m.put("consumed", consumed.get());
+        m.put("rejected", rejected.get());
+        m.put("fsyncs", syncs);
+        m.put("avgFsyncMicros", syncs > 0 ? TimeUnit.NANOSECONDS.toMicros(fsyncNanos.get() / syncs) : 0);
+        // Appends answered NOT_DURABLE
+        m.put("slowAcks", slowAcks.get());
+        m.put("fsyncFailures", fsyncFailures.get());
+        m.put("consumerRetries", consumerRetries.get());
+        m.put("recycledSegments", recycled.get());
+        return m;
+    }
+
+    // Closes the head with an end marker and continues in a fresh (or recycled) segment
+    private boolean roll(int pos) {
+        if (segments.size() >= Math.max(2, maxSegments)) return false;
+        if (pos + HEADER <= segmentBytes) {
+            head.buffer.putInt(pos, END_OF_SEGMENT);
+            head.buffer.putInt(pos + 4, 0);
+            head.buffer.putLong(pos + 8, writeOffset);
+        }
+        try {
+            head = newSegment(head.base + segmentBytes);
+        } catch (IOException e) {
+            log.error("[SPOOL] falha ao criar segmento: {}", e.toString());
+            return false;
+        }
+        writeOffset = head.base;
+        return true;
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        Path target = segmentPath(base);
+        Path spare;
+        synchronized (spares) {
+            spare = spares.poll();
+        }
+        if (spare != null) {
+            try {
+                Files.move(spare, target);
+            } catch (IOException e) {
+                log.debug("[SPOOL] não foi possível reaproveitar {}: {}", spare, e.toString());
+            }
+        }
+        Segment s = Segment.open(target, base, segmentBytes);
+        segments.put(base, s);
+        return s;
+    }
+
+    // Scans the last segment for the first record that is missing, torn or stale
+    private long recoverEnd(Segment s, long from) {
+        int pos = (int) (from - s.base);
+        while (pos + HEADER <= segmentBytes) {
+            int len = s.buffer.getInt(pos);
+            long offset = s.buffer.getLong(pos + 8);
+            if (offset != s.base + pos) break;
+            if (len == END_OF_SEGMENT) return s.base + segmentBytes;
+            if (len < 0 || pos + HEADER + len > segmentBytes || !crcMatches(s.buffer, pos, len)) break;
+            pos += HEADER + len;
+        }
+        return s.base + pos;
+    }
+
+    private static boolean crcMatches(MappedByteBuffer buf, int pos, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.slice(pos + HEADER, len));
+        return (int) crc.getValue() == buf.getInt(pos + 4);
+    }
+
+    // False when no fsync covered the record within ack-timeout-ms, or the flusher's last fsync failed
+    private boolean awaitDurable(long end) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(1, ackTimeoutMs));
+        synchronized (durableLock) {
+            while (durableOffset < end) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || flushFailing) {
+                    slowAcks.incrementAndGet();
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(durableLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Group commit: one msync covers every append that arrived since the previous one
+    private void runFlusher() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        while (running) {
+            long target;
+            synchronized (this) {
+                target = writeOffset;
+            }
+            if (target <= durableOffset) {
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                forceUpTo(target);
+            } catch (Exception e) {
+                fsyncFailures.incrementAndGet();
+                log.error("[SPOOL] falha no fsync: {}", e.toString());
+                // Waiting appenders give up now instead of at their timeout
+                synchronized (durableLock) {
+                    flushFailing = true;
+                    durableLock.notifyAll();
+                }
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            fsyncs.incrementAndGet();
+            fsyncNanos.addAndGet(System.nanoTime() - start);
+            synchronized (durableLock) {
+                flushFailing = false;
+                durableOffset = target;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void forceUpTo(long target) {
+        Long from = segments.floorKey(durableOffset);
+        for (Segment s : segments.subMap(from != null ? from : 0L, true, target, true).values()) {
+            s.buffer.force();
+        }
+    }
+
+    private void runConsumer() {
+        List<byte[]> bodies = new ArrayList<>(consumerBatch);
+        List<Long> ends = new ArrayList<>(consumerBatch);
+        List<IngestItem> items = new ArrayList<>(consumerBatch);
+        List<Integer> itemBodies = new ArrayList<>(consumerBatch);
+        IncomingZapiEvent event = new IncomingZapiEvent();
+        long backoffMs = 100;
+        while (running) {
+            long next = read(consumerOffset, durableOffset, bodies, ends);
+            if (bodies.isEmpty()) {
+                if (next != consumerOffset) commit(next, 0);
+                else LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs)));
+                continue;
+            }
+            try {
+                for (int i = 0; i < bodies.size(); i++) {
+                    IngestItem item = toItem(bodies.get(i), event);
+                    if (item == null) continue;
+                    items.add(item);
+                    itemBodies.add(i);
+                }
+                int failedAt = ingestService.ingestBatchNow(items).firstFailed();
+                if (failedAt < 0) {
+                    commit(next, bodies.size());
+                    backoffMs = 100;
+                    continue;
+                }
+                // Checkpoint only up to the entry before the failed one; the retry starts at it
+                int body = itemBodies.get(failedAt);
+                if (body > 0) commit(ends.get(body - 1), body);
+                consumerRetries.incrementAndGet();
+                log.warn("[SPOOL] entrada em {} não pôde ser persistida, nova tentativa em {} ms",
+                        body > 0 ? ends.get(body - 1) : consumerOffset, backoffMs);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoffMs));
+                backoffMs = Math.min(10_000, backoffMs * 2);
+            } catch (Exception e) {
+                // Database unavailable: keep the entries and retry from the same offset
+                consumerRetries.incrementAndGet();
+                log.warn("[SPOOL] falha ao processar {} entradas, nova tentativa em {} ms: {}", bodies.size(), backoffMs, e.toString());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoffMs));
+                backoffMs = Math.min(10_000, backoffMs * 2);
+            } finally {
+                bodies.clear();
+                ends.clear();
+                items.clear();
+                itemBodies.clear();
+            }
+        }
+    }
+
+    // Reads up to consumer-batch records in [from, limit) with the offset after each; returns the offset after the last one
+    private long read(long from, long limit, List<byte[]> out, List<Long> ends) {
+        long offset = from;
+        while (offset < limit && out.size() < consumerBatch) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+            if (e == null) break;
+            Segment s = e.getValue();
+            int pos = (int) (offset - s.base);
+            if (pos + HEADER > segmentBytes || s.buffer.getInt(pos) == END_OF_SEGMENT) {
+                offset = s.base + segmentBytes;
+                continue;
+            }
+            int len = s.buffer.getInt(pos);
+            byte[] body = new byte[len];
+            s.buffer.get(pos + HEADER, body);
+            out.add(body);
+            offset += HEADER + len;
+            ends.add(offset);
+        }
+        return offset;
+    }
+
+    private IngestItem toItem(byte[] body, IncomingZapiEvent event) {
+        try {
+            if (!decoder.decodeInto(body, event)) return null;
+            Map<String, Object> adapted = decoder.adapt(event);
+            if (!decoder.isInboundMessage(event, adapted)) return null;
+            String instanceId = event.getInstanceId() != null ? event.getInstanceId().trim() : "";
+            return new IngestItem(new String(body, StandardCharsets.UTF_8), adapted, instanceId, decoder.rawPhone(event));
+        } catch (IOException e) {
+            log.warn("[SPOOL] entrada ilegível descartada: {}", e.toString());
+            return null;
+        }
+    }
+
+    private void commit(long offset, int count) {
+        checkpoint.putLong(0, offset);
+        checkpoint.putLong(8, ~offset);
+        checkpoint.force();
+        consumerOffset = offset;
+        consumed.addAndGet(count);
+        recycleConsumed();
+    }
+
+    // Segments entirely behind the checkpoint become spares for the next roll
+    private void recycleConsumed() {
+        Segment current;
+        synchronized (this) {
+            current = head;
+        }
+        for (Map.Entry<Long, Segment> e : segments.headMap(current.base, false).entrySet()) {
+            Segment s = e.getValue();
+            if (s.base + segmentBytes > consumerOffset) break;
+            segments.remove(e.getKey());
+            s.close();
+            synchronized (spares) {
+                if (spares.size() < MAX_SPARES) {
+                    spares.add(s.path);
+                    recycled.incrementAndGet();
+                    continue;
+                }
+            }
+            try {
+                Files.deleteIfExists(s.path);
+            } catch (IOException ex) {
+                log.debug("[SPOOL] não foi possível remover {}: {}", s.path, ex.toString());
+            }
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return root.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private static Thread daemon(String name, Runnable body) {
+        Thread t = new Thread(body, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private record Segment(Path path, long base, FileChannel channel, MappedByteBuffer buffer) {
+        static Segment open(Path path, long base, int size) throws IOException {
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, base, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
@@ -4,18 +4,30 @@ import crm.entity.WhatsAppConfig;
 import crm.repository.WhatsAppConfigRepository;
 import crm.security.CryptoUtil;
 import crm.tenant.TenantResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.*;
 
 import org.springframework.beans.factory.annotation.Value;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class WhatsAppConfigService {
 
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppConfigService.class);
+
     private final WhatsAppConfigRepository repository;
     private final CryptoUtil cryptoUtil;
     private final TenantResolver tenantResolver;
@@ -32,6 +44,19 @@ public class WhatsAppConfigService {
     @Value("${ZAPI_TOKEN:}")
     private String zapiTokenEnv;
 
+    // instanceId -> companyId for webhook routing; unknown instances are cached as null for a shorter time
+    @Value("${whatsapp.routing.cache-ttl-seconds:600}")
+    private long routeTtlSeconds;
+    @Value("${whatsapp.routing.negative-ttl-seconds:30}")
+    private long routeNegativeTtlSeconds;
+
+    private final Map<String, CachedRoute> instanceRoutes = new ConcurrentHashMap<>();
+    private final AtomicLong routeGeneration = new AtomicLong();
+    private final AtomicLong routeHits = new AtomicLong();
+    private final AtomicLong routeNegativeHits = new AtomicLong();
+    private final AtomicLong routeMisses = new AtomicLong();
+    private final AtomicLong routeInvalidations = new AtomicLong();
+
     public WhatsAppConfigService(WhatsAppConfigRepository repository,
                                  CryptoUtil cryptoUtil,
                                  TenantResolver tenantResolver,
@@ -58,20 +83,89 @@ public class WhatsAppConfigService {
 
     public String resolveCompanyIdByInstanceId(String instanceId) {
         if (instanceId == null || instanceId.isBlank()) return null;
+        long now = System.nanoTime();
+        CachedRoute cached = instanceRoutes.get(instanceId);
+        if (cached != null && now < cached.expiresAtNanos()) {
+            if (cached.companyId() == null) routeNegativeHits.incrementAndGet();
+            else routeHits.incrementAndGet();
+            return cached.companyId();
+        }
+        routeMisses.incrementAndGet();
+        long generation = routeGeneration.get();
         try {
             Optional<WhatsAppConfig> opt = repository.findFirstByInstanceIdAndConnectedTrueOrderByIdAsc(instanceId);
             if (opt.isEmpty()) {
                 opt = repository.findFirstByInstanceIdOrderByIdAsc(instanceId);
             }
-            return opt.map(WhatsAppConfig::getCompanyId).orElse(null);
+            String companyId = opt.map(WhatsAppConfig::getCompanyId).orElse(null);
+            // An invalidation during the lookup may mean we read the old row; don't cache that
+            if (generation == routeGeneration.get()) {
+                instanceRoutes.put(instanceId, route(companyId, now));
+            }
+            return companyId;
         } catch (Exception ignored) {}
         return null;
     }
 
+    // Company whose SSE subscribers get an event: the instance route when the webhook names an instance,
+    // else the authenticated user's company; null when neither is known
+    public String resolvePublishCompanyId(String instanceId) {
+        if (instanceId != null && !instanceId.isBlank() && !"null".equals(instanceId)) {
+            return resolveCompanyIdByInstanceId(instanceId.trim());
+        }
+        return tenantResolver.findCurrentCompanyId().orElse(null);
+    }
+
+    public void invalidateInstanceRoute(String instanceId) {
+        routeGeneration.incrementAndGet();
+        routeInvalidations.incrementAndGet();
+        if (instanceId != null && !instanceId.isBlank()) instanceRoutes.remove(instanceId);
+    }
+
+    // Loads every configured instance so the first webhooks after a restart don't hit the database
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmInstanceRoutes() {
+        try {
+            List<WhatsAppConfig> all = new java.util.ArrayList<>(repository.findAll());
+            // Same precedence as the lookup: a connected row first, then the lowest id
+            all.sort(Comparator.comparing((WhatsAppConfig c) -> !Boolean.TRUE.equals(c.getConnected()))
+                    .thenComparing(WhatsAppConfig::getId));
+            long now = System.nanoTime();
+            Map<String, CachedRoute> loaded = new HashMap<>();
+            for (WhatsAppConfig c : all) {
+                String iid = c.getInstanceId();
+                if (iid == null || iid.isBlank()) continue;
+                loaded.putIfAbsent(iid, route(c.getCompanyId(), now));
+            }
+            instanceRoutes.putAll(loaded);
+            log.info("[ROUTING] cache de instâncias aquecido: {} instâncias", loaded.size());
+        } catch (Exception e) {
+            log.warn("[ROUTING] falha ao aquecer cache de instâncias: {}", e.toString());
+        }
+    }
+
+    public Map<String, Object> routingSnapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("entries", instanceRoutes.size());
+        m.put("hits", routeHits.get());
+        m.put("negativeHits", routeNegativeHits.get());
+        m.put("misses", routeMisses.get());
+        m.put("invalidations", routeInvalidations.get());
+        return m;
+    }
+
+    private CachedRoute route(String companyId, long nowNanos) {
+        long ttl = companyId != null ? routeTtlSeconds : routeNegativeTtlSeconds;
+        return new CachedRoute(companyId, nowNanos + TimeUnit.SECONDS.toNanos(Math.max(0, ttl)));
+    }
+
+    private record CachedRoute(String companyId, long expiresAtNanos) {}
+
     public WhatsAppConfig saveConfig(WhatsAppConfig incoming) {
         String companyId = tenantResolver.getCurrentCompanyId();
         Optional<WhatsAppConfig> existingOpt = repository.findByCompanyId(companyId);
         WhatsAppConfig entity = existingOpt.orElseGet(WhatsAppConfig::new);
+        String previousInstanceId = entity.getInstanceId();
         entity.setCompanyId(companyId);
         entity.setProvider(incoming.getProvider());
         entity.setBaseUrl(incoming.getBaseUrl());
@@ -87,7 +181,10 @@ public class WhatsAppConfigService {
         if (incoming.getInstanceTokenEncrypted() != null && !incoming.getInstanceTokenEncrypted().isEmpty()) {
             entity.setInstanceTokenEncrypted(cryptoUtil.encrypt(incoming.getInstanceTokenEncrypted()));
         }
-        return repository.save(entity);
+        WhatsAppConfig saved = repository.save(entity);
+        invalidateInstanceRoute(previousInstanceId);
+        invalidateInstanceRoute(saved.getInstanceId());
+        return saved;
     }
 
     public Map<String, Object> getSafeConfigView() {
@@ -219,9 +316,12 @@ public class WhatsAppConfigService {
                 if (instToken == null) {
                     instToken = bodyMap.get("token");
                 }
+                String previousInstanceId = cfg.getInstanceId();
                 if (instId != null) cfg.setInstanceId(instId.toString());
                 if (instToken != null) cfg.setInstanceTokenEncrypted(cryptoUtil.encrypt(instToken.toString()));
                 repository.save(cfg);
+                invalidateInstanceRoute(previousInstanceId);
+                invalidateInstanceRoute(cfg.getInstanceId());
                 result.put("instanceId", cfg.getInstanceId());
                 result.put("instanceToken", instToken);
                 return result;
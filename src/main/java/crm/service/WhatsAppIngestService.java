@@ -0,0 +1,475 @@
+package crm.service;
+
+import crm.controller.WhatsAppWebhookControllerRawPersistPatch;
+import crm.controller.WhatsAppWebhookControllerRawPersistPatch.DebugRow;
+import crm.entity.WhatsAppMessage;
+import crm.service.WhatsAppMessageDedupFilter.Verdict;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingest pipeline for adapted Z-API messages.
+ *
+ * In sync mode (default) the webhook thread persists everything itself. With
+ * {@code whatsapp.ingest.async=true} the controller only enqueues and acks. Items are hashed by
+ * (companyId, contactId) onto {@code whatsapp.ingest.lanes} lanes, each a bounded queue drained
+ * by a single thread in batches (one transaction per batch), so messages of one conversation are
+ * persisted and published in arrival order while different conversations run in parallel.
+ * Webhook retries are dropped by {@link WhatsAppMessageDedupFilter} and the ON CONFLICT insert,
+ * and are never published over SSE.
+ */
+@Service
+public class WhatsAppIngestService {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppIngestService.class);
+
+    private final WhatsAppMessageService messageService;
+    private final WhatsAppContactService contactService;
+    private final WhatsAppConfigService configService;
+    private final WhatsAppSseService sseService;
+    private final WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist;
+    private final WhatsAppMessageDedupFilter dedupFilter;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${whatsapp.ingest.async:false}")
+    private boolean async;
+
+    @Value("${whatsapp.ingest.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${whatsapp.ingest.batch-size:100}")
+    private int batchSize;
+
+    @Value("${whatsapp.ingest.flush-interval-ms:50}")
+    private long flushIntervalMs;
+
+    @Value("${whatsapp.ingest.lanes:4}")
+    private int laneCount;
+
+    private Lane[] lanes;
+    private volatile boolean running;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong unknownInstance = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicLong lastBatchMillis = new AtomicLong();
+
+    public WhatsAppIngestService(WhatsAppMessageService messageService,
+                                 WhatsAppContactService contactService,
+                                 WhatsAppConfigService configService,
+                                 WhatsAppSseService sseService,
+                                 WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist,
+                                 WhatsAppMessageDedupFilter dedupFilter,
+                                 TransactionTemplate transactionTemplate) {
+        this.messageService = messageService;
+        this.contactService = contactService;
+        this.configService = configService;
+        this.sseService = sseService;
+        this.webhookDebugPersist = webhookDebugPersist;
+        this.dedupFilter = dedupFilter;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!async) return;
+        int n = Math.max(1, laneCount);
+        // queue-capacity is the total across lanes
+        int perLane = Math.max(1, queueCapacity / n);
+        lanes = new Lane[n];
+        running = true;
+        for (int i = 0; i < n; i++) {
+            lanes[i] = new Lane(i, perLane);
+            lanes[i].thread.start();
+        }
+        log.info("[INGEST] modo assíncrono ativo: lanes={} batchSize={} flushIntervalMs={} capacityPerLane={}",
+                n, batchSize, flushIntervalMs, perLane);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (lanes == null) return;
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        try {
+            for (Lane lane : lanes) {
+                lane.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int pending = 0;
+        for (Lane lane : lanes) {
+            if (lane.thread.isAlive()) {
+                pending += lane.queue.size();
+                lane.thread.interrupt();
+            }
+        }
+        if (pending > 0) {
+            log.warn("[INGEST] lanes não finalizaram a tempo, {} itens pendentes", pending);
+        }
+    }
+
+    public boolean isAsync() {
+        return async && running;
+    }
+
+    // Returns false when the lane is full; the caller then falls back to the synchronous path
+    public boolean enqueue(String rawJson, Map<String, Object> adapted, String instanceId, String rawPhone) {
+        if (!isAsync()) return false;
+        // Unknown instances still need a lane; the worker drops them after resolving again
+        String companyId = configService.resolveCompanyIdByInstanceId(instanceId);
+        Lane lane = laneFor(companyId != null ? companyId : instanceId, String.valueOf(adapted.get("contactId")));
+        if (lane.queue.offer(new IngestItem(rawJson, adapted, instanceId, rawPhone, System.nanoTime()))) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    // Fill of the fullest lane (0..1), 0 in sync mode; one lane is enough to start answering 429
+    public double busiestLaneFill() {
+        if (!isAsync()) return 0;
+        double max = 0;
+        for (Lane lane : lanes) {
+            int depth = lane.queue.size();
+            max = Math.max(max, (double) depth / Math.max(1, depth + lane.queue.remainingCapacity()));
+        }
+        return max;
+    }
+
+    // Same conversation, same lane: that is what keeps per-chat FIFO
+    private Lane laneFor(String companyId, String contactId) {
+        int h = 31 * String.valueOf(companyId).hashCode() + contactId.hashCode();
+        h ^= h >>> 16;
+        return lanes[Math.floorMod(h, lanes.length)];
+    }
+
+    // Synchronous path: same writes as a batch of one, inside the caller's thread. Returns null for unknown instances.
+    public IngestResult ingestNow(String rawJson, Map<String, Object> adapted, String instanceId, String rawPhone) {
+        String companyId = configService.resolveCompanyIdByInstanceId(instanceId);
+        if (companyId == null || companyId.isBlank()) return null;
+        Map<String, Object> enriched = enrich(adapted, companyId);
+        String externalId = String.valueOf(enriched.get("id"));
+        Verdict verdict = dedupFilter.check(companyId, externalId);
+        if (verdict == Verdict.DUPLICATE) {
+            duplicates.incrementAndGet();
+            log.debug("[INGEST] mensagem duplicada ignorada: id={} companyId={}", externalId, companyId);
+            return new IngestResult(companyId, true);
+        }
+        Boolean inserted = transactionTemplate.execute(status -> {
+            String debugId = webhookDebugPersist.persistDebug(rawJson, instanceId, externalId, rawPhone);
+            if (debugId == null) {
+                log.debug("[WEBHOOK DEBUG] persistDebug retornou null (continuando)");
+            } else {
+                log.debug("[WEBHOOK DEBUG] queued debugId={}", debugId);
+            }
+            // The controller publishes over SSE after commit, keyed by the webhook's instance
+            if (messageService.persistIncomingMessages(List.of(enriched)).get(0) == null) return false;
+            String contactId = String.valueOf(enriched.get("contactId"));
+            if (!contactId.isBlank()) {
+                contactService.upsert(contactId, null, companyId);
+            }
+            return true;
+        });
+        boolean isNew = Boolean.TRUE.equals(inserted);
+        dedupFilter.recordInsert(verdict, isNew);
+        dedupFilter.remember(companyId, externalId);
+        if (!isNew) {
+            duplicates.incrementAndGet();
+            log.debug("[INGEST] mensagem já persistida (ON CONFLICT): id={} companyId={}", externalId, companyId);
+        }
+        return new IngestResult(companyId, !isNew);
+    }
+
+    /**
+     * Persists a batch in the caller's thread (one transaction, publish after commit); used by the spool
+     * consumer. Throws when the database is unreachable so the caller can keep the items and retry; an item
+     * that failed on its own is reported in {@link BatchResult#firstFailed} so the caller does not move past it.
+     */
+    public BatchResult ingestBatchNow(List<IngestItem> items) {
+        return items.isEmpty() ? BatchResult.EMPTY : processBatch(items, Source.SPOOL);
+    }
+
+    /**
+     * Re-ingests payloads captured in whatsapp_webhook_debug: no new debug rows and no SSE publish.
+     * Same failure contract as {@link #ingestBatchNow}.
+     */
+    public BatchResult replayBatchNow(List<IngestItem> items) {
+        return items.isEmpty() ? BatchResult.EMPTY : processBatch(items, Source.REPLAY);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("mode", isAsync() ? "async" : "sync");
+        int depth = 0;
+        List<Map<String, Object>> laneStats = new ArrayList<>();
+        if (lanes != null) {
+            long now = System.nanoTime();
+            for (Lane lane : lanes) {
+                depth += lane.queue.size();
+                laneStats.add(lane.snapshot(now));
+            }
+        }
+        m.put("queueDepth", depth);
+        m.put("queueCapacity", lanes != null ? queueCapacity : 0);
+        m.put("lanes", isAsync() ? lanes.length : 0);
+        m.put("batchSize", batchSize);
+        m.put("flushIntervalMs", flushIntervalMs);
+        m.put("accepted", accepted.get());
+        m.put("rejected", rejected.get());
+        m.put("processed", processed.get());
+        m.put("failed", failed.get());
+        m.put("unknownInstance", unknownInstance.get());
+        m.put("duplicates", duplicates.get());
+        m.put("batches", batches.get());
+        m.put("lastBatchSize", lastBatchSize.get());
+        m.put("lastBatchMillis", lastBatchMillis.get());
+        m.put("dedup", dedupFilter.snapshot());
+        m.put("laneStats", laneStats);
+        return m;
+    }
+
+    /**
+     * One bounded queue with exactly one consumer thread. Lag is how long the oldest queued item has
+     * been waiting; utilisation is the share of wall time spent processing batches since the previous
+     * snapshot.
+     */
+    private final class Lane implements Runnable {
+        private final int index;
+        private final BlockingQueue<IngestItem> queue;
+        private final Thread thread;
+        private final AtomicLong processedItems = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong lastLagNanos = new AtomicLong();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+        private long sampledAtNanos = System.nanoTime();
+        private long sampledBusyNanos;
+
+        Lane(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "whatsapp-ingest-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<IngestItem> batch = new ArrayList<>(batchSize);
+            long flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+            while (running || !queue.isEmpty()) {
+                try {
+                    IngestItem first = queue.poll(flushNanos, TimeUnit.NANOSECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    long deadline = System.nanoTime() + flushNanos;
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= batchSize || remaining <= 0) break;
+                        IngestItem next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                    long start = System.nanoTime();
+                    long lag = start - first.enqueuedAtNanos();
+                    lastLagNanos.set(lag);
+                    maxLagNanos.accumulateAndGet(lag, Math::max);
+                    processBatch(batch, Source.WEBHOOK);
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processedItems.addAndGet(batch.size());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("[INGEST] erro inesperado na lane {}: {}", index, e.getMessage(), e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        synchronized Map<String, Object> snapshot(long now) {
+            long busy = busyNanos.get();
+            long window = now - sampledAtNanos;
+            double utilisation = window > 0 ? Math.min(1.0, (double) (busy - sampledBusyNanos) / window) : 0.0;
+            sampledAtNanos = now;
+            sampledBusyNanos = busy;
+            IngestItem head = queue.peek();
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("lane", index);
+            m.put("depth", queue.size());
+            m.put("lagMillis", head != null ? TimeUnit.NANOSECONDS.toMillis(now - head.enqueuedAtNanos()) : 0);
+            m.put("lastBatchLagMillis", TimeUnit.NANOSECONDS.toMillis(lastLagNanos.get()));
+            m.put("maxLagMillis", TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get()));
+            m.put("utilisation", Math.round(utilisation * 1000) / 1000.0);
+            m.put("processed", processedItems.get());
+            return m;
+        }
+    }
+
+    private BatchResult processBatch(List<IngestItem> batch, Source source) {
+        long start = System.nanoTime();
+        int insertedCount = 0;
+        int unroutable = 0;
+        int failedCount = 0;
+        int firstFailed = -1;
+        List<ResolvedItem> resolved = new ArrayList<>(batch.size());
+        Set<String> batchKeys = new HashSet<>();
+        for (int index = 0; index < batch.size(); index++) {
+            IngestItem item = batch.get(index);
+            String companyId = configService.resolveCompanyIdByInstanceId(item.instanceId());
+            if (companyId == null || companyId.isBlank()) {
+                unknownInstance.incrementAndGet();
+                unroutable++;
+                log.warn("[INGEST] instância desconhecida, mensagem descartada: instanceId={}", item.instanceId());
+                continue;
+            }
+            Map<String, Object> enriched = enrich(item.adapted(), companyId);
+            String externalId = String.valueOf(enriched.get("id"));
+            Verdict verdict = dedupFilter.check(companyId, externalId);
+            // A retry can land in the same batch as the original, before either is remembered
+            if (verdict == Verdict.DUPLICATE || !batchKeys.add(companyId + '|' + externalId)) {
+                duplicates.incrementAndGet();
+                continue;
+            }
+            resolved.add(new ResolvedItem(index, item, enriched, companyId, verdict));
+        }
+        if (!resolved.isEmpty()) {
+            try {
+                boolean[] inserted = transactionTemplate.execute(status -> writeBatch(resolved, source));
+                insertedCount += afterCommit(resolved, inserted, source);
+            } catch (Exception e) {
+                if (source != Source.WEBHOOK && isDatabaseUnavailable(e)) throw e;
+                log.warn("[INGEST] falha no lote de {} itens, reprocessando individualmente: {}", resolved.size(), e.toString());
+                for (ResolvedItem r : resolved) {
+                    try {
+                        boolean[] inserted = transactionTemplate.execute(status -> writeBatch(List.of(r), source));
+                        insertedCount += afterCommit(List.of(r), inserted, source);
+                    } catch (Exception ex) {
+                        // The database went away mid-fallback: the caller keeps the whole batch and retries
+                        if (source != Source.WEBHOOK && isDatabaseUnavailable(ex)) throw ex;
+                        failed.incrementAndGet();
+                        failedCount++;
+                        if (firstFailed < 0) firstFailed = r.index();
+                        log.error("[INGEST] falha ao persistir mensagem id={} contato={}: {}",
+                                r.enriched().get("id"), r.enriched().get("contactId"), ex.getMessage(), ex);
+                    }
+                }
+            }
+        }
+        batches.incrementAndGet();
+        lastBatchSize.set(batch.size());
+        lastBatchMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return new BatchResult(insertedCount, unroutable, failedCount, firstFailed);
+    }
+
+    // Flags, per item, whether the message was inserted; false means it already existed in the database
+    private boolean[] writeBatch(List<ResolvedItem> items, Source source) {
+        List<DebugRow> debugRows = new ArrayList<>(items.size());
+        List<Map<String, Object>> messages = new ArrayList<>(items.size());
+        for (ResolvedItem r : items) {
+            debugRows.add(new DebugRow(r.item().rawJson(), r.item().instanceId(), String.valueOf(r.enriched().get("id")), r.item().rawPhone()));
+            messages.add(r.enriched());
+        }
+        // Replayed payloads already have their debug row
+        if (source != Source.REPLAY) webhookDebugPersist.persistDebugBatch(debugRows);
+        List<WhatsAppMessage> saved = messageService.persistIncomingMessages(messages);
+        boolean[] inserted = new boolean[items.size()];
+        Map<String, String> contacts = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (saved.get(i) == null) continue;
+            inserted[i] = true;
+            ResolvedItem r = items.get(i);
+            String contactId = String.valueOf(r.enriched().get("contactId"));
+            if (!contactId.isBlank()) contacts.put(contactId, r.companyId());
+        }
+        for (Map.Entry<String, String> c : contacts.entrySet()) {
+            contactService.upsert(c.getKey(), null, c.getValue());
+        }
+        return inserted;
+    }
+
+    private int afterCommit(List<ResolvedItem> items, boolean[] inserted, Source source) {
+        int count = 0;
+        for (int i = 0; i < items.size(); i++) {
+            ResolvedItem r = items.get(i);
+            boolean isNew = inserted[i];
+            dedupFilter.recordInsert(r.verdict(), isNew);
+            dedupFilter.remember(r.companyId(), String.valueOf(r.enriched().get("id")));
+            if (!isNew) {
+                duplicates.incrementAndGet();
+                continue;
+            }
+            count++;
+            if (source == Source.REPLAY) continue;
+            try {
+                sseService.publish(r.companyId(), String.valueOf(r.enriched().get("contactId")), Map.of("type", "message", "payload", r.enriched()));
+            } catch (Exception ignore) {}
+        }
+        processed.addAndGet(count);
+        return count;
+    }
+
+    static boolean isDatabaseUnavailable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CannotCreateTransactionException || t instanceof DataAccessResourceFailureException
+                    || t instanceof SQLTransientConnectionException) return true;
+        }
+        return false;
+    }
+
+    private Map<String, Object> enrich(Map<String, Object> adapted, String companyId) {
+        Map<String, Object> enriched = new LinkedHashMap<>(adapted);
+        enriched.put("companyId", companyId);
+        return enriched;
+    }
+
+    // Where a batch comes from decides debug capture, SSE publish and whether an unreachable database is rethrown
+    private enum Source { WEBHOOK, SPOOL, REPLAY }
+
+    public record IngestItem(String rawJson, Map<String, Object> adapted, String instanceId, String rawPhone, long enqueuedAtNanos) {
+        public IngestItem(String rawJson, Map<String, Object> adapted, String instanceId, String rawPhone) {
+            this(rawJson, adapted, instanceId, rawPhone, System.nanoTime());
+        }
+    }
+
+    /**
+     * inserted: messages actually stored. unroutable: dropped because their instance has no company.
+     * failed: items that could not be stored; firstFailed is the index in the batch of the first one, -1 when none.
+     * The remaining items were already stored.
+     */
+    public record BatchResult(int inserted, int unroutable, int failed, int firstFailed) {
+        static final BatchResult EMPTY = new BatchResult(0, 0, 0, -1);
+    }
+
+    private record ResolvedItem(int index, IngestItem item, Map<String, Object> enriched, String companyId, Verdict verdict) {}
+
+    public record IngestResult(String companyId, boolean duplicate) {}
+}
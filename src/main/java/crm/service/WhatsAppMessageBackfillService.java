@@ -0,0 +1,218 @@
+package crm.service;
+
+import crm.repository.WhatsAppConversationStore;
+import crm.repository.WhatsAppMessageBulkWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assigns a company to messages stored without one, taking it from their contact in whatsapp_contacts.
+ *
+ * The job walks the messages without company in id order, {@code whatsapp.backfill.batch-size} at a time,
+ * each batch one UPDATE ... FROM whatsapp_contacts in its own short transaction, so nothing is loaded into
+ * the heap and a failure only loses the batch in flight. The last id of each committed batch is the job's
+ * cursor: a new job started with afterId = cursor continues from there (starting over is also safe, since
+ * updated rows no longer match). Conversations that gained messages are refreshed, and their cached
+ * histories dropped, after each batch commits.
+ * One job runs at a time.
+ */
+@Service
+public class WhatsAppMessageBackfillService {
+
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessageBackfillService.class);
+
+    private static final int KEPT_JOBS = 20;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final WhatsAppMessageBulkWriter bulkWriter;
+    private final WhatsAppConversationStore conversationStore;
+    private final WhatsAppMessageCache messageCache;
+
+    @Value("${whatsapp.backfill.batch-size:2000}")
+    private int batchSize = 2000;
+
+    // Pause between batches, to leave room for live traffic on a big table
+    @Value("${whatsapp.backfill.pause-ms:0}")
+    private long pauseMs;
+
+    private final Map<String, BackfillJob> jobs = new ConcurrentHashMap<>();
+    private volatile BackfillJob current;
+
+    public WhatsAppMessageBackfillService(JdbcTemplate jdbcTemplate,
+                                          PlatformTransactionManager transactionManager,
+                                          WhatsAppMessageBulkWriter bulkWriter,
+                                          WhatsAppConversationStore conversationStore,
+                                          WhatsAppMessageCache messageCache) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.bulkWriter = bulkWriter;
+        this.conversationStore = conversationStore;
+        this.messageCache = messageCache;
+    }
+
+    // Starts a job in the background; throws IllegalStateException while another one is running
+    public synchronized BackfillJob start(String contactId, Long afterId) {
+        BackfillJob running = current;
+        if (running != null && running.isRunning()) {
+            throw new IllegalStateException("backfill " + running.id + " ainda em execução");
+        }
+        String chat = contactId != null && !contactId.isBlank() ? contactId.replaceAll("\\D", "") : null;
+        long from = afterId != null ? Math.max(0, afterId) : 0;
+        // Upper end for the progress figure only; messages inserted later are picked up as well
+        Long maxId = jdbcTemplate.queryForObject("SELECT max(id) FROM whatsapp_messages", Long.class);
+        BackfillJob job = new BackfillJob(UUID.randomUUID().toString(), chat, from, maxId != null ? maxId : from);
+        current = job;
+        jobs.put(job.id, job);
+        pruneFinished();
+        Thread t = new Thread(() -> run(job), "whatsapp-backfill-" + job.id.substring(0, 8));
+        t.setDaemon(true);
+        t.start();
+        return job;
+    }
+
+    public Optional<BackfillJob> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    public List<Map<String, Object>> list() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        jobs.values().stream().sorted((a, b) -> b.startedAt.compareTo(a.startedAt)).forEach(j -> out.add(j.snapshot()));
+        return out;
+    }
+
+    public boolean cancel(String id) {
+        BackfillJob job = jobs.get(id);
+        if (job == null || !job.isRunning()) return false;
+        job.cancelled = true;
+        return true;
+    }
+
+    void run(BackfillJob job) {
+        try {
+            while (!job.cancelled) {
+                long after = job.cursor;
+                WhatsAppMessageBulkWriter.CompanyBackfillBatch batch = transactionTemplate.execute(
+                        status -> bulkWriter.backfillCompanyIds(after, Math.max(1, batchSize), job.contactId));
+                if (batch == null || batch.scanned() == 0) break;
+                job.batches.incrementAndGet();
+                job.scanned.addAndGet(batch.scanned());
+                job.updated.addAndGet(batch.updated().size());
+                job.cursor = batch.lastId();
+                // Those messages were invisible to the conversation summaries and cached histories until now
+                if (!batch.updated().isEmpty()) {
+                    Set<WhatsAppConversationStore.Key> chats = new LinkedHashSet<>(batch.updated());
+                    job.conversations.addAndGet(conversationStore.refresh(chats));
+                    chats.forEach(k -> messageCache.invalidate(k.companyId(), k.contactId()));
+                }
+                if (pauseMs > 0) Thread.sleep(pauseMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.cancelled = true;
+        } catch (Exception e) {
+            job.fail(e);
+            log.error("[BACKFILL] falha no job {} após o id {}: {}", job.id, job.cursor, e.toString());
+        }
+        job.finish();
+        log.info("[BACKFILL] {} {}: {}", job.status, job.id, job.snapshot());
+    }
+
+    private void pruneFinished() {
+        if (jobs.size() <= KEPT_JOBS) return;
+        jobs.values().stream()
+                .filter(j -> !j.isRunning())
+                .sorted((a, b) -> a.startedAt.compareTo(b.startedAt))
+                .limit(jobs.size() - KEPT_JOBS)
+                .forEach(j -> jobs.remove(j.id));
+    }
+
+    public static final class BackfillJob {
+        private final String id;
+        private final String contactId;
+        private final long startId;
+        private final long maxId;
+        private final Instant startedAt = Instant.now();
+        private final long startedNanos = System.nanoTime();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong conversations = new AtomicLong();
+        private volatile long cursor;
+        private volatile String status = "running";
+        private volatile String error;
+        private volatile boolean cancelled;
+        private volatile long finishedNanos;
+        private volatile Instant finishedAt;
+
+        BackfillJob(String id, String contactId, long startId, long maxId) {
+            this.id = id;
+            this.contactId = contactId;
+            this.startId = startId;
+            this.maxId = maxId;
+            this.cursor = startId;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isRunning() {
+            return finishedAt == null;
+        }
+
+        void fail(Exception e) {
+            if (error == null) error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+
+        void finish() {
+            status = error != null ? "failed" : cancelled ? "cancelled" : "completed";
+            finishedNanos = System.nanoTime();
+            finishedAt = Instant.now();
+        }
+
+        public Map<String, Object> snapshot() {
+            long end = finishedAt != null ? finishedNanos : System.nanoTime();
+            double seconds = Math.max(1e-3, (end - startedNanos) / 1e9);
+            long at = cursor;
+            double progress = finishedAt != null && error == null && !cancelled ? 1.0
+                    : Math.min(1.0, (double) (at - startId) / Math.max(1, maxId - startId));
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", id);
+            m.put("status", status);
+            m.put("contactId", contactId);
+            m.put("startedAt", startedAt.toString());
+            m.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+            // Pass as afterId to a new job to continue after a failure or cancel
+            m.put("cursor", at);
+            m.put("maxId", maxId);
+            m.put("progress", Math.round(progress * 1000) / 1000.0);
+            m.put("batches", batches.get());
+            m.put("scanned", scanned.get());
+            m.put("updated", updated.get());
+            // No contact, contact without company, or an external id the company already has
+            m.put("unresolved", scanned.get() - updated.get());
+            m.put("conversationsRefreshed", conversations.get());
+            m.put("rowsPerSecond", Math.round(scanned.get() / seconds));
+            m.put("error", error);
+            return m;
+        }
+    }
+}
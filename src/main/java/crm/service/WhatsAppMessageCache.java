@@ -0,0 +1,343 @@
+package crm.service;
+
+import crm.entity.WhatsAppMessage;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The newest {@code messages-per-conversation} messages of recently opened chats, per (company, contact),
+ * so opening a chat does not go to Postgres.
+ *
+ * An entry is always the complete tail of the conversation: it is filled from the database on the first
+ * miss, then kept current by the writers (new messages after commit, status callbacks). A write that lands
+ * while an entry is being loaded discards that load, so a fill can never hide a message committed meanwhile.
+ * Messages written on other replicas arrive through the cluster bus and just invalidate the entry.
+ *
+ * Least recently used conversations are evicted when either {@code max-conversations} or
+ * {@code max-weight-mb} (an estimate of the retained heap) is exceeded. The map is split in segments,
+ * each with its own lock and its own share of both limits.
+ */
+@Component
+public class WhatsAppMessageCache {
+
+    private static final int SEGMENTS = 16;
+    // Object headers, boxed fields, ids, timestamp and the list slot; the text is counted apart
+    private static final long MESSAGE_OVERHEAD = 240;
+    private static final Comparator<WhatsAppMessage> ORDER = Comparator
+            .comparing(WhatsAppMessage::getTimestamp)
+            .thenComparing(WhatsAppMessage::getId);
+
+    private final WhatsAppSseService sseService;
+
+    @Value("${whatsapp.message-cache.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${whatsapp.message-cache.messages-per-conversation:50}")
+    private int perConversation = 50;
+
+    @Value("${whatsapp.message-cache.max-conversations:10000}")
+    private int maxConversations = 10000;
+
+    @Value("${whatsapp.message-cache.max-weight-mb:64}")
+    private long maxWeightMb = 64;
+
+    private Segment[] segments;
+    private final AtomicLong loadStamps = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+    private final AtomicLong staleLoads = new AtomicLong();
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong statusUpdates = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong sizeEvictions = new AtomicLong();
+    private final AtomicLong weightEvictions = new AtomicLong();
+
+    public WhatsAppMessageCache(WhatsAppSseService sseService) {
+        this.sseService = sseService;
+    }
+
+    // Newest messages last; hasOlder tells whether the database has messages before the first one
+    public record Window(List<WhatsAppMessage> messages, boolean hasOlder) {}
+
+    private record Key(String companyId, String contactId) {}
+
+    @PostConstruct
+    public void init() {
+        int perSegmentCount = Math.max(1, (maxConversations + SEGMENTS - 1) / SEGMENTS);
+        long perSegmentWeight = Math.max(1, maxWeightMb * 1024 * 1024 / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(perSegmentCount, perSegmentWeight);
+        if (sseService != null) {
+            sseService.onRemoteEvent(event -> {
+                if (!"chat_presence".equals(event.topic())) invalidate(event.companyId(), event.contactId());
+            });
+        }
+    }
+
+    public boolean enabled() {
+        return enabled && perConversation > 0;
+    }
+
+    // How many messages a fill should bring; the caller asks the database for one more to learn hasOlder
+    public int capacity() {
+        return perConversation;
+    }
+
+    /**
+     * The newest {@code limit} messages, or null when the chat is not cached (or limit is more than the
+     * cache keeps). A hit never touches the database.
+     */
+    public Window get(String companyId, String contactId, int limit) {
+        if (!enabled() || companyId == null || contactId == null || limit > perConversation) return null;
+        Key key = new Key(companyId, contactId);
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            Entry e = s.map.get(key);
+            if (e != null && e.messages != null) {
+                hits.incrementAndGet();
+                int size = e.messages.size();
+                int from = Math.max(0, size - limit);
+                return new Window(new ArrayList<>(e.messages.subList(from, size)), from > 0 || e.hasOlder);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Marks the chat as being loaded and returns the stamp to hand to {@link #fill}; 0 when the chat
+     * won't be cached. Must be called before reading the database.
+     */
+    public long reserve(String companyId, String contactId) {
+        if (!enabled() || companyId == null || contactId == null) return 0;
+        Key key = new Key(companyId, contactId);
+        long stamp = loadStamps.incrementAndGet();
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            Entry e = s.map.get(key);
+            if (e == null || e.messages == null) s.map.put(key, new Entry(stamp));
+        }
+        return stamp;
+    }
+
+    /**
+     * Installs what the database returned, newest first as the keyset query reads it, unless something was
+     * written to the chat since {@link #reserve}. Only the newest {@link #capacity()} rows are kept.
+     */
+    public void fill(String companyId, String contactId, long stamp, List<WhatsAppMessage> newestFirst, boolean hasOlder) {
+        if (stamp == 0) return;
+        Key key = new Key(companyId, contactId);
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            Entry e = s.map.get(key);
+            if (e == null || e.messages != null || e.stamp != stamp) {
+                staleLoads.incrementAndGet();
+                return;
+            }
+            int keep = Math.min(newestFirst.size(), perConversation);
+            List<WhatsAppMessage> messages = new ArrayList<>(perConversation + 1);
+            for (int i = keep - 1; i >= 0; i--) messages.add(copy(newestFirst.get(i)));
+            e.messages = messages;
+            e.hasOlder = hasOlder || newestFirst.size() > keep;
+            e.weight = 0;
+            for (WhatsAppMessage m : messages) e.weight += weigh(m);
+            s.weight += e.weight;
+            fills.incrementAndGet();
+            s.evict();
+        }
+    }
+
+    // Newly committed messages; chats that are not cached are left alone
+    public void append(Collection<WhatsAppMessage> messages) {
+        if (!enabled()) return;
+        for (WhatsAppMessage m : messages) {
+            if (m == null || m.getId() == null || m.getTimestamp() == null || m.getContactId() == null) continue;
+            if (m.getCompanyId() == null || m.getCompanyId().isBlank()) continue;
+            Key key = new Key(m.getCompanyId(), m.getContactId());
+            Segment s = segmentFor(key);
+            synchronized (s) {
+                Entry e = s.map.get(key);
+                if (e == null) continue;
+                if (e.messages == null) {
+                    // A load is in flight and may not see this message: let it fail
+                    s.remove(key);
+                    continue;
+                }
+                if (insert(e, s, copy(m))) appended.incrementAndGet();
+            }
+        }
+    }
+
+    // Status callback (sent, received, read, played) for messages of one chat, matched by external id
+    public void applyStatus(String companyId, String contactId, Collection<String> externalIds, String status) {
+        if (!enabled() || companyId == null || contactId == null || externalIds == null || status == null) return;
+        Set<String> ids = Set.copyOf(externalIds);
+        Key key = new Key(companyId, contactId);
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            Entry e = s.map.get(key);
+            if (e == null) return;
+            if (e.messages == null) {
+                s.remove(key);
+                return;
+            }
+            for (int i = 0; i < e.messages.size(); i++) {
+                WhatsAppMessage m = e.messages.get(i);
+                if (m.getExternalMessageId() == null || !ids.contains(m.getExternalMessageId())) continue;
+                // Readers may hold the old instance: replace it instead of mutating it
+                WhatsAppMessage updated = copy(m);
+                updated.setStatus(status);
+                e.messages.set(i, updated);
+                statusUpdates.incrementAndGet();
+            }
+        }
+    }
+
+    public void invalidate(String companyId, String contactId) {
+        if (segments == null || companyId == null || contactId == null) return;
+        Key key = new Key(companyId, contactId);
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            if (s.remove(key)) invalidations.incrementAndGet();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        int conversations = 0;
+        long weight = 0;
+        if (segments != null) {
+            for (Segment s : segments) {
+                synchronized (s) {
+                    conversations += s.map.size();
+                    weight += s.weight;
+                }
+            }
+        }
+        long lookups = hits.get() + misses.get();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled());
+        m.put("messagesPerConversation", perConversation);
+        m.put("conversations", conversations);
+        m.put("maxConversations", maxConversations);
+        m.put("weightBytes", weight);
+        m.put("maxWeightBytes", maxWeightMb * 1024 * 1024);
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        m.put("hitRatio", lookups > 0 ? Math.round(hits.get() * 1000.0 / lookups) / 1000.0 : 0.0);
+        m.put("fills", fills.get());
+        m.put("staleLoads", staleLoads.get());
+        m.put("appended", appended.get());
+        m.put("statusUpdates", statusUpdates.get());
+        m.put("invalidations", invalidations.get());
+        m.put("sizeEvictions", sizeEvictions.get());
+        m.put("weightEvictions", weightEvictions.get());
+        return m;
+    }
+
+    // Keeps the entry sorted by (timestamp, id) and no longer than perConversation
+    private boolean insert(Entry e, Segment s, WhatsAppMessage m) {
+        List<WhatsAppMessage> list = e.messages;
+        int at = list.size();
+        while (at > 0 && ORDER.compare(list.get(at - 1), m) > 0) at--;
+        // Older than everything kept: it belongs to the part of the history that is not cached
+        if (at == 0 && e.hasOlder && !list.isEmpty()) return false;
+        if (at > 0 && list.get(at - 1).getId().equals(m.getId())) return false;
+        list.add(at, m);
+        long w = weigh(m);
+        e.weight += w;
+        s.weight += w;
+        if (list.size() > perConversation) {
+            w = weigh(list.remove(0));
+            e.weight -= w;
+            s.weight -= w;
+            e.hasOlder = true;
+        }
+        s.evict();
+        return true;
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[Math.floorMod(key.hashCode() * 0x9E3779B9, SEGMENTS)];
+    }
+
+    private static long weigh(WhatsAppMessage m) {
+        long chars = length(m.getContent()) + length(m.getExternalMessageId()) + length(m.getContactId())
+                + length(m.getCompanyId()) + length(m.getMessageType()) + length(m.getStatus());
+        return MESSAGE_OVERHEAD + chars * 2;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    // Detached from the persistence context and from the caller, which may keep changing its instance
+    private static WhatsAppMessage copy(WhatsAppMessage m) {
+        WhatsAppMessage c = new WhatsAppMessage();
+        c.setId(m.getId());
+        c.setExternalMessageId(m.getExternalMessageId());
+        c.setCompanyId(m.getCompanyId());
+        c.setContactId(m.getContactId());
+        c.setContent(m.getContent());
+        c.setTimestamp(m.getTimestamp());
+        c.setIsFromMe(m.getIsFromMe());
+        c.setMessageType(m.getMessageType());
+        c.setStatus(m.getStatus());
+        return c;
+    }
+
+    private static final class Entry {
+        final long stamp;
+        // null while the first load is in flight
+        List<WhatsAppMessage> messages;
+        boolean hasOlder;
+        long weight;
+
+        Entry(long stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private final class Segment {
+        final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(64, 0.75f, true);
+        final int maxCount;
+        final long maxWeight;
+        long weight;
+
+        Segment(int maxCount, long maxWeight) {
+            this.maxCount = maxCount;
+            this.maxWeight = maxWeight;
+        }
+
+        boolean remove(Key key) {
+            Entry e = map.remove(key);
+            if (e == null) return false;
+            weight -= e.weight;
+            return true;
+        }
+
+        // Least recently used first; the chat just written is the most recent one
+        void evict() {
+            Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+            while ((map.size() > maxCount || weight > maxWeight) && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                if (map.size() > maxCount) sizeEvictions.incrementAndGet();
+                else weightEvictions.incrementAndGet();
+                weight -= eldest.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package crm.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory "seen before" check for Z-API message ids, scoped per company.
+ *
+ * Each tenant gets a Bloom filter (two rotating generations, so memory stays bounded) and a small
+ * exact LRU of the most recent ids. A Bloom miss means the id is new; a Bloom hit confirmed by the
+ * LRU is a duplicate. A Bloom hit the LRU cannot confirm is left to the database, where the unique
+ * index on (company_id, external_message_id) and ON CONFLICT DO NOTHING have the final word.
+ */
+@Component
+public class WhatsAppMessageDedupFilter {
+
+    public enum Verdict { NEW, DUPLICATE, MAYBE }
+
+    @Value("${whatsapp.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${whatsapp.dedup.expected-per-tenant:100000}")
+    private int expectedPerTenant;
+
+    @Value("${whatsapp.dedup.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    @Value("${whatsapp.dedup.lru-size:10000}")
+    private int lruSize;
+
+    private final Map<String, TenantFilter> tenants = new ConcurrentHashMap<>();
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong bloomNegatives = new AtomicLong();
+    private final AtomicLong lruHits = new AtomicLong();
+    private final AtomicLong maybes = new AtomicLong();
+    private final AtomicLong dbConflicts = new AtomicLong();
+    private final AtomicLong bloomFalsePositives = new AtomicLong();
+
+    public Verdict check(String companyId, String externalId) {
+        if (!enabled || externalId == null || externalId.isBlank()) return Verdict.NEW;
+        checks.incrementAndGet();
+        TenantFilter f = tenants.get(tenantKey(companyId));
+        if (f == null || !f.mightContain(externalId)) {
+            bloomNegatives.incrementAndGet();
+            return Verdict.NEW;
+        }
+        if (f.recentlySeen(externalId)) {
+            lruHits.incrementAndGet();
+            return Verdict.DUPLICATE;
+        }
+        maybes.incrementAndGet();
+        return Verdict.MAYBE;
+    }
+
+    // Call only after the row is committed, otherwise a rolled back insert would hide the retry
+    public void remember(String companyId, String externalId) {
+        if (!enabled || externalId == null || externalId.isBlank()) return;
+        tenants.computeIfAbsent(tenantKey(companyId), k -> new TenantFilter(expectedPerTenant, falsePositiveRate, lruSize))
+                .put(externalId);
+    }
+
+    // Outcome of the ON CONFLICT insert for an id that check() had let through
+    public void recordInsert(Verdict verdict, boolean inserted) {
+        if (!inserted) dbConflicts.incrementAndGet();
+        else if (verdict == Verdict.MAYBE) bloomFalsePositives.incrementAndGet();
+    }
+
+    public long duplicates() {
+        return lruHits.get() + dbConflicts.get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("enabled", enabled);
+        m.put("tenants", tenants.size());
+        m.put("checks", checks.get());
+        m.put("bloomNegatives", bloomNegatives.get());
+        m.put("lruHits", lruHits.get());
+        m.put("maybe", maybes.get());
+        m.put("dbConflicts", dbConflicts.get());
+        m.put("bloomFalsePositives", bloomFalsePositives.get());
+        m.put("duplicates", duplicates());
+        return m;
+    }
+
+    private String tenantKey(String companyId) {
+        return companyId != null ? companyId : "";
+    }
+
+    private static final class TenantFilter {
+        private final int capacity;
+        private final int bits;
+        private final int hashes;
+        private final LinkedHashMap<String, Boolean> recent;
+        private volatile Bloom current;
+        private volatile Bloom previous;
+
+        TenantFilter(int expected, double fpp, int lruSize) {
+            this.capacity = Math.max(1000, expected);
+            double p = fpp > 0 && fpp < 1 ? fpp : 0.01;
+            long m = (long) Math.ceil(-capacity * Math.log(p) / (Math.log(2) * Math.log(2)));
+            this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+            this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+            int maxRecent = Math.max(16, lruSize);
+            this.recent = new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > maxRecent;
+                }
+            };
+            this.current = new Bloom(bits);
+        }
+
+        boolean mightContain(String id) {
+            long h = hash(id);
+            Bloom prev = previous;
+            return current.mightContain(h, hashes) || (prev != null && prev.mightContain(h, hashes));
+        }
+
+        synchronized boolean recentlySeen(String id) {
+            return recent.get(id) != null;
+        }
+
+        synchronized void put(String id) {
+            recent.put(id, Boolean.TRUE);
+            // Once a generation is full, start a fresh one and keep the old one readable for another cycle
+            if (current.count.get() >= capacity) {
+                previous = current;
+                current = new Bloom(bits);
+            }
+            current.put(hash(id), hashes);
+        }
+
+        // 64-bit FNV-1a followed by a murmur3 finalizer; the two halves drive double hashing
+        private static long hash(String id) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private static final class Bloom {
+        private final AtomicLongArray words;
+        private final int bits;
+        private final AtomicLong count = new AtomicLong();
+
+        Bloom(int bits) {
+            this.bits = bits;
+            this.words = new AtomicLongArray((bits + 63) >>> 6);
+        }
+
+        void put(long hash, int k) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= k; i++) {
+                int idx = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                int w = idx >>> 6;
+                long mask = 1L << idx;
+                long old;
+                do {
+                    old = words.get(w);
+                    if ((old & mask) != 0) break;
+                } while (!words.compareAndSet(w, old, old | mask));
+            }
+            count.incrementAndGet();
+        }
+
+        boolean mightContain(long hash, int k) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= k; i++) {
+                int idx = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                if ((words.get(idx >>> 6) & (1L << idx)) == 0) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -1,32 +1,163 @@
 package crm.service;
 
 import crm.dto.WhatsAppIncomingMessageDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import crm.entity.WhatsAppMessage;
+import crm.repository.WhatsAppConversationStore;
+import crm.repository.WhatsAppMessageBulkWriter;
+import crm.repository.WhatsAppMessageExport;
+import crm.repository.WhatsAppMessagePartitions;
+import crm.repository.WhatsAppMessageSearch;
 import crm.repository.WhatsAppMessageRepository;
-import crm.repository.WhatsAppContactRepository;
-import crm.entity.WhatsAppContact;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 
 @Service
 public class WhatsAppMessageService {
 
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppMessageService.class);
+    private static final Comparator<WhatsAppMessage> OLDEST_FIRST = Comparator
+            .comparing(WhatsAppMessage::getTimestamp).thenComparing(WhatsAppMessage::getId);
+
     private final WhatsAppMessageRepository repository;
     @Autowired
-    private WhatsAppContactRepository contactRepository;
-    @Autowired
     private WhatsAppSseService sseService;
     @Autowired
     private WhatsAppConfigService configService;
+    @Autowired
+    private WhatsAppMessageBulkWriter bulkWriter;
+    @Autowired
+    private WhatsAppConversationStore conversationStore;
+    @Autowired
+    private WhatsAppMessageSearch messageSearch;
+    @Autowired
+    private WhatsAppMessageCache messageCache;
+    @Autowired
+    private WhatsAppMessagePartitions partitions;
+    @Autowired
+    private WhatsAppMessageExport messageExport;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${whatsapp.import.batch-size:1000}")
+    private int importBatchSize = 1000;
 
     public WhatsAppMessageService(WhatsAppMessageRepository repository) {
         this.repository = repository;
     }
 
+    // Returns null when the message was already stored (Z-API webhook retry); nothing is published then
     public WhatsAppMessage saveIncomingMessage(Map<String, Object> messagePayload) {
+        WhatsAppMessage saved = insertIgnoringDuplicate(buildIncomingMessage(messagePayload));
+        if (saved == null) return null;
+        publishAfterCommit(saved);
+        return saved;
+    }
+
+    // Batch variant used by the async ingest workers: persists only, SSE publish is done by the caller after commit.
+    // The result is index-aligned with the input, with null for messages that already existed.
+    public List<WhatsAppMessage> persistIncomingMessages(List<Map<String, Object>> messagePayloads) {
+        List<WhatsAppMessage> batch = new ArrayList<>(messagePayloads.size());
+        for (Map<String, Object> payload : messagePayloads) {
+            batch.add(buildIncomingMessage(payload));
+        }
+        boolean[] inserted = bulkWriter.insertIgnoringDuplicates(batch);
+        List<WhatsAppMessage> saved = new ArrayList<>(batch.size());
+        List<WhatsAppMessage> fresh = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            saved.add(inserted[i] ? batch.get(i) : null);
+            if (inserted[i]) fresh.add(batch.get(i));
+        }
+        conversationStore.recordInserted(fresh);
+        cacheAfterCommit(fresh);
+        return saved;
+    }
+
+    private WhatsAppMessage insertIgnoringDuplicate(WhatsAppMessage m) {
+        if (!bulkWriter.insertIgnoringDuplicates(List.of(m))[0]) return null;
+        // Autocommit path: the message is stored either way, a missed summary is repaired by refresh()
+        try {
+            conversationStore.recordInserted(List.of(m));
+        } catch (Exception e) {
+            log.warn("[CONVERSATIONS] falha ao atualizar resumo da conversa {}: {}", m.getContactId(), e.toString());
+        }
+        cacheAfterCommit(List.of(m));
+        return m;
+    }
+
+    // The cache must never show a message that the surrounding transaction may still roll back
+    private void cacheAfterCommit(List<WhatsAppMessage> inserted) {
+        if (inserted.isEmpty() || !messageCache.enabled()) return;
+        afterCommit(() -> messageCache.append(inserted));
+    }
+
+    // Same for SSE clients: a rolled-back message is never announced
+    private void publishAfterCommit(WhatsAppMessage saved) {
+        afterCommit(() -> {
+            try {
+                sseService.publish(companyIdFor(saved), saved.getContactId(), Map.of("type","message","payload", mapMessage(saved)));
+            } catch (Exception ignore) {}
+        });
+    }
+
+    // Runs the action once the surrounding transaction commits, right away when there is none
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Z-API status callback (SENT, RECEIVED, READ, PLAYED) for messages of one chat. The stored rows and the
+     * conversation's last-message status change in one transaction; cached copies only once it commits.
+     *
+     * @return how many stored messages changed
+     */
+    public int applyStatus(String companyId, String contactId, String[] externalIds, String status) {
+        if (companyId == null || externalIds == null || externalIds.length == 0 || status == null || status.isBlank()) return 0;
+        String chat = sanitize(contactId);
+        List<String> ids = Arrays.asList(externalIds);
+        String normalized = status.trim().toLowerCase(Locale.ROOT);
+        Integer updated = new TransactionTemplate(transactionManager).execute(tx -> {
+            int rows = bulkWriter.updateStatus(companyId, chat, ids, normalized);
+            if (rows > 0) conversationStore.applyStatus(companyId, chat, ids, normalized);
+            afterCommit(() -> messageCache.applyStatus(companyId, chat, ids, normalized));
+            return rows;
+        });
+        return updated != null ? updated : 0;
+    }
+
+    public Map<String, Object> messageCacheSnapshot() {
+        return messageCache.snapshot();
+    }
+
+    private WhatsAppMessage buildIncomingMessage(Map<String, Object> messagePayload) {
         WhatsAppMessage m = new WhatsAppMessage();
         m.setExternalMessageId(asString(messagePayload.get("id")));
         m.setCompanyId(asString(messagePayload.get("companyId")));
@@ -45,13 +176,7 @@ public class WhatsAppMessageService {
 
         String status = asString(messagePayload.get("status"));
         m.setStatus(status != null && !status.isBlank() ? status : "received");
-
-        WhatsAppMessage saved = repository.save(m);
-        try {
-            String clientKey = resolveClientKey();
-            sseService.publish(clientKey, Map.of("type","message","payload", mapMessage(saved)));
-        } catch (Exception ignore) {}
-        return saved;
+        return m;
     }
 
     public WhatsAppMessage saveIncomingMessage(WhatsAppIncomingMessageDTO dto) {
@@ -63,67 +188,329 @@ public class WhatsAppMessageService {
         m.setIsFromMe(Boolean.TRUE.equals(dto.getIsFromMe()));
         m.setMessageType(dto.getMessageType() != null && !dto.getMessageType().isBlank() ? dto.getMessageType() : "text");
         m.setStatus(dto.getStatus() != null && !dto.getStatus().isBlank() ? dto.getStatus() : "received");
-        WhatsAppMessage saved = repository.save(m);
-        try {
-            String clientKey = resolveClientKey();
-            sseService.publish(clientKey, Map.of("type","message","payload", mapMessage(saved)));
-        } catch (Exception ignore) {}
+        WhatsAppMessage saved = insertIgnoringDuplicate(m);
+        if (saved == null) return null;
+        publishAfterCommit(saved);
         return saved;
     }
 
-    public List<Map<String, Object>> listConversations() {
-        List<WhatsAppMessage> all = repository.findAllByOrderByTimestampAsc();
-        Map<String, List<WhatsAppMessage>> byContact = new LinkedHashMap<>();
-        for (WhatsAppMessage m : all) {
-            byContact.computeIfAbsent(m.getContactId(), k -> new ArrayList<>()).add(m);
-        }
-
+    /**
+     * One page of the company's conversations, most recent activity first; no message history, just the last one.
+     * Without a cursor it is the first page; the next one starts after nextCursor of the previous page.
+     *
+     * @throws IllegalArgumentException for a malformed cursor
+     */
+    public ConversationPage listConversations(String companyId, String cursor, int limit) {
+        ConversationCursor after = cursor != null ? ConversationCursor.parse(cursor) : null;
+        // One extra row tells whether there is a next page without a count(*)
+        List<WhatsAppConversationStore.Summary> rows = new ArrayList<>(conversationStore.findPage(companyId,
+                after != null ? after.lastTimestamp() : null, after != null ? after.contactId() : null, limit + 1));
+        boolean hasMore = rows.size() > limit;
+        if (hasMore) rows.remove(rows.size() - 1);
         List<Map<String, Object>> conversations = new ArrayList<>();
-        for (Map.Entry<String, List<WhatsAppMessage>> entry : byContact.entrySet()) {
-            String contactId = entry.getKey();
-            List<WhatsAppMessage> msgs = entry.getValue();
-            int unreadCount = 0; // Placeholder: could track read status in future
-            for (WhatsAppMessage mm : msgs) {
-                if (!Boolean.TRUE.equals(mm.getIsFromMe())) {
-                    unreadCount++;
-                }
-            }
-            Map<String, Object> conv = new HashMap<>();
-            conv.put("contactId", contactId);
-            conv.put("messages", mapMessages(msgs));
-            conv.put("unreadCount", unreadCount);
-            if (!msgs.isEmpty()) {
-                conv.put("lastMessage", mapMessage(msgs.get(msgs.size() - 1)));
-            }
+        for (WhatsAppConversationStore.Summary c : rows) {
+            Map<String, Object> conv = new LinkedHashMap<>();
+            conv.put("contactId", c.contactId());
+            conv.put("name", c.name());
+            conv.put("unreadCount", c.unreadCount());
+            conv.put("messageCount", c.messageCount());
+            conv.put("lastActivity", c.lastTimestamp() != null ? c.lastTimestamp().toString() : null);
+            Map<String, Object> last = new HashMap<>();
+            last.put("id", c.lastMessageId());
+            last.put("contactId", c.contactId());
+            last.put("content", Optional.ofNullable(c.lastPreview()).orElse(""));
+            last.put("timestamp", c.lastTimestamp() != null ? c.lastTimestamp().toString() : null);
+            last.put("isFromMe", c.lastFromMe());
+            last.put("messageType", Optional.ofNullable(c.lastMessageType()).orElse("text"));
+            last.put("status", Optional.ofNullable(c.lastStatus()).orElse("received"));
+            conv.put("lastMessage", last);
             conversations.add(conv);
         }
-        return conversations;
+        String nextCursor = hasMore ? ConversationCursor.of(rows.get(rows.size() - 1)) : null;
+        return new ConversationPage(conversations, nextCursor, hasMore);
+    }
+
+    /**
+     * Messages of the company (optionally one chat) matching the query, best match first for words and newest
+     * first for number fragments. "snippet" is HTML-escaped text with the matches wrapped in &lt;mark&gt;.
+     */
+    public Map<String, Object> searchMessages(String companyId, String contactId, String query, int limit, int offset) {
+        String chat = contactId != null && !contactId.isBlank() ? sanitize(contactId) : null;
+        // One extra row tells whether there is a next page
+        WhatsAppMessageSearch.Result result = messageSearch.search(companyId, chat, query, limit + 1, offset);
+        List<WhatsAppMessageSearch.Hit> hits = result.hits();
+        boolean hasMore = hits.size() > limit;
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (WhatsAppMessageSearch.Hit hit : hasMore ? hits.subList(0, limit) : hits) {
+            Map<String, Object> mm = mapMessage(hit.message());
+            mm.put("snippet", highlight(hit.snippet()));
+            if (hit.rank() != null) mm.put("rank", hit.rank());
+            out.add(mm);
+        }
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("results", out);
+        page.put("mode", result.mode().name().toLowerCase());
+        page.put("hasMore", hasMore);
+        return page;
+    }
+
+    // False while a migration is already running
+    public boolean startSearchMigration() {
+        return messageSearch.startMigration();
+    }
+
+    public Map<String, Object> searchSnapshot() {
+        return messageSearch.snapshot();
+    }
+
+    private static String highlight(String snippet) {
+        if (snippet == null) return "";
+        String escaped = snippet.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        return escaped.replace(WhatsAppMessageSearch.MARK_START, "<mark>").replace(WhatsAppMessageSearch.MARK_END, "</mark>");
+    }
+
+    // Null when the conversation or the message does not exist
+    public Integer markConversationRead(String companyId, String contactId, String messageId) {
+        return conversationStore.markRead(companyId, sanitize(contactId), messageId);
+    }
+
+    public WhatsAppConversationStore.UnreadTotals unreadTotals(String companyId) {
+        return conversationStore.unreadTotals(companyId);
     }
 
-    public List<Map<String, Object>> listMessagesForContact(String contactId) {
+    /**
+     * One page of a chat, oldest message first. Without a cursor it is the newest page; "before" scrolls back
+     * in history and "after" forward (new messages since the last one seen). Cursors are opaque strings
+     * taken from olderCursor / newerCursor of a previous page.
+     *
+     * @throws IllegalArgumentException for a malformed cursor or both cursors at once
+     */
+    public MessagePage listMessagesForContact(String companyId, String contactId, String before, String after, int limit) {
+        if (before != null && after != null) throw new IllegalArgumentException("use before ou after, não ambos");
         String normalized = sanitize(contactId);
-        List<WhatsAppMessage> filtered = repository.findByContactIdOrderByTimestampAsc(normalized);
-        return mapMessages(filtered);
+        List<WhatsAppMessage> rows;
+        boolean hasOlder;
+        boolean hasNewer;
+        if (after != null) {
+            Cursor c = Cursor.parse(after);
+            rows = new ArrayList<>(repository.findPageAfter(companyId, normalized, c.timestamp(), c.id(), limit + 1));
+            rows = withArchivedAfter(companyId, normalized, rows, c, limit + 1);
+            hasNewer = rows.size() > limit;
+            if (hasNewer) rows.remove(rows.size() - 1);
+            hasOlder = true;
+        } else {
+            if (before != null) {
+                Cursor c = Cursor.parse(before);
+                rows = new ArrayList<>(repository.findPageBefore(companyId, normalized, c.timestamp(), c.id(), limit + 1));
+                rows = withArchivedBefore(companyId, normalized, rows, c.timestamp(), c.id(), limit + 1);
+                hasNewer = true;
+            } else {
+                MessagePage cached = latestPageFromCache(companyId, normalized, limit);
+                if (cached != null) return cached;
+                rows = latestPageFromDatabase(companyId, normalized, limit);
+                hasNewer = false;
+            }
+            hasOlder = rows.size() > limit;
+            if (hasOlder) rows.remove(rows.size() - 1);
+            Collections.reverse(rows);
+        }
+        String olderCursor = hasOlder && !rows.isEmpty() ? Cursor.of(rows.get(0)) : null;
+        // An empty "after" page keeps the caller's cursor so it can poll again from the same point
+        String newerCursor = rows.isEmpty() ? after : (hasNewer || after != null ? Cursor.of(rows.get(rows.size() - 1)) : null);
+        return new MessagePage(mapMessages(rows), olderCursor, newerCursor, hasOlder, hasNewer);
+    }
+
+    // Opening a chat: served from memory when the chat is cached
+    private MessagePage latestPageFromCache(String companyId, String contactId, int limit) {
+        WhatsAppMessageCache.Window window = messageCache.get(companyId, contactId, limit);
+        if (window == null) return null;
+        List<WhatsAppMessage> rows = window.messages();
+        String olderCursor = window.hasOlder() && !rows.isEmpty() ? Cursor.of(rows.get(0)) : null;
+        return new MessagePage(mapMessages(rows), olderCursor, null, window.hasOlder(), false);
+    }
+
+    // Newest first, limit + 1 rows; reads enough to fill the cache as well
+    private List<WhatsAppMessage> latestPageFromDatabase(String companyId, String contactId, int limit) {
+        if (!messageCache.enabled() || limit > messageCache.capacity()) {
+            return withArchivedBefore(companyId, contactId,
+                    repository.findLatestPage(companyId, contactId, limit + 1), null, null, limit + 1);
+        }
+        long stamp = messageCache.reserve(companyId, contactId);
+        int fetch = messageCache.capacity();
+        List<WhatsAppMessage> rows = withArchivedBefore(companyId, contactId,
+                repository.findLatestPage(companyId, contactId, fetch + 1), null, null, fetch + 1);
+        messageCache.fill(companyId, contactId, stamp, rows, rows.size() > fetch);
+        return new ArrayList<>(rows.subList(0, Math.min(rows.size(), limit + 1)));
+    }
+
+    // Archived months only hold messages older than archivedBefore: they are read once the live page gets there
+    private List<WhatsAppMessage> withArchivedBefore(String companyId, String contactId, List<WhatsAppMessage> live,
+                                                     Instant ts, Long id, int wanted) {
+        Instant archivedBefore = partitions.archivedBefore();
+        if (archivedBefore == null) return new ArrayList<>(live);
+        if (live.size() >= wanted && !live.get(live.size() - 1).getTimestamp().isBefore(archivedBefore)) return new ArrayList<>(live);
+        return merge(live, partitions.findArchivedBefore(companyId, contactId, ts, id, wanted), OLDEST_FIRST.reversed(), wanted);
+    }
+
+    private List<WhatsAppMessage> withArchivedAfter(String companyId, String contactId, List<WhatsAppMessage> live,
+                                                    Cursor cursor, int wanted) {
+        Instant archivedBefore = partitions.archivedBefore();
+        if (archivedBefore == null || !cursor.timestamp().isBefore(archivedBefore)) return live;
+        return merge(live, partitions.findArchivedAfter(companyId, contactId, cursor.timestamp(), cursor.id(), wanted), OLDEST_FIRST, wanted);
+    }
+
+    // Two pages sorted the same way, merged into at most wanted rows
+    private static List<WhatsAppMessage> merge(List<WhatsAppMessage> a, List<WhatsAppMessage> b,
+                                               Comparator<WhatsAppMessage> order, int wanted) {
+        List<WhatsAppMessage> out = new ArrayList<>(Math.min(wanted, a.size() + b.size()));
+        int i = 0;
+        int j = 0;
+        while (out.size() < wanted && (i < a.size() || j < b.size())) {
+            if (j >= b.size() || (i < a.size() && order.compare(a.get(i), b.get(j)) <= 0)) out.add(a.get(i++));
+            else out.add(b.get(j++));
+        }
+        return out;
+    }
+
+    public Map<String, Object> partitionSnapshot() {
+        return partitions.snapshot();
+    }
+
+    // False when the export slots are taken; a true must be followed by exportMessages or releaseExport
+    public boolean tryStartExport() {
+        return messageExport.tryAcquire();
     }
 
-    public int backfillCompanyIdForNullMessages(String onlyContactId) {
-        List<WhatsAppMessage> missing = repository.findAllByCompanyIdIsNull();
-        int updated = 0;
-        for (WhatsAppMessage m : missing) {
-            if (onlyContactId != null && !onlyContactId.isBlank()) {
-                String normalized = sanitize(onlyContactId);
-                if (!normalized.equals(sanitize(m.getContactId()))) continue;
+    public void releaseExport() {
+        messageExport.release();
+    }
+
+    /**
+     * Streams the company's messages (one chat when contactId is given, [from, to) when set) to out, grouped
+     * by chat and oldest first within it, archived months included. Returns the number of messages written.
+     */
+    public long exportMessages(String companyId, String contactId, Instant from, Instant to,
+                               WhatsAppMessageExport.Format format, boolean gzip, OutputStream out) throws IOException {
+        String chat = contactId != null && !contactId.isBlank() ? sanitize(contactId) : null;
+        return messageExport.write(new WhatsAppMessageExport.Request(companyId, chat, from, to, format, gzip), out);
+    }
+
+    public Map<String, Object> exportSnapshot() {
+        return messageExport.snapshot();
+    }
+
+    /**
+     * Imports NDJSON in the export format (id, contactId, timestamp, isFromMe, messageType, status, content) into
+     * the company, importBatchSize messages per transaction. Ids the company already has are skipped, so a file
+     * can be imported again after a failure. Conversations are recounted at the end, so imported history counts
+     * as unread only after the chat's read mark.
+     */
+    public Map<String, Object> importMessages(String companyId, InputStream ndjson) throws IOException {
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        Set<WhatsAppConversationStore.Key> chats = new LinkedHashSet<>();
+        List<WhatsAppMessage> batch = new ArrayList<>(importBatchSize);
+        long read = 0;
+        long inserted = 0;
+        long invalid = 0;
+        try (MappingIterator<Map<String, Object>> lines = objectMapper.readerFor(Map.class).readValues(ndjson)) {
+            while (lines.hasNextValue()) {
+                Map<String, Object> line = lines.nextValue();
+                read++;
+                String contactId = sanitize(asString(line.get("contactId")));
+                if (contactId == null || contactId.isBlank()) {
+                    invalid++;
+                    continue;
+                }
+                Map<String, Object> payload = new HashMap<>(line);
+                payload.put("companyId", companyId);
+                batch.add(buildIncomingMessage(payload));
+                if (batch.size() >= Math.max(1, importBatchSize)) {
+                    inserted += importBatch(tx, batch, chats);
+                    batch.clear();
+                }
             }
-            if (m.getContactId() != null && !m.getContactId().isBlank()) {
-                WhatsAppContact c = contactRepository.findById(sanitize(m.getContactId())).orElse(null);
-                if (c != null && c.getCompanyId() != null && !c.getCompanyId().isBlank()) {
-                    m.setCompanyId(c.getCompanyId());
-                    updated++;
+            if (!batch.isEmpty()) inserted += importBatch(tx, batch, chats);
+        } catch (RuntimeJsonMappingException e) {
+            throw new IOException("linha " + (read + 1) + " não é um objeto JSON válido", e);
+        } finally {
+            // Also after a failure, for the batches that did commit
+            if (!chats.isEmpty()) conversationStore.refresh(chats);
+        }
+        log.info("[IMPORT] {} mensagens lidas para {}: {} inseridas, {} já existentes, {} inválidas",
+                read, companyId, inserted, read - inserted - invalid, invalid);
+        return Map.of("read", read, "inserted", inserted, "duplicates", read - inserted - invalid,
+                "invalid", invalid, "conversations", chats.size());
+    }
+
+    private int importBatch(TransactionTemplate tx, List<WhatsAppMessage> batch, Set<WhatsAppConversationStore.Key> chats) {
+        List<WhatsAppMessage> fresh;
+        try {
+            fresh = tx.execute(status -> {
+                List<WhatsAppMessage> rows = bulkWriter.withoutStored(batch);
+                bulkWriter.insertAll(rows);
+                return rows;
+            });
+        } catch (DuplicateKeyException e) {
+            // A webhook stored one of them after the check; this batch goes the slower way
+            fresh = tx.execute(status -> {
+                boolean[] ok = bulkWriter.insertIgnoringDuplicates(batch);
+                List<WhatsAppMessage> rows = new ArrayList<>();
+                for (int i = 0; i < ok.length; i++) {
+                    if (ok[i]) rows.add(batch.get(i));
                 }
+                return rows;
+            });
+        }
+        Set<WhatsAppConversationStore.Key> touched = new LinkedHashSet<>();
+        for (WhatsAppMessage m : fresh) {
+            touched.add(new WhatsAppConversationStore.Key(m.getCompanyId(), m.getContactId()));
+        }
+        // Committed: a cached page of these chats would miss the imported history
+        touched.forEach(k -> messageCache.invalidate(k.companyId(), k.contactId()));
+        chats.addAll(touched);
+        return fresh.size();
+    }
+
+    public record ConversationPage(List<Map<String, Object>> conversations, String nextCursor, boolean hasMore) {}
+
+    public record MessagePage(List<Map<String, Object>> messages, String olderCursor, String newerCursor,
+                              boolean hasOlder, boolean hasNewer) {}
+
+    // (timestamp, id) of a message, base64url("<instant>|<id>")
+    private record Cursor(Instant timestamp, long id) {
+        static String of(WhatsAppMessage m) {
+            String raw = m.getTimestamp() + "|" + m.getId();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor parse(String cursor) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+                int sep = raw.lastIndexOf('|');
+                return new Cursor(Instant.parse(raw.substring(0, sep)), Long.parseLong(raw.substring(sep + 1)));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("cursor inválido");
+            }
+        }
+    }
+
+    // (last_timestamp, contact_id) of a conversation, base64url("<instant>|<contactId>"); the instant is empty when null
+    private record ConversationCursor(Instant lastTimestamp, String contactId) {
+        static String of(WhatsAppConversationStore.Summary c) {
+            String raw = (c.lastTimestamp() != null ? c.lastTimestamp().toString() : "") + "|" + c.contactId();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static ConversationCursor parse(String cursor) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+                int sep = raw.indexOf('|');
+                String ts = raw.substring(0, sep);
+                return new ConversationCursor(ts.isEmpty() ? null : Instant.parse(ts), raw.substring(sep + 1));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("cursor inválido");
             }
         }
-        if (updated > 0) repository.saveAll(missing);
-        return updated;
     }
 
     private List<Map<String, Object>> mapMessages(List<WhatsAppMessage> msgs) {
@@ -146,13 +533,9 @@ public class WhatsAppMessageService {
         return mm;
     }
 
-    private String resolveClientKey() {
-        return configService.getCurrentCompanyConfig()
-                .map(c -> {
-                    String iid = c.getInstanceId();
-                    return (iid != null && !iid.isBlank()) ? ("instance:" + iid) : "global";
-                })
-                .orElse("global");
+    private String companyIdFor(WhatsAppMessage saved) {
+        String companyId = saved.getCompanyId();
+        return companyId != null && !companyId.isBlank() ? companyId : configService.resolvePublishCompanyId(null);
     }
 
     private String asString(Object o) {
@@ -1,58 +1,692 @@
 package crm.service;
 
-import org.springframework.http.MediaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * SSE fan-out. publish() encodes the event once into an {@link SseFrame} and only appends that frame to
+ * each subscriber's bounded queue; every subscriber has its own virtual thread writing the shared bytes
+ * with the blocking em.send, so a slow client never stalls the publishing thread.
+ *
+ * When a subscriber's queue is full, {@code whatsapp.sse.overflow-policy} decides: drop-oldest,
+ * coalesce (presence updates replace the queued one for the same chat, otherwise drop-oldest) or
+ * disconnect (the client reconnects and starts fresh).
+ *
+ * Subscriptions belong to a company (the authenticated user's) and may narrow it to some topics
+ * (message, chat_presence, message_status) and to one contactId. Each company channel keeps an index
+ * from "topic" and "topic|contactId" to subscribers, so publish() only touches the subscribers that
+ * want the event.
+ *
+ * A subscriber may opt into batching: events of batchable topics (all but
+ * {@code whatsapp.sse.batch-bypass-topics}, "message" by default) are gathered for up to
+ * {@code whatsapp.sse.batch-window-ms} or {@code whatsapp.sse.batch-max} events and written as one "batch"
+ * event (data = JSON array, id = last event's id) with a single flush. A bypass event closes the open batch
+ * and goes out right behind it, so order is kept.
+ *
+ * Every channel numbers its events 1, 2, 3... and keeps the last
+ * {@code whatsapp.sse.replay-buffer} frames. Ids are "<node>-<seq>": a reconnect carrying a Last-Event-ID of
+ * this node gets only the missed frames; if they were already evicted, or the id belongs to another replica
+ * or an earlier run, it gets a "resync" event and should reload.
+ *
+ * One scheduled sweep ({@code whatsapp.sse.heartbeat-interval-ms}) queues a ": ping" comment for every
+ * subscriber that has written nothing lately, and reaps any subscriber with pending output whose last
+ * completed write is older than {@code whatsapp.sse.idle-timeout-ms}: a half-open connection either fails the
+ * ping (and is removed by the drain) or blocks it until the reaper closes it.
+ *
+ * With more than one replica, every publish also goes out once on the {@link ClusterEventBus}, tagged with
+ * this node and a publish counter; events from other nodes are delivered to local subscribers only, and one
+ * whose origin and number were already delivered here (a redelivery) is dropped. Equal content is never a
+ * duplicate: two publishes are two events.
+ */
 @Service
 public class WhatsAppSseService {
 
-    private final Map<String, CopyOnWriteArrayList<SseEmitter>> emitters = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(WhatsAppSseService.class);
+    private static final int RECENT_REMOTE = 4096;
+    private static final SseFrame PING = SseFrame.comment("ping");
 
-    public SseEmitter subscribe(String clientKey) {
-        String key = clientKey == null || clientKey.isBlank() ? "global" : clientKey.trim();
-        SseEmitter emitter = new SseEmitter(0L);
-        emitter.onCompletion(() -> removeEmitter(key, emitter));
-        emitter.onTimeout(() -> removeEmitter(key, emitter));
-        emitter.onError((ex) -> removeEmitter(key, emitter));
-        emitters.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(emitter);
-        try {
-            SseEmitter.SseEventBuilder evt = SseEmitter.event()
-                    .name("init")
-                    .data(Map.of("ok", true, "ts", Instant.now().toString()))
-                    .id(String.valueOf(System.nanoTime()))
-                    .reconnectTime(8000);
-            emitter.send(evt);
-        } catch (IOException ignore) {}
+    public static final Set<String> TOPICS = Set.of("message", "chat_presence", "message_status");
+
+    public enum OverflowPolicy { DROP_OLDEST, COALESCE, DISCONNECT }
+
+    // companyId -> channel; channels outlive their subscribers so the replay buffer survives a reconnect
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper;
+    private final ClusterEventBus bus;
+    private final String nodeId;
+    private final AtomicLong publishSeq = new AtomicLong();
+    private final ReentrantLock remoteLock = new ReentrantLock();
+    private final List<Consumer<ClusterEventBus.Event>> remoteListeners = new CopyOnWriteArrayList<>();
+    private final Map<EventId, Boolean> recentRemote = new LinkedHashMap<>(RECENT_REMOTE * 2, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<EventId, Boolean> eldest) {
+            return size() > RECENT_REMOTE;
+        }
+    };
+
+    @Value("${whatsapp.sse.subscriber-queue:256}")
+    private int queueCapacity = 256;
+
+    @Value("${whatsapp.sse.overflow-policy:coalesce}")
+    private String overflowPolicy = "coalesce";
+
+    @Value("${whatsapp.sse.replay-buffer:512}")
+    private int replayBuffer = 512;
+
+    @Value("${whatsapp.sse.batch-window-ms:50}")
+    private long batchWindowMs = 50;
+
+    @Value("${whatsapp.sse.batch-max:200}")
+    private int batchMax = 200;
+
+    @Value("${whatsapp.sse.batch-bypass-topics:message}")
+    private String batchBypassTopics = "message";
+
+    @Value("${whatsapp.sse.heartbeat-interval-ms:15000}")
+    private long heartbeatIntervalMs = 15000;
+
+    @Value("${whatsapp.sse.idle-timeout-ms:45000}")
+    private long idleTimeoutMs = 45000;
+
+    private volatile Set<String> bypassTopics;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong encodeFailures = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong remoteDelivered = new AtomicLong();
+    private final AtomicLong remoteDuplicates = new AtomicLong();
+    private final AtomicLong unrouted = new AtomicLong();
+    private final AtomicLong batchFrames = new AtomicLong();
+    private final AtomicLong batchedEvents = new AtomicLong();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+
+    public WhatsAppSseService(ObjectMapper objectMapper, ClusterEventBus bus) {
+        this.objectMapper = objectMapper;
+        this.bus = bus;
+        this.nodeId = bus.nodeId();
+        bus.onRemote(this::deliverRemote);
+    }
+
+    /**
+     * @param topics    null or empty for every topic
+     * @param contactId null for every chat of the company
+     * @param batched   whether the client understands "batch" events
+     * @throws IllegalArgumentException for a missing company or an unknown topic
+     */
+    public SseEmitter subscribe(String companyId, Set<String> topics, String contactId, boolean batched, String lastEventId) {
+        return subscribe(companyId, topics, contactId, batched, lastEventId, new SseEmitter(0L));
+    }
+
+    SseEmitter subscribe(String companyId, Set<String> topics, String contactId, boolean batched, String lastEventId, SseEmitter emitter) {
+        if (companyId == null || companyId.isBlank()) throw new IllegalArgumentException("empresa não informada");
+        Set<String> wanted = topics == null || topics.isEmpty() ? TOPICS : Set.copyOf(topics);
+        for (String topic : wanted) {
+            if (!TOPICS.contains(topic)) throw new IllegalArgumentException("tópico desconhecido: " + topic);
+        }
+        Channel channel = channels.computeIfAbsent(companyId.trim(), Channel::new);
+        Subscriber sub = new Subscriber(channel, wanted, contactKey(contactId), batched && batchWindowMs > 0, emitter, Math.max(1, queueCapacity));
+        emitter.onCompletion(() -> removeSubscriber(sub));
+        emitter.onTimeout(() -> removeSubscriber(sub));
+        emitter.onError((ex) -> removeSubscriber(sub));
+        byte[] init = toJson("init", Map.of("ok", true, "ts", Instant.now().toString()));
+        if (init == null) {
+            emitter.complete();
+            return emitter;
+        }
+        channel.attach(sub, init, parseEventId(lastEventId));
+        sub.drainer = Thread.ofVirtual().name("sse-" + channel.companyId).start(sub::drain);
         return emitter;
     }
 
-    public void publish(String clientKey, Object data) {
-        String key = clientKey == null || clientKey.isBlank() ? "global" : clientKey.trim();
-        List<SseEmitter> list = emitters.get(key);
-        if (list == null || list.isEmpty()) return;
-        for (SseEmitter em : list) {
+    /**
+     * Pings idle subscribers through their own queues (the drain thread stays the only writer) and closes
+     * the ones stuck on a write for longer than the idle timeout.
+     */
+    @Scheduled(fixedDelayString = "${whatsapp.sse.heartbeat-interval-ms:15000}",
+            initialDelayString = "${whatsapp.sse.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        long now = System.nanoTime();
+        long pingAfter = TimeUnit.MILLISECONDS.toNanos(Math.max(0, heartbeatIntervalMs)) / 2;
+        long idleLimit = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleTimeoutMs));
+        int reapedNow = 0;
+        for (Channel channel : channels.values()) {
+            for (Subscriber sub : channel.subscribers) {
+                long silent = now - sub.lastWrite;
+                if (sub.pending() && silent > idleLimit) {
+                    reap(sub, silent);
+                    reapedNow++;
+                } else if (silent >= pingAfter && sub.ping()) {
+                    pings.incrementAndGet();
+                }
+            }
+        }
+        if (reapedNow > 0) log.info("[SSE] heartbeat: {} conexões paradas encerradas", reapedNow);
+    }
+
+    private void reap(Subscriber sub, long silentNanos) {
+        reaped.incrementAndGet();
+        log.debug("[SSE] nenhuma escrita há {} ms, encerrando assinante empresa={}",
+                TimeUnit.NANOSECONDS.toMillis(silentNanos), sub.channel.companyId);
+        removeSubscriber(sub);
+        Thread drainer = sub.drainer;
+        // Unblocks a write parked on a dead socket where the container allows it
+        if (drainer != null) drainer.interrupt();
+        try {
+            sub.emitter.complete();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Queues the event for the company's subscribers whose topics (from the payload "type") and contact
+     * filter match, plus one hand-off to the cluster bus; never touches the network. Events without a
+     * company are dropped: no subscription can match them.
+     */
+    public void publish(String companyId, String contactId, Object data) {
+        if (companyId == null || companyId.isBlank()) {
+            unrouted.incrementAndGet();
+            return;
+        }
+        String company = companyId.trim();
+        Channel channel = channels.get(company);
+        // nobody ever subscribed here: nothing to deliver now or to resume later
+        if (channel == null && !bus.distributed()) return;
+        byte[] json = toJson("message", data);
+        if (json == null) return;
+        ClusterEventBus.Event event = new ClusterEventBus.Event(nodeId, publishSeq.incrementAndGet(), company,
+                topicOf(data), contactKey(contactId), coalesceKey(data), json);
+        if (bus.distributed()) bus.publish(event);
+        if (channel != null) channel.publish(event);
+    }
+
+    // Components keeping per-chat state (the message cache) learn here about writes made on other nodes
+    public void onRemoteEvent(Consumer<ClusterEventBus.Event> listener) {
+        remoteListeners.add(listener);
+    }
+
+    private void deliverRemote(ClusterEventBus.Event event) {
+        if (!firstSighting(event)) {
+            remoteDuplicates.incrementAndGet();
+            return;
+        }
+        for (Consumer<ClusterEventBus.Event> listener : remoteListeners) {
             try {
-                em.send(SseEmitter.event()
-                        .name("message")
-                        .data(data, MediaType.APPLICATION_JSON)
-                        .id(String.valueOf(System.nanoTime()))
-                        .reconnectTime(8000));
-            } catch (IOException ex) {
-                removeEmitter(key, em);
+                listener.accept(event);
+            } catch (Exception e) {
+                log.warn("[SSE] listener de evento remoto falhou: {}", e.toString());
             }
         }
+        Channel channel = channels.get(event.companyId());
+        if (channel == null) return;
+        channel.publish(event);
+        remoteDelivered.incrementAndGet();
     }
 
-    private void removeEmitter(String key, SseEmitter emitter) {
-        List<SseEmitter> list = emitters.get(key);
-        if (list != null) list.remove(emitter);
+    private record EventId(String origin, long seq) {}
+
+    // Records the event and tells whether this publish was not delivered here before
+    private boolean firstSighting(ClusterEventBus.Event event) {
+        remoteLock.lock();
+        try {
+            return recentRemote.put(new EventId(event.origin(), event.seq()), Boolean.TRUE) == null;
+        } finally {
+            remoteLock.unlock();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        int subscribers = 0;
+        int filtered = 0;
+        int batching = 0;
+        int maxDepth = 0;
+        Map<String, Integer> byCompany = new LinkedHashMap<>();
+        for (Channel channel : channels.values()) {
+            int open = channel.subscribers.size();
+            if (open > 0) byCompany.put(channel.companyId, open);
+            for (Subscriber s : channel.subscribers) {
+                subscribers++;
+                if (s.batched) batching++;
+                if (s.contactId != null || s.topics.size() < TOPICS.size()) filtered++;
+                maxDepth = Math.max(maxDepth, s.depth());
+            }
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("node", nodeId);
+        m.put("overflowPolicy", policy().name().toLowerCase().replace('_', '-'));
+        m.put("queueCapacity", queueCapacity);
+        m.put("replayBuffer", replayBuffer);
+        m.put("companies", channels.size());
+        m.put("subscribers", subscribers);
+        m.put("subscribersByCompany", byCompany);
+        m.put("filteredSubscribers", filtered);
+        m.put("batchingSubscribers", batching);
+        m.put("maxQueueDepth", maxDepth);
+        m.put("enqueued", enqueued.get());
+        m.put("sent", sent.get());
+        m.put("dropped", dropped.get());
+        m.put("coalesced", coalesced.get());
+        m.put("disconnected", disconnected.get());
+        m.put("overflows", dropped.get() + disconnected.get());
+        m.put("sendFailures", sendFailures.get());
+        m.put("heartbeatIntervalMs", heartbeatIntervalMs);
+        m.put("idleTimeoutMs", idleTimeoutMs);
+        m.put("pings", pings.get());
+        m.put("reaped", reaped.get());
+        m.put("encoded", encoded.get());
+        m.put("encodeFailures", encodeFailures.get());
+        m.put("resumed", resumed.get());
+        m.put("replayed", replayed.get());
+        m.put("resyncs", resyncs.get());
+        m.put("remoteDelivered", remoteDelivered.get());
+        m.put("remoteDuplicates", remoteDuplicates.get());
+        m.put("unrouted", unrouted.get());
+        m.put("batchFrames", batchFrames.get());
+        m.put("batchedEvents", batchedEvents.get());
+        m.put("cluster", bus.snapshot());
+        return m;
+    }
+
+    private byte[] toJson(String event, Object data) {
+        try {
+            return objectMapper.writeValueAsBytes(data);
+        } catch (Exception e) {
+            encodeFailures.incrementAndGet();
+            log.warn("[SSE] falha ao serializar evento {}: {}", event, e.toString());
+            return null;
+        }
+    }
+
+    private boolean bypassesBatch(String topic) {
+        Set<String> topics = bypassTopics;
+        if (topics == null) {
+            Set<String> parsed = new HashSet<>();
+            for (String t : batchBypassTopics.split(",")) {
+                if (!t.isBlank()) parsed.add(t.trim());
+            }
+            bypassTopics = topics = parsed;
+        }
+        return topics.contains(topic);
+    }
+
+    private static String topicOf(Object data) {
+        Object type = data instanceof Map<?, ?> m ? m.get("type") : null;
+        return type != null && TOPICS.contains(String.valueOf(type)) ? String.valueOf(type) : "message";
+    }
+
+    // Digits before any "@", the same normalization the webhook decoder applies to contactId
+    private static String contactKey(String contactId) {
+        if (contactId == null) return null;
+        int end = contactId.indexOf('@');
+        if (end < 0) end = contactId.length();
+        StringBuilder sb = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            char c = contactId.charAt(i);
+            if (c >= '0' && c <= '9') sb.append(c);
+        }
+        return sb.isEmpty() ? null : sb.toString();
+    }
+
+    // -1 when the id cannot be resumed here: another replica, an earlier run, a legacy nanoTime id or garbage
+    private Long parseEventId(String lastEventId) {
+        if (lastEventId == null || lastEventId.isBlank()) return null;
+        String id = lastEventId.trim();
+        int dash = id.lastIndexOf('-');
+        if (dash != nodeId.length() || !id.startsWith(nodeId)) return -1L;
+        try {
+            return Long.parseLong(id.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private OverflowPolicy policy() {
+        try {
+            return OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase().replace('-', '_'));
+        } catch (Exception e) {
+            return OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
+    // Only the latest presence of a chat is worth delivering
+    private static String coalesceKey(Object data) {
+        if (data instanceof Map<?, ?> m && "chat_presence".equals(m.get("type"))) {
+            return "presence|" + m.get("instanceId") + "|" + m.get("phone");
+        }
+        return null;
+    }
+
+    private void removeSubscriber(Subscriber sub) {
+        sub.close();
+        sub.channel.detach(sub);
+    }
+
+    private record Outbound(SseFrame frame, String coalesceKey, String topic, String contactId) {}
+
+    private final class Channel {
+        private final String companyId;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        // "topic" -> subscribers of every chat, "topic|contactId" -> subscribers of that chat only
+        private final Map<String, List<Subscriber>> index = new ConcurrentHashMap<>();
+        // Orders sequence assignment, ring writes and subscriber appends against attach()
+        private final ReentrantLock lock = new ReentrantLock();
+        private Outbound[] ring;
+        private long seq;
+
+        Channel(String companyId) {
+            this.companyId = companyId;
+        }
+
+        void publish(ClusterEventBus.Event event) {
+            lock.lock();
+            try {
+                SseFrame frame = SseFrame.encode(nodeId + "-" + (++seq), "message", event.json());
+                encoded.incrementAndGet();
+                Outbound out = new Outbound(frame, event.coalesceKey(), event.topic(), event.contactId());
+                if (replayBuffer > 0) {
+                    if (ring == null) ring = new Outbound[replayBuffer];
+                    ring[(int) (seq % ring.length)] = out;
+                }
+                // A subscriber sits under exactly one of these keys per topic, so nobody gets it twice
+                offerAll(index.get(out.topic()), out);
+                if (out.contactId() != null) offerAll(index.get(out.topic() + "|" + out.contactId()), out);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void offerAll(List<Subscriber> targets, Outbound out) {
+            if (targets == null) return;
+            for (Subscriber sub : targets) {
+                sub.offer(out);
+            }
+        }
+
+        void detach(Subscriber sub) {
+            lock.lock();
+            try {
+                if (!subscribers.remove(sub)) return;
+                for (String key : sub.indexKeys()) {
+                    index.computeIfPresent(key, (k, list) -> {
+                        list.remove(sub);
+                        return list.isEmpty() ? null : list;
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void attach(Subscriber sub, byte[] initJson, Long lastEventId) {
+            lock.lock();
+            try {
+                List<Outbound> backlog = new ArrayList<>();
+                backlog.add(control(SseFrame.encode(null, "init", initJson)));
+                if (lastEventId != null) {
+                    resumed.incrementAndGet();
+                    long oldest = ring == null ? seq + 1 : Math.max(1, seq - ring.length + 1);
+                    if (lastEventId > seq || lastEventId + 1 < oldest) {
+                        Map<String, Object> resync = new LinkedHashMap<>();
+                        resync.put("type", "resync");
+                        resync.put("lastEventId", lastEventId);
+                        resync.put("oldestEventId", oldest);
+                        resync.put("currentEventId", seq);
+                        byte[] json = toJson("resync", resync);
+                        if (json != null) {
+                            backlog.add(control(SseFrame.encode(seq > 0 ? nodeId + "-" + seq : null, "resync", json)));
+                        }
+                        resyncs.incrementAndGet();
+                        log.debug("[SSE] lacuna {}..{} já descartada, resync empresa={}", lastEventId + 1, seq, companyId);
+                    } else {
+                        for (long id = lastEventId + 1; id <= seq; id++) {
+                            Outbound out = ring[(int) (id % ring.length)];
+                            if (sub.wants(out)) {
+                                backlog.add(out);
+                                replayed.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                sub.preload(backlog);
+                subscribers.add(sub);
+                for (String key : sub.indexKeys()) {
+                    index.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(sub);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Outbound control(SseFrame frame) {
+            encoded.incrementAndGet();
+            return new Outbound(frame, null, null, null);
+        }
+    }
+
+    private final class Subscriber {
+        private final Channel channel;
+        private final Set<String> topics;
+        private final String contactId;
+        private final boolean batched;
+        private final SseEmitter emitter;
+        private final int capacity;
+        // ReentrantLock rather than synchronized: the drain runs on a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+        private boolean closed;
+        private volatile Thread drainer;
+        // Last completed write, and start of the write in progress (0 when none)
+        private volatile long lastWrite = System.nanoTime();
+        private volatile long writingSince;
+
+        Subscriber(Channel channel, Set<String> topics, String contactId, boolean batched, SseEmitter emitter, int capacity) {
+            this.channel = channel;
+            this.topics = topics;
+            this.contactId = contactId;
+            this.batched = batched;
+            this.emitter = emitter;
+            this.capacity = capacity;
+        }
+
+        List<String> indexKeys() {
+            List<String> keys = new ArrayList<>(topics.size());
+            for (String topic : topics) {
+                keys.add(contactId == null ? topic : topic + "|" + contactId);
+            }
+            return keys;
+        }
+
+        boolean wants(Outbound out) {
+            return topics.contains(out.topic()) && (contactId == null || contactId.equals(out.contactId()));
+        }
+
+        void offer(Outbound out) {
+            OverflowPolicy policy = policy();
+            boolean disconnect = false;
+            lock.lock();
+            try {
+                if (closed) return;
+                if (policy == OverflowPolicy.COALESCE && out.coalesceKey() != null && replaceQueued(out)) {
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                if (queue.size() >= capacity) {
+                    if (policy == OverflowPolicy.DISCONNECT) {
+                        disconnect = true;
+                    } else {
+                        queue.pollFirst();
+                        dropped.incrementAndGet();
+                    }
+                }
+                if (!disconnect) {
+                    queue.addLast(out);
+                    enqueued.incrementAndGet();
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (disconnect) {
+                disconnected.incrementAndGet();
+                log.debug("[SSE] fila cheia, desconectando assinante empresa={}", channel.companyId);
+                removeSubscriber(this);
+                emitter.complete();
+            }
+        }
+
+        // Resume backlog goes in whole: it is bounded by the replay buffer, not by the live queue
+        void preload(List<Outbound> backlog) {
+            lock.lock();
+            try {
+                queue.addAll(backlog);
+                enqueued.addAndGet(backlog.size());
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean replaceQueued(Outbound out) {
+            for (Iterator<Outbound> it = queue.iterator(); it.hasNext(); ) {
+                if (out.coalesceKey().equals(it.next().coalesceKey())) {
+                    it.remove();
+                    queue.addLast(out);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Queues a ping unless real output is already on its way; outside the capacity like preload
+        boolean ping() {
+            lock.lock();
+            try {
+                if (closed || !queue.isEmpty() || writingSince != 0) return false;
+                queue.addLast(new Outbound(PING, null, null, null));
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean pending() {
+            return writingSince != 0 || depth() > 0;
+        }
+
+        int depth() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                queue.clear();
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void drain() {
+            List<Outbound> batch = new ArrayList<>();
+            while (true) {
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (closed) return;
+                    batch.add(queue.pollFirst());
+                    if (batchable(batch.get(0))) fillBatch(batch);
+                } finally {
+                    lock.unlock();
+                }
+                writingSince = System.nanoTime();
+                try {
+                    if (batch.size() == 1) {
+                        emitter.send(batch.get(0).frame().parts());
+                    } else {
+                        List<SseFrame> frames = new ArrayList<>(batch.size());
+                        for (Outbound out : batch) frames.add(out.frame());
+                        emitter.send(SseFrame.batch(frames).parts());
+                        batchFrames.incrementAndGet();
+                        batchedEvents.addAndGet(batch.size());
+                    }
+                    if (batch.get(0).frame() != PING) sent.addAndGet(batch.size());
+                    lastWrite = System.nanoTime();
+                } catch (IOException | IllegalStateException ex) {
+                    sendFailures.incrementAndGet();
+                    removeSubscriber(this);
+                    return;
+                } finally {
+                    writingSince = 0;
+                    batch.clear();
+                }
+            }
+        }
+
+        private boolean batchable(Outbound out) {
+            return batched && out.topic() != null && !bypassesBatch(out.topic());
+        }
+
+        // Lock held; awaitNanos releases it while the window is open
+        private void fillBatch(List<Outbound> batch) {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(batchWindowMs);
+            int max = Math.max(1, batchMax);
+            while (batch.size() < max && !closed) {
+                Outbound next = queue.peekFirst();
+                if (next == null) {
+                    if (remaining <= 0) return;
+                    try {
+                        remaining = notEmpty.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+                if (!batchable(next)) return;
+                batch.add(queue.pollFirst());
+            }
+        }
     }
 }
@@ -0,0 +1,428 @@
+package crm.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.dto.IncomingZapiEvent;
+import crm.dto.IncomingZapiEvent.MediaPart;
+import crm.dto.IncomingZapiEvent.MessagePart;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Single-pass Z-API webhook decoder on top of Jackson's streaming JsonParser.
+// Reads the request bytes once into an IncomingZapiEvent; adapt() turns it into our internal message contract.
+@Component
+public class ZapiWebhookDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    // One event per request thread, reset by decodeInto: the webhook path allocates no event per request
+    private final ThreadLocal<IncomingZapiEvent> threadEvent = ThreadLocal.withInitial(IncomingZapiEvent::new);
+
+    public ZapiWebhookDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    public IncomingZapiEvent decode(byte[] raw) throws IOException {
+        IncomingZapiEvent event = new IncomingZapiEvent();
+        decodeInto(raw, event);
+        return event;
+    }
+
+    // The calling thread's reusable event; only valid until the same thread decodes the next body
+    public IncomingZapiEvent threadEvent() {
+        return threadEvent.get();
+    }
+
+    // Returns false when the body is empty, not a JSON object or an empty object
+    public boolean decodeInto(byte[] raw, IncomingZapiEvent event) throws IOException {
+        event.reset();
+        if (raw == null || raw.length == 0) return false;
+        try (JsonParser p = jsonFactory.createParser(raw)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) return false;
+            boolean any = false;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.currentName();
+                JsonToken t = p.nextToken();
+                any = true;
+                switch (name) {
+                    case "type" -> event.setType(scalar(p, t));
+                    case "instanceId" -> event.setInstanceId(scalar(p, t));
+                    case "fromMe" -> {
+                        event.setFromMePresent(true);
+                        event.setFromMe(scalar(p, t));
+                    }
+                    case "phone" -> {
+                        event.setPhonePresent(true);
+                        event.setPhone(scalar(p, t));
+                    }
+                    case "phones" -> {
+                        event.setPhonesPresent(true);
+                        event.setPhones(scalarOrFirst(p, t));
+                    }
+                    case "participant" -> {
+                        event.setParticipantPresent(true);
+                        event.setParticipant(scalar(p, t));
+                    }
+                    case "participantPhone" -> event.setParticipantPhone(scalar(p, t));
+                    case "participantLid" -> event.setParticipantLid(scalar(p, t));
+                    case "from" -> {
+                        event.setFromPresent(true);
+                        event.setFrom(scalar(p, t));
+                    }
+                    case "sender" -> event.setSender(scalar(p, t));
+                    case "senderLid" -> event.setSenderLid(scalar(p, t));
+                    case "messageId" -> {
+                        event.setMessageIdPresent(true);
+                        event.setMessageId(scalar(p, t));
+                    }
+                    case "status" -> event.setStatus(scalar(p, t));
+                    case "lastSeen" -> event.setLastSeen(number(p, t));
+                    case "phoneDevice" -> {
+                        Long device = number(p, t);
+                        event.setPhoneDevice(device != null ? device.intValue() : null);
+                    }
+                    case "isGroup" -> {
+                        event.setGroup(t == JsonToken.VALUE_TRUE);
+                        p.skipChildren();
+                    }
+                    case "ids" -> readIds(p, t, event.getIds());
+                    case "timestamp" -> {
+                        event.setTimestampMillis(number(p, t));
+                        event.setTimestamp(scalar(p, t));
+                    }
+                    case "momment" -> {
+                        event.setMommentMillis(number(p, t));
+                        event.setMomment(scalar(p, t));
+                    }
+                    case "moment" -> event.setMoment(scalar(p, t));
+                    case "contact" -> {
+                        event.setContactPresent(true);
+                        readContact(p, t, event);
+                    }
+                    case "text" -> {
+                        event.setTextPresent(true);
+                        readRootText(p, t, event);
+                    }
+                    case "listResponseMessage" -> readMedia(p, t, event.getListResponse());
+                    case "image" -> readMedia(p, t, event.getImage());
+                    case "audio" -> readMedia(p, t, event.getAudio());
+                    case "video" -> readMedia(p, t, event.getVideo());
+                    case "document" -> readMedia(p, t, event.getDocument());
+                    case "sticker" -> readMedia(p, t, event.getSticker());
+                    case "message" -> readMessage(p, t, event.getMessage());
+                    case "messages" -> readMessages(p, t, event.getFirstMessage());
+                    default -> p.skipChildren();
+                }
+            }
+            return any;
+        }
+    }
+
+    // Maps a decoded ReceivedCallback (or compatible variant) into the internal payload; null when not a message
+    public Map<String, Object> adapt(IncomingZapiEvent e) {
+        String zType = e.getType() != null ? e.getType() : "";
+        boolean looksLikeZapi = zType.equalsIgnoreCase("ReceivedCallback")
+                || zType.equalsIgnoreCase("PresenceChatCallback")
+                || zType.equalsIgnoreCase("message")
+                || e.isTextPresent()
+                || e.isMessageIdPresent()
+                || e.isPhonesPresent()
+                || e.isPhonePresent()
+                || e.isContactPresent();
+        if (!looksLikeZapi) return null;
+        if (zType.equalsIgnoreCase("PresenceChatCallback")) return null;
+
+        MessagePart msg = e.getMessage().isPresent() ? e.getMessage() : null;
+        MessagePart m0 = e.getFirstMessage().isPresent() ? e.getFirstMessage() : null;
+
+        String id = firstNonBlank(
+                m0 != null ? m0.getId() : null,
+                msg != null ? msg.getId() : null,
+                e.getMessageId()
+        );
+
+        String contactId = digitsOnly(firstNonBlank(
+                e.getParticipant(),
+                e.getParticipantPhone(),
+                e.getParticipantLid(),
+                m0 != null ? m0.getFrom() : null,
+                e.getPhones(),
+                e.getPhone(),
+                e.getContactId(),
+                e.getFrom(),
+                e.getSender(),
+                e.getSenderLid()
+        ));
+
+        String content = null;
+        String messageType = "text";
+        MessagePart part = m0 != null ? m0 : msg;
+        if (part != null) {
+            String text = part.isTextObject() ? firstNonBlank(part.getTextBody(), part.getTextMessage()) : part.getText();
+            // messages[] prefers the text object, the "message" object prefers body
+            content = part == m0 && part.isTextObject() ? text : firstNonBlank(part.getBody(), text);
+            String mt = part.getType();
+            if (mt != null && !mt.isBlank()) messageType = mt;
+        }
+        if (content == null && e.getTextMessage() != null) {
+            content = e.getTextMessage();
+            messageType = "text";
+        }
+        MediaPart media;
+        if (content == null && (media = e.getListResponse()).isPresent()) {
+            content = firstNonBlank(media.getMessage(), media.getTitle());
+            messageType = "list";
+        }
+        if (content == null && (media = e.getImage()).isPresent()) {
+            content = firstNonBlank(media.getCaption(), media.getUrl(), media.getThumbnailUrl());
+            messageType = "image";
+        }
+        if (content == null && (media = e.getAudio()).isPresent()) {
+            content = firstNonBlank(media.getUrl(), media.getMimeType());
+            messageType = "audio";
+        }
+        if (content == null && (media = e.getVideo()).isPresent()) {
+            content = firstNonBlank(media.getCaption(), media.getUrl());
+            messageType = "video";
+        }
+        if (content == null && (media = e.getDocument()).isPresent()) {
+            content = firstNonBlank(media.getTitle(), media.getFileName(), media.getUrl());
+            messageType = "document";
+        }
+        if (content == null && (media = e.getSticker()).isPresent()) {
+            content = firstNonBlank(media.getUrl(), media.getMimeType());
+            messageType = "sticker";
+        }
+
+        String timestamp;
+        if (part != null && part.getTimestampMillis() != null) {
+            timestamp = Instant.ofEpochMilli(part.getTimestampMillis()).toString();
+        } else if (e.getTimestampMillis() != null) {
+            timestamp = Instant.ofEpochMilli(e.getTimestampMillis()).toString();
+        } else {
+            timestamp = firstNonBlank(
+                    part != null ? part.getTimestamp() : null,
+                    e.getTimestamp(),
+                    e.getMomment(),
+                    e.getMoment(),
+                    Instant.now().toString()
+            );
+        }
+
+        String fromMe = part != null ? part.getFromMe() : (e.isFromMePresent() ? e.getFromMe() : "false");
+        boolean isFromMe = Boolean.parseBoolean(fromMe);
+        String status = firstNonBlank(e.getStatus(), isFromMe ? "sent" : "received");
+
+        if (contactId == null && content == null) return null;
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("id", id != null && !id.isBlank() ? id : ("zap_" + UUID.randomUUID()));
+        payload.put("contactId", contactId != null ? contactId : "unknown");
+        payload.put("content", content != null ? content : "");
+        payload.put("timestamp", timestamp);
+        payload.put("isFromMe", isFromMe);
+        payload.put("messageType", messageType);
+        payload.put("status", status);
+        return payload;
+    }
+
+    // An adapted inbound message worth persisting: received (not sent by us) and with contact and content
+    public boolean isInboundMessage(IncomingZapiEvent e, Map<String, Object> adapted) {
+        if (adapted == null) return false;
+        Object cid = adapted.get("contactId");
+        Object cnt = adapted.get("content");
+        if (cid == null || String.valueOf(cid).isBlank() || cnt == null || String.valueOf(cnt).isBlank()) return false;
+        boolean isFromMe = adapted.get("isFromMe") instanceof Boolean b && b;
+        return (e.isType("ReceivedCallback") || e.isType("message")) && !isFromMe;
+    }
+
+    // Same precedence the debug table has always used for the "phone" column
+    public String rawPhone(IncomingZapiEvent e) {
+        if (e.isParticipantPresent()) return String.valueOf(e.getParticipant());
+        if (e.isPhonePresent()) return String.valueOf(e.getPhone());
+        if (e.isFromPresent()) return String.valueOf(e.getFrom());
+        return "";
+    }
+
+    private void readContact(JsonParser p, JsonToken t, IncomingZapiEvent e) throws IOException {
+        if (t != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken v = p.nextToken();
+            if ("id".equals(name)) e.setContactId(scalar(p, v));
+            else p.skipChildren();
+        }
+    }
+
+    private void readRootText(JsonParser p, JsonToken t, IncomingZapiEvent e) throws IOException {
+        if (t != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken v = p.nextToken();
+            if ("message".equals(name)) e.setTextMessage(scalar(p, v));
+            else p.skipChildren();
+        }
+    }
+
+    private void readMedia(JsonParser p, JsonToken t, MediaPart part) throws IOException {
+        if (t != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
+        }
+        part.setPresent(true);
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken v = p.nextToken();
+            switch (name) {
+                case "caption" -> part.setCaption(scalar(p, v));
+                case "imageUrl", "audioUrl", "videoUrl", "documentUrl", "stickerUrl" -> part.setUrl(scalar(p, v));
+                case "thumbnailUrl" -> part.setThumbnailUrl(scalar(p, v));
+                case "mimeType" -> part.setMimeType(scalar(p, v));
+                case "title" -> part.setTitle(scalar(p, v));
+                case "fileName" -> part.setFileName(scalar(p, v));
+                case "message" -> part.setMessage(scalar(p, v));
+                default -> p.skipChildren();
+            }
+        }
+    }
+
+    private void readMessages(JsonParser p, JsonToken t, MessagePart first) throws IOException {
+        if (t != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return;
+        }
+        boolean isFirst = true;
+        JsonToken v;
+        while ((v = p.nextToken()) != JsonToken.END_ARRAY && v != null) {
+            if (isFirst) {
+                readMessage(p, v, first);
+                isFirst = false;
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private void readMessage(JsonParser p, JsonToken t, MessagePart part) throws IOException {
+        if (t != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
+        }
+        part.setPresent(true);
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken v = p.nextToken();
+            switch (name) {
+                case "id" -> part.setId(scalar(p, v));
+                case "from" -> part.setFrom(scalar(p, v));
+                case "fromMe" -> part.setFromMe(scalar(p, v));
+                case "body" -> part.setBody(scalar(p, v));
+                case "text" -> {
+                    if (v == JsonToken.START_OBJECT) {
+                        part.setTextObject(true);
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            String textField = p.currentName();
+                            JsonToken tv = p.nextToken();
+                            if ("body".equals(textField)) part.setTextBody(scalar(p, tv));
+                            else if ("message".equals(textField)) part.setTextMessage(scalar(p, tv));
+                            else p.skipChildren();
+                        }
+                    } else {
+                        part.setText(scalar(p, v));
+                    }
+                }
+                case "type" -> part.setType(scalar(p, v));
+                case "timestamp" -> {
+                    part.setTimestampMillis(number(p, v));
+                    part.setTimestamp(scalar(p, v));
+                }
+                case "contactId" -> {
+                    part.setContactIdPresent(true);
+                    part.setContactId(scalar(p, v));
+                }
+                case "content" -> {
+                    part.setContentPresent(true);
+                    part.setContent(scalar(p, v));
+                }
+                case "isFromMe" -> part.setIsFromMe(v == JsonToken.VALUE_TRUE ? Boolean.TRUE
+                        : v == JsonToken.VALUE_FALSE ? Boolean.FALSE : null);
+                case "messageType" -> part.setMessageType(scalar(p, v));
+                case "status" -> part.setStatus(scalar(p, v));
+                default -> p.skipChildren();
+            }
+        }
+    }
+
+    private void readIds(JsonParser p, JsonToken t, List<String> ids) throws IOException {
+        if (t != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return;
+        }
+        JsonToken v;
+        while ((v = p.nextToken()) != JsonToken.END_ARRAY && v != null) {
+            String id = scalar(p, v);
+            ids.add(id != null ? id : "null");
+        }
+    }
+
+    // Text of a scalar token; containers are skipped and yield null
+    private String scalar(JsonParser p, JsonToken t) throws IOException {
+        if (t == null || t == JsonToken.VALUE_NULL) return null;
+        if (t.isScalarValue()) return p.getText();
+        p.skipChildren();
+        return null;
+    }
+
+    private String scalarOrFirst(JsonParser p, JsonToken t) throws IOException {
+        if (t != JsonToken.START_ARRAY) return scalar(p, t);
+        String first = null;
+        JsonToken v;
+        while ((v = p.nextToken()) != JsonToken.END_ARRAY && v != null) {
+            String s = scalar(p, v);
+            if (first == null) first = s;
+        }
+        return first;
+    }
+
+    // Does not advance past a scalar, so the caller may still read its text with scalar()
+    private Long number(JsonParser p, JsonToken t) throws IOException {
+        if (t == JsonToken.VALUE_NUMBER_INT || t == JsonToken.VALUE_NUMBER_FLOAT) {
+            return p.getNumberValue().longValue();
+        }
+        p.skipChildren();
+        return null;
+    }
+
+    private String digitsOnly(String contactId) {
+        if (contactId == null) return null;
+        int end = contactId.indexOf('@');
+        if (end <= 0) end = contactId.length();
+        StringBuilder sb = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            char c = contactId.charAt(i);
+            if (c >= '0' && c <= '9') sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private String firstNonBlank(String... values) {
+        for (String v : values) {
+            if (v != null && !v.isBlank()) return v;
+        }
+        return null;
+    }
+}
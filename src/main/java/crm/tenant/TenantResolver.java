@@ -3,11 +3,14 @@ package crm.tenant;
 import crm.entity.User;
 import crm.repository.UserRepository;
 import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.Optional;
+
 @Component
 public class TenantResolver {
 
@@ -26,6 +29,17 @@ public class TenantResolver {
         return companyId;
     }
 
+    // Empty outside an authenticated request (webhooks, background threads) or for a user without a company
+    public Optional<String> findCurrentCompanyId() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated() || authentication instanceof AnonymousAuthenticationToken) {
+            return Optional.empty();
+        }
+        return userRepository.findByEmail(authentication.getName())
+                .map(User::getCompanyId)
+                .filter(companyId -> !companyId.isBlank());
+    }
+
     public User getCurrentUser() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         if (authentication == null || !authentication.isAuthenticated()) {
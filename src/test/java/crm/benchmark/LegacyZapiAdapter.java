@@ -0,0 +1,149 @@
+package crm.benchmark;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Copy of the Map-based adaptZapiPayload that WhatsAppWebhookController used before ZapiWebhookDecoder.
+// Kept only as the baseline for ZapiWebhookDecoderBenchmark.
+final class LegacyZapiAdapter {
+
+    private LegacyZapiAdapter() {}
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> adapt(Map<String, Object> body) {
+        try {
+            String zType = String.valueOf(body.getOrDefault("type", ""));
+            boolean looksLikeZapi = zType.equalsIgnoreCase("ReceivedCallback")
+                    || zType.equalsIgnoreCase("PresenceChatCallback")
+                    || zType.equalsIgnoreCase("message")
+                    || body.containsKey("text")
+                    || body.containsKey("messageId")
+                    || body.containsKey("phones")
+                    || body.containsKey("phone")
+                    || body.containsKey("contact");
+            if (!looksLikeZapi) return null;
+            if (zType.equalsIgnoreCase("PresenceChatCallback")) return null;
+
+            Map<String, Object> msg = body.get("message") instanceof Map<?, ?> m ? (Map<String, Object>) m : null;
+            Map<String, Object> m0 = null;
+            if (body.get("messages") instanceof List<?> list && !list.isEmpty() && list.get(0) instanceof Map<?, ?> fm) {
+                m0 = (Map<String, Object>) fm;
+            }
+
+            String id = firstNonBlank(
+                    stringOrNull(m0 != null ? m0.get("id") : null),
+                    stringOrNull(msg != null ? msg.get("id") : null),
+                    stringOrNull(body.get("messageId"))
+            );
+
+            Map<String, Object> contactMap = body.get("contact") instanceof Map<?, ?> c ? (Map<String, Object>) c : null;
+            String contactId = firstNonBlank(
+                    stringOrNull(body.get("participant")),
+                    stringOrNull(body.get("participantPhone")),
+                    stringOrNull(body.get("participantLid")),
+                    stringOrNull(m0 != null ? m0.get("from") : null),
+                    stringOrNull(body.get("phones")),
+                    stringOrNull(body.get("phone")),
+                    stringOrNull(contactMap != null ? contactMap.get("id") : null),
+                    stringOrNull(body.get("from")),
+                    stringOrNull(body.get("sender")),
+                    stringOrNull(body.get("senderLid"))
+            );
+            if (contactId != null) {
+                int at = contactId.indexOf('@');
+                if (at > 0) contactId = contactId.substring(0, at);
+                contactId = contactId.replaceAll("\\D+", "");
+            }
+
+            String content = null;
+            String messageType = "text";
+            if (m0 != null) {
+                if (m0.get("text") instanceof Map<?, ?> textMap) {
+                    content = firstNonBlank(stringOrNull(textMap.get("body")), stringOrNull(textMap.get("message")));
+                } else {
+                    content = firstNonBlank(stringOrNull(m0.get("body")), stringOrNull(m0.get("text")));
+                }
+                String mt = stringOrNull(m0.get("type"));
+                if (mt != null && !mt.isBlank()) messageType = mt;
+            } else if (msg != null) {
+                content = firstNonBlank(stringOrNull(msg.get("body")), stringOrNull(msg.get("text")));
+                String mt = stringOrNull(msg.get("type"));
+                if (mt != null && !mt.isBlank()) messageType = mt;
+            }
+            if (content == null && body.get("text") instanceof Map<?, ?> textMap) {
+                content = stringOrNull(textMap.get("message"));
+                messageType = "text";
+            }
+            if (content == null && body.get("listResponseMessage") instanceof Map<?, ?> listMap) {
+                content = firstNonBlank(stringOrNull(listMap.get("message")), stringOrNull(listMap.get("title")));
+                messageType = "list";
+            }
+            if (content == null && body.get("image") instanceof Map<?, ?> imageMap) {
+                content = firstNonBlank(stringOrNull(imageMap.get("caption")), stringOrNull(imageMap.get("imageUrl")),
+                        stringOrNull(imageMap.get("thumbnailUrl")));
+                messageType = "image";
+            }
+            if (content == null && body.get("audio") instanceof Map<?, ?> audioMap) {
+                content = firstNonBlank(stringOrNull(audioMap.get("audioUrl")), stringOrNull(audioMap.get("mimeType")));
+                messageType = "audio";
+            }
+            if (content == null && body.get("video") instanceof Map<?, ?> videoMap) {
+                content = firstNonBlank(stringOrNull(videoMap.get("caption")), stringOrNull(videoMap.get("videoUrl")));
+                messageType = "video";
+            }
+            if (content == null && body.get("document") instanceof Map<?, ?> docMap) {
+                content = firstNonBlank(stringOrNull(docMap.get("title")), stringOrNull(docMap.get("fileName")),
+                        stringOrNull(docMap.get("documentUrl")));
+                messageType = "document";
+            }
+            if (content == null && body.get("sticker") instanceof Map<?, ?> stickerMap) {
+                content = firstNonBlank(stringOrNull(stickerMap.get("stickerUrl")), stringOrNull(stickerMap.get("mimeType")));
+                messageType = "sticker";
+            }
+
+            String timestamp;
+            Object rootTs = body.get("timestamp");
+            Object msgTs = m0 != null ? m0.get("timestamp") : (msg != null ? msg.get("timestamp") : null);
+            if (msgTs instanceof Number n) {
+                timestamp = Instant.ofEpochMilli(n.longValue()).toString();
+            } else if (rootTs instanceof Number n) {
+                timestamp = Instant.ofEpochMilli(n.longValue()).toString();
+            } else {
+                timestamp = firstNonBlank(stringOrNull(msgTs), stringOrNull(rootTs), stringOrNull(body.get("momment")),
+                        stringOrNull(body.get("moment")), Instant.now().toString());
+            }
+
+            Object fromMeObj = m0 != null ? m0.get("fromMe") : (msg != null ? msg.get("fromMe") : body.getOrDefault("fromMe", false));
+            boolean isFromMe = Boolean.parseBoolean(String.valueOf(fromMeObj));
+            String status = firstNonBlank(stringOrNull(body.get("status")), isFromMe ? "sent" : "received");
+
+            if (contactId == null && content == null) return null;
+
+            Map<String, Object> payload = new LinkedHashMap<>();
+            payload.put("id", id != null && !id.isBlank() ? id : ("zap_" + UUID.randomUUID()));
+            payload.put("contactId", contactId != null ? contactId : "unknown");
+            payload.put("content", content != null ? content : "");
+            payload.put("timestamp", timestamp);
+            payload.put("isFromMe", isFromMe);
+            payload.put("messageType", messageType);
+            payload.put("status", status);
+            return payload;
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    private static String stringOrNull(Object v) {
+        return v == null ? null : String.valueOf(v);
+    }
+
+    private static String firstNonBlank(String... values) {
+        for (String v : values) {
+            if (v != null && !v.isBlank()) return v;
+        }
+        return null;
+    }
+}
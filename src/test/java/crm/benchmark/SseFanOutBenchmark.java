@@ -0,0 +1,100 @@
+package crm.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.service.SseFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing one message event to N subscribers: the former path, where every subscriber's
+ * em.send built its own event and the message converter serialized the payload again, vs. encoding one
+ * {@link SseFrame} and handing the same bytes to everyone.
+ *
+ * Run after {@code mvn test-compile}, e.g. from the IDE or with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> crm.benchmark.SseFanOutBenchmark}.
+ * The main method enables the GC profiler so allocation per publish (gc.alloc.rate.norm) is reported too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseFanOutBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int subscribers;
+
+    private ObjectMapper objectMapper;
+    private Map<String, Object> payload;
+    private long seq;
+
+    @Setup
+    public void setup() {
+        objectMapper = new ObjectMapper();
+        payload = new LinkedHashMap<>();
+        payload.put("type", "message");
+        payload.put("instanceId", "3C9A1F0B2D");
+        payload.put("phone", "5544999999999");
+        payload.put("messageId", "3EB0C767D26A1D8E5F2B");
+        payload.put("fromMe", false);
+        payload.put("text", "Olá, gostaria de saber o valor do plano anual e as formas de pagamento.");
+        payload.put("timestamp", 1715000000000L);
+    }
+
+    @Benchmark
+    public void perSubscriberSerialize(Blackhole bh) throws IOException {
+        for (int i = 0; i < subscribers; i++) {
+            SseEmitter.SseEventBuilder event = SseEmitter.event()
+                    .name("message")
+                    .data(payload, MediaType.APPLICATION_JSON)
+                    .id(String.valueOf(System.nanoTime()))
+                    .reconnectTime(8000);
+            for (DataWithMediaType part : event.build()) {
+                Object data = part.getData();
+                bh.consume(data instanceof String s
+                        ? s.getBytes(StandardCharsets.UTF_8)
+                        : objectMapper.writeValueAsBytes(data));
+            }
+        }
+    }
+
+    @Benchmark
+    public void serializeOnce(Blackhole bh) throws IOException {
+        SseFrame frame = SseFrame.encode(objectMapper, "node-" + (++seq), "message", payload);
+        for (int i = 0; i < subscribers; i++) {
+            for (DataWithMediaType part : frame.parts()) {
+                bh.consume(part.getData());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SseFanOutBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
@@ -0,0 +1,112 @@
+package crm.benchmark;
+
+import crm.entity.WhatsAppMessage;
+import crm.repository.WhatsAppMessageBulkWriter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Rows/second for whatsapp_messages inserts against a real Postgres, in batches of 100 rows per transaction
+ * (the ingest worker default):
+ *
+ * - per-row: one INSERT ... RETURNING id per message, what IDENTITY ids forced on Hibernate
+ * - bulk-insert-ignore: WhatsAppMessageBulkWriter.insertIgnoringDuplicates (pooled ids + multi-row INSERT ON CONFLICT)
+ * - bulk-batch: WhatsAppMessageBulkWriter.insertAll (pooled ids + JDBC batch rewritten by reWriteBatchedInserts)
+ *
+ * Run after {@code mvn test-compile} with the test classpath, e.g.
+ * {@code java -Dbench.url=jdbc:postgresql://localhost:5432/crmUni -Dbench.user=postgres -Dbench.password=... crm.benchmark.WhatsAppMessageInsertBenchmark}.
+ * Rows are written under a throwaway company id and deleted at the end.
+ */
+public class WhatsAppMessageInsertBenchmark {
+
+    private static final int BATCH = 100;
+
+    // The id column has no default; negative ids never collide with the pooled ones
+    private static long nextPerRowId = -1;
+
+    public static void main(String[] args) {
+        String url = System.getProperty("bench.url", "jdbc:postgresql://localhost:5432/crmUni");
+        String user = System.getProperty("bench.user", "postgres");
+        String password = System.getProperty("bench.password", "");
+        int rows = Integer.getInteger("bench.rows", 20000);
+        String companyId = "bench-" + UUID.randomUUID();
+
+        SingleConnectionDataSource ds = new SingleConnectionDataSource(url + (url.contains("?") ? "&" : "?") + "reWriteBatchedInserts=true", user, password, true);
+        try {
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            TransactionTemplate tx = new TransactionTemplate(new DataSourceTransactionManager(ds));
+            WhatsAppMessageBulkWriter writer = new WhatsAppMessageBulkWriter(jdbc);
+            writer.ensureSequence();
+
+            // warm-up round, discarded
+            perRow(jdbc, tx, companyId, 2000);
+            bulk(writer, tx, companyId, 2000, true);
+            bulk(writer, tx, companyId, 2000, false);
+
+            report("per-row", rows, perRow(jdbc, tx, companyId, rows));
+            report("bulk-insert-ignore", rows, bulk(writer, tx, companyId, rows, true));
+            report("bulk-batch", rows, bulk(writer, tx, companyId, rows, false));
+
+            jdbc.update("DELETE FROM whatsapp_messages WHERE company_id = ?", companyId);
+        } finally {
+            ds.destroy();
+        }
+    }
+
+    private static long perRow(JdbcTemplate jdbc, TransactionTemplate tx, String companyId, int rows) {
+        long start = System.nanoTime();
+        for (int done = 0; done < rows; done += BATCH) {
+            int n = Math.min(BATCH, rows - done);
+            tx.executeWithoutResult(status -> {
+                for (int i = 0; i < n; i++) {
+                    WhatsAppMessage m = message(companyId);
+                    jdbc.queryForObject("INSERT INTO whatsapp_messages (id, external_message_id, company_id, contact_id, content, timestamp, is_from_me, message_type, status) " +
+                                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING id", Long.class,
+                            nextPerRowId--, m.getExternalMessageId(), m.getCompanyId(), m.getContactId(), m.getContent(),
+                            Timestamp.from(m.getTimestamp()), m.getIsFromMe(), m.getMessageType(), m.getStatus());
+                }
+            });
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long bulk(WhatsAppMessageBulkWriter writer, TransactionTemplate tx, String companyId, int rows, boolean ignoreDuplicates) {
+        long start = System.nanoTime();
+        for (int done = 0; done < rows; done += BATCH) {
+            List<WhatsAppMessage> batch = new ArrayList<>(BATCH);
+            for (int i = 0, n = Math.min(BATCH, rows - done); i < n; i++) {
+                batch.add(message(companyId));
+            }
+            tx.executeWithoutResult(status -> {
+                if (ignoreDuplicates) writer.insertIgnoringDuplicates(batch);
+                else writer.insertAll(batch);
+            });
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static WhatsAppMessage message(String companyId) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setExternalMessageId("3EB0" + UUID.randomUUID().toString().replace("-", "").substring(0, 16).toUpperCase());
+        m.setCompanyId(companyId);
+        m.setContactId("5544999999999");
+        m.setContent("Olá, gostaria de saber o status do pedido 4587123");
+        m.setTimestamp(Instant.now());
+        m.setIsFromMe(false);
+        m.setMessageType("text");
+        m.setStatus("received");
+        return m;
+    }
+
+    private static void report(String mode, int rows, long nanos) {
+        System.out.printf("%-20s %8d rows  %8.0f rows/s%n", mode, rows, rows / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,82 @@
+package crm.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.dto.IncomingZapiEvent;
+import crm.service.ZapiWebhookDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Webhook decode cost: legacy ObjectMapper-to-Map plus Map adapter vs. the single-pass streaming decoder,
+ * over the Z-API samples in src/test/resources/zapi.
+ *
+ * Run after {@code mvn test-compile}, e.g. from the IDE or with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> crm.benchmark.ZapiWebhookDecoderBenchmark}.
+ * The main method enables the GC profiler so allocation per webhook (gc.alloc.rate.norm) is reported too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZapiWebhookDecoderBenchmark {
+
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    @Param({"received-text", "received-image", "received-audio", "received-list", "received-messages-array", "message-status"})
+    public String sample;
+
+    private ObjectMapper objectMapper;
+    private ZapiWebhookDecoder decoder;
+    private IncomingZapiEvent event;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = new ObjectMapper();
+        decoder = new ZapiWebhookDecoder(objectMapper);
+        event = new IncomingZapiEvent();
+        try (InputStream in = ZapiWebhookDecoderBenchmark.class.getResourceAsStream("/zapi/" + sample + ".json")) {
+            if (in == null) throw new IllegalStateException("amostra não encontrada: " + sample);
+            body = in.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> legacyMapAdapter() throws IOException {
+        Map<String, Object> parsed = objectMapper.readValue(body, MAP_TYPE);
+        return LegacyZapiAdapter.adapt(parsed);
+    }
+
+    @Benchmark
+    public Map<String, Object> streamingDecoder() throws IOException {
+        decoder.decodeInto(body, event);
+        return decoder.adapt(event);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ZapiWebhookDecoderBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
@@ -0,0 +1,86 @@
+package crm.controller;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppWebhookControllerRawPersistPatchTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private WhatsAppWebhookControllerRawPersistPatch debugPersist;
+    private final List<List<String>> copied = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        debugPersist = new WhatsAppWebhookControllerRawPersistPatch(jdbcTemplate, null);
+        CopyManager copyApi = mock(CopyManager.class);
+        // Like Postgres, a COPY with one bad row stores nothing
+        when(copyApi.copyIn(anyString(), any(Reader.class))).thenAnswer(inv -> {
+            List<String> lines = new BufferedReader(inv.<Reader>getArgument(1)).lines().collect(Collectors.toList());
+            if (lines.stream().anyMatch(l -> l.contains("bad"))) throw new SQLException("invalid byte sequence", "22021");
+            copied.add(lines);
+            return (long) lines.size();
+        });
+        PGConnection pg = mock(PGConnection.class);
+        when(pg.getCopyAPI()).thenReturn(copyApi);
+        Connection con = mock(Connection.class);
+        when(con.unwrap(PGConnection.class)).thenReturn(pg);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(inv -> {
+            try {
+                return inv.<ConnectionCallback<?>>getArgument(0).doInConnection(con);
+            } catch (SQLException e) {
+                throw new DataIntegrityViolationException("COPY", e);
+            }
+        });
+    }
+
+    @Test
+    void testBadRowOnlyLosesItself() {
+        debugPersist.write(rows("m1", "m2", "bad", "m4", "m5"));
+
+        assertEquals(4, copied.stream().mapToInt(List::size).sum());
+        assertEquals(4L, debugPersist.snapshot().get("written"));
+        assertEquals(1L, debugPersist.snapshot().get("failed"));
+        // The partitions are checked once before splitting
+        verify(jdbcTemplate, atLeastOnce()).execute(startsWith("CREATE TABLE IF NOT EXISTS whatsapp_webhook_debug_p"));
+    }
+
+    @Test
+    void testUnreachableDatabaseIsNotBisected() {
+        reset(jdbcTemplate);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenThrow(new CannotGetJdbcConnectionException("down"));
+
+        debugPersist.write(rows("m1", "m2", "m3", "m4"));
+
+        verify(jdbcTemplate, times(1)).execute(any(ConnectionCallback.class));
+        assertEquals(4L, debugPersist.snapshot().get("failed"));
+    }
+
+    private static List<WhatsAppWebhookControllerRawPersistPatch.PendingRow> rows(String... messageIds) {
+        List<WhatsAppWebhookControllerRawPersistPatch.PendingRow> rows = new ArrayList<>();
+        for (String id : messageIds) {
+            rows.add(new WhatsAppWebhookControllerRawPersistPatch.PendingRow(id, Instant.parse("2024-05-01T10:00:00Z"),
+                    "{\"messageId\":\"" + id + "\"}", "instance-1", id, "5544999990001"));
+        }
+        return rows;
+    }
+}
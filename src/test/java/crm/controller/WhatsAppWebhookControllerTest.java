@@ -4,24 +4,41 @@ import crm.model.ModifyChatRequest;
 import crm.model.WebhookUpdateRequest;
 import crm.dto.ChatPresenceDTO;
 import crm.dto.MessageStatusDTO;
+import crm.dto.WhatsAppIncomingMessageDTO;
 import crm.service.WhatsappService;
 import crm.service.WhatsAppSseService;
 import crm.service.WhatsAppConfigService;
 import crm.service.WhatsAppMessageService;
 import crm.service.WhatsAppContactService;
+import crm.service.WebhookAdmissionControl;
+import crm.service.ZapiWebhookDecoder;
+import crm.tenant.TenantResolver;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.ResponseEntity;
-
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -45,6 +62,15 @@ public class WhatsAppWebhookControllerTest {
     @Mock
     private WhatsAppWebhookControllerRawPersistPatch webhookDebugPersist;
 
+    @Mock
+    private TenantResolver tenantResolver;
+
+    @Mock
+    private WebhookAdmissionControl admission;
+
+    @Spy
+    private ZapiWebhookDecoder zapiDecoder = new ZapiWebhookDecoder(new ObjectMapper());
+
     @InjectMocks
     private WhatsAppWebhookController controller;
 
@@ -142,6 +168,7 @@ public class WhatsAppWebhookControllerTest {
         presence.setPhone("5544999999999");
         presence.setStatus("AVAILABLE");
         presence.setInstanceId("instance123");
+        when(configService.resolvePublishCompanyId("instance123")).thenReturn("company-1");
 
         // When
         ResponseEntity<?> response = controller.handleChatPresenceWebhook(presence);
@@ -149,7 +176,7 @@ public class WhatsAppWebhookControllerTest {
         // Then
         assertEquals(200, response.getStatusCodeValue());
         assertTrue((Boolean) ((Map<String, Object>) response.getBody()).get("success"));
-        verify(sseService).publish(any(String.class), any(Map.class));
+        verify(sseService).publish(eq("company-1"), eq("5544999999999"), any(Map.class));
     }
 
     @Test
@@ -162,13 +189,116 @@ public class WhatsAppWebhookControllerTest {
         status.setIds(new String[]{"msg123"});
         status.setInstanceId("instance123");
         status.setIsGroup(false);
+        when(configService.resolvePublishCompanyId("instance123")).thenReturn("company-1");
+        when(admission.offerStatus(eq("company-1"), eq("5544999999999"), any(String[].class), eq("READ"), any(Map.class)))
+                .thenReturn(true, false);
 
         // When
         ResponseEntity<?> response = controller.handleMessageStatusWebhook(status);
 
-        // Then
+        // Then: stored and published by the status lane, not on the request thread
         assertEquals(200, response.getStatusCodeValue());
         assertTrue((Boolean) ((Map<String, Object>) response.getBody()).get("success"));
-        verify(sseService).publish(any(String.class), any(Map.class));
+        verify(admission).offerStatus(eq("company-1"), eq("5544999999999"), eq(new String[]{"msg123"}), eq("READ"), any(Map.class));
+        verifyNoInteractions(sseService);
+        verify(messageService, never()).applyStatus(any(), any(), any(), any());
+
+        // A full lane is answered 429 so the callback is sent again
+        assertEquals(429, controller.handleMessageStatusWebhook(status).getStatusCode().value());
+    }
+
+    @Test
+    void testReceiveWebhook_MalformedJsonIsBadRequest() {
+        ResponseEntity<?> response = controller.receiveWebhook(Map.of(), "{\"type\": \"ReceivedCallback\",".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(400, response.getStatusCode().value());
+        assertEquals("invalid json", ((Map<?, ?>) response.getBody()).get("reason"));
+        verifyNoInteractions(messageService);
+    }
+
+    @Test
+    void testReceiveWebhook_EmptyBodyIsAcknowledged() {
+        ResponseEntity<?> response = controller.receiveWebhook(Map.of(), new byte[0]);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals("empty payload", ((Map<?, ?>) response.getBody()).get("reason"));
+    }
+
+    @Test
+    void testRawWebhookLeavesThePublishToTheService() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContent(("{\"type\":\"ReceivedCallback\",\"phone\":\"5544999999999\",\"fromMe\":false,"
+                + "\"messageId\":\"msg123\",\"text\":{\"message\":\"oi\"}}").getBytes(StandardCharsets.UTF_8));
+        // A Z-API retry of a message that is already stored
+        when(messageService.saveIncomingMessage(any(WhatsAppIncomingMessageDTO.class))).thenReturn(null);
+
+        ResponseEntity<?> response = controller.logAnyWebhook(Map.of(), request);
+
+        assertEquals(true, ((Map<?, ?>) response.getBody()).get("adapted"));
+        verify(messageService).saveIncomingMessage(any(WhatsAppIncomingMessageDTO.class));
+        verifyNoInteractions(sseService);
+    }
+
+    @Test
+    void testSendMessageLeavesThePublishToTheService() {
+        when(whatsappService.enviarMensagem(any())).thenReturn("{}");
+
+        ResponseEntity<?> response = controller.sendMessage(Map.of("contactId", "5544999999999", "message", "oi"));
+
+        assertEquals(200, response.getStatusCode().value());
+        verify(messageService).saveIncomingMessage(any(Map.class));
+        verifyNoInteractions(sseService);
+    }
+
+    @Test
+    void testExportSlotIsReleasedWhenTheRequestEndsBeforeTheBodyRuns() throws Exception {
+        when(tenantResolver.getCurrentCompanyId()).thenReturn("company-1");
+        when(messageService.tryStartExport()).thenReturn(true);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+
+        ResponseEntity<StreamingResponseBody> response = controller.exportConversations("ndjson", null, null, null, false, request);
+        // Async timeout: the body was never started
+        exportInterceptor(request).afterCompletion(new ServletWebRequest(request), null);
+        response.getBody().writeTo(new ByteArrayOutputStream());
+
+        verify(messageService).releaseExport();
+        verify(messageService, never()).exportMessages(any(), any(), any(), any(), any(), anyBoolean(), any());
+    }
+
+    @Test
+    void testExportSlotIsLeftToTheBodyOnceItStarted() throws Exception {
+        when(tenantResolver.getCurrentCompanyId()).thenReturn("company-1");
+        when(messageService.tryStartExport()).thenReturn(true);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+
+        ResponseEntity<StreamingResponseBody> response = controller.exportConversations("csv", null, null, null, false, request);
+        response.getBody().writeTo(new ByteArrayOutputStream());
+        exportInterceptor(request).afterCompletion(new ServletWebRequest(request), null);
+
+        verify(messageService).exportMessages(eq("company-1"), isNull(), isNull(), isNull(), any(), eq(false), any());
+        // exportMessages gives the slot back itself
+        verify(messageService, never()).releaseExport();
+    }
+
+    @Test
+    void testExportAloneGetsTheLongAsyncTimeout() throws Exception {
+        when(tenantResolver.getCurrentCompanyId()).thenReturn("company-1");
+        when(messageService.tryStartExport()).thenReturn(true);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        AsyncWebRequest asyncRequest = mock(AsyncWebRequest.class);
+
+        controller.exportConversations("ndjson", null, null, null, false, request);
+        exportInterceptor(request).beforeConcurrentHandling(asyncRequest, () -> null);
+
+        verify(asyncRequest).setTimeout(21600000L);
+        // Other requests never register the interceptor, so the global default stays
+        assertNull(exportInterceptor(new MockHttpServletRequest()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CallableProcessingInterceptor exportInterceptor(MockHttpServletRequest request) {
+        Map<Object, CallableProcessingInterceptor> interceptors = (Map<Object, CallableProcessingInterceptor>)
+                ReflectionTestUtils.getField(WebAsyncUtils.getAsyncManager(request), "callableInterceptors");
+        return interceptors.get(WhatsAppWebhookController.EXPORT_SLOT);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package crm.repository;
+
+import crm.service.WhatsAppMessageService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs the conversation page queries against the database; every row is rolled back
+@SpringBootTest
+@Transactional
+class WhatsAppConversationStoreSqlTests {
+
+    private static final String COMPANY = "company-conversation-page-test";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private WhatsAppConversationStore store;
+
+    @Autowired
+    private WhatsAppMessageService messageService;
+
+    @BeforeEach
+    void insertConversations() {
+        // Two pairs share an instant, two have no message time at all
+        conversation("5544000000005", "2024-05-01T10:00:00Z");
+        conversation("5544000000002", "2024-05-01T12:00:00Z");
+        conversation("5544000000004", "2024-05-01T12:00:00Z");
+        conversation("5544000000001", "2024-05-01T09:00:00Z");
+        conversation("5544000000003", "2024-05-01T10:00:00Z");
+        conversation("5544000000007", null);
+        conversation("5544000000006", null);
+        conversation("5544000000008", "2024-05-01T11:00:00Z");
+        // Another company's conversation never shows up
+        jdbcTemplate.update("INSERT INTO whatsapp_conversations (company_id, contact_id, last_timestamp) VALUES (?, ?, ?)",
+                "other-" + COMPANY, "5544000000009", Timestamp.from(Instant.parse("2024-05-01T11:30:00Z")));
+    }
+
+    @Test
+    void testKeysetPagesWalkTheActivityOrderWithoutGapsOrRepeats() {
+        List<String> expected = List.of("5544000000002", "5544000000004", "5544000000008", "5544000000003",
+                "5544000000005", "5544000000001", "5544000000006", "5544000000007");
+        for (int size = 1; size <= 4; size++) {
+            List<String> walked = new ArrayList<>();
+            List<WhatsAppConversationStore.Summary> page = store.findPage(COMPANY, null, null, size);
+            while (!page.isEmpty()) {
+                page.forEach(c -> walked.add(c.contactId()));
+                WhatsAppConversationStore.Summary last = page.get(page.size() - 1);
+                page = store.findPage(COMPANY, last.lastTimestamp(), last.contactId(), size);
+            }
+            assertEquals(expected, walked, "page size " + size);
+        }
+    }
+
+    @Test
+    void testServiceCursorResumesAfterTheLastConversationOfThePage() {
+        List<String> walked = new ArrayList<>();
+        WhatsAppMessageService.ConversationPage page = messageService.listConversations(COMPANY, null, 3);
+        int pages = 1;
+        while (true) {
+            page.conversations().forEach(c -> walked.add((String) c.get("contactId")));
+            if (!page.hasMore()) break;
+            page = messageService.listConversations(COMPANY, page.nextCursor(), 3);
+            pages++;
+        }
+
+        assertEquals(3, pages);
+        assertEquals(8, walked.size());
+        assertEquals(8, walked.stream().distinct().count());
+        assertNull(page.nextCursor());
+        assertThrows(IllegalArgumentException.class, () -> messageService.listConversations(COMPANY, "%%", 3));
+    }
+
+    @Test
+    void testRefreshCountsArchivedMessages() {
+        String contactId = "5544000000010";
+        jdbcTemplate.update("INSERT INTO " + WhatsAppMessagePartitions.ARCHIVE + " (id, company_id, contact_id, content, timestamp, is_from_me) " +
+                "VALUES (?, ?, ?, 'arquivada', ?, false)", -9_100_000_001L, COMPANY, contactId, Timestamp.from(Instant.parse("2020-01-10T10:00:00Z")));
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, company_id, contact_id, content, timestamp, is_from_me) " +
+                "VALUES (?, ?, ?, 'recente', ?, false)", -9_100_000_002L, COMPANY, contactId, Timestamp.from(Instant.parse("2024-05-02T10:00:00Z")));
+
+        store.refresh(List.of(new WhatsAppConversationStore.Key(COMPANY, contactId)));
+
+        WhatsAppConversationStore.Summary summary = store.findPage(COMPANY, null, null, 1).get(0);
+        assertEquals(contactId, summary.contactId());
+        assertEquals(2, summary.messageCount());
+        assertEquals(2, summary.unreadCount());
+        assertEquals("recente", summary.lastPreview());
+    }
+
+    private void conversation(String contactId, String lastTimestamp) {
+        jdbcTemplate.update("INSERT INTO whatsapp_conversations (company_id, contact_id, message_count, last_timestamp) VALUES (?, ?, 1, ?)",
+                COMPANY, contactId, lastTimestamp != null ? Timestamp.from(Instant.parse(lastTimestamp)) : null);
+    }
+}
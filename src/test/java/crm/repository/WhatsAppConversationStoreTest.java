@@ -0,0 +1,94 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppConversationStoreTest {
+
+    @Test
+    void testSummarizeGroupsByConversationAndKeepsNewestMessage() {
+        WhatsAppMessage first = message(1L, "company-b", "5544999990001", "2024-05-01T10:00:00Z", false);
+        WhatsAppMessage reply = message(2L, "company-b", "5544999990001", "2024-05-01T10:05:00Z", true);
+        // Arrived later but happened earlier: must not become the last message
+        WhatsAppMessage late = message(3L, "company-b", "5544999990001", "2024-05-01T09:00:00Z", false);
+        WhatsAppMessage other = message(4L, "company-a", "5544999990002", "2024-05-01T08:00:00Z", false);
+        WhatsAppMessage unrouted = message(5L, null, "5544999990003", "2024-05-01T08:00:00Z", false);
+
+        List<WhatsAppConversationStore.Delta> deltas =
+                WhatsAppConversationStore.summarize(Arrays.asList(first, reply, late, other, unrouted, null));
+
+        assertEquals(2, deltas.size());
+        assertEquals("company-a", deltas.get(0).key().companyId());
+        WhatsAppConversationStore.Delta chat = deltas.get(1);
+        assertEquals(3, chat.count());
+        assertEquals(2, chat.inbound());
+        assertSame(reply, chat.last());
+        assertSame(first, chat.lastInbound());
+    }
+
+    @Test
+    void testRecordInsertedUpsertsOneRowPerConversation() {
+        JdbcTemplate jdbc = mock(JdbcTemplate.class);
+        WhatsAppConversationStore store = new WhatsAppConversationStore(jdbc);
+
+        store.recordInserted(List.of(
+                message(1L, "company-a", "1", "2024-05-01T10:00:00Z", false),
+                message(2L, "company-a", "1", "2024-05-01T10:01:00Z", false)));
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbc).update(sql.capture(), args.capture());
+        assertTrue(sql.getValue().contains("ON CONFLICT (company_id, contact_id) DO UPDATE"));
+        assertTrue(sql.getValue().contains("message_count = c.message_count + EXCLUDED.message_count"));
+        // Inbound messages behind the read watermark don't count as unread
+        assertTrue(sql.getValue().contains("unread_count = c.unread_count + CASE WHEN c.read_timestamp IS NULL"));
+        Object[] row = args.getValue();
+        assertEquals(13, row.length);
+        assertEquals(2L, row[2]);
+        assertEquals(2, row[3]);
+        assertEquals(2L, row[4]);
+        assertEquals(Timestamp.from(Instant.parse("2024-05-01T10:01:00Z")), row[10]);
+        assertEquals(2L, row[11]);
+    }
+
+    @Test
+    void testNothingToRecordDoesNotTouchTheDatabase() {
+        JdbcTemplate jdbc = mock(JdbcTemplate.class);
+
+        new WhatsAppConversationStore(jdbc).recordInserted(List.of(message(1L, "", "1", "2024-05-01T10:00:00Z", false)));
+
+        verify(jdbc, never()).update(anyString(), any(Object[].class));
+    }
+
+    @Test
+    void testPreviewIsTruncatedWithoutSplittingEmoji() {
+        String text = "a".repeat(WhatsAppConversationStore.PREVIEW_LENGTH - 1) + "😀tail";
+
+        String preview = WhatsAppConversationStore.preview(text);
+
+        assertEquals(WhatsAppConversationStore.PREVIEW_LENGTH - 1, preview.length());
+        assertEquals("curto", WhatsAppConversationStore.preview("curto"));
+    }
+
+    private static WhatsAppMessage message(Long id, String companyId, String contactId, String ts, boolean fromMe) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setId(id);
+        m.setCompanyId(companyId);
+        m.setContactId(contactId);
+        m.setContent("msg " + id);
+        m.setTimestamp(Instant.parse(ts));
+        m.setIsFromMe(fromMe);
+        return m;
+    }
+}
@@ -0,0 +1,72 @@
+package crm.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppMessageExportTest {
+
+    @Test
+    void testCsvQuotesOnlyFieldsThatNeedIt() throws Exception {
+        StringWriter out = new StringWriter();
+        WhatsAppMessageExport.CsvRowWriter csv = new WhatsAppMessageExport.CsvRowWriter(out);
+
+        csv.begin();
+        csv.row(row("ext-1", "Olá, tudo \"bem\"?\nlinha 2"));
+        csv.row(row(null, "simples"));
+
+        assertEquals("id,contactId,timestamp,isFromMe,messageType,status,content\r\n" +
+                "ext-1,5544999990001,2024-05-01T10:00:00Z,true,text,read,\"Olá, tudo \"\"bem\"\"?\nlinha 2\"\r\n" +
+                "7,5544999990001,2024-05-01T10:00:00Z,true,text,read,simples\r\n", out.toString());
+    }
+
+    @Test
+    void testNdjsonWritesOneObjectPerLine() throws Exception {
+        StringWriter out = new StringWriter();
+        WhatsAppMessageExport.JsonRowWriter json = new WhatsAppMessageExport.JsonRowWriter(new ObjectMapper(), out);
+
+        json.row(row("ext-1", "linha 1\nlinha 2"));
+        json.row(row("ext-2", "ok"));
+        json.end();
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":\"ext-1\",\"contactId\":\"5544999990001\""));
+        assertTrue(lines[0].endsWith("\"content\":\"linha 1\\nlinha 2\"}"));
+        assertTrue(lines[1].startsWith("{\"id\":\"ext-2\""));
+    }
+
+    @Test
+    void testFiltersBecomeParameters() {
+        List<Object> args = new ArrayList<>();
+        WhatsAppMessageExport.Request request = new WhatsAppMessageExport.Request("company-a", "5544999990001",
+                Instant.parse("2024-05-01T00:00:00Z"), null, WhatsAppMessageExport.Format.CSV, false);
+
+        String sql = WhatsAppMessageExport.select("whatsapp_messages", request, args);
+
+        assertTrue(sql.endsWith("WHERE company_id = ? AND contact_id = ? AND timestamp >= ?"));
+        assertEquals(List.of("company-a", "5544999990001", Timestamp.from(Instant.parse("2024-05-01T00:00:00Z"))), args);
+    }
+
+    private static ResultSet row(String externalId, String content) throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString("external_message_id")).thenReturn(externalId);
+        when(rs.getLong("id")).thenReturn(7L);
+        when(rs.getString("contact_id")).thenReturn("5544999990001");
+        when(rs.getTimestamp("timestamp")).thenReturn(Timestamp.from(Instant.parse("2024-05-01T10:00:00Z")));
+        when(rs.getBoolean("is_from_me")).thenReturn(true);
+        when(rs.getString("message_type")).thenReturn("text");
+        when(rs.getString("status")).thenReturn("read");
+        when(rs.getString("content")).thenReturn(content);
+        return rs;
+    }
+}
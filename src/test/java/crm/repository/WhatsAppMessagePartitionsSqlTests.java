@@ -0,0 +1,179 @@
+package crm.repository;
+
+import crm.entity.WhatsAppMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Converts and archives a throwaway whatsapp_messages in its own schema; the schema and every row are rolled back
+@SpringBootTest
+@Transactional
+class WhatsAppMessagePartitionsSqlTests {
+
+    private static final YearMonth NOW = YearMonth.now(ZoneOffset.UTC);
+    private static final Instant CUTOFF = NOW.minusMonths(12).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC);
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private WhatsAppMessageBulkWriter bulkWriter;
+    private long nextId = 1;
+
+    @BeforeEach
+    void createHeap() {
+        jdbcTemplate.execute("CREATE SCHEMA partitions_test");
+        jdbcTemplate.execute("SET LOCAL search_path TO partitions_test");
+        jdbcTemplate.execute("CREATE TABLE whatsapp_messages (id bigint NOT NULL, external_message_id varchar(255), " +
+                "company_id varchar(255), contact_id varchar(255), content text, timestamp timestamp(6) with time zone, " +
+                "is_from_me boolean, message_type varchar(255), status varchar(255))");
+        jdbcTemplate.execute("CREATE SEQUENCE " + WhatsAppMessageBulkWriter.SEQUENCE + " START WITH 1000 INCREMENT BY " +
+                WhatsAppMessageBulkWriter.ALLOCATION_SIZE);
+        bulkWriter = new WhatsAppMessageBulkWriter(jdbcTemplate);
+        message(NOW.minusMonths(24));
+        message(NOW.minusMonths(13));
+        message(NOW.minusMonths(2));
+    }
+
+    @Test
+    void testPlainTableIsOnlyConvertedWhenEnabled() {
+        WhatsAppMessagePartitions partitions = new WhatsAppMessagePartitions(jdbcTemplate, transactionTemplate, bulkWriter);
+        partitions.ensurePartitioned();
+
+        assertFalse(partitions.partitioned());
+        assertEquals("r", relkind());
+        assertFalse(bulkWriter.keyed());
+    }
+
+    @Test
+    void testMessagesWithoutTimestampPostponeTheConversionUntouched() {
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, external_message_id, company_id, contact_id, content) " +
+                "VALUES (900, 'MSG-900', 'company-partitions-test', '5544000000001', 'sem data')");
+
+        WhatsAppMessagePartitions partitions = partitions();
+        partitions.ensurePartitioned();
+
+        assertFalse(partitions.partitioned());
+        assertEquals("r", relkind());
+        assertNull(jdbcTemplate.queryForObject("SELECT timestamp FROM whatsapp_messages WHERE id = 900", Timestamp.class));
+        assertFalse(exists("whatsapp_message_keys"));
+    }
+
+    @Test
+    void testConversionRemovesDuplicatesAndKeepsDeduplicatingMessagesWithoutCompany() {
+        // Copies a webhook retry left behind before the unique indexes existed
+        insert(100, "MSG-X", "company-partitions-test");
+        insert(101, "MSG-X", "company-partitions-test");
+        insert(102, "MSG-Y", null);
+        insert(103, "MSG-Y", null);
+
+        WhatsAppMessagePartitions partitions = partitions();
+        partitions.ensurePartitioned();
+
+        assertTrue(partitions.partitioned());
+        assertTrue(bulkWriter.keyed());
+        assertEquals(List.of(1L, 2L, 3L, 100L, 102L), jdbcTemplate.queryForList("SELECT id FROM whatsapp_messages ORDER BY id", Long.class));
+        assertEquals(102L, jdbcTemplate.queryForObject("SELECT message_id FROM whatsapp_message_keys WHERE company_id = ? " +
+                "AND external_message_id = 'MSG-Y'", Long.class, WhatsAppMessageBulkWriter.NO_COMPANY));
+        // The key trigger only lived while the keys were copied
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT count(*) FROM pg_trigger WHERE NOT tgisinternal " +
+                "AND tgrelid = to_regclass('" + WhatsAppMessagePartitions.LEGACY + "')", Integer.class));
+
+        boolean[] inserted = bulkWriter.insertIgnoringDuplicates(List.of(
+                message("MSG-Y", null), message("MSG-Z", null), message("MSG-X", "company-partitions-test"),
+                message("MSG-Y", "company-partitions-test")));
+        assertArrayEquals(new boolean[]{false, true, false, true}, inserted);
+    }
+
+    @Test
+    void testDrainingLegacyMovesTheWatermarkToTheCutoffOnly() {
+        WhatsAppMessagePartitions partitions = partitions();
+        partitions.ensurePartitioned();
+        assertTrue(partitions.partitioned());
+        assertNull(partitions.archivedBefore());
+
+        partitions.maintain();
+
+        // The legacy partition reaches into next month, but only the rows before the cutoff were archived
+        assertEquals(CUTOFF, partitions.archivedBefore());
+        assertEquals(2, count(WhatsAppMessagePartitions.ARCHIVE));
+        assertEquals(1, count(WhatsAppMessagePartitions.LEGACY));
+        assertEquals(2L, partitions.snapshot().get("rowsDrained"));
+
+        // A restart reads the same watermark back instead of the legacy partition's upper bound
+        WhatsAppMessagePartitions restarted = partitions();
+        restarted.ensurePartitioned();
+        assertEquals(CUTOFF, restarted.archivedBefore());
+    }
+
+    @Test
+    void testWatermarkNeverMovesBackWhenTheCutoffDoes() {
+        WhatsAppMessagePartitions partitions = partitions();
+        partitions.ensurePartitioned();
+        partitions.maintain();
+
+        // Keeping more months live afterwards leaves the archived rows older than the old cutoff where they are
+        ReflectionTestUtils.setField(partitions, "archiveAfterMonths", 18);
+        partitions.maintain();
+
+        assertEquals(CUTOFF, partitions.archivedBefore());
+        assertEquals(2, count(WhatsAppMessagePartitions.ARCHIVE));
+    }
+
+    private WhatsAppMessagePartitions partitions() {
+        WhatsAppMessagePartitions partitions = new WhatsAppMessagePartitions(jdbcTemplate, transactionTemplate, bulkWriter);
+        ReflectionTestUtils.setField(partitions, "enabled", true);
+        return partitions;
+    }
+
+    private String relkind() {
+        return jdbcTemplate.queryForObject("SELECT relkind::text FROM pg_class WHERE oid = to_regclass('whatsapp_messages')", String.class);
+    }
+
+    private boolean exists(String table) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, table));
+    }
+
+    private void insert(long id, String externalId, String companyId) {
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, external_message_id, company_id, contact_id, content, timestamp, is_from_me) " +
+                "VALUES (?, ?, ?, '5544000000002', 'oi', ?, false)",
+                id, externalId, companyId, Timestamp.from(NOW.minusMonths(1).atDay(5).atStartOfDay().toInstant(ZoneOffset.UTC)));
+    }
+
+    private static WhatsAppMessage message(String externalId, String companyId) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setExternalMessageId(externalId);
+        m.setCompanyId(companyId);
+        m.setContactId("5544000000002");
+        m.setContent("de novo");
+        m.setTimestamp(Instant.now());
+        m.setIsFromMe(false);
+        return m;
+    }
+
+    private int count(String table) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM " + table, Integer.class);
+    }
+
+    private void message(YearMonth month) {
+        long id = nextId++;
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, external_message_id, company_id, contact_id, content, timestamp, is_from_me) " +
+                "VALUES (?, ?, 'company-partitions-test', '5544000000001', 'oi', ?, false)",
+                id, "MSG-" + id, Timestamp.from(month.atDay(10).atStartOfDay().toInstant(ZoneOffset.UTC)));
+    }
+}
@@ -0,0 +1,25 @@
+package crm.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.YearMonth;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WhatsAppMessagePartitionsTest {
+
+    @Test
+    void testPartitionNamesRoundTripToTheirMonth() {
+        String name = WhatsAppMessagePartitions.partitionName(YearMonth.of(2026, 3));
+
+        assertEquals("whatsapp_messages_p2026_03", name);
+        assertEquals(YearMonth.of(2026, 3), WhatsAppMessagePartitions.monthOf(name));
+        // Archived partitions keep the month suffix
+        assertEquals(YearMonth.of(2025, 12), WhatsAppMessagePartitions.monthOf("whatsapp_messages_archive_p2025_12"));
+    }
+
+    @Test
+    void testBoundsAreUtcMonthStarts() {
+        assertEquals("'2026-11-01T00:00:00Z'", WhatsAppMessagePartitions.literal(YearMonth.of(2026, 11)));
+    }
+}
@@ -0,0 +1,119 @@
+package crm.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+// Runs the tsvector and trigram search queries against the database; every row is rolled back
+@SpringBootTest
+@Transactional
+class WhatsAppMessageSearchSqlTests {
+
+    private static final String COMPANY = "company-message-search-test";
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private WhatsAppMessageSearch search;
+
+    private long nextId = -9_000_000_000L;
+
+    @BeforeEach
+    void insertMessages() {
+        // Oldest, but by far the best match for "pedido atrasado"
+        message("5544000000001", 0, "O pedido atrasado de novo, pedido atrasado desde segunda, cadê meu pedido atrasado?");
+        message("5544000000001", 1, "Bom dia, tudo bem?");
+        message("5544000000002", 2, "Recebi o pedido hoje, obrigado");
+        message("5544000000002", 3, "O pedido 4587123 está atrasado?");
+        message("5544000000003", 4, "Meu pedido chegou");
+        message("5544000000003", 5, "Código de rastreio BR45871 enviado");
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, company_id, contact_id, content, timestamp) VALUES (?, ?, ?, ?, ?)",
+                nextId++, "other-" + COMPANY, "5544000000001", "pedido 4587 atrasado", Timestamp.from(T0));
+    }
+
+    @AfterEach
+    void restoreCandidates() {
+        maxCandidates(2000);
+    }
+
+    @Test
+    void testWordsAreRankedBeforeThePageIsCut() {
+        WhatsAppMessageSearch.Result result = search.search(COMPANY, null, "pedido atrasado", 2, 0);
+
+        assertEquals(WhatsAppMessageSearch.Mode.FULLTEXT, result.mode());
+        List<String> contents = result.hits().stream().map(h -> h.message().getContent()).toList();
+        assertTrue(contents.get(0).startsWith("O pedido atrasado de novo"), contents.toString());
+        assertEquals("O pedido 4587123 está atrasado?", contents.get(1));
+        assertTrue(result.hits().get(0).rank() > result.hits().get(1).rank());
+        assertTrue(result.hits().get(0).snippet().contains(WhatsAppMessageSearch.MARK_START));
+
+        List<WhatsAppMessageSearch.Hit> chat = search.search(COMPANY, "5544000000003", "pedido", 10, 0).hits();
+        assertEquals(List.of("Meu pedido chegou"), chat.stream().map(h -> h.message().getContent()).toList());
+    }
+
+    @Test
+    void testOnlyTheNewestCandidatesAreRanked() {
+        maxCandidates(3);
+
+        List<String> contents = search.search(COMPANY, null, "pedido", 2, 0).hits().stream()
+                .map(h -> h.message().getContent()).toList();
+
+        // The oldest match is outside the three newest, however well it ranks
+        assertEquals(2, contents.size());
+        assertFalse(contents.stream().anyMatch(c -> c.startsWith("O pedido atrasado de novo")), contents.toString());
+    }
+
+    @Test
+    void testNumberFragmentsUseTheTrigramIndexNewestFirst() {
+        WhatsAppMessageSearch.Result result = search.search(COMPANY, null, "4587", 10, 0);
+
+        assertEquals(WhatsAppMessageSearch.Mode.TRIGRAM, result.mode());
+        assertEquals(List.of("Código de rastreio BR45871 enviado", "O pedido 4587123 está atrasado?"),
+                result.hits().stream().map(h -> h.message().getContent()).toList());
+        assertNull(result.hits().get(0).rank());
+        assertTrue(result.hits().get(1).snippet().contains(WhatsAppMessageSearch.MARK_START + "4587" + WhatsAppMessageSearch.MARK_END));
+        // LIKE wildcards in the query are literal
+        assertTrue(search.search(COMPANY, null, "45%7", 10, 0).hits().isEmpty());
+    }
+
+    @Test
+    void testStartupOnlyChecksTheIndexes() {
+        JdbcTemplate spy = spy(jdbcTemplate);
+        WhatsAppMessageSearch fresh = new WhatsAppMessageSearch(spy);
+
+        fresh.ensureIndexes();
+
+        // The column and indexes already exist; nothing is altered or built at boot
+        verify(spy, never()).execute(anyString());
+        assertEquals(true, fresh.snapshot().get("fullTextReady"));
+        assertEquals(true, fresh.snapshot().get("trigramReady"));
+        assertEquals("not started", fresh.snapshot().get("migration"));
+    }
+
+    // The bean is a proxy; the setting lives on the target
+    private void maxCandidates(int value) {
+        Object target = AopTestUtils.getTargetObject(search);
+        ReflectionTestUtils.setField(target, "maxCandidates", value);
+    }
+
+    private void message(String contactId, int minutes, String content) {
+        jdbcTemplate.update("INSERT INTO whatsapp_messages (id, company_id, contact_id, content, timestamp, is_from_me) VALUES (?, ?, ?, ?, ?, false)",
+                nextId++, COMPANY, contactId, content, Timestamp.from(T0.plusSeconds(60L * minutes)));
+    }
+}
@@ -0,0 +1,28 @@
+package crm.repository;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WhatsAppMessageSearchTest {
+
+    @Test
+    void testNumberFragmentsGoToSubstringSearch() {
+        assertTrue(WhatsAppMessageSearch.looksLikeNumber("4587"));
+        assertTrue(WhatsAppMessageSearch.looksLikeNumber("#45.871-23"));
+        assertTrue(WhatsAppMessageSearch.looksLikeNumber("BR4587"));
+        assertFalse(WhatsAppMessageSearch.looksLikeNumber("pedido 4587"));
+        assertFalse(WhatsAppMessageSearch.looksLikeNumber("12"));
+    }
+
+    @Test
+    void testSubstringSnippetMarksTheMatchWithContext() {
+        String content = "Olá! ".repeat(20) + "O número do pedido é 4587123, pode verificar?";
+
+        String snippet = WhatsAppMessageSearch.substringSnippet(content, "871");
+
+        assertTrue(snippet.startsWith("…"));
+        assertTrue(snippet.contains("45" + WhatsAppMessageSearch.MARK_START + "871" + WhatsAppMessageSearch.MARK_END + "23"));
+        assertTrue(snippet.endsWith("verificar?"));
+    }
+}
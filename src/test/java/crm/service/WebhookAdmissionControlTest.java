@@ -0,0 +1,166 @@
+package crm.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class WebhookAdmissionControlTest {
+
+    private static final String[] IDS = {"3EB0C767D71D5B4E8A21"};
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Object> published = new CopyOnWriteArrayList<>();
+    private WebhookAdmissionControl admission;
+    private WhatsAppIngestService ingestService;
+    private WhatsAppMessageService messageService;
+    private WhatsAppSseService sseService;
+
+    @BeforeEach
+    void setUp() {
+        sseService = mock(WhatsAppSseService.class);
+        // Dispatchers block on the first publish so the lanes can be filled deterministically
+        doAnswer(inv -> {
+            release.await(5, TimeUnit.SECONDS);
+            published.add(inv.getArgument(2));
+            return null;
+        }).when(sseService).publish(anyString(), anyString(), any());
+
+        ingestService = mock(WhatsAppIngestService.class);
+        messageService = mock(WhatsAppMessageService.class);
+        admission = new WebhookAdmissionControl(sseService, ingestService, messageService);
+        ReflectionTestUtils.setField(admission, "messagePermits", 2);
+        ReflectionTestUtils.setField(admission, "messageAcquireTimeoutMs", 0L);
+        ReflectionTestUtils.setField(admission, "statusCapacity", 2);
+        ReflectionTestUtils.setField(admission, "presenceCapacity", 2);
+        ReflectionTestUtils.setField(admission, "presenceShedIngestFill", 0.8);
+        ReflectionTestUtils.setField(admission, "retryAfterSeconds", 5);
+        admission.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        admission.stop();
+    }
+
+    @Test
+    void testMessageLaneRejectsBeyondPermits() {
+        assertTrue(admission.tryAcquireMessage());
+        assertTrue(admission.tryAcquireMessage());
+        assertFalse(admission.tryAcquireMessage());
+
+        admission.releaseMessage();
+        assertTrue(admission.tryAcquireMessage());
+        assertEquals(1L, admission.snapshot().get("messagesRejected"));
+    }
+
+    @Test
+    void testStatusLaneRejectsWhenFull() throws Exception {
+        // The first item is taken by the dispatcher, which then blocks
+        assertTrue(admission.offerStatus("company-a", "5544999999999", IDS, "READ", Map.of("n", 0)));
+        waitForDepth("statusDepth", 0);
+        assertTrue(admission.offerStatus("company-a", "5544999999999", IDS, "READ", Map.of("n", 1)));
+        assertTrue(admission.offerStatus("company-a", "5544999999999", IDS, "READ", Map.of("n", 2)));
+        assertFalse(admission.offerStatus("company-a", "5544999999999", IDS, "READ", Map.of("n", 3)));
+
+        release.countDown();
+        waitForPublished(3);
+        assertEquals(List.of(Map.of("n", 0), Map.of("n", 1), Map.of("n", 2)), published);
+    }
+
+    @Test
+    void testStatusIsStoredBeforeItIsPublishedAndRetriedWhileTheDatabaseIsDown() throws Exception {
+        release.countDown();
+        when(messageService.applyStatus("company-a", "5544999999999", IDS, "READ"))
+                .thenThrow(new CannotCreateTransactionException("pool esgotado"))
+                .thenReturn(1);
+
+        assertTrue(admission.offerStatus("company-a", "5544999999999", IDS, "READ", Map.of("n", 0)));
+        waitForPublished(1);
+
+        InOrder order = inOrder(messageService, sseService);
+        order.verify(messageService, times(2)).applyStatus("company-a", "5544999999999", IDS, "READ");
+        order.verify(sseService).publish("company-a", "5544999999999", Map.of("n", 0));
+        assertEquals(1L, admission.snapshot().get("statusRetries"));
+    }
+
+    @Test
+    void testStatusThatCannotBeStoredIsNotPublished() throws Exception {
+        release.countDown();
+        when(messageService.applyStatus("company-a", "1", IDS, "READ")).thenThrow(new IllegalArgumentException("inválido"));
+
+        admission.offerStatus("company-a", "1", IDS, "READ", Map.of("n", 0));
+        admission.offerStatus("company-a", "2", IDS, "READ", Map.of("n", 1));
+        waitForPublished(1);
+
+        assertEquals(List.of(Map.of("n", 1)), published);
+        assertEquals(1L, admission.snapshot().get("statusFailed"));
+    }
+
+    @Test
+    void testPresenceIsCoalescedPerChatAndDroppedWhenMessagesSaturate() throws Exception {
+        admission.offerPresence("company-a", "1", "a|1", Map.of("phone", "1", "status", "BLOCKED"));
+        waitForDepth("presenceDepth", 0);
+        admission.offerPresence("company-a", "2", "a|2", Map.of("phone", "2", "status", "AVAILABLE"));
+        admission.offerPresence("company-a", "2", "a|2", Map.of("phone", "2", "status", "COMPOSING"));
+        admission.offerPresence("company-a", "3", "a|3", Map.of("phone", "3", "status", "AVAILABLE"));
+        // buffer holds two chats
+        admission.offerPresence("company-a", "4", "a|4", Map.of("phone", "4", "status", "AVAILABLE"));
+
+        admission.tryAcquireMessage();
+        admission.tryAcquireMessage();
+        admission.offerPresence("company-a", "5", "a|5", Map.of("phone", "5", "status", "AVAILABLE"));
+
+        Map<String, Object> snapshot = admission.snapshot();
+        assertEquals(1L, snapshot.get("presenceCoalesced"));
+        assertEquals(2L, snapshot.get("presenceDropped"));
+
+        release.countDown();
+        waitForPublished(3);
+        assertTrue(published.contains(Map.of("phone", "2", "status", "COMPOSING")));
+        assertFalse(published.contains(Map.of("phone", "2", "status", "AVAILABLE")));
+    }
+
+    @Test
+    void testPresenceIsDroppedWhileAnIngestLaneIsNearlyFull() {
+        when(ingestService.busiestLaneFill()).thenReturn(0.9);
+        admission.offerPresence("company-a", "1", "a|1", Map.of("phone", "1", "status", "AVAILABLE"));
+
+        when(ingestService.busiestLaneFill()).thenReturn(0.5);
+        admission.offerPresence("company-a", "2", "a|2", Map.of("phone", "2", "status", "AVAILABLE"));
+
+        Map<String, Object> snapshot = admission.snapshot();
+        assertEquals(1L, snapshot.get("presenceDropped"));
+        assertEquals(1L, snapshot.get("presenceAccepted"));
+    }
+
+    private void waitForDepth(String key, int depth) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (((Number) admission.snapshot().get(key)).intValue() != depth && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        // the dispatcher has taken the item and is now blocked inside publish
+        Thread.sleep(20);
+    }
+
+    private void waitForPublished(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (published.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package crm.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.service.WhatsAppIngestService.IngestItem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WebhookReplayServiceTest {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+    private static final String INSTANCE = "3C4F2A9B1D8E7F60A5B4C3D2E1F00918";
+
+    private JdbcTemplate jdbcTemplate;
+    private WhatsAppIngestService ingestService;
+    private WebhookReplayService service;
+    private PreparedStatement statement;
+    private String sql;
+    // Captured rows: raw body, in received_at order one second apart from T0
+    private final List<String> rows = new ArrayList<>();
+    private final List<String> replayed = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        ingestService = mock(WhatsAppIngestService.class);
+        service = new WebhookReplayService(jdbcTemplate, mock(PlatformTransactionManager.class),
+                new ZapiWebhookDecoder(new ObjectMapper()), ingestService);
+        ReflectionTestUtils.setField(service, "fetchSize", 50);
+        ReflectionTestUtils.setField(service, "defaultWorkers", 4);
+        ReflectionTestUtils.setField(service, "batchSize", 3);
+        ReflectionTestUtils.setField(service, "queueCapacity", 12);
+
+        statement = mock(PreparedStatement.class);
+        Connection con = mock(Connection.class);
+        when(con.prepareStatement(anyString(), anyInt(), anyInt())).thenAnswer(inv -> {
+            sql = inv.getArgument(0);
+            return statement;
+        });
+        doAnswer(inv -> {
+            inv.<PreparedStatementCreator>getArgument(0).createPreparedStatement(con);
+            RowCallbackHandler handler = inv.getArgument(1);
+            for (int i = 0; i < rows.size(); i++) {
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getTimestamp(1)).thenReturn(Timestamp.from(T0.plusSeconds(i)));
+                when(rs.getString(2)).thenReturn(rows.get(i));
+                when(rs.getString(3)).thenReturn(INSTANCE);
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+        // Ids starting with OLD are already stored
+        when(ingestService.replayBatchNow(anyList())).thenAnswer(inv -> {
+            List<IngestItem> items = inv.getArgument(0);
+            int inserted = 0;
+            for (IngestItem item : items) {
+                String id = String.valueOf(item.adapted().get("id"));
+                replayed.add(item.adapted().get("contactId") + ":" + id);
+                if (!id.startsWith("OLD")) inserted++;
+            }
+            return new WhatsAppIngestService.BatchResult(inserted, 0, 0, -1);
+        });
+    }
+
+    @Test
+    void testRangeIsStreamedAndEachConversationReplayedInOrder() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            for (int c = 1; c <= 3; c++) {
+                rows.add(body(c == 2 && i == 0 ? "OLD-2-0" : "MSG-" + c + "-" + i, "554499999000" + c));
+            }
+        }
+        rows.add(resource("message-status.json"));
+        rows.add("{\"messageId\":");
+
+        WebhookReplayService.ReplayJob job = service.start(T0, T0.plusSeconds(3600), INSTANCE, null, null);
+        awaitFinished(job);
+
+        assertTrue(sql.endsWith("WHERE received_at >= ? AND received_at < ? AND instance_id = ? ORDER BY received_at, id"));
+        verify(statement).setFetchSize(50);
+        verify(statement).setObject(3, INSTANCE);
+        for (int c = 1; c <= 3; c++) {
+            String prefix = "554499999000" + c + ":";
+            List<String> ids = replayed.stream().filter(k -> k.startsWith(prefix)).map(k -> k.substring(prefix.length())).toList();
+            assertEquals(List.of(c == 2 ? "OLD-2-0" : "MSG-" + c + "-0", "MSG-" + c + "-1", "MSG-" + c + "-2", "MSG-" + c + "-3"), ids);
+        }
+        Map<String, Object> snapshot = job.snapshot();
+        assertEquals("completed", snapshot.get("status"));
+        assertEquals(14L, snapshot.get("scanned"));
+        assertEquals(1L, snapshot.get("unparseable"));
+        assertEquals(12L, snapshot.get("eligible"));
+        assertEquals(12L, snapshot.get("replayed"));
+        assertEquals(11L, snapshot.get("inserted"));
+        assertEquals(1L, snapshot.get("alreadyStored"));
+        assertEquals(0L, snapshot.get("failed"));
+        assertEquals(T0.plusSeconds(13).toString(), snapshot.get("cursor"));
+        assertNull(snapshot.get("resumeFrom"));
+    }
+
+    @Test
+    void testConversationAlwaysMapsToTheSameLane() {
+        Set<Integer> used = new HashSet<>();
+        for (int c = 0; c < 16; c++) {
+            IngestItem item = item(INSTANCE, "554499999" + c);
+            int lane = WebhookReplayService.laneOf(item, 4);
+            assertEquals(lane, WebhookReplayService.laneOf(item(INSTANCE, "554499999" + c), 4));
+            used.add(lane);
+        }
+        assertTrue(used.size() > 1, "all contacts hashed to one lane");
+    }
+
+    @Test
+    void testCancelStopsAndResumesAtTheFirstRowNotReplayed() throws Exception {
+        for (int i = 0; i < 20; i++) rows.add(body("MSG-" + i, "5544999990001"));
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(ingestService.replayBatchNow(anyList())).thenAnswer(inv -> {
+            List<IngestItem> items = inv.getArgument(0);
+            entered.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new WhatsAppIngestService.BatchResult(items.size(), 0, 0, -1);
+        });
+
+        WebhookReplayService.ReplayJob job = service.start(T0, T0.plusSeconds(3600), null, null, 1);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertTrue(service.cancel(job.getId()));
+        release.countDown();
+        awaitFinished(job);
+
+        Map<String, Object> snapshot = job.snapshot();
+        assertEquals("cancelled", snapshot.get("status"));
+        long done = (Long) snapshot.get("replayed");
+        assertTrue(done > 0 && done < 20, "replayed " + done);
+        assertEquals(T0.plusSeconds(done).toString(), snapshot.get("resumeFrom"));
+        assertFalse(service.cancel(job.getId()));
+    }
+
+    @Test
+    void testFailedItemStopsTheJobAndBecomesTheResumePoint() throws Exception {
+        for (int i = 0; i < 6; i++) rows.add(body("MSG-" + i, "5544999990001"));
+        when(ingestService.replayBatchNow(anyList())).thenAnswer(inv -> {
+            List<IngestItem> items = inv.getArgument(0);
+            for (int i = 0; i < items.size(); i++) {
+                if ("MSG-2".equals(items.get(i).adapted().get("id"))) {
+                    return new WhatsAppIngestService.BatchResult(items.size() - 1, 0, 1, i);
+                }
+            }
+            return new WhatsAppIngestService.BatchResult(items.size(), 0, 0, -1);
+        });
+
+        WebhookReplayService.ReplayJob job = service.start(T0, T0.plusSeconds(3600), null, null, 1);
+        awaitFinished(job);
+
+        Map<String, Object> snapshot = job.snapshot();
+        assertEquals("failed", snapshot.get("status"));
+        assertEquals(1L, snapshot.get("failed"));
+        assertEquals(T0.plusSeconds(2).toString(), snapshot.get("resumeFrom"));
+    }
+
+    private static IngestItem item(String instanceId, String contactId) {
+        return new IngestItem("{}", Map.of("id", "x", "contactId", contactId), instanceId, contactId);
+    }
+
+    private String body(String messageId, String phone) throws IOException {
+        return resource("received-text.json").replace("3EB0C767D71D5B4E8A21", messageId).replace("5544999999999", phone);
+    }
+
+    private String resource(String name) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/zapi/" + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void awaitFinished(WebhookReplayService.ReplayJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.isRunning() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(job.isRunning(), "job still running");
+    }
+}
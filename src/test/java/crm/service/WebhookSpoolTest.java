@@ -0,0 +1,201 @@
+package crm.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.service.WhatsAppIngestService.IngestItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class WebhookSpoolTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<String> ingested = new CopyOnWriteArrayList<>();
+    private final List<WebhookSpool> opened = new ArrayList<>();
+    // Ids whose first ingest attempt fails on their own
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(WebhookSpool::close);
+    }
+
+    @Test
+    void testUnconsumedEntriesAreReplayedAfterRestart() throws Exception {
+        WebhookSpool first = spool(1 << 20);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(WebhookSpool.AppendResult.ACCEPTED, first.append(body("MSG-" + i)));
+        }
+        first.close();
+
+        WebhookSpool second = spool(1 << 20);
+        assertTrue((Long) second.snapshot().get("backlogAtStartupBytes") > 0);
+        second.startConsumer();
+        awaitIngested(3);
+        assertEquals(List.of("MSG-0", "MSG-1", "MSG-2"), ingested);
+        awaitConsumed(second, 3);
+        second.close();
+
+        // Checkpointed: nothing left to replay
+        WebhookSpool third = spool(1 << 20);
+        assertEquals(0L, third.snapshot().get("backlogAtStartupBytes"));
+    }
+
+    @Test
+    void testTornTailIsIgnoredOnRecovery() throws Exception {
+        WebhookSpool first = spool(1 << 20);
+        assertEquals(WebhookSpool.AppendResult.ACCEPTED, first.append(body("MSG-0")));
+        assertEquals(WebhookSpool.AppendResult.ACCEPTED, first.append(body("MSG-1")));
+        long end = (Long) first.snapshot().get("writeOffset");
+        first.close();
+
+        // Flip a byte inside the second body, as if the crash happened mid-write
+        try (RandomAccessFile f = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            f.seek(end - 10);
+            f.write('#');
+        }
+
+        WebhookSpool second = spool(1 << 20);
+        second.startConsumer();
+        awaitIngested(1);
+        Thread.sleep(50);
+        assertEquals(List.of("MSG-0"), ingested);
+        assertTrue((Long) second.snapshot().get("writeOffset") < end);
+        // The next append overwrites the torn record
+        assertEquals(WebhookSpool.AppendResult.ACCEPTED, second.append(body("MSG-2")));
+        awaitIngested(2);
+        assertEquals(List.of("MSG-0", "MSG-2"), ingested);
+    }
+
+    @Test
+    void testSegmentsRollAndAreRecycledOnceConsumed() throws Exception {
+        // Three records per segment
+        WebhookSpool spool = spool(2048);
+        spool.startConsumer();
+        for (int i = 0; i < 12; i++) {
+            assertEquals(WebhookSpool.AppendResult.ACCEPTED, spool.append(body("MSG-" + i)));
+        }
+        awaitIngested(12);
+        awaitConsumed(spool, 12);
+
+        assertEquals(12, ingested.size());
+        assertEquals("MSG-11", ingested.get(11));
+        assertTrue((Long) spool.snapshot().get("recycledSegments") > 0);
+        assertTrue(segments().size() <= 4);
+    }
+
+    @Test
+    void testFullSpoolRejectsAppends() throws Exception {
+        WebhookSpool spool = spool(2048);
+        ReflectionTestUtils.setField(spool, "maxSegments", 2);
+        // Consumer not started: nothing is released
+        for (int i = 0; i < 6; i++) {
+            assertEquals(WebhookSpool.AppendResult.ACCEPTED, spool.append(body("MSG-" + i)));
+        }
+        assertEquals(WebhookSpool.AppendResult.FULL, spool.append(body("MSG-6")));
+        assertEquals(1L, spool.snapshot().get("rejected"));
+    }
+
+    @Test
+    void testFailedEntryIsRetriedWithoutReplayingTheOnesBefore() throws Exception {
+        failing.add("MSG-2");
+        WebhookSpool spool = spool(1 << 20);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(WebhookSpool.AppendResult.ACCEPTED, spool.append(body("MSG-" + i)));
+        }
+        spool.startConsumer();
+        awaitIngested(4);
+
+        assertEquals(List.of("MSG-0", "MSG-1", "MSG-2", "MSG-3"), ingested);
+        assertEquals(1L, spool.snapshot().get("consumerRetries"));
+    }
+
+    @Test
+    void testAppendNotFsyncedInTimeIsNotAcked() throws Exception {
+        WebhookSpool spool = spool(1 << 20);
+        // Stop the flusher, as if fsync were stuck
+        ReflectionTestUtils.setField(spool, "running", false);
+        Thread flusher = (Thread) ReflectionTestUtils.getField(spool, "flusher");
+        LockSupport.unpark(flusher);
+        flusher.join();
+        ReflectionTestUtils.setField(spool, "running", true);
+        ReflectionTestUtils.setField(spool, "ackTimeoutMs", 50L);
+
+        assertEquals(WebhookSpool.AppendResult.NOT_DURABLE, spool.append(body("MSG-0")));
+        assertEquals(1L, spool.snapshot().get("slowAcks"));
+    }
+
+    private WebhookSpool spool(int segmentBytes) throws IOException {
+        WhatsAppIngestService ingestService = mock(WhatsAppIngestService.class);
+        doAnswer(inv -> {
+            List<IngestItem> items = inv.getArgument(0);
+            for (int i = 0; i < items.size(); i++) {
+                String id = String.valueOf(items.get(i).adapted().get("id"));
+                if (failing.remove(id)) return new WhatsAppIngestService.BatchResult(i, 0, 1, i);
+                ingested.add(id);
+            }
+            return new WhatsAppIngestService.BatchResult(items.size(), 0, 0, -1);
+        }).when(ingestService).ingestBatchNow(anyList());
+        WebhookSpool spool = new WebhookSpool(new ZapiWebhookDecoder(new ObjectMapper()), ingestService);
+        ReflectionTestUtils.setField(spool, "enabled", true);
+        ReflectionTestUtils.setField(spool, "dir", dir.toString());
+        ReflectionTestUtils.setField(spool, "segmentBytes", segmentBytes);
+        ReflectionTestUtils.setField(spool, "maxSegments", 32);
+        ReflectionTestUtils.setField(spool, "fsyncIntervalMs", 1L);
+        ReflectionTestUtils.setField(spool, "syncAck", true);
+        ReflectionTestUtils.setField(spool, "ackTimeoutMs", 1000L);
+        ReflectionTestUtils.setField(spool, "consumerBatch", 5);
+        spool.open();
+        opened.add(spool);
+        return spool;
+    }
+
+    private byte[] body(String messageId) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/zapi/received-text.json")) {
+            String json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return json.replace("3EB0C767D71D5B4E8A21", messageId).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private void awaitIngested(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ingested.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(ingested.size() >= count, "ingested " + ingested);
+    }
+
+    private void awaitConsumed(WebhookSpool spool, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((Long) spool.snapshot().get("consumed") < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
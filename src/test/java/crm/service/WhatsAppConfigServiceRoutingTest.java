@@ -0,0 +1,85 @@
+package crm.service;
+
+import crm.entity.WhatsAppConfig;
+import crm.repository.WhatsAppConfigRepository;
+import crm.security.CryptoUtil;
+import crm.tenant.TenantResolver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppConfigServiceRoutingTest {
+
+    private WhatsAppConfigRepository repository;
+    private WhatsAppConfigService service;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(WhatsAppConfigRepository.class);
+        service = new WhatsAppConfigService(repository, mock(CryptoUtil.class), mock(TenantResolver.class), mock(RestTemplate.class));
+        ReflectionTestUtils.setField(service, "routeTtlSeconds", 600L);
+        ReflectionTestUtils.setField(service, "routeNegativeTtlSeconds", 30L);
+    }
+
+    @Test
+    void testResolveHitsRepositoryOncePerInstance() {
+        when(repository.findFirstByInstanceIdAndConnectedTrueOrderByIdAsc("inst-1")).thenReturn(Optional.of(config(1L, "inst-1", "companyA", true)));
+
+        assertEquals("companyA", service.resolveCompanyIdByInstanceId("inst-1"));
+        assertEquals("companyA", service.resolveCompanyIdByInstanceId("inst-1"));
+
+        verify(repository, times(1)).findFirstByInstanceIdAndConnectedTrueOrderByIdAsc("inst-1");
+        assertEquals(1L, service.routingSnapshot().get("hits"));
+    }
+
+    @Test
+    void testUnknownInstanceIsCachedNegatively() {
+        when(repository.findFirstByInstanceIdAndConnectedTrueOrderByIdAsc("ghost")).thenReturn(Optional.empty());
+        when(repository.findFirstByInstanceIdOrderByIdAsc("ghost")).thenReturn(Optional.empty());
+
+        assertNull(service.resolveCompanyIdByInstanceId("ghost"));
+        assertNull(service.resolveCompanyIdByInstanceId("ghost"));
+
+        verify(repository, times(1)).findFirstByInstanceIdOrderByIdAsc("ghost");
+        assertEquals(1L, service.routingSnapshot().get("negativeHits"));
+    }
+
+    @Test
+    void testInvalidateForcesReload() {
+        when(repository.findFirstByInstanceIdAndConnectedTrueOrderByIdAsc("inst-1"))
+                .thenReturn(Optional.of(config(1L, "inst-1", "companyA", true)))
+                .thenReturn(Optional.of(config(1L, "inst-1", "companyB", true)));
+
+        assertEquals("companyA", service.resolveCompanyIdByInstanceId("inst-1"));
+        service.invalidateInstanceRoute("inst-1");
+        assertEquals("companyB", service.resolveCompanyIdByInstanceId("inst-1"));
+    }
+
+    @Test
+    void testWarmPrefersConnectedConfig() {
+        when(repository.findAll()).thenReturn(List.of(
+                config(1L, "inst-1", "companyOld", false),
+                config(2L, "inst-1", "companyNew", true)));
+
+        service.warmInstanceRoutes();
+
+        assertEquals("companyNew", service.resolveCompanyIdByInstanceId("inst-1"));
+        verify(repository, never()).findFirstByInstanceIdAndConnectedTrueOrderByIdAsc(anyString());
+    }
+
+    private WhatsAppConfig config(Long id, String instanceId, String companyId, boolean connected) {
+        WhatsAppConfig c = new WhatsAppConfig();
+        c.setId(id);
+        c.setInstanceId(instanceId);
+        c.setCompanyId(companyId);
+        c.setConnected(connected);
+        return c;
+    }
+}
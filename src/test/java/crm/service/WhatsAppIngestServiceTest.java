@@ -0,0 +1,138 @@
+package crm.service;
+
+import crm.controller.WhatsAppWebhookControllerRawPersistPatch;
+import crm.entity.WhatsAppMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppIngestServiceTest {
+
+    private WhatsAppMessageService messageService;
+    private WhatsAppIngestService service;
+    private final List<String> persisted = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        messageService = mock(WhatsAppMessageService.class);
+        WhatsAppConfigService configService = mock(WhatsAppConfigService.class);
+        TransactionTemplate tx = mock(TransactionTemplate.class);
+        when(configService.resolveCompanyIdByInstanceId("inst-1")).thenReturn("companyA");
+        when(tx.execute(any())).thenAnswer(inv -> ((TransactionCallback<Object>) inv.getArgument(0)).doInTransaction(null));
+        when(messageService.persistIncomingMessages(anyList())).thenAnswer(inv -> {
+            List<Map<String, Object>> payloads = inv.getArgument(0);
+            List<WhatsAppMessage> saved = new ArrayList<>();
+            for (Map<String, Object> p : payloads) {
+                persisted.add(p.get("contactId") + ":" + p.get("id"));
+                saved.add(new WhatsAppMessage());
+            }
+            return saved;
+        });
+
+        WhatsAppMessageDedupFilter dedupFilter = new WhatsAppMessageDedupFilter();
+        ReflectionTestUtils.setField(dedupFilter, "enabled", false);
+        service = new WhatsAppIngestService(messageService, mock(WhatsAppContactService.class), configService,
+                mock(WhatsAppSseService.class), mock(WhatsAppWebhookControllerRawPersistPatch.class), dedupFilter, tx);
+        ReflectionTestUtils.setField(service, "async", true);
+        ReflectionTestUtils.setField(service, "queueCapacity", 10000);
+        ReflectionTestUtils.setField(service, "batchSize", 7);
+        ReflectionTestUtils.setField(service, "flushIntervalMs", 5L);
+        ReflectionTestUtils.setField(service, "laneCount", 4);
+        service.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.stop();
+    }
+
+    @Test
+    void testMessagesOfOneConversationKeepArrivalOrder() throws Exception {
+        int perContact = 200;
+        for (int i = 0; i < perContact; i++) {
+            for (int c = 0; c < 8; c++) {
+                String contactId = "55449999900" + c;
+                assertTrue(service.enqueue("{}", Map.of("id", "c" + c + "m" + i, "contactId", contactId), "inst-1", contactId));
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (persisted.size() < perContact * 8 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(perContact * 8, persisted.size());
+
+        for (int c = 0; c < 8; c++) {
+            String prefix = "55449999900" + c + ":";
+            int expected = 0;
+            synchronized (persisted) {
+                for (String key : persisted) {
+                    if (!key.startsWith(prefix)) continue;
+                    assertEquals(prefix + "c" + c + "m" + expected, key);
+                    expected++;
+                }
+            }
+            assertEquals(perContact, expected);
+        }
+    }
+
+    @Test
+    void testReplayReportsTheFirstItemThatFailedOnItsOwn() {
+        failOn("m2", new DataIntegrityViolationException("value too long"));
+
+        WhatsAppIngestService.BatchResult result = service.replayBatchNow(items("m1", "m2", "m3"));
+
+        assertEquals(1, result.firstFailed());
+        assertEquals(2, result.inserted());
+    }
+
+    @Test
+    void testDatabaseLostDuringTheFallbackFailsTheWholeSpoolBatch() {
+        failOn("m2", new CannotCreateTransactionException("pool exhausted"));
+
+        assertThrows(CannotCreateTransactionException.class, () -> service.ingestBatchNow(items("m1", "m2", "m3")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSnapshotExposesPerLaneStats() {
+        Map<String, Object> snapshot = service.snapshot();
+
+        assertEquals(4, snapshot.get("lanes"));
+        List<Map<String, Object>> lanes = (List<Map<String, Object>>) snapshot.get("laneStats");
+        assertEquals(4, lanes.size());
+        assertTrue(lanes.get(0).containsKey("lagMillis"));
+        assertTrue(lanes.get(0).containsKey("utilisation"));
+    }
+
+    // A batch containing the id fails on a constraint, which sends it to the per-item fallback; the id alone fails with error
+    private void failOn(String id, RuntimeException error) {
+        when(messageService.persistIncomingMessages(argThat(l -> l != null && l.size() > 1 && l.stream().anyMatch(m -> id.equals(m.get("id"))))))
+                .thenThrow(new DataIntegrityViolationException("batch"));
+        when(messageService.persistIncomingMessages(argThat(l -> l != null && l.size() == 1 && id.equals(l.get(0).get("id")))))
+                .thenThrow(error);
+    }
+
+    private static List<WhatsAppIngestService.IngestItem> items(String... ids) {
+        List<WhatsAppIngestService.IngestItem> items = new ArrayList<>();
+        for (String id : ids) {
+            items.add(new WhatsAppIngestService.IngestItem("{}", Map.of("id", id, "contactId", "5544999990001"), "inst-1", "5544999990001"));
+        }
+        return items;
+    }
+}
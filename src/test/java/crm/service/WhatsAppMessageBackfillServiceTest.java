@@ -0,0 +1,93 @@
+package crm.service;
+
+import crm.repository.WhatsAppConversationStore;
+import crm.repository.WhatsAppMessageBulkWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppMessageBackfillServiceTest {
+
+    private WhatsAppMessageBulkWriter bulkWriter;
+    private WhatsAppConversationStore conversationStore;
+    private WhatsAppMessageCache messageCache;
+    private PlatformTransactionManager transactionManager;
+    private WhatsAppMessageBackfillService service;
+
+    @BeforeEach
+    void setUp() {
+        JdbcTemplate jdbc = mock(JdbcTemplate.class);
+        when(jdbc.queryForObject(anyString(), eq(Long.class))).thenReturn(100L);
+        bulkWriter = mock(WhatsAppMessageBulkWriter.class);
+        conversationStore = mock(WhatsAppConversationStore.class);
+        messageCache = mock(WhatsAppMessageCache.class);
+        transactionManager = mock(PlatformTransactionManager.class);
+        service = new WhatsAppMessageBackfillService(jdbc, transactionManager, bulkWriter, conversationStore, messageCache);
+        ReflectionTestUtils.setField(service, "batchSize", 2);
+    }
+
+    @Test
+    void testWalksBatchesByIdAndRefreshesTouchedConversations() {
+        WhatsAppConversationStore.Key chat = new WhatsAppConversationStore.Key("company-a", "1");
+        when(bulkWriter.backfillCompanyIds(0L, 2, null)).thenReturn(new WhatsAppMessageBulkWriter.CompanyBackfillBatch(2, 40L, List.of(chat, chat)));
+        when(bulkWriter.backfillCompanyIds(40L, 2, null)).thenReturn(new WhatsAppMessageBulkWriter.CompanyBackfillBatch(1, 90L, List.of()));
+        when(bulkWriter.backfillCompanyIds(90L, 2, null)).thenReturn(new WhatsAppMessageBulkWriter.CompanyBackfillBatch(0, 90L, List.of()));
+        when(conversationStore.refresh(anyCollection())).thenReturn(1);
+
+        WhatsAppMessageBackfillService.BackfillJob job = new WhatsAppMessageBackfillService.BackfillJob("job", null, 0, 100);
+        service.run(job);
+
+        Map<String, Object> snapshot = job.snapshot();
+        assertEquals("completed", snapshot.get("status"));
+        assertEquals(90L, snapshot.get("cursor"));
+        assertEquals(3L, snapshot.get("scanned"));
+        assertEquals(2L, snapshot.get("updated"));
+        assertEquals(1L, snapshot.get("unresolved"));
+        // One refresh per batch that changed something, each chat once
+        verify(conversationStore, times(1)).refresh(argThat(keys -> keys.size() == 1));
+        // The cached history of that chat lacked the messages: dropped once the batch committed
+        InOrder order = inOrder(transactionManager, messageCache);
+        order.verify(transactionManager).commit(any());
+        order.verify(messageCache, times(1)).invalidate("company-a", "1");
+        verifyNoMoreInteractions(messageCache);
+    }
+
+    @Test
+    void testFailureKeepsTheCursorOfTheLastCommittedBatch() {
+        when(bulkWriter.backfillCompanyIds(10L, 2, "5544999990001")).thenReturn(new WhatsAppMessageBulkWriter.CompanyBackfillBatch(2, 30L, List.of()));
+        when(bulkWriter.backfillCompanyIds(30L, 2, "5544999990001")).thenThrow(new IllegalStateException("conexão perdida"));
+
+        WhatsAppMessageBackfillService.BackfillJob job = new WhatsAppMessageBackfillService.BackfillJob("job", "5544999990001", 10, 100);
+        service.run(job);
+
+        Map<String, Object> snapshot = job.snapshot();
+        assertEquals("failed", snapshot.get("status"));
+        assertEquals(30L, snapshot.get("cursor"));
+        assertEquals("conexão perdida", snapshot.get("error"));
+        assertFalse(job.isRunning());
+    }
+
+    @Test
+    void testOnlyOneJobRunsAtATime() throws Exception {
+        when(bulkWriter.backfillCompanyIds(anyLong(), anyInt(), any())).thenAnswer(inv -> {
+            Thread.sleep(200);
+            return new WhatsAppMessageBulkWriter.CompanyBackfillBatch(0, inv.getArgument(0), List.of());
+        });
+
+        WhatsAppMessageBackfillService.BackfillJob first = service.start("+55 44 99999-0001", null);
+
+        assertThrows(IllegalStateException.class, () -> service.start(null, null));
+        assertEquals("5544999990001", first.snapshot().get("contactId"));
+        assertTrue(service.find(first.getId()).isPresent());
+    }
+}
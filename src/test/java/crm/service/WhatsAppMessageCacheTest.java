@@ -0,0 +1,124 @@
+package crm.service;
+
+import crm.entity.WhatsAppMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WhatsAppMessageCacheTest {
+
+    @Test
+    void testFilledChatIsServedNewestLastWithHasOlder() {
+        WhatsAppMessageCache cache = cache(3, 100, 64);
+        long stamp = cache.reserve("company-a", "1");
+        // As the keyset query returns them: newest first, one more than the capacity
+        cache.fill("company-a", "1", stamp, List.of(message(4L, 4, "1"), message(3L, 3, "1"), message(2L, 2, "1"), message(1L, 1, "1")), true);
+
+        WhatsAppMessageCache.Window two = cache.get("company-a", "1", 2);
+        WhatsAppMessageCache.Window all = cache.get("company-a", "1", 3);
+
+        assertEquals(List.of(3L, 4L), ids(two));
+        assertTrue(two.hasOlder());
+        assertEquals(List.of(2L, 3L, 4L), ids(all));
+        assertNull(cache.get("company-a", "1", 4));
+        assertNull(cache.get("company-b", "1", 2));
+        assertEquals(2L, cache.snapshot().get("hits"));
+    }
+
+    @Test
+    void testWriteDuringLoadDiscardsTheFill() {
+        WhatsAppMessageCache cache = cache(3, 100, 64);
+        long stamp = cache.reserve("company-a", "1");
+        cache.append(List.of(message(2L, 2, "1")));
+
+        // The load read the table before message 2 was committed
+        cache.fill("company-a", "1", stamp, List.of(message(1L, 1, "1")), false);
+
+        assertNull(cache.get("company-a", "1", 3));
+        assertEquals(1L, cache.snapshot().get("staleLoads"));
+    }
+
+    @Test
+    void testAppendKeepsOrderAndCapacity() {
+        WhatsAppMessageCache cache = cache(3, 100, 64);
+        long stamp = cache.reserve("company-a", "1");
+        cache.fill("company-a", "1", stamp, List.of(message(20L, 20, "1"), message(10L, 10, "1")), false);
+
+        cache.append(List.of(message(30L, 30, "1"), message(15L, 15, "1"), message(30L, 30, "1")));
+        assertEquals(List.of(15L, 20L, 30L), ids(cache.get("company-a", "1", 3)));
+        assertTrue(cache.get("company-a", "1", 3).hasOlder());
+
+        // Older than the cached window: only in the database
+        cache.append(List.of(message(5L, 5, "1")));
+        assertEquals(List.of(15L, 20L, 30L), ids(cache.get("company-a", "1", 3)));
+    }
+
+    @Test
+    void testStatusCallbackReplacesTheCachedCopy() {
+        WhatsAppMessageCache cache = cache(3, 100, 64);
+        long stamp = cache.reserve("company-a", "1");
+        cache.fill("company-a", "1", stamp, List.of(message(1L, 1, "1")), false);
+        WhatsAppMessage before = cache.get("company-a", "1", 1).messages().get(0);
+
+        cache.applyStatus("company-a", "1", List.of("ext-1"), "read");
+
+        assertEquals("read", cache.get("company-a", "1", 1).messages().get(0).getStatus());
+        assertEquals("received", before.getStatus());
+    }
+
+    @Test
+    void testEvictsBySizeAndWeight() {
+        WhatsAppMessageCache bySize = cache(3, 16, 64);
+        for (int c = 0; c < 100; c++) {
+            String contact = String.valueOf(c);
+            bySize.fill("company-a", contact, bySize.reserve("company-a", contact), List.of(message(1L, 1, contact)), false);
+        }
+        Map<String, Object> sizes = bySize.snapshot();
+        assertTrue((Integer) sizes.get("conversations") <= 16);
+        assertTrue((Long) sizes.get("sizeEvictions") >= 84);
+
+        // 1 MB over 16 segments: one chat of three 30k-character messages does not fit its segment
+        WhatsAppMessageCache byWeight = cache(3, 100, 1);
+        List<WhatsAppMessage> big = new ArrayList<>();
+        for (long i = 3; i >= 1; i--) {
+            WhatsAppMessage m = message(i, (int) i, "1");
+            m.setContent("x".repeat(30_000));
+            big.add(m);
+        }
+        byWeight.fill("company-a", "1", byWeight.reserve("company-a", "1"), big, false);
+        assertNull(byWeight.get("company-a", "1", 3));
+        assertEquals(1L, byWeight.snapshot().get("weightEvictions"));
+    }
+
+    private static WhatsAppMessageCache cache(int perConversation, int maxConversations, long maxWeightMb) {
+        WhatsAppMessageCache cache = new WhatsAppMessageCache(null);
+        ReflectionTestUtils.setField(cache, "perConversation", perConversation);
+        ReflectionTestUtils.setField(cache, "maxConversations", maxConversations);
+        ReflectionTestUtils.setField(cache, "maxWeightMb", maxWeightMb);
+        cache.init();
+        return cache;
+    }
+
+    private static List<Long> ids(WhatsAppMessageCache.Window window) {
+        return window.messages().stream().map(WhatsAppMessage::getId).toList();
+    }
+
+    private static WhatsAppMessage message(Long id, int minute, String contactId) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setId(id);
+        m.setExternalMessageId("ext-" + id);
+        m.setCompanyId("company-a");
+        m.setContactId(contactId);
+        m.setContent("msg " + id);
+        m.setTimestamp(Instant.parse("2024-05-01T10:00:00Z").plusSeconds(60L * minute));
+        m.setIsFromMe(false);
+        m.setStatus("received");
+        return m;
+    }
+}
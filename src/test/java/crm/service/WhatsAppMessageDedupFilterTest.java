@@ -0,0 +1,68 @@
+package crm.service;
+
+import crm.service.WhatsAppMessageDedupFilter.Verdict;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WhatsAppMessageDedupFilterTest {
+
+    private WhatsAppMessageDedupFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        filter = new WhatsAppMessageDedupFilter();
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "expectedPerTenant", 1000);
+        ReflectionTestUtils.setField(filter, "falsePositiveRate", 0.01);
+        ReflectionTestUtils.setField(filter, "lruSize", 100);
+    }
+
+    @Test
+    void testRememberedIdIsDuplicateOnlyForSameCompany() {
+        assertEquals(Verdict.NEW, filter.check("companyA", "3EB0C767D71D5B4E8A21"));
+        filter.remember("companyA", "3EB0C767D71D5B4E8A21");
+
+        assertEquals(Verdict.DUPLICATE, filter.check("companyA", "3EB0C767D71D5B4E8A21"));
+        assertEquals(Verdict.NEW, filter.check("companyB", "3EB0C767D71D5B4E8A21"));
+        assertEquals(1L, filter.snapshot().get("lruHits"));
+    }
+
+    @Test
+    void testEvictedFromLruFallsBackToDatabase() {
+        for (int i = 0; i < 500; i++) {
+            filter.remember("companyA", "msg-" + i);
+        }
+        // msg-0 left the LRU but the Bloom filter still reports it
+        assertEquals(Verdict.MAYBE, filter.check("companyA", "msg-0"));
+        assertEquals(Verdict.DUPLICATE, filter.check("companyA", "msg-499"));
+
+        filter.recordInsert(Verdict.MAYBE, false);
+        assertEquals(1L, filter.snapshot().get("dbConflicts"));
+        assertEquals(2L, filter.duplicates());
+    }
+
+    @Test
+    void testFalsePositiveRateStaysNearConfigured() {
+        for (int i = 0; i < 1000; i++) {
+            filter.remember("companyA", "seen-" + i);
+        }
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.check("companyA", "other-" + i) != Verdict.NEW) positives++;
+        }
+        assertTrue(positives < 300, "false positives: " + positives);
+    }
+
+    @Test
+    void testDisabledOrBlankIdsAlwaysNew() {
+        filter.remember("companyA", "x");
+        assertEquals(Verdict.NEW, filter.check("companyA", null));
+        assertEquals(Verdict.NEW, filter.check("companyA", ""));
+
+        ReflectionTestUtils.setField(filter, "enabled", false);
+        assertEquals(Verdict.NEW, filter.check("companyA", "x"));
+    }
+}
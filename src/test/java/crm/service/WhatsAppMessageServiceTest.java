@@ -0,0 +1,250 @@
+package crm.service;
+
+import crm.dto.WhatsAppIncomingMessageDTO;
+import crm.entity.WhatsAppMessage;
+import crm.repository.WhatsAppConversationStore;
+import crm.repository.WhatsAppMessageBulkWriter;
+import crm.repository.WhatsAppMessagePartitions;
+import crm.repository.WhatsAppMessageRepository;
+import crm.repository.WhatsAppMessageSearch;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WhatsAppMessageServiceTest {
+
+    private WhatsAppMessageRepository repository;
+    private WhatsAppMessageService service;
+    private WhatsAppMessageCache cache;
+    private WhatsAppMessagePartitions partitions;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(WhatsAppMessageRepository.class);
+        service = new WhatsAppMessageService(repository);
+        // Off unless a test turns it on, so the other tests see every read reach the repository
+        cache = new WhatsAppMessageCache(null);
+        ReflectionTestUtils.setField(cache, "enabled", false);
+        ReflectionTestUtils.setField(cache, "perConversation", 3);
+        cache.init();
+        ReflectionTestUtils.setField(service, "messageCache", cache);
+        partitions = mock(WhatsAppMessagePartitions.class);
+        ReflectionTestUtils.setField(service, "partitions", partitions);
+    }
+
+    @Test
+    void testLatestPageIsOldestFirstAndOlderCursorResumesBeforeIt() {
+        // Repository returns newest first, one row more than the limit
+        when(repository.findLatestPage("company-a", "5544999990001", 3))
+                .thenReturn(List.of(message(12L, "10:02:00"), message(11L, "10:01:00"), message(10L, "10:00:00")));
+
+        WhatsAppMessageService.MessagePage page = service.listMessagesForContact("company-a", "+55 44 99999-0001", null, null, 2);
+
+        assertEquals(List.of("m11", "m12"), page.messages().stream().map(m -> m.get("id")).toList());
+        assertTrue(page.hasOlder());
+        assertFalse(page.hasNewer());
+        assertNull(page.newerCursor());
+
+        when(repository.findPageBefore(anyString(), anyString(), any(), anyLong(), anyInt())).thenReturn(List.of(message(10L, "10:00:00")));
+        WhatsAppMessageService.MessagePage older = service.listMessagesForContact("company-a", "5544999990001", page.olderCursor(), null, 2);
+
+        verify(repository).findPageBefore("company-a", "5544999990001", Instant.parse("2024-05-01T10:01:00.123456Z"), 11L, 3);
+        assertFalse(older.hasOlder());
+        assertNull(older.olderCursor());
+        assertTrue(older.hasNewer());
+    }
+
+    @Test
+    void testEmptyAfterPageKeepsTheCursorForPolling() {
+        when(repository.findPageAfter(anyString(), anyString(), any(), anyLong(), anyInt())).thenReturn(List.of());
+
+        WhatsAppMessageService.MessagePage polled = service.listMessagesForContact("company-a", "1", null, "MjAyNC0wNS0wMVQwOTowMDowMFp8NQ", 50);
+
+        assertTrue(polled.messages().isEmpty());
+        assertEquals("MjAyNC0wNS0wMVQwOTowMDowMFp8NQ", polled.newerCursor());
+        verify(repository).findPageAfter("company-a", "1", Instant.parse("2024-05-01T09:00:00Z"), 5L, 51);
+    }
+
+    @Test
+    void testMalformedOrConflictingCursorsAreRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> service.listMessagesForContact("company-a", "1", "not-a-cursor", null, 50));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.listMessagesForContact("company-a", "1", "a", "b", 50));
+    }
+
+    @Test
+    void testIncomingMessageIsPublishedOnlyAfterCommit() {
+        WhatsAppMessageBulkWriter bulkWriter = mock(WhatsAppMessageBulkWriter.class);
+        when(bulkWriter.insertIgnoringDuplicates(anyList())).thenReturn(new boolean[]{true});
+        WhatsAppSseService sse = mock(WhatsAppSseService.class);
+        ReflectionTestUtils.setField(service, "bulkWriter", bulkWriter);
+        ReflectionTestUtils.setField(service, "conversationStore", mock(WhatsAppConversationStore.class));
+        ReflectionTestUtils.setField(service, "sseService", sse);
+        ReflectionTestUtils.setField(service, "configService", mock(WhatsAppConfigService.class));
+        WhatsAppIncomingMessageDTO dto = new WhatsAppIncomingMessageDTO();
+        dto.setId("ext-1");
+        dto.setContactId("5544999990001");
+        dto.setContent("oi");
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            service.saveIncomingMessage(dto);
+            verify(sse, never()).publish(any(), any(), any());
+            // The surrounding transaction commits
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        verify(sse).publish(any(), eq("5544999990001"), any());
+    }
+
+    @Test
+    void testStatusIsStoredAndReachesTheCacheOnlyAfterCommit() {
+        WhatsAppMessageBulkWriter bulkWriter = mock(WhatsAppMessageBulkWriter.class);
+        when(bulkWriter.updateStatus(anyString(), anyString(), anyCollection(), anyString())).thenReturn(2);
+        WhatsAppConversationStore conversations = mock(WhatsAppConversationStore.class);
+        WhatsAppMessageCache statusCache = mock(WhatsAppMessageCache.class);
+        ReflectionTestUtils.setField(service, "bulkWriter", bulkWriter);
+        ReflectionTestUtils.setField(service, "conversationStore", conversations);
+        ReflectionTestUtils.setField(service, "messageCache", statusCache);
+        ReflectionTestUtils.setField(service, "transactionManager", mock(PlatformTransactionManager.class));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assertEquals(2, service.applyStatus("company-a", "+55 44 99999-0001", new String[]{"ext-1", "ext-2"}, "READ"));
+            verify(statusCache, never()).applyStatus(any(), any(), any(), any());
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        verify(bulkWriter).updateStatus("company-a", "5544999990001", List.of("ext-1", "ext-2"), "read");
+        verify(conversations).applyStatus("company-a", "5544999990001", List.of("ext-1", "ext-2"), "read");
+        verify(statusCache).applyStatus("company-a", "5544999990001", List.of("ext-1", "ext-2"), "read");
+    }
+
+    @Test
+    void testImportSkipsStoredIdsAndInvalidatesTheImportedChats() throws Exception {
+        WhatsAppMessageBulkWriter bulkWriter = mock(WhatsAppMessageBulkWriter.class);
+        // e1 is already stored
+        when(bulkWriter.withoutStored(anyList())).thenAnswer(inv -> ((List<WhatsAppMessage>) inv.getArgument(0)).stream()
+                .filter(m -> !"e1".equals(m.getExternalMessageId())).toList());
+        WhatsAppConversationStore conversations = mock(WhatsAppConversationStore.class);
+        WhatsAppMessageCache importCache = mock(WhatsAppMessageCache.class);
+        ReflectionTestUtils.setField(service, "bulkWriter", bulkWriter);
+        ReflectionTestUtils.setField(service, "conversationStore", conversations);
+        ReflectionTestUtils.setField(service, "messageCache", importCache);
+        ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(service, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(service, "importBatchSize", 2);
+        String ndjson = """
+                {"id":"e1","contactId":"55 44 99999-0001","timestamp":"2024-05-01T10:00:00Z","content":"a"}
+                {"id":"e2","contactId":"5544999990001","timestamp":"2024-05-01T10:01:00Z","content":"b"}
+                {"id":"e3","content":"sem contato"}
+                {"id":"e4","contactId":"5544999990002","isFromMe":true,"content":"c"}
+                """;
+
+        Map<String, Object> result = service.importMessages("company-a", new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(4L, result.get("read"));
+        assertEquals(2L, result.get("inserted"));
+        assertEquals(1L, result.get("duplicates"));
+        assertEquals(1L, result.get("invalid"));
+        verify(bulkWriter, times(2)).insertAll(anyList());
+        verify(importCache).invalidate("company-a", "5544999990001");
+        verify(importCache).invalidate("company-a", "5544999990002");
+        verify(conversations).refresh(Set.of(new WhatsAppConversationStore.Key("company-a", "5544999990001"),
+                new WhatsAppConversationStore.Key("company-a", "5544999990002")));
+    }
+
+    @Test
+    void testPageReachingArchivedMonthsMergesTheArchive() {
+        when(partitions.archivedBefore()).thenReturn(Instant.parse("2024-05-01T10:01:00Z"));
+        // Only one live row left before the archive boundary
+        when(repository.findLatestPage("company-a", "1", 4)).thenReturn(List.of(message(12L, "10:02:00"), message(11L, "10:01:00")));
+        when(partitions.findArchivedBefore("company-a", "1", null, null, 4))
+                .thenReturn(List.of(message(10L, "10:00:00"), message(9L, "09:59:00"), message(8L, "09:58:00")));
+
+        WhatsAppMessageService.MessagePage page = service.listMessagesForContact("company-a", "1", null, null, 3);
+
+        assertEquals(List.of("m10", "m11", "m12"), page.messages().stream().map(m -> m.get("id")).toList());
+        assertTrue(page.hasOlder());
+    }
+
+    @Test
+    void testRecentPageDoesNotReadTheArchive() {
+        when(partitions.archivedBefore()).thenReturn(Instant.parse("2024-04-01T00:00:00Z"));
+        when(repository.findLatestPage("company-a", "1", 3))
+                .thenReturn(List.of(message(12L, "10:02:00"), message(11L, "10:01:00"), message(10L, "10:00:00")));
+
+        service.listMessagesForContact("company-a", "1", null, null, 2);
+
+        verify(partitions, never()).findArchivedBefore(anyString(), anyString(), any(), any(), anyInt());
+    }
+
+    @Test
+    void testOpeningACachedChatDoesNotTouchTheDatabase() {
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        // The first open reads enough rows to fill the cache (capacity 3 plus one)
+        when(repository.findLatestPage("company-a", "5544999990001", 4))
+                .thenReturn(List.of(message(12L, "10:02:00"), message(11L, "10:01:00"), message(10L, "10:00:00")));
+
+        WhatsAppMessageService.MessagePage cold = service.listMessagesForContact("company-a", "5544999990001", null, null, 2);
+        WhatsAppMessage fresh = message(13L, "10:03:00");
+        ReflectionTestUtils.invokeMethod(service, "cacheAfterCommit", List.of(fresh));
+        WhatsAppMessageService.MessagePage warm = service.listMessagesForContact("company-a", "5544999990001", null, null, 2);
+
+        verify(repository, times(1)).findLatestPage(anyString(), anyString(), anyInt());
+        assertEquals(List.of("m11", "m12"), cold.messages().stream().map(m -> m.get("id")).toList());
+        assertEquals(List.of("m12", "m13"), warm.messages().stream().map(m -> m.get("id")).toList());
+        assertTrue(warm.hasOlder());
+        assertNotNull(warm.olderCursor());
+    }
+
+    @Test
+    void testSearchSnippetsAreEscapedAndHighlighted() {
+        WhatsAppMessageSearch search = mock(WhatsAppMessageSearch.class);
+        ReflectionTestUtils.setField(service, "messageSearch", search);
+        String snippet = "<b>pedido</b> " + WhatsAppMessageSearch.MARK_START + "4587" + WhatsAppMessageSearch.MARK_END + "123";
+        when(search.search("company-a", "5544999990001", "4587", 2, 0)).thenReturn(new WhatsAppMessageSearch.Result(
+                List.of(new WhatsAppMessageSearch.Hit(message(1L, "10:00:00"), null, snippet),
+                        new WhatsAppMessageSearch.Hit(message(2L, "09:00:00"), null, "")),
+                WhatsAppMessageSearch.Mode.TRIGRAM));
+
+        Map<String, Object> page = service.searchMessages("company-a", "5544 99999-0001", "4587", 1, 0);
+
+        List<?> results = (List<?>) page.get("results");
+        assertEquals(1, results.size());
+        assertEquals("&lt;b&gt;pedido&lt;/b&gt; <mark>4587</mark>123", ((Map<?, ?>) results.get(0)).get("snippet"));
+        assertEquals("trigram", page.get("mode"));
+        assertEquals(true, page.get("hasMore"));
+    }
+
+    private static WhatsAppMessage message(long id, String time) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.setId(id);
+        m.setExternalMessageId("m" + id);
+        m.setCompanyId("company-a");
+        m.setContactId("5544999990001");
+        m.setContent("texto " + id);
+        m.setTimestamp(Instant.parse("2024-05-01T" + time + ".123456Z"));
+        return m;
+    }
+}
@@ -0,0 +1,495 @@
+package crm.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WhatsAppSseServiceTest {
+
+    private static final Pattern N = Pattern.compile("\"n\":(\\d+)");
+
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final LocalEventBus bus = new LocalEventBus();
+    private WhatsAppSseService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new WhatsAppSseService(new ObjectMapper(), bus);
+        ReflectionTestUtils.setField(service, "queueCapacity", 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        unblock.countDown();
+    }
+
+    @Test
+    void testSlowSubscriberDoesNotBlockPublisher() throws Exception {
+        ReflectionTestUtils.setField(service, "overflowPolicy", "drop-oldest");
+        SlowEmitter slow = new SlowEmitter();
+        service.subscribe("company-a", null, null, false, null, slow);
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            service.publish("company-a", null, Map.of("type", "message", "n", i));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        Map<String, Object> snapshot = service.snapshot();
+        assertEquals(4, snapshot.get("maxQueueDepth"));
+        assertEquals(96L, snapshot.get("dropped"));
+    }
+
+    @Test
+    void testPresenceIsCoalescedPerChat() throws Exception {
+        ReflectionTestUtils.setField(service, "overflowPolicy", "coalesce");
+        SlowEmitter slow = new SlowEmitter();
+        service.subscribe("company-a", null, null, false, null, slow);
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 50; i++) {
+            service.publish("company-a", null, Map.of("type", "chat_presence", "instanceId", "a", "phone", "5544999999999", "status", "s" + i));
+        }
+        service.publish("company-a", null, Map.of("type", "message", "n", 1));
+
+        Map<String, Object> snapshot = service.snapshot();
+        assertEquals(2, snapshot.get("maxQueueDepth"));
+        assertEquals(49L, snapshot.get("coalesced"));
+        assertEquals(0L, snapshot.get("dropped"));
+    }
+
+    @Test
+    void testDisconnectPolicyDropsTheSubscriber() throws Exception {
+        ReflectionTestUtils.setField(service, "overflowPolicy", "disconnect");
+        SlowEmitter slow = new SlowEmitter();
+        service.subscribe("company-a", null, null, false, null, slow);
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++) {
+            service.publish("company-a", null, Map.of("type", "message", "n", i));
+        }
+
+        Map<String, Object> snapshot = service.snapshot();
+        assertEquals(0, snapshot.get("subscribers"));
+        assertEquals(1L, snapshot.get("disconnected"));
+    }
+
+    @Test
+    void testEventsAreDeliveredInOrder() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        List<Object> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(11);
+        SseEmitter emitter = new SseEmitter(0L) {
+            @Override
+            public void send(Set<DataWithMediaType> items) {
+                for (DataWithMediaType item : items) {
+                    String frame = new String((byte[]) item.getData(), StandardCharsets.UTF_8);
+                    Matcher m = N.matcher(frame);
+                    if (m.find()) received.add(Integer.parseInt(m.group(1)));
+                }
+                done.countDown();
+            }
+        };
+        service.subscribe("company-a", null, null, false, null, emitter);
+        for (int i = 0; i < 10; i++) {
+            service.publish("company-a", null, Map.of("type", "message", "n", i));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), received);
+        // "sent" is counted right after send() returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (!Long.valueOf(11).equals(service.snapshot().get("sent")) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(11L, service.snapshot().get("sent"));
+    }
+
+    @Test
+    void testFrameIsEncodedOnceForAllSubscribers() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        List<Object> frames = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 3; i++) {
+            service.subscribe("company-a", null, null, false, null, new SseEmitter(0L) {
+                @Override
+                public void send(Set<DataWithMediaType> items) {
+                    items.forEach(item -> frames.add(item.getData()));
+                    done.countDown();
+                }
+            });
+        }
+        service.publish("company-a", null, Map.of("type", "message", "n", 7));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // three init frames plus one message frame shared by all three subscribers
+        assertEquals(4L, service.snapshot().get("encoded"));
+        List<Object> messageFrames = frames.stream()
+                .filter(f -> new String((byte[]) f, StandardCharsets.UTF_8).contains("event:message")).toList();
+        assertEquals(3, messageFrames.size());
+        assertSame(messageFrames.get(0), messageFrames.get(1));
+        assertSame(messageFrames.get(1), messageFrames.get(2));
+    }
+
+    @Test
+    void testFrameFormat() throws Exception {
+        SseFrame frame = SseFrame.encode(new ObjectMapper(), "42", "message", Map.of("type", "message"));
+
+        assertEquals("id:42\nevent:message\nretry:8000\ndata:{\"type\":\"message\"}\n\n", frame.toString());
+    }
+
+    @Test
+    void testReconnectReplaysOnlyTheGap() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        service.subscribe("company-a", null, null, false, null, new SseEmitter(0L) {
+            @Override
+            public void send(Set<DataWithMediaType> items) {
+            }
+        });
+        for (int i = 1; i <= 10; i++) {
+            service.publish("company-a", null, Map.of("type", "message", "n", i));
+        }
+
+        RecordingEmitter resumed = new RecordingEmitter(7);
+        service.subscribe("company-a", null, null, false, id(4), resumed);
+
+        assertTrue(resumed.done.await(5, TimeUnit.SECONDS));
+        assertTrue(resumed.frames.get(0).contains("event:init"));
+        assertFalse(resumed.frames.get(0).contains("id:"));
+        List<String> ids = resumed.frames.stream().skip(1).map(f -> f.substring(0, f.indexOf('\n'))).toList();
+        assertEquals(List.of("id:" + id(5), "id:" + id(6), "id:" + id(7), "id:" + id(8), "id:" + id(9), "id:" + id(10)), ids);
+        assertEquals(6L, service.snapshot().get("replayed"));
+        assertEquals(0L, service.snapshot().get("resyncs"));
+    }
+
+    @Test
+    void testEvictedGapFallsBackToResync() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        ReflectionTestUtils.setField(service, "replayBuffer", 4);
+        service.subscribe("company-a", null, null, false, null, new SseEmitter(0L) {
+            @Override
+            public void send(Set<DataWithMediaType> items) {
+            }
+        });
+        for (int i = 1; i <= 10; i++) {
+            service.publish("company-a", null, Map.of("type", "message", "n", i));
+        }
+
+        RecordingEmitter resumed = new RecordingEmitter(2);
+        service.subscribe("company-a", null, null, false, id(5), resumed);
+
+        assertTrue(resumed.done.await(5, TimeUnit.SECONDS));
+        assertTrue(resumed.frames.get(1).startsWith("id:" + id(10) + "\nevent:resync\n"));
+        assertTrue(resumed.frames.get(1).contains("\"oldestEventId\":7"));
+        assertEquals(1L, service.snapshot().get("resyncs"));
+        assertEquals(0L, service.snapshot().get("replayed"));
+
+        // still inside the buffer: 7..10 are replayed normally
+        RecordingEmitter recent = new RecordingEmitter(5);
+        service.subscribe("company-a", null, null, false, id(6), recent);
+        assertTrue(recent.done.await(5, TimeUnit.SECONDS));
+        assertTrue(recent.frames.get(1).startsWith("id:" + id(7) + "\n"));
+        assertEquals(4L, service.snapshot().get("replayed"));
+    }
+
+    @Test
+    void testIdFromAnotherNodeOrRunIsResynced() throws Exception {
+        service.subscribe("company-a", null, null, false, null, new RecordingEmitter(1));
+        service.publish("company-a", null, Map.of("type", "message", "n", 1));
+
+        RecordingEmitter legacy = new RecordingEmitter(2);
+        service.subscribe("company-a", null, null, false, "1", legacy);
+        RecordingEmitter otherNode = new RecordingEmitter(2);
+        service.subscribe("company-a", null, null, false, "ffffffff-1", otherNode);
+
+        assertTrue(legacy.done.await(5, TimeUnit.SECONDS));
+        assertTrue(otherNode.done.await(5, TimeUnit.SECONDS));
+        assertTrue(legacy.frames.get(1).contains("event:resync"));
+        assertTrue(otherNode.frames.get(1).contains("event:resync"));
+        assertEquals(2L, service.snapshot().get("resyncs"));
+    }
+
+    @Test
+    void testEventsCrossNodesOnceAndRedeliveriesAreDropped() throws Exception {
+        PairedBus busA = new PairedBus("aaaaaaaa");
+        PairedBus busB = new PairedBus("bbbbbbbb");
+        busA.peer = busB;
+        busB.peer = busA;
+        WhatsAppSseService nodeA = new WhatsAppSseService(new ObjectMapper(), busA);
+        WhatsAppSseService nodeB = new WhatsAppSseService(new ObjectMapper(), busB);
+        RecordingEmitter agentOnB = new RecordingEmitter(4);
+        nodeB.subscribe("company-a", null, null, false, null, agentOnB);
+
+        nodeB.publish("company-a", null, Map.of("type", "message_status", "n", 1));
+        // the same content published again, here and on node A, is a new event each time
+        nodeA.publish("company-a", null, Map.of("type", "message_status", "n", 1));
+        nodeA.publish("company-a", null, Map.of("type", "message_status", "n", 1));
+        // the bus hands node A's last event over a second time
+        busB.handler.deliver(busA.last);
+
+        assertTrue(agentOnB.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(4, agentOnB.frames.size());
+        assertTrue(agentOnB.frames.get(1).startsWith("id:bbbbbbbb-1\n"));
+        assertTrue(agentOnB.frames.stream().skip(1).allMatch(f -> f.contains("\"n\":1")));
+        assertEquals(2L, nodeB.snapshot().get("remoteDelivered"));
+        assertEquals(1L, nodeB.snapshot().get("remoteDuplicates"));
+        assertEquals(busA.nodeId, busA.last.origin());
+        assertEquals(2L, busA.last.seq());
+        // node A had no subscriber for the channel, yet its events still went out
+        assertEquals(2, busA.published);
+    }
+
+    @Test
+    void testTopicAndContactFiltersOnlyReceiveMatchingEvents() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        RecordingEmitter everything = new RecordingEmitter(5);
+        RecordingEmitter oneChat = new RecordingEmitter(3);
+        RecordingEmitter presenceOnly = new RecordingEmitter(3);
+        RecordingEmitter otherCompany = new RecordingEmitter(1);
+        service.subscribe("company-a", null, null, false, null, everything);
+        service.subscribe("company-a", Set.of("message", "message_status"), "5544999990001@c.us", false, null, oneChat);
+        service.subscribe("company-a", Set.of("chat_presence"), null, false, null, presenceOnly);
+        service.subscribe("company-b", null, null, false, null, otherCompany);
+
+        service.publish("company-a", "5544999990001", Map.of("type", "message", "n", 1));
+        service.publish("company-a", "5544999990002", Map.of("type", "message", "n", 2));
+        service.publish("company-a", "5544999990001", Map.of("type", "chat_presence", "instanceId", "i", "phone", "5544999990001"));
+        service.publish("company-a", "5544999990002", Map.of("type", "chat_presence", "instanceId", "i", "phone", "5544999990002"));
+        service.publish("company-a", "5544999990001", Map.of("type", "message_status", "n", 3));
+
+        assertTrue(everything.done.await(5, TimeUnit.SECONDS));
+        assertTrue(oneChat.done.await(5, TimeUnit.SECONDS));
+        assertTrue(presenceOnly.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(6, everything.frames.size());
+        assertEquals(3, oneChat.frames.size());
+        assertTrue(oneChat.frames.get(1).contains("\"n\":1"));
+        assertTrue(oneChat.frames.get(2).contains("\"n\":3"));
+        assertEquals(3, presenceOnly.frames.size());
+        assertTrue(presenceOnly.frames.stream().skip(1).allMatch(f -> f.contains("chat_presence")));
+        assertEquals(1, otherCompany.frames.size());
+        assertEquals(2, service.snapshot().get("filteredSubscribers"));
+    }
+
+    @Test
+    void testFilteredResumeReplaysOnlyMatchingFrames() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        service.subscribe("company-a", null, null, false, null, new RecordingEmitter(1));
+        for (int i = 1; i <= 6; i++) {
+            service.publish("company-a", i % 2 == 0 ? "1" : "2", Map.of("type", "message", "n", i));
+        }
+
+        RecordingEmitter resumed = new RecordingEmitter(3);
+        service.subscribe("company-a", Set.of("message"), "1", false, id(1), resumed);
+
+        assertTrue(resumed.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(4, resumed.frames.size());
+        assertTrue(resumed.frames.get(1).startsWith("id:" + id(2) + "\n"));
+        assertTrue(resumed.frames.get(3).startsWith("id:" + id(6) + "\n"));
+    }
+
+    @Test
+    void testUnroutedEventsAndUnknownTopicsAreRejected() {
+        service.publish(null, "1", Map.of("type", "message"));
+
+        assertEquals(1L, service.snapshot().get("unrouted"));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.subscribe("company-a", Set.of("typing"), null, false, null, new RecordingEmitter(1)));
+    }
+
+    @Test
+    void testBatchedSubscriberGetsStatusEventsInOneBatchFrame() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        ReflectionTestUtils.setField(service, "batchWindowMs", 200L);
+        RecordingEmitter batched = new RecordingEmitter(2);
+        RecordingEmitter plain = new RecordingEmitter(4);
+        service.subscribe("company-a", null, null, true, null, batched);
+        service.subscribe("company-a", null, null, false, null, plain);
+
+        for (int i = 1; i <= 3; i++) {
+            service.publish("company-a", "1", Map.of("type", "message_status", "n", i));
+        }
+
+        assertTrue(batched.done.await(5, TimeUnit.SECONDS));
+        assertTrue(plain.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(2, batched.frames.size());
+        String frame = batched.frames.get(1);
+        assertTrue(frame.startsWith("id:" + id(3) + "\nevent:batch\n"), frame);
+        assertTrue(frame.contains("\ndata:[{"), frame);
+        assertEquals(List.of("1", "2", "3"), numbers(frame));
+        assertEquals(4, plain.frames.size());
+        assertEquals(1L, service.snapshot().get("batchFrames"));
+        assertEquals(3L, service.snapshot().get("batchedEvents"));
+    }
+
+    @Test
+    void testMessageEventBypassesBatchWindowInOrder() throws Exception {
+        ReflectionTestUtils.setField(service, "queueCapacity", 64);
+        ReflectionTestUtils.setField(service, "batchWindowMs", 300L);
+        RecordingEmitter batched = new RecordingEmitter(4);
+        service.subscribe("company-a", null, null, true, null, batched);
+
+        long start = System.nanoTime();
+        service.publish("company-a", "1", Map.of("type", "message_status", "n", 1));
+        service.publish("company-a", "1", Map.of("type", "message_status", "n", 2));
+        service.publish("company-a", "1", Map.of("type", "message", "n", 3));
+        service.publish("company-a", "1", Map.of("type", "message_status", "n", 4));
+
+        assertTrue(batched.done.await(5, TimeUnit.SECONDS));
+        assertEquals(4, batched.frames.size());
+        assertTrue(batched.frames.get(1).contains("event:batch\n"));
+        assertEquals(List.of("1", "2"), numbers(batched.frames.get(1)));
+        assertTrue(batched.frames.get(2).contains("\"type\":\"message\""));
+        assertEquals(List.of("3"), numbers(batched.frames.get(2)));
+        // The lone trailing status still waits for its window before going out as a plain event
+        assertFalse(batched.frames.get(3).contains("event:batch\n"));
+        assertEquals(List.of("4"), numbers(batched.frames.get(3)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+    }
+
+    @Test
+    void testBatchFrameJoinsMultiLineData() {
+        SseFrame a = SseFrame.encode("n-1", "message_status", "{\"a\":\n1}".getBytes(StandardCharsets.UTF_8));
+        SseFrame b = SseFrame.encode("n-2", "message_status", "{\"b\":2}".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("id:n-2\nevent:batch\nretry:8000\ndata:[{\"a\":\ndata:1},{\"b\":2}]\n\n",
+                SseFrame.batch(List.of(a, b)).toString());
+    }
+
+    @Test
+    void testHeartbeatPingsIdleSubscribersAsComments() throws Exception {
+        ReflectionTestUtils.setField(service, "heartbeatIntervalMs", 0L);
+        RecordingEmitter emitter = new RecordingEmitter(2);
+        service.subscribe("company-a", null, null, false, null, emitter);
+        Thread.sleep(100);
+
+        service.heartbeat();
+
+        assertTrue(emitter.done.await(5, TimeUnit.SECONDS));
+        assertEquals(":ping\n\n", emitter.frames.get(1));
+        assertEquals(1L, service.snapshot().get("pings"));
+        assertEquals(1L, service.snapshot().get("sent"));
+    }
+
+    @Test
+    void testReaperClosesSubscriberStuckOnWrite() throws Exception {
+        ReflectionTestUtils.setField(service, "idleTimeoutMs", 50L);
+        SlowEmitter stuck = new SlowEmitter();
+        RecordingEmitter healthy = new RecordingEmitter(1);
+        service.subscribe("company-a", null, null, false, null, stuck);
+        service.subscribe("company-b", null, null, false, null, healthy);
+        assertTrue(stuck.entered.await(5, TimeUnit.SECONDS));
+        assertTrue(healthy.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Map.of("company-a", 1, "company-b", 1), service.snapshot().get("subscribersByCompany"));
+        Thread.sleep(100);
+
+        service.heartbeat();
+
+        Map<String, Object> stats = service.snapshot();
+        assertEquals(1L, stats.get("reaped"));
+        assertEquals(Map.of("company-b", 1), stats.get("subscribersByCompany"));
+        assertEquals(bus.nodeId(), stats.get("node"));
+    }
+
+    private static List<String> numbers(String frame) {
+        List<String> out = new ArrayList<>();
+        Matcher m = N.matcher(frame);
+        while (m.find()) out.add(m.group(1));
+        return out;
+    }
+
+    private String id(long seq) {
+        return bus.nodeId() + "-" + seq;
+    }
+
+    // Synchronous in-memory stand-in for the Postgres bus between two nodes
+    private static class PairedBus implements ClusterEventBus {
+        private final String nodeId;
+        private PairedBus peer;
+        private RemoteHandler handler;
+        private int published;
+        private Event last;
+
+        PairedBus(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public String nodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public void publish(Event event) {
+            published++;
+            last = event;
+            peer.handler.deliver(event);
+        }
+
+        @Override
+        public void onRemote(RemoteHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public Map<String, Object> snapshot() {
+            return Map.of("type", "paired");
+        }
+    }
+
+    private static class RecordingEmitter extends SseEmitter {
+        final List<String> frames = new CopyOnWriteArrayList<>();
+        final CountDownLatch done;
+
+        RecordingEmitter(int expected) {
+            super(0L);
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void send(Set<DataWithMediaType> items) {
+            items.forEach(item -> frames.add(new String((byte[]) item.getData(), StandardCharsets.UTF_8)));
+            done.countDown();
+        }
+    }
+
+    // Blocks inside the first send, like a browser on a stalled connection
+    private class SlowEmitter extends SseEmitter {
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        SlowEmitter() {
+            super(0L);
+        }
+
+        @Override
+        public void send(Set<DataWithMediaType> items) throws IOException {
+            entered.countDown();
+            try {
+                unblock.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
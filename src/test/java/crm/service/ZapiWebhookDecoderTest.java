@@ -0,0 +1,114 @@
+package crm.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import crm.dto.IncomingZapiEvent;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZapiWebhookDecoderTest {
+
+    private final ZapiWebhookDecoder decoder = new ZapiWebhookDecoder(new ObjectMapper());
+
+    @Test
+    void testReceivedText() throws IOException {
+        IncomingZapiEvent event = decoder.decode(sample("received-text"));
+        Map<String, Object> adapted = decoder.adapt(event);
+
+        assertEquals("3C4F2A9B1D8E7F60A5B4C3D2E1F00918", event.getInstanceId());
+        assertEquals("3EB0C767D71D5B4E8A21", adapted.get("id"));
+        assertEquals("5544999999999", adapted.get("contactId"));
+        assertEquals("Olá, gostaria de saber o status do pedido 4587123", adapted.get("content"));
+        assertEquals("text", adapted.get("messageType"));
+        assertEquals("RECEIVED", adapted.get("status"));
+        assertEquals(false, adapted.get("isFromMe"));
+        assertEquals("1717171717000", adapted.get("timestamp"));
+        assertEquals("5544999999999", decoder.rawPhone(event));
+    }
+
+    @Test
+    void testReceivedMedia() throws IOException {
+        Map<String, Object> image = decoder.adapt(decoder.decode(sample("received-image")));
+        assertEquals("image", image.get("messageType"));
+        assertEquals("comprovante", image.get("content"));
+
+        Map<String, Object> audio = decoder.adapt(decoder.decode(sample("received-audio")));
+        assertEquals("audio", audio.get("messageType"));
+        assertEquals("https://storage.z-api.io/instances/3C4F2A9B/audio.ogg", audio.get("content"));
+
+        // empty caption falls back to the media url
+        Map<String, Object> video = decoder.adapt(decoder.decode(sample("received-video")));
+        assertEquals("video", video.get("messageType"));
+        assertEquals("https://storage.z-api.io/instances/3C4F2A9B/video.mp4", video.get("content"));
+
+        Map<String, Object> list = decoder.adapt(decoder.decode(sample("received-list")));
+        assertEquals("list", list.get("messageType"));
+        assertEquals("Falar com atendente", list.get("content"));
+    }
+
+    @Test
+    void testMessagesArrayUsesFirstElement() throws IOException {
+        Map<String, Object> adapted = decoder.adapt(decoder.decode(sample("received-messages-array")));
+
+        assertEquals("wamid.HBgMNTU0NDkzMzMzMzMzFQIAEhggQTk", adapted.get("id"));
+        assertEquals("5544933333333", adapted.get("contactId"));
+        assertEquals("Bom dia!", adapted.get("content"));
+        assertEquals("2024-05-31T16:16:40Z", adapted.get("timestamp"));
+        assertEquals("received", adapted.get("status"));
+    }
+
+    @Test
+    void testPresenceAndStatusCallbacks() throws IOException {
+        IncomingZapiEvent presence = decoder.decode(sample("presence"));
+        assertTrue(presence.isType("PresenceChatCallback"));
+        assertEquals("COMPOSING", presence.getStatus());
+        assertEquals(1717172300000L, presence.getLastSeen());
+        assertNull(decoder.adapt(presence));
+
+        IncomingZapiEvent status = decoder.decode(sample("message-status"));
+        assertTrue(status.isType("MessageStatusCallback"));
+        assertEquals(List.of("3EB0C767D71D5B4E8A21", "3EB0A1B2C3D4E5F60718"), status.getIds());
+        assertEquals(0, status.getPhoneDevice());
+        assertEquals(1717172400000L, status.getMommentMillis());
+        assertFalse(status.isGroup());
+    }
+
+    @Test
+    void testNativeMessageAndReuse() throws IOException {
+        IncomingZapiEvent event = new IncomingZapiEvent();
+        assertTrue(decoder.decodeInto(sample("received-text"), event));
+
+        byte[] nativeBody = ("{\"type\":\"message\",\"message\":{\"id\":\"m1\",\"contactId\":\"5511988887777\","
+                + "\"content\":\"oi\",\"isFromMe\":true,\"messageType\":\"text\",\"extra\":{\"a\":[1,2]}}}")
+                .getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.decodeInto(nativeBody, event));
+
+        assertTrue(event.isType("message"));
+        assertNull(event.getInstanceId());
+        assertFalse(event.isTextPresent());
+        assertEquals("5511988887777", event.getMessage().getContactId());
+        assertEquals("oi", event.getMessage().getContent());
+        assertEquals(Boolean.TRUE, event.getMessage().getIsFromMe());
+    }
+
+    @Test
+    void testEmptyOrInvalidBody() throws IOException {
+        IncomingZapiEvent event = new IncomingZapiEvent();
+        assertFalse(decoder.decodeInto(new byte[0], event));
+        assertFalse(decoder.decodeInto("{}".getBytes(StandardCharsets.UTF_8), event));
+        assertFalse(decoder.decodeInto("[1,2]".getBytes(StandardCharsets.UTF_8), event));
+    }
+
+    private byte[] sample(String name) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/zapi/" + name + ".json")) {
+            assertNotNull(in, name);
+            return in.readAllBytes();
+        }
+    }
+}